@@ -0,0 +1,26 @@
+package se.danielkonsult.fsm4j.benchmarks;
+
+/**
+ * Context shared by the states of the benchmarked state machines.
+ */
+public class BenchContext {
+
+    private int guardValue;
+    private int counter;
+
+    public int getGuardValue() {
+        return guardValue;
+    }
+
+    public void setGuardValue(final int guardValue) {
+        this.guardValue = guardValue;
+    }
+
+    public int getCounter() {
+        return counter;
+    }
+
+    public void setCounter(final int counter) {
+        this.counter = counter;
+    }
+}
@@ -0,0 +1,90 @@
+package se.danielkonsult.fsm4j.benchmarks;
+
+import se.danielkonsult.fsm4j.FsmState;
+import se.danielkonsult.fsm4j.StateMachine;
+
+/**
+ * The states of the benchmarked state machines. They don't do anything when entered or exited, so the benchmarks only measure
+ * the state machine itself.
+ */
+public final class BenchStates {
+
+    public static class NoopState implements FsmState<Object, BenchContext> {
+        @Override
+        public void entering(final StateMachine<Object, BenchContext> stateMachine, final BenchContext context) {
+        }
+
+        @Override
+        public void exiting() {
+        }
+    }
+
+    public static class S0 extends NoopState {
+    }
+
+    public static class S1 extends NoopState {
+    }
+
+    public static class S2 extends NoopState {
+    }
+
+    public static class S3 extends NoopState {
+    }
+
+    public static class S4 extends NoopState {
+    }
+
+    public static class S5 extends NoopState {
+    }
+
+    public static class S6 extends NoopState {
+    }
+
+    public static class S7 extends NoopState {
+    }
+
+    public static class S8 extends NoopState {
+    }
+
+    public static class S9 extends NoopState {
+    }
+
+    public static class S10 extends NoopState {
+    }
+
+    public static class S11 extends NoopState {
+    }
+
+    public static class S12 extends NoopState {
+    }
+
+    public static class S13 extends NoopState {
+    }
+
+    public static class S14 extends NoopState {
+    }
+
+    public static class S15 extends NoopState {
+    }
+
+    /**
+     * State that keeps firing a trigger back to itself until the counter of the context has reached zero.
+     */
+    public static class ChainState extends NoopState {
+        @Override
+        public void entering(final StateMachine<Object, BenchContext> stateMachine, final BenchContext context) {
+            if (context.getCounter() > 0) {
+                context.setCounter(context.getCounter() - 1);
+                stateMachine.trigger(BenchTrigger.T1);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public static final Class<? extends FsmState<Object, BenchContext>>[] STATES = new Class[] { S0.class, S1.class, S2.class,
+            S3.class, S4.class, S5.class, S6.class, S7.class, S8.class, S9.class, S10.class, S11.class, S12.class, S13.class,
+            S14.class, S15.class };
+
+    private BenchStates() {
+    }
+}
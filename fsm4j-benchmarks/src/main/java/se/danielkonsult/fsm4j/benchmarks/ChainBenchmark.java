@@ -0,0 +1,80 @@
+package se.danielkonsult.fsm4j.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import se.danielkonsult.fsm4j.StateLifecycle;
+import se.danielkonsult.fsm4j.StateMachine;
+
+/**
+ * Measures chains of transitions where each state fires the next trigger from its entering method, both when the triggers are
+ * handled recursively and when they are queued in run-to-completion mode.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChainBenchmark {
+
+    @Param({ "10", "1000" })
+    public int chainLength;
+
+    private StateMachine<Object, BenchContext> recursiveMachine;
+    private StateMachine<Object, BenchContext> runToCompletionMachine;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        recursiveMachine = createMachine(false);
+        runToCompletionMachine = createMachine(true);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        recursiveMachine.stop();
+        runToCompletionMachine.stop();
+    }
+
+    private static StateMachine<Object, BenchContext> createMachine(final boolean runToCompletion) {
+        final StateMachine<Object, BenchContext> stateMachine = new StateMachine<>(new BenchContext());
+        stateMachine.setRunToCompletion(runToCompletion);
+        stateMachine.state(BenchStates.S0.class).lifecycle(StateLifecycle.SINGLETON).isInitialState()
+                .on(BenchTrigger.T0).goesTo(BenchStates.ChainState.class);
+        stateMachine.state(BenchStates.ChainState.class).lifecycle(StateLifecycle.SINGLETON)
+                .on(BenchTrigger.T1).goesTo(BenchStates.ChainState.class)
+                .on(BenchTrigger.T2).goesTo(BenchStates.S0.class);
+        stateMachine.start();
+        return stateMachine;
+    }
+
+    private Object runChain(final StateMachine<Object, BenchContext> stateMachine) {
+        stateMachine.getContext().setCounter(chainLength);
+        stateMachine.trigger(BenchTrigger.T0);
+        stateMachine.trigger(BenchTrigger.T2);
+        return stateMachine.getCurrentState();
+    }
+
+    @Benchmark
+    public Object recursive() {
+        return runChain(recursiveMachine);
+    }
+
+    @Benchmark
+    public Object runToCompletion() {
+        return runChain(runToCompletionMachine);
+    }
+}
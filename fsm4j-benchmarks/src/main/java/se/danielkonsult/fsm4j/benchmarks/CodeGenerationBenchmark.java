@@ -0,0 +1,132 @@
+package se.danielkonsult.fsm4j.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import se.danielkonsult.fsm4j.Guard;
+import se.danielkonsult.fsm4j.StateConfiguration;
+import se.danielkonsult.fsm4j.StateLifecycle;
+import se.danielkonsult.fsm4j.StateMachine;
+
+/**
+ * Compares triggers that are dispatched by the transition table with triggers that are dispatched by a generated dispatcher, see
+ * {@link StateMachine#setCodeGeneration(boolean)}.
+ *
+ * The guarded machine uses guards of several different classes, like a real configuration would, so the call site in the
+ * transition table that evaluates them becomes megamorphic, while every guard has a call site of its own in the generated
+ * dispatcher.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodeGenerationBenchmark {
+
+    /**
+     * Pairs of mutually exclusive guards, where the second guard of a pair is the one that passes. Each guard is a class of its
+     * own.
+     */
+    @SuppressWarnings("unchecked")
+    private static final Guard<BenchContext>[][] GUARD_PAIRS = new Guard[][] {
+            pair(context -> context.getGuardValue() < 0, context -> context.getGuardValue() >= 0),
+            pair(context -> context.getGuardValue() > 100, context -> context.getGuardValue() <= 100),
+            pair(context -> context.getCounter() < 0, context -> context.getCounter() >= 0),
+            pair(context -> context.getGuardValue() == -1, context -> context.getGuardValue() != -1) };
+
+    @Param({ "false", "true" })
+    public boolean codeGeneration;
+
+    @Param({ "4", "16" })
+    public int stateCount;
+
+    @Param({ "16" })
+    public int triggerCardinality;
+
+    private StateMachine<Object, BenchContext> unguardedMachine;
+    private StateMachine<Object, BenchContext> guardedMachine;
+    private Object[] triggers;
+    private int index;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        triggers = new Object[triggerCardinality];
+        for (int i = 0; i < triggerCardinality; i++) {
+            triggers[i] = BenchTrigger.values()[i];
+        }
+        unguardedMachine = createMachine(false);
+        guardedMachine = createMachine(true);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        unguardedMachine.stop();
+        guardedMachine.stop();
+    }
+
+    private StateMachine<Object, BenchContext> createMachine(final boolean guarded) {
+        final StateMachine<Object, BenchContext> stateMachine = new StateMachine<>(new BenchContext());
+        for (int stateIndex = 0; stateIndex < stateCount; stateIndex++) {
+            final StateConfiguration<Object, BenchContext> state = stateMachine.state(BenchStates.STATES[stateIndex])
+                    .lifecycle(StateLifecycle.SINGLETON);
+            if (stateIndex == 0) {
+                state.isInitialState();
+            }
+            for (int triggerIndex = 0; triggerIndex < triggers.length; triggerIndex++) {
+                final int target = (stateIndex + triggerIndex + 1) % stateCount;
+                if (guarded) {
+                    final Guard<BenchContext>[] guards = GUARD_PAIRS[(stateIndex + triggerIndex) % GUARD_PAIRS.length];
+                    state.on(triggers[triggerIndex], guards[0]).goesTo(BenchStates.STATES[(target + 1) % stateCount]);
+                    state.on(triggers[triggerIndex], guards[1]).goesTo(BenchStates.STATES[target]);
+                } else {
+                    state.on(triggers[triggerIndex]).goesTo(BenchStates.STATES[target]);
+                }
+            }
+        }
+        stateMachine.setGuardVerification(false);
+        stateMachine.setCodeGeneration(codeGeneration);
+        if (stateMachine.getDefinition().isCodeGenerated() != codeGeneration) {
+            throw new IllegalStateException("No dispatcher could be generated, a JDK is needed to run this benchmark",
+                    stateMachine.getDefinition().getCodeGenerationFailure());
+        }
+        stateMachine.start();
+        return stateMachine;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Guard<BenchContext>[] pair(final Guard<BenchContext> failing, final Guard<BenchContext> passing) {
+        return new Guard[] { failing, passing };
+    }
+
+    private int nextIndex() {
+        final int next = index + 1;
+        index = next == triggerCardinality ? 0 : next;
+        return next - 1;
+    }
+
+    @Benchmark
+    public Object unguarded() {
+        unguardedMachine.trigger(triggers[nextIndex()]);
+        return unguardedMachine.getCurrentState();
+    }
+
+    @Benchmark
+    public Object guarded() {
+        guardedMachine.trigger(triggers[nextIndex()]);
+        return guardedMachine.getCurrentState();
+    }
+}
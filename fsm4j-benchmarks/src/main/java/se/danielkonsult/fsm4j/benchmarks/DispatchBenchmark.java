@@ -0,0 +1,119 @@
+package se.danielkonsult.fsm4j.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import se.danielkonsult.fsm4j.StateConfiguration;
+import se.danielkonsult.fsm4j.StateLifecycle;
+import se.danielkonsult.fsm4j.StateMachine;
+
+/**
+ * Measures the cost of firing a single trigger, depending on the number of states, the number of distinct triggers, the kind of
+ * trigger (enum or not) and whether the transitions are guarded.
+ *
+ * Every state has a transition for every trigger, so no trigger is ever invalid. States are singletons, so the numbers don't
+ * include the cost of resolving states, see {@link ResolverBenchmark} for that.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+
+    @Param({ "2", "16" })
+    public int stateCount;
+
+    @Param({ "4", "64" })
+    public int triggerCardinality;
+
+    private StateMachine<Object, BenchContext> enumMachine;
+    private StateMachine<Object, BenchContext> integerMachine;
+    private StateMachine<Object, BenchContext> guardedMachine;
+    private Object[] enumTriggers;
+    private Object[] integerTriggers;
+    private int index;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        enumTriggers = new Object[triggerCardinality];
+        integerTriggers = new Object[triggerCardinality];
+        for (int i = 0; i < triggerCardinality; i++) {
+            enumTriggers[i] = BenchTrigger.values()[i];
+            integerTriggers[i] = Integer.valueOf(i);
+        }
+        enumMachine = createMachine(enumTriggers, false);
+        integerMachine = createMachine(integerTriggers, false);
+        guardedMachine = createMachine(enumTriggers, true);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        enumMachine.stop();
+        integerMachine.stop();
+        guardedMachine.stop();
+    }
+
+    private StateMachine<Object, BenchContext> createMachine(final Object[] triggers, final boolean guarded) {
+        final StateMachine<Object, BenchContext> stateMachine = new StateMachine<>(new BenchContext());
+        for (int stateIndex = 0; stateIndex < stateCount; stateIndex++) {
+            final StateConfiguration<Object, BenchContext> state = stateMachine.state(BenchStates.STATES[stateIndex])
+                    .lifecycle(StateLifecycle.SINGLETON);
+            if (stateIndex == 0) {
+                state.isInitialState();
+            }
+            for (int triggerIndex = 0; triggerIndex < triggers.length; triggerIndex++) {
+                final int target = (stateIndex + triggerIndex + 1) % stateCount;
+                if (guarded) {
+                    // Two mutually exclusive guards, where the second one is the one that passes
+                    state.on(triggers[triggerIndex], context -> context.getGuardValue() < 0)
+                            .goesTo(BenchStates.STATES[(target + 1) % stateCount]);
+                    state.on(triggers[triggerIndex], context -> context.getGuardValue() >= 0)
+                            .goesTo(BenchStates.STATES[target]);
+                } else {
+                    state.on(triggers[triggerIndex]).goesTo(BenchStates.STATES[target]);
+                }
+            }
+        }
+        stateMachine.start();
+        return stateMachine;
+    }
+
+    private int nextIndex() {
+        final int next = index + 1;
+        index = next == triggerCardinality ? 0 : next;
+        return next - 1;
+    }
+
+    @Benchmark
+    public Object enumUnguarded() {
+        enumMachine.trigger(enumTriggers[nextIndex()]);
+        return enumMachine.getCurrentState();
+    }
+
+    @Benchmark
+    public Object integerUnguarded() {
+        integerMachine.trigger(integerTriggers[nextIndex()]);
+        return integerMachine.getCurrentState();
+    }
+
+    @Benchmark
+    public Object enumGuarded() {
+        guardedMachine.trigger(enumTriggers[nextIndex()]);
+        return guardedMachine.getCurrentState();
+    }
+}
@@ -0,0 +1,119 @@
+package se.danielkonsult.fsm4j.benchmarks;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import se.danielkonsult.fsm4j.FsmExecutors;
+import se.danielkonsult.fsm4j.StateLifecycle;
+import se.danielkonsult.fsm4j.StateMachine;
+import se.danielkonsult.fsm4j.StateMachineDefinition;
+import se.danielkonsult.fsm4j.StateMachineEngine;
+
+/**
+ * Measures the throughput of firing triggers from several threads, both at many state machines in an engine and at a single
+ * state machine in concurrent mode.
+ *
+ * Triggers fired at the engine are processed asynchronously, so every producer thread waits for its triggers to be processed at
+ * regular intervals. Otherwise the benchmark would only measure how fast triggers can be queued. The same goes for the concurrent
+ * state machine, which is drained on a single thread of its own. Without an executor, the producer that finds it idle would keep
+ * draining for as long as the other producers keep firing.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class EngineBenchmark {
+
+    private static final int SYNC_INTERVAL = 1024;
+
+    /**
+     * The state of each producer thread.
+     */
+    @State(Scope.Thread)
+    public static class Producer {
+
+        private static int nextId;
+
+        private int id;
+        private int sequence;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            synchronized (Producer.class) {
+                id = nextId++;
+            }
+        }
+    }
+
+    @Param({ "1024" })
+    public int machineCount;
+
+    private StateMachineEngine<Integer, Object, BenchContext> engine;
+    private StateMachine<Object, BenchContext> concurrentMachine;
+    private final ExecutorService executor = FsmExecutors.newDaemonThreadPool(1);
+
+    @Setup(Level.Trial)
+    public void setup() {
+        engine = new StateMachineEngine<>(createMachine().getDefinition(), key -> new BenchContext());
+        engine.start();
+
+        concurrentMachine = createMachine();
+        concurrentMachine.setConcurrent(true);
+        concurrentMachine.setExecutor(executor);
+        concurrentMachine.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        engine.stop();
+        // Wait for the executor to finish draining before the concurrent state machine is stopped
+        concurrentMachine.triggerAsync(BenchTrigger.T0).join();
+        concurrentMachine.stop();
+        executor.shutdown();
+    }
+
+    private static StateMachine<Object, BenchContext> createMachine() {
+        final StateMachine<Object, BenchContext> stateMachine = new StateMachine<>(new BenchContext());
+        stateMachine.state(BenchStates.S0.class).lifecycle(StateLifecycle.SINGLETON).isInitialState()
+                .on(BenchTrigger.T0).goesTo(BenchStates.S1.class);
+        stateMachine.state(BenchStates.S1.class).lifecycle(StateLifecycle.SINGLETON)
+                .on(BenchTrigger.T0).goesTo(BenchStates.S0.class);
+        return stateMachine;
+    }
+
+    @Benchmark
+    public void engine(final Producer producer) {
+        final Integer key = Integer.valueOf((producer.id * 31 + producer.sequence) % machineCount);
+        engine.trigger(key, BenchTrigger.T0);
+        if (++producer.sequence % SYNC_INTERVAL == 0) {
+            engine.query(key, stateMachine -> null).join();
+        }
+    }
+
+    @Benchmark
+    public void concurrentMachine(final Producer producer) {
+        if (++producer.sequence % SYNC_INTERVAL == 0) {
+            concurrentMachine.triggerAsync(BenchTrigger.T0).join();
+        } else {
+            concurrentMachine.trigger(BenchTrigger.T0);
+        }
+    }
+}
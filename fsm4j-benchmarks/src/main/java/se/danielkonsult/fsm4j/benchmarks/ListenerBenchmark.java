@@ -0,0 +1,80 @@
+package se.danielkonsult.fsm4j.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import se.danielkonsult.fsm4j.FsmState;
+import se.danielkonsult.fsm4j.StateLifecycle;
+import se.danielkonsult.fsm4j.StateMachine;
+import se.danielkonsult.fsm4j.StateMachineListener;
+
+/**
+ * Measures the overhead of a listener on a transition, compared to a state machine without any listener.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ListenerBenchmark {
+
+    private StateMachine<Object, BenchContext> withoutListener;
+    private StateMachine<Object, BenchContext> withListener;
+
+    @Setup(Level.Trial)
+    public void setup(final Blackhole blackhole) {
+        withoutListener = createMachine();
+        withListener = createMachine();
+        withListener.setListener(new StateMachineListener<Object, BenchContext>() {
+            @Override
+            public void onTransitioning(final BenchContext context,
+                    final Class<? extends FsmState<Object, BenchContext>> sourceState,
+                    final Class<? extends FsmState<Object, BenchContext>> targetState) {
+                blackhole.consume(targetState);
+            }
+        });
+        withoutListener.start();
+        withListener.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        withoutListener.stop();
+        withListener.stop();
+    }
+
+    private static StateMachine<Object, BenchContext> createMachine() {
+        final StateMachine<Object, BenchContext> stateMachine = new StateMachine<>(new BenchContext());
+        stateMachine.state(BenchStates.S0.class).lifecycle(StateLifecycle.SINGLETON).isInitialState()
+                .on(BenchTrigger.T0).goesTo(BenchStates.S1.class);
+        stateMachine.state(BenchStates.S1.class).lifecycle(StateLifecycle.SINGLETON)
+                .on(BenchTrigger.T0).goesTo(BenchStates.S0.class);
+        return stateMachine;
+    }
+
+    @Benchmark
+    public Object listenerOff() {
+        withoutListener.trigger(BenchTrigger.T0);
+        return withoutListener.getCurrentState();
+    }
+
+    @Benchmark
+    public Object listenerOn() {
+        withListener.trigger(BenchTrigger.T0);
+        return withListener.getCurrentState();
+    }
+}
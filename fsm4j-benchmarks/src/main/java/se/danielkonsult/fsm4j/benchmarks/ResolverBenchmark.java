@@ -0,0 +1,113 @@
+package se.danielkonsult.fsm4j.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+
+import se.danielkonsult.fsm4j.FsmException;
+import se.danielkonsult.fsm4j.FsmState;
+import se.danielkonsult.fsm4j.StateLifecycle;
+import se.danielkonsult.fsm4j.StateMachine;
+import se.danielkonsult.fsm4j.StateResolver;
+
+/**
+ * Measures a transition between two states, where a new state instance is resolved on every entry, for a number of state
+ * resolvers: the default resolver, plain reflection (which is what the default resolver used to do), and Guice. The singleton
+ * variant doesn't resolve anything on entry and is the baseline.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResolverBenchmark {
+
+    private StateMachine<Object, BenchContext> defaultMachine;
+    private StateMachine<Object, BenchContext> reflectiveMachine;
+    private StateMachine<Object, BenchContext> guiceMachine;
+    private StateMachine<Object, BenchContext> singletonMachine;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        defaultMachine = createMachine(null, StateLifecycle.PER_ENTRY);
+        reflectiveMachine = createMachine(new StateResolver<Object, BenchContext>() {
+            @Override
+            public FsmState<Object, BenchContext> resolve(final Class<? extends FsmState<Object, BenchContext>> clss) {
+                try {
+                    return clss.getConstructor().newInstance();
+                } catch (final ReflectiveOperationException e) {
+                    throw new FsmException(String.format("Could not instantiate state class %s", clss.getName()), e);
+                }
+            }
+        }, StateLifecycle.PER_ENTRY);
+        final Injector injector = Guice.createInjector();
+        guiceMachine = createMachine(new StateResolver<Object, BenchContext>() {
+            @Override
+            public FsmState<Object, BenchContext> resolve(final Class<? extends FsmState<Object, BenchContext>> clss) {
+                return injector.getInstance(clss);
+            }
+        }, StateLifecycle.PER_ENTRY);
+        singletonMachine = createMachine(null, StateLifecycle.SINGLETON);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        defaultMachine.stop();
+        reflectiveMachine.stop();
+        guiceMachine.stop();
+        singletonMachine.stop();
+    }
+
+    private static StateMachine<Object, BenchContext> createMachine(final StateResolver<Object, BenchContext> stateResolver,
+            final StateLifecycle lifecycle) {
+        final StateMachine<Object, BenchContext> stateMachine = new StateMachine<>(new BenchContext());
+        if (stateResolver != null) {
+            stateMachine.setStateResolver(stateResolver);
+        }
+        stateMachine.state(BenchStates.S0.class).lifecycle(lifecycle).isInitialState()
+                .on(BenchTrigger.T0).goesTo(BenchStates.S1.class);
+        stateMachine.state(BenchStates.S1.class).lifecycle(lifecycle)
+                .on(BenchTrigger.T0).goesTo(BenchStates.S0.class);
+        stateMachine.start();
+        return stateMachine;
+    }
+
+    @Benchmark
+    public Object defaultResolver() {
+        defaultMachine.trigger(BenchTrigger.T0);
+        return defaultMachine.getCurrentState();
+    }
+
+    @Benchmark
+    public Object reflectiveResolver() {
+        reflectiveMachine.trigger(BenchTrigger.T0);
+        return reflectiveMachine.getCurrentState();
+    }
+
+    @Benchmark
+    public Object guiceResolver() {
+        guiceMachine.trigger(BenchTrigger.T0);
+        return guiceMachine.getCurrentState();
+    }
+
+    @Benchmark
+    public Object singletonStates() {
+        singletonMachine.trigger(BenchTrigger.T0);
+        return singletonMachine.getCurrentState();
+    }
+}
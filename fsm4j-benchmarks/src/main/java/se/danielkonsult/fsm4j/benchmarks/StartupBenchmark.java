@@ -0,0 +1,135 @@
+package se.danielkonsult.fsm4j.benchmarks;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import se.danielkonsult.fsm4j.Guard;
+import se.danielkonsult.fsm4j.StateConfiguration;
+import se.danielkonsult.fsm4j.StateLifecycle;
+import se.danielkonsult.fsm4j.StateMachine;
+import se.danielkonsult.fsm4j.StateMachineLoader;
+import se.danielkonsult.fsm4j.TransitionAction;
+import se.danielkonsult.fsm4j.TransitionTable;
+
+/**
+ * Compares the start-up cost of a state machine that is configured through code, with one that is loaded from a definition file
+ * that is parsed, and one that is loaded through the binary cache of the file, see
+ * {@link StateMachineLoader#load(StateMachine, Path, Path)}. Each benchmark configures a new state machine and compiles its
+ * transition table.
+ *
+ * The definition file hasn't been modified since long before its cache was compiled, like on a deployed service, so the cache is
+ * trusted without reading the file.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StartupBenchmark {
+
+    private static final Guard<BenchContext> GUARD = context -> context.getGuardValue() >= 0;
+    private static final TransitionAction<BenchContext> ACTION = (context, payload) -> context
+            .setCounter(context.getCounter() + 1);
+
+    @Param({ "16" })
+    public int stateCount;
+
+    @Param({ "16", "64" })
+    public int triggerCardinality;
+
+    private Path directory;
+    private Path source;
+    private Path cache;
+    private StateMachineLoader<Object, BenchContext> loader;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        final StringBuilder definition = new StringBuilder();
+        for (int stateIndex = 0; stateIndex < stateCount; stateIndex++) {
+            definition.append("state ").append(BenchStates.STATES[stateIndex].getName())
+                    .append(stateIndex == 0 ? " initial" : "").append(" lifecycle SINGLETON\n");
+            for (int triggerIndex = 0; triggerIndex < triggerCardinality; triggerIndex++) {
+                definition.append("    on ").append(BenchTrigger.values()[triggerIndex]).append(" when positive goto ")
+                        .append(BenchStates.STATES[target(stateIndex, triggerIndex)].getName()).append(" do count\n");
+            }
+        }
+        directory = Files.createTempDirectory("fsm4j-startup");
+        source = directory.resolve("bench.fsm");
+        cache = directory.resolve("bench.fsmc");
+        Files.write(source, definition.toString().getBytes(StandardCharsets.UTF_8));
+        Files.setLastModifiedTime(source, FileTime.fromMillis(System.currentTimeMillis() - TimeUnit.HOURS.toMillis(1)));
+        StateMachineLoader.compile(source, cache);
+
+        loader = new StateMachineLoader<Object, BenchContext>(BenchTrigger::valueOf).guard("positive", GUARD).action("count",
+                ACTION);
+        if (!loader.load(new StateMachine<Object, BenchContext>(new BenchContext()), source, cache)) {
+            throw new IllegalStateException("The definition wasn't loaded from the cache");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(cache);
+        Files.deleteIfExists(source);
+        Files.deleteIfExists(directory);
+    }
+
+    private int target(final int stateIndex, final int triggerIndex) {
+        return (stateIndex + triggerIndex + 1) % stateCount;
+    }
+
+    private static TransitionTable<Object, BenchContext> compile(final StateMachine<Object, BenchContext> stateMachine) {
+        stateMachine.setGuardVerification(false);
+        return stateMachine.compile();
+    }
+
+    @Benchmark
+    public TransitionTable<Object, BenchContext> code() {
+        final StateMachine<Object, BenchContext> stateMachine = new StateMachine<>(new BenchContext());
+        for (int stateIndex = 0; stateIndex < stateCount; stateIndex++) {
+            final StateConfiguration<Object, BenchContext> state = stateMachine.state(BenchStates.STATES[stateIndex])
+                    .lifecycle(StateLifecycle.SINGLETON);
+            if (stateIndex == 0) {
+                state.isInitialState();
+            }
+            for (int triggerIndex = 0; triggerIndex < triggerCardinality; triggerIndex++) {
+                state.on(BenchTrigger.values()[triggerIndex], GUARD).doing(ACTION)
+                        .goesTo(BenchStates.STATES[target(stateIndex, triggerIndex)]);
+            }
+        }
+        return compile(stateMachine);
+    }
+
+    @Benchmark
+    public TransitionTable<Object, BenchContext> parsed() {
+        final StateMachine<Object, BenchContext> stateMachine = new StateMachine<>(new BenchContext());
+        loader.load(stateMachine, source);
+        return compile(stateMachine);
+    }
+
+    @Benchmark
+    public TransitionTable<Object, BenchContext> cached() {
+        final StateMachine<Object, BenchContext> stateMachine = new StateMachine<>(new BenchContext());
+        loader.load(stateMachine, source, cache);
+        return compile(stateMachine);
+    }
+}
@@ -0,0 +1,303 @@
+package se.danielkonsult.fsm4j;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Listener that takes events off the trigger path, so that a slow listener doesn't add to the latency of transitions. The events
+ * are put in a bounded ring buffer and delivered in batches to a {@link BatchListener} on a thread of its own. What happens when
+ * the buffer is full is decided by the {@link ListenerOverflowPolicy}.
+ *
+ * The ring buffer is the bounded queue described by Dmitry Vyukov: every slot has a sequence number that tells producers when the
+ * slot is free and the consumer when it has been written, so any number of state machines can publish to it concurrently without
+ * locks. The slots are allocated up front and reused, so publishing an event doesn't allocate.
+ *
+ * An async listener never throws on invalid triggers, they are delivered as events like transitions. Use
+ * {@link InvalidTriggerPolicy#THROW} if invalid triggers should still throw.
+ *
+ * @param <TriggerType> The trigger type of the state machine
+ * @param <ContextType> The context type of the state machine
+ */
+public final class AsyncListener<TriggerType, ContextType> implements StateMachineListener<TriggerType, ContextType>, Closeable {
+
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    /**
+     * The maximum number of events in a batch.
+     */
+    public static final int MAX_BATCH_SIZE = 256;
+
+    /**
+     * One in this many events is kept by {@link ListenerOverflowPolicy#SAMPLE} once the buffer is half full.
+     */
+    public static final int SAMPLE_RATE = 8;
+
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long BLOCKED_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(10);
+
+    // Added to the tail when the listener is closed, so that no producer can claim a slot after the consumer has stopped
+    private static final long CLOSED_TAIL = 1L << 62;
+
+    private final BatchListener<TriggerType, ContextType> batchListener;
+    private final ListenerOverflowPolicy overflowPolicy;
+    private final int capacity;
+    private final int mask;
+    private final ListenerEvent<TriggerType, ContextType>[] slots;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong head = new AtomicLong();
+    private final LongAdder droppedCount = new LongAdder();
+    private volatile Thread thread;
+    private volatile boolean sleeping;
+    private volatile boolean closed;
+    private volatile Consumer<RuntimeException> errorHandler = e -> {
+        final Thread current = Thread.currentThread();
+        current.getUncaughtExceptionHandler().uncaughtException(current, e);
+    };
+
+    /**
+     * Creates an async listener with a buffer of {@link #DEFAULT_CAPACITY} events, that drops events when the buffer is full.
+     */
+    public AsyncListener(final BatchListener<TriggerType, ContextType> batchListener) {
+        this(batchListener, DEFAULT_CAPACITY, ListenerOverflowPolicy.DROP);
+    }
+
+    /**
+     * Creates an async listener. Events are buffered, but not delivered, until it has been started, see {@link #start()}.
+     *
+     * @param batchListener The listener that the events are delivered to.
+     * @param capacity The number of events that the buffer can hold, which is rounded up to a power of two.
+     * @param overflowPolicy What to do with events when the buffer is full.
+     */
+    @SuppressWarnings("unchecked")
+    public AsyncListener(final BatchListener<TriggerType, ContextType> batchListener, final int capacity,
+            final ListenerOverflowPolicy overflowPolicy) {
+        if (capacity < 2) {
+            throw new FsmException(String.format("The capacity of an async listener must be at least 2, not %d", capacity));
+        }
+        this.batchListener = batchListener;
+        this.overflowPolicy = overflowPolicy;
+        this.capacity = Integer.highestOneBit(capacity - 1) << 1;
+        this.mask = this.capacity - 1;
+        this.slots = new ListenerEvent[this.capacity];
+        this.sequences = new AtomicLongArray(this.capacity);
+        for (int i = 0; i < this.capacity; i++) {
+            slots[i] = new ListenerEvent<>();
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Starts the thread that delivers the events, unless that has already been done.
+     *
+     * @return This listener.
+     */
+    public synchronized AsyncListener<TriggerType, ContextType> start() {
+        if (thread == null && !closed) {
+            final Thread consumer = new Thread(this::run, "fsm4j-async-listener");
+            consumer.setDaemon(true);
+            thread = consumer;
+            consumer.start();
+        }
+        return this;
+    }
+
+    @Override
+    public void onTransitioning(final ContextType context, final Class<? extends FsmState<TriggerType, ContextType>> sourceState,
+            final Class<? extends FsmState<TriggerType, ContextType>> targetState) {
+        publish(ListenerEvent.Type.TRANSITION, context, null, sourceState, targetState);
+    }
+
+    @Override
+    public void onInvalidTrigger(final ContextType context, final TriggerType trigger,
+            final Class<? extends FsmState<TriggerType, ContextType>> stateClass) {
+        publish(ListenerEvent.Type.INVALID_TRIGGER, context, trigger, stateClass, null);
+    }
+
+    private void publish(final ListenerEvent.Type type, final ContextType context, final TriggerType trigger,
+            final Class<? extends FsmState<TriggerType, ContextType>> sourceState,
+            final Class<? extends FsmState<TriggerType, ContextType>> targetState) {
+        for (;;) {
+            if (closed) {
+                droppedCount.increment();
+                return;
+            }
+            final long position = tail.get();
+            if (position >= CLOSED_TAIL) {
+                // Closed after the check above, the consumer won't deliver anything past this position
+                droppedCount.increment();
+                return;
+            }
+            final int index = (int) position & mask;
+            final long sequence = sequences.get(index);
+            if (sequence == position) {
+                if (overflowPolicy == ListenerOverflowPolicy.SAMPLE && position - head.get() >= capacity / 2
+                        && ThreadLocalRandom.current().nextInt(SAMPLE_RATE) != 0) {
+                    droppedCount.increment();
+                    return;
+                }
+                if (tail.compareAndSet(position, position + 1)) {
+                    slots[index].set(type, context, trigger, sourceState, targetState);
+                    // Hand the slot over to the consumer
+                    sequences.set(index, position + 1);
+                    break;
+                }
+            } else if (sequence < position) {
+                // The buffer is full
+                if (overflowPolicy != ListenerOverflowPolicy.BLOCK) {
+                    droppedCount.increment();
+                    return;
+                }
+                LockSupport.unpark(thread);
+                LockSupport.parkNanos(this, BLOCKED_PARK_NANOS);
+            }
+            // Otherwise another producer claimed the slot first, try the next one
+        }
+        if (sleeping) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    private void run() {
+        final List<ListenerEvent<TriggerType, ContextType>> batch = new ArrayList<>(MAX_BATCH_SIZE);
+        for (;;) {
+            final long position = head.get();
+            while (batch.size() < MAX_BATCH_SIZE) {
+                final int index = (int) (position + batch.size()) & mask;
+                if (sequences.get(index) != position + batch.size() + 1) {
+                    break;
+                }
+                batch.add(slots[index]);
+            }
+
+            if (!batch.isEmpty()) {
+                try {
+                    batchListener.onEvents(batch);
+                } catch (final RuntimeException e) {
+                    errorHandler.accept(e);
+                }
+                // Hand the slots back to the producers
+                for (int i = 0; i < batch.size(); i++) {
+                    final int index = (int) (position + i) & mask;
+                    slots[index].clear();
+                    sequences.set(index, position + i + capacity);
+                }
+                head.set(position + batch.size());
+                batch.clear();
+                continue;
+            }
+
+            if (closed && position == closeTail()) {
+                // Every event that a producer had claimed a slot for has been delivered
+                return;
+            }
+            sleeping = true;
+            // Check again, a producer may have published without seeing that this thread was about to sleep
+            if (sequences.get((int) position & mask) != position + 1) {
+                LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+            }
+            sleeping = false;
+        }
+    }
+
+    /**
+     * Closes the tail, so that producers can't claim any more slots.
+     *
+     * @return The position after the last slot that a producer claimed.
+     */
+    private long closeTail() {
+        for (;;) {
+            final long position = tail.get();
+            if (position >= CLOSED_TAIL) {
+                return position - CLOSED_TAIL;
+            }
+            if (tail.compareAndSet(position, position + CLOSED_TAIL)) {
+                return position;
+            }
+        }
+    }
+
+    /**
+     * Waits until all events that have been published so far have been delivered.
+     *
+     * @return True if they were delivered before the timeout.
+     */
+    public boolean flush(final long timeout, final TimeUnit unit) throws InterruptedException {
+        final long target = tail.get() & ~CLOSED_TAIL;
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (head.get() < target) {
+            final Thread consumer = thread;
+            if (System.nanoTime() - deadline >= 0 || consumer == null || !consumer.isAlive()) {
+                return false;
+            }
+            LockSupport.unpark(consumer);
+            LockSupport.parkNanos(this, BLOCKED_PARK_NANOS);
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Delivers the events that are left in the buffer and stops the thread of the listener. Events that are published after that
+     * are dropped. If the listener was never started, the events in the buffer are dropped as well.
+     */
+    @Override
+    public void close() {
+        final Thread consumer;
+        synchronized (this) {
+            closed = true;
+            consumer = thread;
+        }
+        if (consumer == null) {
+            final long claimed = closeTail();
+            droppedCount.add(claimed - head.get());
+            return;
+        }
+        LockSupport.unpark(consumer);
+        try {
+            consumer.join();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Gets the number of events that have been dropped because the buffer was full or being sampled, or the listener was closed.
+     */
+    public long getDroppedCount() {
+        return droppedCount.sum();
+    }
+
+    /**
+     * Gets the number of events that have been delivered to the batch listener.
+     */
+    public long getDeliveredCount() {
+        return head.get();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public ListenerOverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * Sets the handler of exceptions that the batch listener throws. By default, they are passed to the uncaught exception handler
+     * of the listener thread, which keeps running.
+     */
+    public void setErrorHandler(final Consumer<RuntimeException> errorHandler) {
+        this.errorHandler = errorHandler;
+    }
+}
@@ -0,0 +1,19 @@
+package se.danielkonsult.fsm4j;
+
+import java.util.List;
+
+/**
+ * Consumes the events of state machines in batches, on the thread of an {@link AsyncListener}.
+ *
+ * @param <TriggerType> The trigger type of the state machine
+ * @param <ContextType> The context type of the state machine
+ */
+@FunctionalInterface
+public interface BatchListener<TriggerType, ContextType> {
+
+    /**
+     * Called with the events that have occurred since the last batch, in order. The list and the events are reused once this method
+     * returns, so they must not be kept.
+     */
+    void onEvents(List<ListenerEvent<TriggerType, ContextType>> events);
+}
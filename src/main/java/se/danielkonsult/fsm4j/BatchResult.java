@@ -0,0 +1,32 @@
+package se.danielkonsult.fsm4j;
+
+/**
+ * The outcome of firing a batch of triggers through {@link StateMachine#triggerAll(Iterable)}.
+ *
+ * @param <TriggerType> The trigger type of the state machine
+ * @param <ContextType> The context type of the state machine
+ */
+public final class BatchResult<TriggerType, ContextType> {
+
+    private final Class<? extends FsmState<TriggerType, ContextType>> stateClass;
+    private final int transitionCount;
+
+    BatchResult(final Class<? extends FsmState<TriggerType, ContextType>> stateClass, final int transitionCount) {
+        this.stateClass = stateClass;
+        this.transitionCount = transitionCount;
+    }
+
+    /**
+     * Gets the state class that the state machine is in after the batch.
+     */
+    public Class<? extends FsmState<TriggerType, ContextType>> getStateClass() {
+        return stateClass;
+    }
+
+    /**
+     * Gets the number of transitions that the triggers of the batch caused. Triggers that were ignored as invalid don't count.
+     */
+    public int getTransitionCount() {
+        return transitionCount;
+    }
+}
@@ -0,0 +1,53 @@
+package se.danielkonsult.fsm4j;
+
+import java.util.List;
+
+/**
+ * Passes the events of a state machine on to several listeners, in the order they were added.
+ */
+final class CompositeListener<TriggerType, ContextType> implements StateMachineListener<TriggerType, ContextType> {
+
+    private final StateMachineListener<TriggerType, ContextType>[] listeners;
+
+    @SuppressWarnings("unchecked")
+    private CompositeListener(final List<StateMachineListener<TriggerType, ContextType>> listeners) {
+        this.listeners = listeners.toArray(new StateMachineListener[listeners.size()]);
+    }
+
+    /**
+     * Combines listeners into one.
+     *
+     * @return Null if there are no listeners, the listener itself if there is only one, and otherwise a composite listener.
+     */
+    static <TriggerType, ContextType> StateMachineListener<TriggerType, ContextType> of(
+            final List<StateMachineListener<TriggerType, ContextType>> listeners) {
+        switch (listeners.size()) {
+        case 0:
+            return null;
+        case 1:
+            return listeners.get(0);
+        default:
+            return new CompositeListener<>(listeners);
+        }
+    }
+
+    @Override
+    public void onTransitioning(final ContextType context, final Class<? extends FsmState<TriggerType, ContextType>> sourceState,
+            final Class<? extends FsmState<TriggerType, ContextType>> targetState) {
+        for (final StateMachineListener<TriggerType, ContextType> listener : listeners) {
+            listener.onTransitioning(context, sourceState, targetState);
+        }
+    }
+
+    /**
+     * Passes the invalid trigger to every listener. If one of them throws an exception, e.g. because it doesn't override
+     * onInvalidTrigger(), the listeners after it aren't called.
+     */
+    @Override
+    public void onInvalidTrigger(final ContextType context, final TriggerType trigger,
+            final Class<? extends FsmState<TriggerType, ContextType>> stateClass) {
+        for (final StateMachineListener<TriggerType, ContextType> listener : listeners) {
+            listener.onInvalidTrigger(context, trigger, stateClass);
+        }
+    }
+}
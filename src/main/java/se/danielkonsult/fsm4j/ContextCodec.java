@@ -0,0 +1,18 @@
+package se.danielkonsult.fsm4j;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Converts the context of a state machine to and from bytes, so that it can be included in a snapshot of the state machine, see
+ * {@link StateMachine#snapshot()}.
+ *
+ * @param <ContextType> The context type of the state machine.
+ */
+public interface ContextCodec<ContextType> {
+
+    void encode(ContextType context, DataOutput out) throws IOException;
+
+    ContextType decode(DataInput in) throws IOException;
+}
@@ -0,0 +1,79 @@
+package se.danielkonsult.fsm4j;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.function.Supplier;
+
+/**
+ * The state resolver that is used unless another one is set on the state machine. It requires that all state classes have a
+ * public, parameterless constructor.
+ *
+ * The constructor of each state class is only looked up once. It is then turned into a factory, generated through the
+ * LambdaMetafactory when possible, so resolving a state costs no more than a plain <code>new</code>.
+ */
+public final class DefaultStateResolver<TriggerType, ContextType> implements StateResolver<TriggerType, ContextType> {
+
+    private static final ClassValue<Supplier<?>> FACTORIES = new ClassValue<Supplier<?>>() {
+        @Override
+        protected Supplier<?> computeValue(final Class<?> clss) {
+            return createFactory(clss);
+        }
+    };
+
+    private static Supplier<?> createFactory(final Class<?> clss) {
+        final MethodHandles.Lookup lookup = MethodHandles.lookup();
+        final MethodHandle ctor;
+        try {
+            ctor = lookup.findConstructor(clss, MethodType.methodType(void.class));
+        } catch (final Exception e) {
+            throw new FsmException(String.format("Could not instantiate state class %s! No parameterless constructor?",
+                    clss.getSimpleName()), e);
+        }
+
+        // The generated factory is defined next to this class, so it can only be used if the state class is visible from here
+        if (isVisible(clss)) {
+            try {
+                final CallSite site = LambdaMetafactory.metafactory(lookup, "get", MethodType.methodType(Supplier.class),
+                        MethodType.methodType(Object.class), ctor, MethodType.methodType(clss));
+                return (Supplier<?>) site.getTarget().invokeExact();
+            } catch (final Throwable e) {
+                // Fall back on invoking the constructor handle below
+            }
+        }
+
+        final MethodHandle genericCtor = ctor.asType(MethodType.methodType(Object.class));
+        return () -> {
+            try {
+                return genericCtor.invokeExact();
+            } catch (final RuntimeException | Error e) {
+                throw e;
+            } catch (final Throwable e) {
+                throw new FsmException(String.format("Could not instantiate state class %s", clss.getSimpleName()), e);
+            }
+        };
+    }
+
+    private static boolean isVisible(final Class<?> clss) {
+        try {
+            return Class.forName(clss.getName(), false, DefaultStateResolver.class.getClassLoader()) == clss;
+        } catch (final ClassNotFoundException e) {
+            return false;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public FsmState<TriggerType, ContextType> resolve(final Class<? extends FsmState<TriggerType, ContextType>> clss) {
+        final Supplier<?> factory = FACTORIES.get(clss);
+        try {
+            return (FsmState<TriggerType, ContextType>) factory.get();
+        } catch (final FsmException e) {
+            throw e;
+        } catch (final RuntimeException e) {
+            throw new FsmException(String.format("Could not instantiate state class %s", clss.getSimpleName()), e);
+        }
+    }
+}
@@ -0,0 +1,402 @@
+package se.danielkonsult.fsm4j;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardLocation;
+import javax.tools.ToolProvider;
+
+/**
+ * Generates the source of a {@link GeneratedDispatcher} that is specialized for a transition table, and compiles it in memory
+ * with the Java compiler of the runtime. The generated class has a method per state that switches over the trigger id, so the
+ * JIT compiler sees small methods with constant edges and a call site of its own for every guard, instead of the loops over
+ * guard arrays in the table, where all guards of all machines share the same megamorphic call site.
+ *
+ * The generated source only refers to classes of the library and of the JDK, so it's compiled against the class files of the
+ * library as they are read through its class loader, and not against a class path. That works the same from a fat jar, an
+ * application server or the module path as from a plain class path.
+ *
+ * Generation needs a JDK at runtime. If there is no Java compiler, or the generated source doesn't compile, no dispatcher is
+ * generated and the transition table is used as usual. The reason is kept, see
+ * {@link StateMachineDefinition#getCodeGenerationFailure()}.
+ */
+final class DispatcherGenerator {
+
+    static final String PACKAGE_NAME = "se.danielkonsult.fsm4j.generated";
+
+    private static final String LIBRARY_PACKAGE_NAME = GeneratedDispatcher.class.getPackage().getName();
+
+    private static final AtomicInteger CLASS_COUNTER = new AtomicInteger();
+
+    /**
+     * The class loader that the class files of the library are read through. Only replaced by tests.
+     */
+    static volatile ClassLoader libraryClassLoader = GeneratedDispatcher.class.getClassLoader();
+
+    /**
+     * A class file of the library, read through the class loader of the library.
+     */
+    private static final class LibraryClassFile extends SimpleJavaFileObject {
+
+        private final ClassLoader classLoader;
+        private final String binaryName;
+        private final String resourceName;
+
+        LibraryClassFile(final ClassLoader classLoader, final String binaryName) {
+            super(URI.create("library:///" + binaryName.replace('.', '/') + Kind.CLASS.extension), Kind.CLASS);
+            this.classLoader = classLoader;
+            this.binaryName = binaryName;
+            this.resourceName = binaryName.replace('.', '/') + Kind.CLASS.extension;
+        }
+
+        @Override
+        public InputStream openInputStream() throws IOException {
+            final InputStream inputStream = classLoader != null ? classLoader.getResourceAsStream(resourceName)
+                    : ClassLoader.getSystemResourceAsStream(resourceName);
+            if (inputStream == null) {
+                throw new FileNotFoundException(resourceName);
+            }
+            return inputStream;
+        }
+
+        boolean exists() {
+            return (classLoader != null ? classLoader.getResource(resourceName) : ClassLoader.getSystemResource(resourceName)) != null;
+        }
+    }
+
+    /**
+     * Compiles the generated source into class files in memory, against the JDK and the class files of the library.
+     */
+    private static final class MemoryFileManager extends ForwardingJavaFileManager<JavaFileManager> {
+
+        private final Map<String, ByteArrayOutputStream> classFiles = new HashMap<>();
+        private final List<JavaFileObject> libraryClassFiles = new ArrayList<>();
+
+        MemoryFileManager(final JavaFileManager fileManager, final ClassLoader classLoader) {
+            super(fileManager);
+            for (final String binaryName : getLibraryClassNames()) {
+                final LibraryClassFile classFile = new LibraryClassFile(classLoader, binaryName);
+                if (classFile.exists()) {
+                    libraryClassFiles.add(classFile);
+                }
+            }
+        }
+
+        @Override
+        public Iterable<JavaFileObject> list(final Location location, final String packageName, final Set<JavaFileObject.Kind> kinds,
+                final boolean recurse) throws IOException {
+            if (location != StandardLocation.CLASS_PATH) {
+                return super.list(location, packageName, kinds, recurse);
+            }
+            // Nothing but the library is needed, whatever the class path of the application is
+            if (packageName.equals(LIBRARY_PACKAGE_NAME) && kinds.contains(JavaFileObject.Kind.CLASS)) {
+                return libraryClassFiles;
+            }
+            return Collections.emptyList();
+        }
+
+        @Override
+        public String inferBinaryName(final Location location, final JavaFileObject file) {
+            if (file instanceof LibraryClassFile) {
+                return ((LibraryClassFile) file).binaryName;
+            }
+            return super.inferBinaryName(location, file);
+        }
+
+        @Override
+        public JavaFileObject getJavaFileForOutput(final Location location, final String className, final JavaFileObject.Kind kind,
+                final FileObject sibling) {
+            return new SimpleJavaFileObject(URI.create("mem:///" + className.replace('.', '/') + kind.extension), kind) {
+                @Override
+                public OutputStream openOutputStream() {
+                    final ByteArrayOutputStream classFile = new ByteArrayOutputStream();
+                    classFiles.put(className, classFile);
+                    return classFile;
+                }
+            };
+        }
+    }
+
+    /**
+     * Defines the compiled classes, with the class loader of the library as parent so that they can extend
+     * {@link GeneratedDispatcher}.
+     */
+    private static final class DispatcherClassLoader extends ClassLoader {
+
+        private final Map<String, ByteArrayOutputStream> classFiles;
+
+        DispatcherClassLoader(final Map<String, ByteArrayOutputStream> classFiles) {
+            super(GeneratedDispatcher.class.getClassLoader());
+            this.classFiles = classFiles;
+        }
+
+        @Override
+        protected Class<?> findClass(final String name) throws ClassNotFoundException {
+            final ByteArrayOutputStream classFile = classFiles.get(name);
+            if (classFile == null) {
+                throw new ClassNotFoundException(name);
+            }
+            final byte[] bytes = classFile.toByteArray();
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+
+    private final TransitionTable<?, ?> table;
+    private final List<Object> guards = new ArrayList<>();
+    private final List<Class<?>> payloadTypes = new ArrayList<>();
+    private final List<TransitionTable.KeyIndex<?>> keyIndexes = new ArrayList<>();
+
+    private DispatcherGenerator(final TransitionTable<?, ?> table) {
+        this.table = table;
+    }
+
+    /**
+     * Generates and compiles a dispatcher for a transition table.
+     *
+     * @return The dispatcher.
+     * @throws FsmException If no dispatcher could be generated, with the reason why.
+     */
+    static GeneratedDispatcher generate(final TransitionTable<?, ?> table) {
+        final JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) {
+            throw new FsmException("No Java compiler is available, generating a dispatcher needs a JDK at runtime");
+        }
+        final DispatcherGenerator generator = new DispatcherGenerator(table);
+        final String className = "Dispatcher" + CLASS_COUNTER.incrementAndGet();
+        final String source = generator.generateSource(className);
+
+        final MemoryFileManager fileManager = new MemoryFileManager(compiler.getStandardFileManager(null, null, null),
+                libraryClassLoader);
+        final JavaFileObject sourceFile = new SimpleJavaFileObject(URI.create("string:///" + className + ".java"),
+                JavaFileObject.Kind.SOURCE) {
+            @Override
+            public CharSequence getCharContent(final boolean ignoreEncodingErrors) {
+                return source;
+            }
+        };
+        final List<String> options = Arrays.asList("-proc:none", "-g:none", "-nowarn");
+        final DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        try {
+            if (!compiler.getTask(null, fileManager, diagnostics, options, null, Arrays.asList(sourceFile)).call()) {
+                throw new FsmException(String.format("The generated dispatcher %s doesn't compile: %s", className,
+                        formatErrors(diagnostics)));
+            }
+            final Class<?> dispatcherClass = new DispatcherClassLoader(fileManager.classFiles)
+                    .loadClass(PACKAGE_NAME + "." + className);
+            return (GeneratedDispatcher) dispatcherClass.getConstructor(GeneratedDispatcher.Bindings.class)
+                    .newInstance(generator.createBindings());
+        } catch (final FsmException e) {
+            throw e;
+        } catch (final ReflectiveOperationException | RuntimeException e) {
+            throw new FsmException(String.format("The generated dispatcher %s couldn't be created", className), e);
+        } finally {
+            try {
+                fileManager.close();
+            } catch (final IOException e) {
+                // Nothing has been written to disk
+            }
+        }
+    }
+
+    private static String formatErrors(final DiagnosticCollector<JavaFileObject> diagnostics) {
+        final StringBuilder errors = new StringBuilder();
+        for (final Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+            if (diagnostic.getKind() == Diagnostic.Kind.ERROR) {
+                if (errors.length() > 0) {
+                    errors.append("; ");
+                }
+                errors.append(String.format("line %d: %s", diagnostic.getLineNumber(), diagnostic.getMessage(null)));
+            }
+        }
+        return errors.toString();
+    }
+
+    /**
+     * Gets the names of the library classes that the generated source can refer to, e.g. the classes that are referred to by
+     * the signatures of {@link GeneratedDispatcher} and the guard interfaces, and so on.
+     */
+    private static Set<String> getLibraryClassNames() {
+        final Set<String> classNames = new LinkedHashSet<>();
+        final Deque<Class<?>> pending = new ArrayDeque<>(Arrays.asList(GeneratedDispatcher.class, Guard.class, PayloadGuard.class));
+        while (!pending.isEmpty()) {
+            Class<?> type = pending.remove();
+            while (type.isArray()) {
+                type = type.getComponentType();
+            }
+            if (type.isPrimitive() || type.getPackage() == null || !type.getPackage().getName().equals(LIBRARY_PACKAGE_NAME)
+                    || !classNames.add(type.getName())) {
+                continue;
+            }
+            final List<Class<?>> referenced = new ArrayList<>();
+            if (type.getSuperclass() != null) {
+                referenced.add(type.getSuperclass());
+            }
+            referenced.addAll(Arrays.asList(type.getInterfaces()));
+            referenced.addAll(Arrays.asList(type.getDeclaredClasses()));
+            if (type.getEnclosingClass() != null) {
+                referenced.add(type.getEnclosingClass());
+            }
+            for (final Field field : type.getDeclaredFields()) {
+                referenced.add(field.getType());
+            }
+            for (final Method method : type.getDeclaredMethods()) {
+                referenced.add(method.getReturnType());
+                referenced.addAll(Arrays.asList(method.getParameterTypes()));
+                referenced.addAll(Arrays.asList(method.getExceptionTypes()));
+            }
+            for (final Constructor<?> constructor : type.getDeclaredConstructors()) {
+                referenced.addAll(Arrays.asList(constructor.getParameterTypes()));
+                referenced.addAll(Arrays.asList(constructor.getExceptionTypes()));
+            }
+            pending.addAll(referenced);
+        }
+        return classNames;
+    }
+
+    private GeneratedDispatcher.Bindings createBindings() {
+        return new GeneratedDispatcher.Bindings(table, guards.toArray(), payloadTypes.toArray(new Class<?>[0]),
+                keyIndexes.toArray(new TransitionTable.KeyIndex<?>[0]));
+    }
+
+    String generateSource(final String className) {
+        final StringBuilder source = new StringBuilder();
+        source.append("package ").append(PACKAGE_NAME).append(";\n\n");
+        source.append("@SuppressWarnings({ \"rawtypes\", \"unchecked\" })\n");
+        source.append("public final class ").append(className).append(" extends se.danielkonsult.fsm4j.GeneratedDispatcher {\n\n");
+        source.append("    public ").append(className).append("(final Bindings bindings) {\n");
+        source.append("        super(bindings);\n");
+        source.append("    }\n\n");
+
+        // The outer switch only calls the method of the state, to keep every method small enough to be inlined
+        final StringBuilder stateMethods = new StringBuilder();
+        source.append("    @Override\n");
+        source.append("    protected int dispatch(final int stateId, final int triggerId, final Object context,\n");
+        source.append("            final Object payload) {\n");
+        source.append("        switch (stateId) {\n");
+        for (int stateId = 0; stateId < table.getStateCount(); stateId++) {
+            if (appendStateMethod(stateMethods, stateId)) {
+                source.append("        case ").append(stateId).append(":\n");
+                source.append("            return state").append(stateId).append("(triggerId, context, payload);\n");
+            }
+        }
+        source.append("        default:\n");
+        source.append("            return ").append(TransitionTable.NO_TRANSITION).append(";\n");
+        source.append("        }\n");
+        source.append("    }\n");
+        source.append(stateMethods);
+        source.append("}\n");
+        return source.toString();
+    }
+
+    /**
+     * Appends the method that dispatches the triggers of one state, if the state handles any triggers.
+     */
+    private boolean appendStateMethod(final StringBuilder source, final int stateId) {
+        final StringBuilder cases = new StringBuilder();
+        for (int triggerId = 0; triggerId < table.getTriggerCount(); triggerId++) {
+            final TransitionTable.Transition<?> transition = table.getTransition(stateId, triggerId);
+            if (transition == null) {
+                continue;
+            }
+            cases.append("        case ").append(triggerId).append(":\n");
+            if (transition.getGuards() == null) {
+                cases.append("            return ").append(transition.getEdgeId()).append(";\n");
+            } else {
+                appendGuards(cases, transition);
+            }
+        }
+        if (cases.length() == 0) {
+            return false;
+        }
+
+        source.append("\n");
+        source.append("    // ").append(table.getStateClass(stateId).getName()).append("\n");
+        source.append("    private int state").append(stateId)
+                .append("(final int triggerId, final Object context, final Object payload) {\n");
+        source.append("        switch (triggerId) {\n");
+        source.append(cases);
+        source.append("        default:\n");
+        source.append("            return ").append(TransitionTable.NO_TRANSITION).append(";\n");
+        source.append("        }\n");
+        source.append("    }\n");
+        return true;
+    }
+
+    /**
+     * Appends the guards of a trigger in the order the table evaluates them, e.g. the order they were configured in.
+     */
+    private void appendGuards(final StringBuilder source, final TransitionTable.Transition<?> transition) {
+        source.append("        {\n");
+        final TransitionTable.KeyIndex<?>[] transitionKeyIndexes = transition.getKeyIndexes();
+        final int[] keyIndexPositions = transition.getKeyIndexPositions();
+        if (transitionKeyIndexes.length > 0) {
+            source.append("            int edgeId;\n");
+        }
+        int keyIndex = 0;
+        for (int i = 0; i <= transition.getGuards().length; i++) {
+            while (keyIndex < transitionKeyIndexes.length && keyIndexPositions[keyIndex] == i) {
+                appendKeyIndex(source, transitionKeyIndexes[keyIndex++]);
+            }
+            if (i < transition.getGuards().length) {
+                appendGuard(source, transition, i);
+            }
+        }
+        source.append("            return NO_GUARD;\n");
+        source.append("        }\n");
+    }
+
+    private void appendKeyIndex(final StringBuilder source, final TransitionTable.KeyIndex<?> keyIndex) {
+        final int index = keyIndexes.size();
+        keyIndexes.add(keyIndex);
+        source.append("            edgeId = lookupKey(").append(index).append(", keyExtractors[").append(index)
+                .append("].apply(context));\n");
+        source.append("            if (edgeId != ").append(TransitionTable.NO_TRANSITION).append(") {\n");
+        source.append("                return edgeId;\n");
+        source.append("            }\n");
+    }
+
+    private void appendGuard(final StringBuilder source, final TransitionTable.Transition<?> transition, final int guard) {
+        final int index = guards.size();
+        final Object payloadGuard = transition.getPayloadGuards() != null ? transition.getPayloadGuards()[guard] : null;
+        if (payloadGuard != null) {
+            guards.add(payloadGuard);
+            payloadTypes.add(transition.getPayloadTypes()[guard]);
+            source.append("            if (payloadTypes[").append(index).append("].isInstance(payload)\n");
+            source.append("                    && ((se.danielkonsult.fsm4j.PayloadGuard) guards[").append(index)
+                    .append("]).test(context, payload)) {\n");
+        } else {
+            guards.add(transition.getGuards()[guard]);
+            payloadTypes.add(null);
+            source.append("            if (((se.danielkonsult.fsm4j.Guard) guards[").append(index)
+                    .append("]).test(context)) {\n");
+        }
+        source.append("                return ").append(transition.getGuardedEdgeIds()[guard]).append(";\n");
+        source.append("            }\n");
+    }
+}
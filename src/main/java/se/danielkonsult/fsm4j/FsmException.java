@@ -10,4 +10,8 @@ public class FsmException extends RuntimeException {
 	public FsmException(String message, Throwable cause) {
 		super(message, cause);
 	}
+
+	protected FsmException(String message, Throwable cause, boolean enableSuppression, boolean writableStackTrace) {
+		super(message, cause, enableSuppression, writableStackTrace);
+	}
 }
@@ -0,0 +1,62 @@
+package se.danielkonsult.fsm4j;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executors for processing triggers off the thread that fires them.
+ */
+public final class FsmExecutors {
+
+    private static final class DefaultExecutorHolder {
+        private static final Executor INSTANCE = createDefaultExecutor();
+    }
+
+    private FsmExecutors() {
+    }
+
+    /**
+     * Gets the executor that asynchronous triggers are processed on when no executor has been set on the state machine. On JDK 21
+     * and later it starts a virtual thread per task, on earlier versions it's a fixed pool of daemon threads, one per available
+     * processor.
+     */
+    public static Executor defaultExecutor() {
+        return DefaultExecutorHolder.INSTANCE;
+    }
+
+    /**
+     * Creates an executor that starts a new virtual thread for each task.
+     *
+     * @return The executor, or null if virtual threads aren't available in the running JVM.
+     */
+    public static ExecutorService newVirtualThreadExecutor() {
+        try {
+            // Looked up reflectively, since fsm4j is built for JDK versions that don't have virtual threads
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (final ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Creates a fixed pool of daemon threads, which doesn't prevent the JVM from exiting.
+     *
+     * @param threads The number of threads in the pool.
+     */
+    public static ExecutorService newDaemonThreadPool(final int threads) {
+        final AtomicInteger threadNumber = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, runnable -> {
+            final Thread thread = new Thread(runnable, "fsm4j-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private static Executor createDefaultExecutor() {
+        final ExecutorService virtualThreadExecutor = newVirtualThreadExecutor();
+        return virtualThreadExecutor != null ? virtualThreadExecutor
+                : newDaemonThreadPool(Runtime.getRuntime().availableProcessors());
+    }
+}
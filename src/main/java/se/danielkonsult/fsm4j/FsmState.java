@@ -3,5 +3,18 @@ package se.danielkonsult.fsm4j;
 public interface FsmState<TriggerType, ContextType> {
     void entering(StateMachine<TriggerType, ContextType> stateMachine, ContextType context);
 
+    /**
+     * Called when the state is entered, with the payload of the trigger that entered it, see
+     * {@link StateMachine#trigger(Object, Object)}. The payload is null if the trigger had none, or if the state is entered
+     * because the state machine is started. By default, the payload is ignored and
+     * {@link #entering(StateMachine, Object)} is called.
+     *
+     * A pooled payload is reused once the trigger has been processed, so the state must not keep a reference to it.
+     */
+    default void entering(final StateMachine<TriggerType, ContextType> stateMachine, final ContextType context,
+            final Object payload) {
+        entering(stateMachine, context);
+    }
+
     void exiting();
 }
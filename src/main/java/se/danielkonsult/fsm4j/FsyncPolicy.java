@@ -0,0 +1,24 @@
+package se.danielkonsult.fsm4j;
+
+/**
+ * Decides when a {@link TransitionJournal} forces what has been appended to it out to the storage device.
+ */
+public enum FsyncPolicy {
+
+    /**
+     * The journal is never forced, it's up to the operating system to write it out. Since the journal is memory-mapped, nothing
+     * that has been appended is lost if the process crashes, but it can be lost if the machine does.
+     */
+    NEVER,
+
+    /**
+     * The journal is forced on commit if a certain time has passed since it was last forced, see
+     * {@link TransitionJournal#setFsyncInterval(long, java.util.concurrent.TimeUnit)}.
+     */
+    INTERVAL,
+
+    /**
+     * The journal is forced on every commit, e.g. once per trigger or once per batch of triggers.
+     */
+    EVERY_COMMIT
+}
@@ -0,0 +1,108 @@
+package se.danielkonsult.fsm4j;
+
+import java.util.function.Function;
+
+/**
+ * Base class of the dispatchers that are generated for a transition table when code generation is enabled, see
+ * {@link StateMachine#setCodeGeneration(boolean)}. A generated dispatcher resolves the edge of a trigger through a switch over
+ * the state id and then the trigger id, with the edges of unguarded transitions as constants and a call site of its own for every
+ * guard, which the JIT compiler can inline all the way down to the guards.
+ *
+ * The class is public only because the generated classes are defined by a class loader of their own, it's not meant to be
+ * extended by hand.
+ */
+public abstract class GeneratedDispatcher {
+
+    /**
+     * What a generated dispatcher is bound to. It's opaque to the generated code, which only passes it on to this class.
+     */
+    public static final class Bindings {
+
+        private final TransitionTable<?, ?> table;
+        private final Object[] guards;
+        private final Class<?>[] payloadTypes;
+        private final Function<?, ?>[] keyExtractors;
+        private final TransitionTable.KeyIndex<?>[] keyIndexes;
+
+        Bindings(final TransitionTable<?, ?> table, final Object[] guards, final Class<?>[] payloadTypes,
+                final TransitionTable.KeyIndex<?>[] keyIndexes) {
+            this.table = table;
+            this.guards = guards;
+            this.payloadTypes = payloadTypes;
+            this.keyIndexes = keyIndexes;
+            this.keyExtractors = new Function[keyIndexes.length];
+            for (int i = 0; i < keyIndexes.length; i++) {
+                keyExtractors[i] = keyIndexes[i].getKeyExtractor();
+            }
+        }
+    }
+
+    /**
+     * Returned by {@link #dispatch(int, int, Object, Object)} when no guard of a guarded trigger evaluates to true.
+     */
+    protected static final int NO_GUARD = -3;
+
+    /**
+     * The guards and payload guards of the table, by guard index.
+     */
+    protected final Object[] guards;
+
+    /**
+     * The payload types of the payload guards, by guard index.
+     */
+    protected final Class<?>[] payloadTypes;
+
+    /**
+     * The key extractors of the keyed guards, by key index.
+     */
+    @SuppressWarnings("rawtypes")
+    protected final Function[] keyExtractors;
+
+    private final TransitionTable<?, ?> table;
+    private final TransitionTable.KeyIndex<?>[] keyIndexes;
+
+    protected GeneratedDispatcher(final Bindings bindings) {
+        this.table = bindings.table;
+        this.guards = bindings.guards;
+        this.payloadTypes = bindings.payloadTypes;
+        this.keyExtractors = bindings.keyExtractors;
+        this.keyIndexes = bindings.keyIndexes;
+    }
+
+    /**
+     * Determines the edge that a trigger that is fired in a specific state takes, just like the transition table does when guards
+     * aren't verified.
+     *
+     * @return The id of the edge, or {@link TransitionTable#NO_TRANSITION} if the trigger isn't valid for the state.
+     */
+    final int resolveEdge(final int stateId, final int triggerId, final Object context, final Object payload) {
+        final int edgeId;
+        try {
+            edgeId = dispatch(stateId, triggerId, context, payload);
+        } catch (final RuntimeException e) {
+            throw new FsmException(String.format("Could not evaluate guard on state %s", table.getStateClass(stateId).getName()),
+                    e);
+        }
+        if (edgeId == NO_GUARD) {
+            throw new FsmException(String.format("No guard evaluates to true on state %s", table.getStateClass(stateId).getName()));
+        }
+        return edgeId;
+    }
+
+    /**
+     * Determines the edge of a trigger, implemented by the generated class.
+     *
+     * @return The id of the edge, {@link TransitionTable#NO_TRANSITION} if the trigger isn't valid for the state or
+     * {@link #NO_GUARD} if no guard evaluates to true.
+     */
+    protected abstract int dispatch(int stateId, int triggerId, Object context, Object payload);
+
+    /**
+     * Looks up the edge of a key that has been extracted by one of the {@link #keyExtractors}.
+     *
+     * @return The id of the edge, or {@link TransitionTable#NO_TRANSITION} if no keyed guard has the key.
+     */
+    protected final int lookupKey(final int keyIndex, final Object key) {
+        return keyIndexes[keyIndex].lookupKey(key);
+    }
+}
@@ -0,0 +1,13 @@
+package se.danielkonsult.fsm4j;
+
+/**
+ * A condition that must be true for a guarded transition to be taken. It returns a primitive boolean, so evaluating it doesn't
+ * involve any boxing.
+ *
+ * @param <ContextType> The context type of the state machine that the guard is evaluated against.
+ */
+@FunctionalInterface
+public interface Guard<ContextType> {
+
+    boolean test(ContextType context);
+}
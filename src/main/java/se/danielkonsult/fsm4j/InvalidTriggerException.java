@@ -0,0 +1,53 @@
+package se.danielkonsult.fsm4j;
+
+/**
+ * Thrown when a trigger is fired that isn't valid for the current state, see {@link InvalidTriggerPolicy}. Invalid triggers can
+ * be frequent under noisy input, so the exception doesn't capture a stack trace and its message is only formatted if it's asked
+ * for.
+ */
+public class InvalidTriggerException extends FsmException {
+    static final long serialVersionUID = 4718052853337264171L;
+
+    private final transient Object trigger;
+    private final Class<?> stateClass;
+    private final boolean anyRegion;
+
+    public InvalidTriggerException(final Object trigger, final Class<?> stateClass) {
+        this(trigger, stateClass, false);
+    }
+
+    /**
+     * @param anyRegion True if the trigger isn't valid for any region of an {@link OrthogonalStateMachine}, in which case the
+     * state class is the current state of its first region.
+     */
+    InvalidTriggerException(final Object trigger, final Class<?> stateClass, final boolean anyRegion) {
+        super(null, null, false, false);
+        this.trigger = trigger;
+        this.stateClass = stateClass;
+        this.anyRegion = anyRegion;
+    }
+
+    @Override
+    public String getMessage() {
+        if (anyRegion) {
+            return String.format("Trigger %s is not valid for any region, the first region is in state %s", trigger,
+                    stateClass.getSimpleName());
+        }
+        return String.format("Trigger %s is not valid for state %s", trigger, stateClass.getSimpleName());
+    }
+
+    /**
+     * Gets the trigger that wasn't valid.
+     */
+    public Object getTrigger() {
+        return trigger;
+    }
+
+    /**
+     * Gets the state class that the state machine was in when the trigger was fired. If no region of an
+     * {@link OrthogonalStateMachine} handled it, this is the state class that its first region was in.
+     */
+    public Class<?> getStateClass() {
+        return stateClass;
+    }
+}
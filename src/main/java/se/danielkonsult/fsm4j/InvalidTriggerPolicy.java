@@ -0,0 +1,29 @@
+package se.danielkonsult.fsm4j;
+
+/**
+ * Determines what happens when a trigger is fired that isn't valid for the current state, see
+ * {@link StateMachine#setInvalidTriggerPolicy(InvalidTriggerPolicy)}. Whatever the policy, the state machine stays in the current
+ * state.
+ */
+public enum InvalidTriggerPolicy {
+    /**
+     * The invalid trigger is passed to {@link StateMachineListener#onInvalidTrigger(Object, Object, Class)}, or an
+     * {@link InvalidTriggerException} is thrown if there is no listener. This is the default.
+     */
+    NOTIFY,
+
+    /**
+     * An {@link InvalidTriggerException} is thrown, whether there is a listener or not.
+     */
+    THROW,
+
+    /**
+     * The invalid trigger is counted, see {@link StateMachine#getInvalidTriggerCount()}, and otherwise ignored.
+     */
+    COUNT,
+
+    /**
+     * The invalid trigger is silently ignored.
+     */
+    IGNORE
+}
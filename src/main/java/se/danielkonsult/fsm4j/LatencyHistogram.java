@@ -0,0 +1,89 @@
+package se.danielkonsult.fsm4j;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of latencies in nanoseconds, with log-linear buckets in the style of HdrHistogram: values below 64 get a
+ * bucket each, and every power of two above that is split into 32 buckets, so a recorded value is off by at most about 3%. Values
+ * above 2^40 nanoseconds, about 18 minutes, are recorded as 2^40.
+ *
+ * Recording is a few atomic increments and can be done from any number of threads. Snapshots taken while values are being
+ * recorded may be slightly inconsistent, e.g. the count may include a value that the buckets don't yet.
+ */
+final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int LINEAR_LIMIT = 2 * SUB_BUCKET_COUNT;
+    private static final int MAX_EXPONENT = 40;
+    private static final long MAX_VALUE = 1L << MAX_EXPONENT;
+    private static final int BUCKET_COUNT = LINEAR_LIMIT + (MAX_EXPONENT - SUB_BUCKET_BITS - 1) * SUB_BUCKET_COUNT + 1;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    private static int bucketIndex(final long value) {
+        if (value < LINEAR_LIMIT) {
+            return (int) value;
+        }
+        final int exponent = 63 - Long.numberOfLeadingZeros(value);
+        final int shift = exponent - SUB_BUCKET_BITS;
+        final int subBucket = (int) (value >>> shift) & (SUB_BUCKET_COUNT - 1);
+        return LINEAR_LIMIT + (exponent - SUB_BUCKET_BITS - 1) * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    /**
+     * Gets the highest value that is recorded in a bucket.
+     */
+    private static long highestValue(final int index) {
+        if (index < LINEAR_LIMIT) {
+            return index;
+        }
+        final int exponent = (index - LINEAR_LIMIT) / SUB_BUCKET_COUNT + SUB_BUCKET_BITS + 1;
+        final int subBucket = (index - LINEAR_LIMIT) % SUB_BUCKET_COUNT;
+        final int shift = exponent - SUB_BUCKET_BITS;
+        return (((long) (SUB_BUCKET_COUNT + subBucket) + 1) << shift) - 1;
+    }
+
+    void record(final long nanos) {
+        final long value = nanos < 0 ? 0 : Math.min(nanos, MAX_VALUE);
+        buckets.getAndIncrement(bucketIndex(value));
+        count.getAndIncrement();
+        sum.getAndAdd(value);
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // Retry until the maximum has been updated or another thread has recorded a higher value
+        }
+    }
+
+    LatencySnapshot snapshot() {
+        final long[] counts = new long[BUCKET_COUNT];
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+        final long highest = max.get();
+        return new LatencySnapshot(total, total > 0 ? (double) sum.get() / count.get() : 0, highest,
+                percentile(counts, total, highest, 0.5), percentile(counts, total, highest, 0.9),
+                percentile(counts, total, highest, 0.99), percentile(counts, total, highest, 0.999));
+    }
+
+    private static long percentile(final long[] counts, final long total, final long highest, final double percentile) {
+        if (total == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(total * percentile));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(highestValue(i), highest);
+            }
+        }
+        return highest;
+    }
+}
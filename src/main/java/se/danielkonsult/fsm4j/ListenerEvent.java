@@ -0,0 +1,93 @@
+package se.danielkonsult.fsm4j;
+
+/**
+ * An event that is delivered to a {@link BatchListener} by an {@link AsyncListener}.
+ *
+ * Events are slots in the ring buffer of the async listener and are reused once they have been delivered, so they must not be
+ * kept after {@link BatchListener#onEvents(java.util.List)} has returned.
+ *
+ * @param <TriggerType> The trigger type of the state machine
+ * @param <ContextType> The context type of the state machine
+ */
+public final class ListenerEvent<TriggerType, ContextType> {
+
+    public enum Type {
+        /**
+         * The state machine transitioned between states, see {@link StateMachineListener#onTransitioning}.
+         */
+        TRANSITION,
+
+        /**
+         * An invalid trigger was fired, see {@link StateMachineListener#onInvalidTrigger}.
+         */
+        INVALID_TRIGGER
+    }
+
+    private Type type;
+    private long timestamp;
+    private ContextType context;
+    private TriggerType trigger;
+    private Class<? extends FsmState<TriggerType, ContextType>> sourceState;
+    private Class<? extends FsmState<TriggerType, ContextType>> targetState;
+
+    ListenerEvent() {
+    }
+
+    void set(final Type type, final ContextType context, final TriggerType trigger,
+            final Class<? extends FsmState<TriggerType, ContextType>> sourceState,
+            final Class<? extends FsmState<TriggerType, ContextType>> targetState) {
+        this.type = type;
+        this.timestamp = System.nanoTime();
+        this.context = context;
+        this.trigger = trigger;
+        this.sourceState = sourceState;
+        this.targetState = targetState;
+    }
+
+    void clear() {
+        context = null;
+        trigger = null;
+        sourceState = null;
+        targetState = null;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * Gets when the event occurred, in {@link System#nanoTime()}.
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Gets the context of the state machine. Note that it's the live context, which the state machine may have changed since the
+     * event occurred.
+     */
+    public ContextType getContext() {
+        return context;
+    }
+
+    /**
+     * Gets the invalid trigger, or null for transitions.
+     */
+    public TriggerType getTrigger() {
+        return trigger;
+    }
+
+    /**
+     * Gets the state that was transitioned from, or that the invalid trigger was fired in. Null when the state machine starts.
+     */
+    public Class<? extends FsmState<TriggerType, ContextType>> getSourceState() {
+        return sourceState;
+    }
+
+    /**
+     * Gets the state that was transitioned to. Null when the state machine stops, and for invalid triggers.
+     */
+    public Class<? extends FsmState<TriggerType, ContextType>> getTargetState() {
+        return targetState;
+    }
+}
@@ -0,0 +1,23 @@
+package se.danielkonsult.fsm4j;
+
+/**
+ * Determines what an {@link AsyncListener} does with an event when its ring buffer can't take it.
+ */
+public enum ListenerOverflowPolicy {
+    /**
+     * The state machine waits until the listener has made room for the event. Nothing is lost, but a slow listener slows down
+     * the state machine once the buffer is full.
+     */
+    BLOCK,
+
+    /**
+     * The event is dropped when the buffer is full. This is the default.
+     */
+    DROP,
+
+    /**
+     * Once the buffer is half full, only a random sample of the events is kept, and the rest are dropped. That keeps a
+     * representative share of the events in the buffer under sustained overload instead of only the oldest ones.
+     */
+    SAMPLE
+}
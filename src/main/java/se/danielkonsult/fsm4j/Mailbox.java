@@ -0,0 +1,230 @@
+package se.danielkonsult.fsm4j;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Lock-free, multiple producer / single consumer mailbox that serializes the processing of messages posted from any number of
+ * threads. Producers never block: a message is appended with a single atomic swap, and the producer that finds the mailbox idle
+ * becomes responsible for draining it, either on its own thread or by handing the draining over to an executor. Exactly one
+ * thread drains the mailbox at any time, so the processor never runs concurrently with itself.
+ *
+ * The queue is the intrusive MPSC linked queue described by Dmitry Vyukov, and the "work in progress" counter is what decides
+ * which producer drains it.
+ *
+ * Each message can carry an attachment, e.g. something to notify when the message has been processed.
+ *
+ * Messages that are posted asynchronously are never processed by a thread that posted a message synchronously. If such a thread
+ * is draining the mailbox when it gets to an asynchronous message, it hands the rest of the draining over to the executor of the
+ * message, so the messages are still processed in order.
+ *
+ * If an executor rejects the draining, e.g. because it has been shut down, the messages are left in the mailbox and drained
+ * when the next message is posted. The rejection is passed to the error handler.
+ */
+final class Mailbox<MessageType, AttachmentType> implements Runnable {
+
+    private static final class Node<MessageType, AttachmentType> {
+
+        private MessageType message;
+        private AttachmentType attachment;
+        // The executor that must process an asynchronous message, or null
+        private Executor asyncExecutor;
+        private volatile Node<MessageType, AttachmentType> next;
+
+        Node(final MessageType message, final AttachmentType attachment, final Executor asyncExecutor) {
+            this.message = message;
+            this.attachment = attachment;
+            this.asyncExecutor = asyncExecutor;
+        }
+    }
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<Mailbox, Node> TAIL = AtomicReferenceFieldUpdater.newUpdater(Mailbox.class,
+            Node.class, "tail");
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<Mailbox> WIP = AtomicIntegerFieldUpdater.newUpdater(Mailbox.class, "wip");
+
+    private final BiConsumer<MessageType, AttachmentType> processor;
+    private final Executor executor;
+    private final Consumer<RuntimeException> errorHandler;
+
+    // Only touched by the draining thread
+    private Node<MessageType, AttachmentType> head;
+
+    private volatile Node<MessageType, AttachmentType> tail;
+    private volatile int wip;
+
+    /**
+     * @param processor Processes one message, and its attachment, at a time.
+     * @param executor The executor that drains the mailbox, or null if it should be drained by the producer that finds it idle.
+     * @param errorHandler Handles the exceptions that the processor throws while the mailbox is drained by an executor, where
+     * there is no caller to rethrow them to, or null if they should be rethrown to the executor anyway.
+     */
+    Mailbox(final BiConsumer<MessageType, AttachmentType> processor, final Executor executor,
+            final Consumer<RuntimeException> errorHandler) {
+        this.processor = processor;
+        this.executor = executor;
+        this.errorHandler = errorHandler;
+        this.head = new Node<>(null, null, null);
+        this.tail = head;
+    }
+
+    /**
+     * Posts a message to the mailbox. If the mailbox is idle, it is drained before this method returns unless an executor has
+     * been set, in which case the draining is scheduled on the executor.
+     */
+    void post(final MessageType message, final AttachmentType attachment) {
+        if (enqueue(message, attachment, null)) {
+            if (executor != null) {
+                reportRejection(schedule(executor, 1));
+            } else {
+                drain(1, false);
+            }
+        }
+    }
+
+    /**
+     * Posts a message to the mailbox and makes sure that it's never processed by the calling thread, nor by any other thread that
+     * posts messages synchronously. It's processed by the executor of the mailbox, or by the fallback executor if the mailbox has
+     * none.
+     */
+    void postAsync(final MessageType message, final AttachmentType attachment, final Executor fallbackExecutor) {
+        final Executor asyncExecutor = executor != null ? executor : fallbackExecutor;
+        if (enqueue(message, attachment, asyncExecutor)) {
+            reportRejection(schedule(asyncExecutor, 1));
+        }
+    }
+
+    /**
+     * Hands the draining of the mailbox over to an executor. If the executor rejects it, the calling thread gives up the
+     * responsibility for draining the mailbox, unless more messages were posted in the meantime, in which case it tries again.
+     *
+     * @param missed The number of posted messages that the calling thread is responsible for.
+     * @return The rejection of the executor, or null if the executor accepted the draining.
+     */
+    private RejectedExecutionException schedule(final Executor executor, int missed) {
+        for (;;) {
+            try {
+                executor.execute(missed == 1 ? this : drainer(missed));
+                return null;
+            } catch (final RejectedExecutionException e) {
+                // The messages stay in the queue, and are processed by whoever finds the mailbox idle next
+                missed = WIP.addAndGet(this, -missed);
+                if (missed == 0) {
+                    return e;
+                }
+            }
+        }
+    }
+
+    private Runnable drainer(final int missed) {
+        return () -> drain(missed, true);
+    }
+
+    private void reportRejection(final RejectedExecutionException rejection) {
+        if (rejection == null) {
+            return;
+        }
+        if (errorHandler != null) {
+            errorHandler.accept(rejection);
+        } else {
+            throw rejection;
+        }
+    }
+
+    /**
+     * Appends a message to the queue.
+     *
+     * @return True if the mailbox was idle, e.g. the caller is now responsible for draining it.
+     */
+    private boolean enqueue(final MessageType message, final AttachmentType attachment, final Executor asyncExecutor) {
+        final Node<MessageType, AttachmentType> node = new Node<>(message, attachment, asyncExecutor);
+        @SuppressWarnings("unchecked")
+        final Node<MessageType, AttachmentType> previous = TAIL.getAndSet(this, node);
+        previous.next = node;
+
+        return WIP.getAndIncrement(this) == 0;
+    }
+
+    /**
+     * Makes the calling thread the draining thread without posting a message, e.g. to do some work that must not run at the same
+     * time as the processor. Must be followed by {@link #release()}.
+     *
+     * @return True if the mailbox was idle and the calling thread now is the draining thread.
+     */
+    boolean tryAcquire() {
+        return WIP.compareAndSet(this, 0, 1);
+    }
+
+    /**
+     * Releases the mailbox after {@link #tryAcquire()}, draining any messages that were posted in the meantime.
+     */
+    void release() {
+        drain(1, false);
+    }
+
+    @Override
+    public void run() {
+        drain(1, true);
+    }
+
+    /**
+     * Processes messages until the mailbox is empty.
+     *
+     * @param missed The number of posted messages that the draining thread is responsible for, as counted by the work in progress
+     * counter.
+     * @param onExecutor True if the calling thread is an executor, false if it posted a message synchronously.
+     */
+    private void drain(int missed, final boolean onExecutor) {
+        RuntimeException failure = null;
+        for (;;) {
+            Node<MessageType, AttachmentType> node;
+            while ((node = head.next) != null) {
+                final Executor asyncExecutor = node.asyncExecutor;
+                if (asyncExecutor != null && !onExecutor) {
+                    // Keep the mailbox busy and let the executor of the message take over, from this message on
+                    final RejectedExecutionException rejection = schedule(asyncExecutor, missed);
+                    if (failure != null) {
+                        if (rejection != null) {
+                            failure.addSuppressed(rejection);
+                        }
+                        throw failure;
+                    }
+                    reportRejection(rejection);
+                    return;
+                }
+                head = node;
+                node.asyncExecutor = null;
+                final MessageType message = node.message;
+                final AttachmentType attachment = node.attachment;
+                node.message = null;
+                node.attachment = null;
+                try {
+                    processor.accept(message, attachment);
+                } catch (final RuntimeException e) {
+                    // Keep draining, the mailbox must not be left in a state where no thread drains it
+                    if (failure == null) {
+                        failure = e;
+                    } else {
+                        failure.addSuppressed(e);
+                    }
+                }
+            }
+            missed = WIP.addAndGet(this, -missed);
+            if (missed == 0) {
+                break;
+            }
+        }
+        if (failure != null) {
+            if (onExecutor && errorHandler != null) {
+                errorHandler.accept(failure);
+            } else {
+                throw failure;
+            }
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package se.danielkonsult.fsm4j;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A clock that only moves when it's told to, for testing timeouts without waiting for them. Advance the clock and then call
+ * {@link TimingWheel#advance()} to expire the timeouts that are due.
+ */
+public final class ManualNanoClock implements NanoClock {
+
+    private final AtomicLong nanos = new AtomicLong();
+
+    @Override
+    public long nanoTime() {
+        return nanos.get();
+    }
+
+    public void advance(final long amount, final TimeUnit unit) {
+        nanos.addAndGet(unit.toNanos(amount));
+    }
+
+    public void advance(final Duration duration) {
+        nanos.addAndGet(duration.toNanos());
+    }
+}
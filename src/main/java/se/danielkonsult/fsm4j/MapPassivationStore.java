@@ -0,0 +1,34 @@
+package se.danielkonsult.fsm4j;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Passivation store that keeps the snapshots in a concurrent map on the heap. A snapshot is usually only a few bytes, compared
+ * to the state instances and context that a resident state machine holds on to.
+ *
+ * @param <KeyType> The type of the keys that identify the state machines.
+ */
+public final class MapPassivationStore<KeyType> implements PassivationStore<KeyType> {
+
+    private final ConcurrentHashMap<KeyType, byte[]> snapshots = new ConcurrentHashMap<>();
+
+    @Override
+    public void store(final KeyType key, final byte[] snapshot) {
+        snapshots.put(key, snapshot);
+    }
+
+    @Override
+    public byte[] get(final KeyType key) {
+        return snapshots.get(key);
+    }
+
+    @Override
+    public byte[] remove(final KeyType key) {
+        return snapshots.remove(key);
+    }
+
+    @Override
+    public int size() {
+        return snapshots.size();
+    }
+}
@@ -0,0 +1,16 @@
+package se.danielkonsult.fsm4j;
+
+/**
+ * The source of time of a {@link TimingWheel}, in nanoseconds like {@link System#nanoTime()}. Tests can use a
+ * {@link ManualNanoClock} to control when timeouts expire.
+ */
+@FunctionalInterface
+public interface NanoClock {
+
+    /**
+     * The clock of the running JVM, e.g. {@link System#nanoTime()}.
+     */
+    NanoClock SYSTEM = System::nanoTime;
+
+    long nanoTime();
+}
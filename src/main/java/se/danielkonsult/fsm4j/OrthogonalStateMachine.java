@@ -0,0 +1,343 @@
+package se.danielkonsult.fsm4j;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A state machine that consists of a number of orthogonal regions, e.g. independent state machines that each have their own
+ * current state but share the same context. A trigger is dispatched to every region whose current state handles it, so a single
+ * trigger can cause one transition in each region.
+ *
+ * Each region is configured just like a standalone state machine, through {@link #region(String)}:
+ * <pre>
+ * OrthogonalStateMachine&lt;DeviceTrigger, Device&gt; sm = new OrthogonalStateMachine&lt;&gt;(device);
+ * sm.region("power").state(OffState.class).isInitialState()
+ *     .on(DeviceTrigger.POWER_ON).goesTo(OnState.class);
+ * sm.region("connectivity").state(DisconnectedState.class).isInitialState()
+ *     .on(DeviceTrigger.CONNECTED).goesTo(ConnectedState.class);
+ * </pre>
+ *
+ * By default, the regions that handle a trigger are processed one after the other, in the order they were created. If their
+ * states do heavy work when they are entered, they can be processed in parallel on a fork-join pool instead, see
+ * {@link #setParallel(boolean)}. The context is then accessed from several threads at once, so it must be thread-safe.
+ *
+ * A trigger that no region handles is invalid, and is handled according to the invalid trigger policy just like in a standalone
+ * state machine, see {@link #setInvalidTriggerPolicy(InvalidTriggerPolicy)}.
+ *
+ * @param <TriggerType> The trigger type of the state machine, shared by all regions.
+ * @param <ContextType> The context type of the state machine, shared by all regions.
+ */
+public class OrthogonalStateMachine<TriggerType, ContextType> {
+
+    /**
+     * Fires a trigger at one region, as a task of the fork-join pool.
+     */
+    private static final class RegionTrigger<TriggerType, ContextType> extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final transient StateMachine<TriggerType, ContextType> region;
+        private final transient TriggerType trigger;
+        private transient TriggerResult result;
+
+        RegionTrigger(final StateMachine<TriggerType, ContextType> region, final TriggerType trigger) {
+            this.region = region;
+            this.trigger = trigger;
+        }
+
+        @Override
+        protected void compute() {
+            if (trigger != null) {
+                result = region.trigger(trigger);
+            } else {
+                region.start();
+            }
+        }
+    }
+
+    private final LinkedHashMap<String, StateMachine<TriggerType, ContextType>> regions = new LinkedHashMap<>();
+    private StateMachine<TriggerType, ContextType>[] regionArray;
+    private ContextType context;
+    private boolean parallel;
+    private ForkJoinPool pool;
+    private InvalidTriggerPolicy invalidTriggerPolicy = InvalidTriggerPolicy.NOTIFY;
+    private StateMachineListener<TriggerType, ContextType> listener;
+    private long invalidTriggerCount;
+
+    public OrthogonalStateMachine() {
+    }
+
+    public OrthogonalStateMachine(final ContextType context) {
+        this.context = context;
+    }
+
+    /**
+     * Creates, or returns an existing, region. The region is a state machine of its own that is configured as usual, and that
+     * shares the context of this state machine.
+     *
+     * @param name The name of the region, unique within this state machine.
+     * @return The state machine of the region.
+     */
+    public StateMachine<TriggerType, ContextType> region(final String name) {
+        StateMachine<TriggerType, ContextType> region = regions.get(name);
+        if (region == null) {
+            if (regionArray != null) {
+                throw new FsmException("The state machine has been started, no more regions can be added");
+            }
+            region = new StateMachine<>(context);
+            if (listener != null) {
+                region.setListener(listener);
+            }
+            if (invalidTriggerPolicy != InvalidTriggerPolicy.NOTIFY) {
+                region.setInvalidTriggerPolicy(invalidTriggerPolicy);
+            }
+            regions.put(name, region);
+        }
+        return region;
+    }
+
+    /**
+     * Gets the current state of a region.
+     */
+    public FsmState<TriggerType, ContextType> getCurrentState(final String regionName) {
+        final StateMachine<TriggerType, ContextType> region = regions.get(regionName);
+        if (region == null) {
+            throw new FsmException(String.format("There is no region named %s", regionName));
+        }
+        return region.getCurrentState();
+    }
+
+    /**
+     * Gets the current state of every region, by region name.
+     */
+    public Map<String, FsmState<TriggerType, ContextType>> getCurrentStates() {
+        final Map<String, FsmState<TriggerType, ContextType>> currentStates = new LinkedHashMap<>();
+        for (final Map.Entry<String, StateMachine<TriggerType, ContextType>> entry : regions.entrySet()) {
+            currentStates.put(entry.getKey(), entry.getValue().getCurrentState());
+        }
+        return currentStates;
+    }
+
+    /**
+     * Starts all regions, e.g. enters the initial state of each of them.
+     */
+    @SuppressWarnings("unchecked")
+    public void start() {
+        if (regions.isEmpty()) {
+            throw new FsmException("Cannot start, no regions have been configured");
+        }
+        regionArray = regions.values().toArray(new StateMachine[regions.size()]);
+        if (parallel && regionArray.length > 1) {
+            final List<RegionTrigger<TriggerType, ContextType>> tasks = new ArrayList<>(regionArray.length);
+            for (final StateMachine<TriggerType, ContextType> region : regionArray) {
+                tasks.add(new RegionTrigger<>(region, null));
+            }
+            invokeAll(tasks);
+        } else {
+            for (final StateMachine<TriggerType, ContextType> region : regionArray) {
+                region.start();
+            }
+        }
+    }
+
+    /**
+     * Stops all regions, in the reverse order of how they were created.
+     */
+    public void stop() {
+        if (regionArray != null) {
+            for (int i = regionArray.length - 1; i >= 0; i--) {
+                regionArray[i].stop();
+            }
+        }
+    }
+
+    /**
+     * Verifies the configuration of every region, see {@link StateMachine#test()}.
+     */
+    public void test() {
+        for (final StateMachine<TriggerType, ContextType> region : regions.values()) {
+            region.test();
+        }
+    }
+
+    /**
+     * Fires a trigger at every region whose current state handles it. Regions that don't handle the trigger stay in their
+     * current state. If no region at all handles it, it's handled according to the invalid trigger policy, see
+     * {@link #setInvalidTriggerPolicy(InvalidTriggerPolicy)}.
+     *
+     * @param trigger The trigger to fire.
+     * @return {@link TriggerResult#TRANSITIONED} if any region transitioned, {@link TriggerResult#QUEUED} if the trigger was only
+     * queued by the regions, or {@link TriggerResult#INVALID} if no region handled it.
+     */
+    public TriggerResult trigger(final TriggerType trigger) {
+        if (regionArray == null) {
+            throw new FsmException("Cannot trigger, the state machine hasn't been started");
+        }
+        // Find the regions that handle the trigger before any of them transitions, so that a transition in one region doesn't
+        // affect whether another region handles the same trigger
+        StateMachine<TriggerType, ContextType> single = null;
+        List<StateMachine<TriggerType, ContextType>> handling = null;
+        for (final StateMachine<TriggerType, ContextType> region : regionArray) {
+            if (!region.handles(trigger)) {
+                continue;
+            }
+            if (single == null) {
+                single = region;
+            } else {
+                if (handling == null) {
+                    handling = new ArrayList<>(regionArray.length);
+                    handling.add(single);
+                }
+                handling.add(region);
+            }
+        }
+
+        if (single == null) {
+            invalidTrigger(trigger);
+            return TriggerResult.INVALID;
+        }
+        if (handling == null) {
+            return single.trigger(trigger);
+        }
+        TriggerResult result = TriggerResult.INVALID;
+        if (parallel) {
+            final List<RegionTrigger<TriggerType, ContextType>> tasks = new ArrayList<>(handling.size());
+            for (final StateMachine<TriggerType, ContextType> region : handling) {
+                tasks.add(new RegionTrigger<>(region, trigger));
+            }
+            invokeAll(tasks);
+            for (final RegionTrigger<TriggerType, ContextType> task : tasks) {
+                result = combine(result, task.result);
+            }
+        } else {
+            for (final StateMachine<TriggerType, ContextType> region : handling) {
+                result = combine(result, region.trigger(trigger));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Combines the results of two regions, where a transition in any region counts as a transition.
+     */
+    private static TriggerResult combine(final TriggerResult first, final TriggerResult second) {
+        if (first == TriggerResult.TRANSITIONED || second == TriggerResult.TRANSITIONED) {
+            return TriggerResult.TRANSITIONED;
+        }
+        return first == TriggerResult.QUEUED || second == TriggerResult.QUEUED ? TriggerResult.QUEUED : TriggerResult.INVALID;
+    }
+
+    /**
+     * Handles a trigger that no region handles, according to the invalid trigger policy.
+     */
+    private void invalidTrigger(final TriggerType trigger) {
+        switch (invalidTriggerPolicy) {
+        case IGNORE:
+            break;
+        case COUNT:
+            invalidTriggerCount++;
+            break;
+        case THROW:
+            throw new InvalidTriggerException(trigger, regionArray[0].getCurrentStateClass(), true);
+        default:
+            // The trigger is invalid for the current states of all regions, the listener is passed the one of the first region
+            if (listener == null) {
+                throw new InvalidTriggerException(trigger, regionArray[0].getCurrentStateClass(), true);
+            }
+            listener.onInvalidTrigger(context, trigger, regionArray[0].getCurrentStateClass());
+            break;
+        }
+    }
+
+    private void invokeAll(final List<RegionTrigger<TriggerType, ContextType>> tasks) {
+        if (ForkJoinTask.inForkJoinPool()) {
+            ForkJoinTask.invokeAll(tasks);
+        } else {
+            getPool().invoke(new RecursiveAction() {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected void compute() {
+                    ForkJoinTask.invokeAll(tasks);
+                }
+            });
+        }
+    }
+
+    public ContextType getContext() {
+        return context;
+    }
+
+    public void setContext(final ContextType context) {
+        this.context = context;
+        for (final StateMachine<TriggerType, ContextType> region : regions.values()) {
+            region.setContext(context);
+        }
+    }
+
+    public StateMachineListener<TriggerType, ContextType> getListener() {
+        return listener;
+    }
+
+    /**
+     * Sets the listener of every region, which is also notified of triggers that no region handles.
+     */
+    public void setListener(final StateMachineListener<TriggerType, ContextType> listener) {
+        this.listener = listener;
+        for (final StateMachine<TriggerType, ContextType> region : regions.values()) {
+            region.setListener(listener);
+        }
+    }
+
+    public InvalidTriggerPolicy getInvalidTriggerPolicy() {
+        return invalidTriggerPolicy;
+    }
+
+    /**
+     * Sets what happens when a trigger is fired that no region handles, and the invalid trigger policy of every region. The
+     * default, {@link InvalidTriggerPolicy#NOTIFY}, passes the trigger to the listener or throws an exception if there is none.
+     */
+    public void setInvalidTriggerPolicy(final InvalidTriggerPolicy invalidTriggerPolicy) {
+        this.invalidTriggerPolicy = invalidTriggerPolicy;
+        for (final StateMachine<TriggerType, ContextType> region : regions.values()) {
+            region.setInvalidTriggerPolicy(invalidTriggerPolicy);
+        }
+    }
+
+    /**
+     * Gets the number of triggers that no region handled, that have been counted with the {@link InvalidTriggerPolicy#COUNT}
+     * policy.
+     */
+    public long getInvalidTriggerCount() {
+        return invalidTriggerCount;
+    }
+
+    public boolean isParallel() {
+        return parallel;
+    }
+
+    /**
+     * Sets whether the regions that handle a trigger should be processed in parallel on a fork-join pool, instead of one after
+     * the other. The trigger method still returns first when all regions have completed their transitions, and an exception
+     * thrown by any region is rethrown to the caller.
+     */
+    public void setParallel(final boolean parallel) {
+        this.parallel = parallel;
+    }
+
+    public ForkJoinPool getPool() {
+        return pool != null ? pool : ForkJoinPool.commonPool();
+    }
+
+    /**
+     * Sets the fork-join pool that regions are processed on in parallel mode. By default, the common pool is used.
+     */
+    public void setPool(final ForkJoinPool pool) {
+        this.pool = pool;
+    }
+}
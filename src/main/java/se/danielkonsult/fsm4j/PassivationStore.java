@@ -0,0 +1,36 @@
+package se.danielkonsult.fsm4j;
+
+/**
+ * Holds the snapshots of state machines that a {@link StateMachineEngine} has passivated, e.g. taken out of memory because they
+ * have been idle, until they are needed again. Implementations can keep the snapshots anywhere, e.g. off-heap or on disk, but
+ * must be thread-safe since the shards of an engine use the store concurrently.
+ *
+ * @param <KeyType> The type of the keys that identify the state machines.
+ */
+public interface PassivationStore<KeyType> {
+
+    /**
+     * Stores the snapshot of a passivated state machine, replacing any snapshot that is already stored for the key.
+     */
+    void store(KeyType key, byte[] snapshot);
+
+    /**
+     * Gets the snapshot of a state machine without removing it from the store, so that it isn't lost if the state machine can't
+     * be restored from it.
+     *
+     * @return The snapshot, or null if there is no snapshot for the key.
+     */
+    byte[] get(KeyType key);
+
+    /**
+     * Removes the snapshot of a state machine from the store.
+     *
+     * @return The snapshot, or null if there is no snapshot for the key.
+     */
+    byte[] remove(KeyType key);
+
+    /**
+     * Gets the number of snapshots in the store.
+     */
+    int size();
+}
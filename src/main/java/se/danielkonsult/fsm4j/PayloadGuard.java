@@ -0,0 +1,14 @@
+package se.danielkonsult.fsm4j;
+
+/**
+ * A condition on both the context and the payload of a trigger, that must be true for a guarded transition to be taken, see
+ * {@link StateConfiguration#on(Object, Class, PayloadGuard)}.
+ *
+ * @param <ContextType> The context type of the state machine that the guard is evaluated against.
+ * @param <PayloadType> The type of the payloads that the guard accepts.
+ */
+@FunctionalInterface
+public interface PayloadGuard<ContextType, PayloadType> {
+
+    boolean test(ContextType context, PayloadType payload);
+}
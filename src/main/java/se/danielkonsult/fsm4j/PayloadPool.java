@@ -0,0 +1,71 @@
+package se.danielkonsult.fsm4j;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Supplier;
+
+/**
+ * Bounded, lock-free pool of mutable payload objects, so that triggers can carry data without allocating a new payload for every
+ * trigger. A payload is taken from the pool with {@link #acquire()}, filled in and fired with
+ * {@link StateMachine#trigger(Object, Object)}. If the pool has been set on the state machine, see
+ * {@link StateMachine#setPayloadPool(PayloadPool)}, the state machine releases the payload back to the pool once the trigger has
+ * been processed, also when it was queued or processed by another thread.
+ *
+ * A released payload is handed out again, so guards and states must not keep a reference to a payload after they have been
+ * called. Copy what should be kept into the context instead. Payloads that are released when the pool is full are simply dropped.
+ *
+ * @param <PayloadType> The type of the payloads in the pool.
+ */
+public final class PayloadPool<PayloadType> {
+
+    public static final int DEFAULT_CAPACITY = 64;
+
+    private final Supplier<? extends PayloadType> factory;
+    private final AtomicReferenceArray<PayloadType> slots;
+
+    /**
+     * Creates a pool that holds up to {@link #DEFAULT_CAPACITY} released payloads.
+     */
+    public PayloadPool(final Supplier<? extends PayloadType> factory) {
+        this(factory, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param factory Creates a new payload when the pool is empty.
+     * @param capacity The maximum number of released payloads that the pool holds.
+     */
+    public PayloadPool(final Supplier<? extends PayloadType> factory, final int capacity) {
+        if (capacity < 1) {
+            throw new FsmException(String.format("The capacity of a payload pool must be at least 1, not %d", capacity));
+        }
+        this.factory = factory;
+        this.slots = new AtomicReferenceArray<>(capacity);
+    }
+
+    /**
+     * Takes a payload from the pool, or creates a new one if the pool is empty.
+     */
+    public PayloadType acquire() {
+        for (int i = 0; i < slots.length(); i++) {
+            final PayloadType payload = slots.get(i);
+            if (payload != null && slots.compareAndSet(i, payload, null)) {
+                return payload;
+            }
+        }
+        return factory.get();
+    }
+
+    /**
+     * Hands a payload back to the pool, e.g. once the trigger that carried it has been processed.
+     */
+    public void release(final PayloadType payload) {
+        for (int i = 0; i < slots.length(); i++) {
+            if (slots.get(i) == null && slots.compareAndSet(i, null, payload)) {
+                return;
+            }
+        }
+    }
+
+    public int getCapacity() {
+        return slots.length();
+    }
+}
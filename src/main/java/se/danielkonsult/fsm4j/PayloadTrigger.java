@@ -0,0 +1,15 @@
+package se.danielkonsult.fsm4j;
+
+/**
+ * A trigger together with its payload, posted to a mailbox when the trigger can't be fired on the calling thread.
+ */
+final class PayloadTrigger<TriggerType> {
+
+    final TriggerType trigger;
+    final Object payload;
+
+    PayloadTrigger(final TriggerType trigger, final Object payload) {
+        this.trigger = trigger;
+        this.payload = payload;
+    }
+}
@@ -1,5 +1,6 @@
 package se.danielkonsult.fsm4j;
 
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -18,6 +19,10 @@ public class StateConfiguration<TriggerType, ContextType> {
     private final StateMachine<TriggerType, ContextType> stateMachine;
     private final HashMap<TriggerType, TriggerConfiguration<TriggerType, ContextType>> unguardedTriggerConfigurations = new HashMap<>();
     private final HashMap<TriggerType, List<TriggerConfiguration<TriggerType, ContextType>>> guardedTriggerConfigurations = new HashMap<>();
+    private StateLifecycle lifecycle = StateLifecycle.PER_ENTRY;
+    private StateConfiguration<TriggerType, ContextType> parent;
+    private Duration timeout;
+    private TriggerType timeoutTrigger;
 
     public StateConfiguration(final StateMachine<TriggerType, ContextType> stateMachine,
             final Class<? extends FsmState<TriggerType, ContextType>> stateClass) {
@@ -26,11 +31,63 @@ public class StateConfiguration<TriggerType, ContextType> {
     }
 
     public StateConfiguration<TriggerType, ContextType> isInitialState() {
+        stateMachine.assertNotCompiled();
         // This state should be the initial state
         stateMachine.setInitialStateConfiguration(this);
         return this;
     }
 
+    /**
+     * Sets how instances of the state class are obtained when the state is entered. The default is
+     * {@link StateLifecycle#PER_ENTRY}, which resolves a new instance every time.
+     * @param lifecycle The lifecycle of the state.
+     * @return This state configuration.
+     */
+    public StateConfiguration<TriggerType, ContextType> lifecycle(final StateLifecycle lifecycle) {
+        stateMachine.assertNotCompiled();
+        this.lifecycle = lifecycle;
+        return this;
+    }
+
+    /**
+     * Nests this state in a parent state. Triggers that this state doesn't handle itself are handled by the parent, or by its
+     * parent and so on. The parent is entered before this state and exited after it, and it stays entered while the state
+     * machine transitions between states that are nested in it.
+     * @param parentStateClass The state class of the parent.
+     * @return This state configuration.
+     */
+    public StateConfiguration<TriggerType, ContextType> parent(
+            final Class<? extends FsmState<TriggerType, ContextType>> parentStateClass) {
+        stateMachine.assertNotCompiled();
+        if (parentStateClass == stateClass) {
+            throw new FsmException(String.format("State %s can't be its own parent", stateClass.getSimpleName()));
+        }
+        this.parent = stateMachine.state(parentStateClass);
+        return this;
+    }
+
+    /**
+     * Fires a trigger when the state has stayed entered for a while, e.g. to relock a turnstile or to retry after a backoff. The
+     * timeout starts when the state is entered, and is cancelled when it's exited. It's kept in the {@link TimingWheel} of the
+     * state machine, see {@link StateMachine#setTimingWheel(TimingWheel)}. Unless the state machine is concurrent, the trigger is
+     * fired by the thread that owns the state machine once the timeout has expired, see {@link StateMachine#pollTimeouts()}.
+     * @param timeout How long the state may stay entered.
+     * @param trigger The trigger to fire when the timeout expires. The state must handle it, or inherit it from an ancestor.
+     * @return This state configuration.
+     */
+    public StateConfiguration<TriggerType, ContextType> after(final Duration timeout, final TriggerType trigger) {
+        stateMachine.assertNotCompiled();
+        if (this.timeout != null) {
+            throw new FsmException(String.format("State %s already has a timeout", stateClass.getSimpleName()));
+        }
+        if (timeout.isNegative() || timeout.isZero()) {
+            throw new FsmException(String.format("The timeout of state %s must be positive", stateClass.getSimpleName()));
+        }
+        this.timeout = timeout;
+        this.timeoutTrigger = trigger;
+        return this;
+    }
+
     /**
      * Creates, or returns an existing, unguarded trigger configuration on this state configuration. The trigger configuration can
      * then be fitted with a target state configuration through the TriggerConfiguration.goesTo method.
@@ -38,6 +95,7 @@ public class StateConfiguration<TriggerType, ContextType> {
      * @return The created or existing trigger configuration.
      */
     public TriggerConfiguration<TriggerType, ContextType> on(final TriggerType trigger) {
+        stateMachine.assertNotCompiled();
         // The same trigger must not have been registered as guarded already
         if (guardedTriggerConfigurations.containsKey(trigger)) {
             throw new FsmException(
@@ -54,7 +112,16 @@ public class StateConfiguration<TriggerType, ContextType> {
         }
     }
 
-    public TriggerConfiguration<TriggerType, ContextType> on(final TriggerType trigger, final Function<ContextType, Boolean> guard) {
+    /**
+     * Creates a guarded trigger configuration on this state configuration. The same trigger can be given any number of guards,
+     * each with its own target state. When the trigger is fired, the guards are evaluated in the order they were added and the
+     * first one that is true selects the target state.
+     * @param trigger The trigger that this configuration should apply to.
+     * @param guard The condition that must be true for the target state of this configuration to be selected.
+     * @return The created trigger configuration.
+     */
+    public TriggerConfiguration<TriggerType, ContextType> on(final TriggerType trigger, final Guard<ContextType> guard) {
+        stateMachine.assertNotCompiled();
         // The same trigger mustn't be registered as unguarded already
         if (unguardedTriggerConfigurations.containsKey(trigger)) {
             throw new FsmException(String
@@ -73,6 +140,70 @@ public class StateConfiguration<TriggerType, ContextType> {
         return triggerConfiguration;
     }
 
+    /**
+     * Creates a guarded trigger configuration whose guard is evaluated against the payload of the trigger as well as the context,
+     * see {@link StateMachine#trigger(Object, Object)}. The guard is false if the trigger has no payload, or a payload of another
+     * type, so it's never passed anything else than a payload of the given type. Guards with and without payload can be mixed for
+     * the same trigger, and are evaluated in the order they were added.
+     * @param trigger The trigger that this configuration should apply to.
+     * @param payloadType The type of the payloads that the guard accepts.
+     * @param guard The condition that must be true for the target state of this configuration to be selected.
+     * @return The created trigger configuration.
+     */
+    public <PayloadType> TriggerConfiguration<TriggerType, ContextType> on(final TriggerType trigger,
+            final Class<PayloadType> payloadType, final PayloadGuard<ContextType, PayloadType> guard) {
+        stateMachine.assertNotCompiled();
+        // The same trigger mustn't be registered as unguarded already
+        if (unguardedTriggerConfigurations.containsKey(trigger)) {
+            throw new FsmException(String
+                    .format("Trigger %s has already been registered without guard, cannot add as guarded as well", trigger));
+        }
+
+        if (!guardedTriggerConfigurations.containsKey(trigger)) {
+            guardedTriggerConfigurations.put(trigger, new ArrayList<TriggerConfiguration<TriggerType, ContextType>>());
+        }
+
+        final TriggerConfiguration<TriggerType, ContextType> triggerConfiguration = new TriggerConfiguration<TriggerType, ContextType>(this,
+                payloadType, guard);
+        guardedTriggerConfigurations.get(trigger).add(triggerConfiguration);
+
+        return triggerConfiguration;
+    }
+
+    /**
+     * Creates a keyed trigger configuration on this state configuration, e.g. a guard that is true when a key extracted from the
+     * context equals a specific value. Keyed guards of the same trigger that share the same key extractor are compiled into a
+     * lookup by key, so selecting the target state takes the same time however many values there are. Reuse one key extractor
+     * instance, e.g. a constant, for all values, since two lambdas are never the same extractor even if their code is.
+     *
+     * Keyed guards keep their place among the guards that have been added through {@link #on(Object, Guard)} for the same
+     * trigger: they are all evaluated in the order they were configured, and the first one that is true selects the target
+     * state. Only keyed guards that are configured one after the other are looked up together.
+     * @param trigger The trigger that this configuration should apply to.
+     * @param keyExtractor Extracts the key from the context.
+     * @param key The key that selects the target state of this configuration.
+     * @return The created trigger configuration.
+     */
+    public <KeyType> TriggerConfiguration<TriggerType, ContextType> onWhen(final TriggerType trigger,
+            final Function<ContextType, KeyType> keyExtractor, final KeyType key) {
+        stateMachine.assertNotCompiled();
+        // The same trigger mustn't be registered as unguarded already
+        if (unguardedTriggerConfigurations.containsKey(trigger)) {
+            throw new FsmException(String
+                    .format("Trigger %s has already been registered without guard, cannot add as guarded as well", trigger));
+        }
+
+        if (!guardedTriggerConfigurations.containsKey(trigger)) {
+            guardedTriggerConfigurations.put(trigger, new ArrayList<TriggerConfiguration<TriggerType, ContextType>>());
+        }
+
+        final TriggerConfiguration<TriggerType, ContextType> triggerConfiguration = new TriggerConfiguration<TriggerType, ContextType>(this,
+                keyExtractor, key);
+        guardedTriggerConfigurations.get(trigger).add(triggerConfiguration);
+
+        return triggerConfiguration;
+    }
+
     public StateMachine<TriggerType, ContextType> getStateMachine() {
         return stateMachine;
     }
@@ -81,71 +212,52 @@ public class StateConfiguration<TriggerType, ContextType> {
         return stateClass;
     }
 
-    public TriggerConfiguration<TriggerType, ContextType> getTriggerConfiguration(final TriggerType trigger) {
-        if (unguardedTriggerConfigurations.containsKey(trigger)) {
-            // It's unguarded, just return it
-            return unguardedTriggerConfigurations.get(trigger);
-        } else if (guardedTriggerConfigurations.containsKey(trigger)) {
-            // It's guarded, which guard evaluates to true?
-            TriggerConfiguration<TriggerType, ContextType> satisfied = null;
-            final List<TriggerConfiguration<TriggerType, ContextType>> triggerConfigurations = guardedTriggerConfigurations
-                    .get(trigger);
-            for (final TriggerConfiguration<TriggerType, ContextType> tc : triggerConfigurations) {
-                // Calculate guard result
-                boolean guardResult = false;
-                try {
-                    guardResult = tc.getGuard().apply(stateMachine.getContext());
-                } catch (final Exception e) {
-                    throw new FsmException(
-                            String.format("Could not evaluate guard on state %s", stateClass.getName()), e);
-                }
+    public StateLifecycle getLifecycle() {
+        return lifecycle;
+    }
 
-                if (guardResult) {
-                    // Only one guard must evaluate to true
-                    if (satisfied != null) {
-                        throw new FsmException(String.format("More than one guard evaluates to true on state %s",
-                                stateClass.getName()));
-                    }
-                    satisfied = tc;
-                }
-            }
+    /**
+     * Gets the configuration of the parent state, or null if this state isn't nested in another state.
+     */
+    public StateConfiguration<TriggerType, ContextType> getParent() {
+        return parent;
+    }
 
-            if (satisfied == null) {
-                throw new FsmException(
-                        String.format("No guard evaluates to true on state %s", stateClass.getName()));
-            }
+    /**
+     * Gets how long the state may stay entered before its timeout trigger is fired, or null if it has no timeout.
+     */
+    public Duration getTimeout() {
+        return timeout;
+    }
 
-            return satisfied;
-        } else {
-            // This trigger is not valid for the current class, is there a listener that can determine what should happen?
-            if (stateMachine.getListener() == null) {
-                // No, throw an exception
-                throw new FsmException(
-                        String.format("Trigger %s is not valid for state %s", trigger, getStateClass().getSimpleName()));
-            } else {
-                // Notify listener
-                stateMachine.getListener().onInvalidTrigger(stateMachine.getContext(), trigger, getStateClass());
-            }
-            return null;
-        }
+    public TriggerType getTimeoutTrigger() {
+        return timeoutTrigger;
+    }
+
+    HashMap<TriggerType, TriggerConfiguration<TriggerType, ContextType>> getUnguardedTriggerConfigurations() {
+        return unguardedTriggerConfigurations;
+    }
+
+    HashMap<TriggerType, List<TriggerConfiguration<TriggerType, ContextType>>> getGuardedTriggerConfigurations() {
+        return guardedTriggerConfigurations;
     }
 
     /**
-     * Gets all state configurations that this state targets through its trigger configurations.
+     * Gets all state configurations that this state targets through its trigger configurations, except internal transitions.
      */
     @SuppressWarnings("unchecked")
     public StateConfiguration<TriggerType, ContextType>[] getTargetStateConfigurations() {
         final List<StateConfiguration<TriggerType, ContextType>> targetStates = new ArrayList<>();
         for (final TriggerConfiguration<TriggerType, ContextType> triggerConfiguration : unguardedTriggerConfigurations.values()) {
             final StateConfiguration<TriggerType, ContextType> target = triggerConfiguration.getTargetStateConfiguration();
-            if (!targetStates.contains(target)) {
+            if (target != null && !targetStates.contains(target)) {
                 targetStates.add(target);
             }
         }
         for (final List<TriggerConfiguration<TriggerType, ContextType>> triggerConfigurationList : guardedTriggerConfigurations.values()) {
             for (final TriggerConfiguration<TriggerType, ContextType> triggerConfiguration : triggerConfigurationList) {
                 final StateConfiguration<TriggerType, ContextType> target = triggerConfiguration.getTargetStateConfiguration();
-                if (!targetStates.contains(target)) {
+                if (target != null && !targetStates.contains(target)) {
                     targetStates.add(target);
                 }
             }
@@ -0,0 +1,32 @@
+package se.danielkonsult.fsm4j;
+
+/**
+ * Determines how instances of a state class are obtained when the state is entered, and what happens to them when the state is
+ * exited. The lifecycle is chosen per state through {@link StateConfiguration#lifecycle(StateLifecycle)}.
+ */
+public enum StateLifecycle {
+    /**
+     * A new instance is resolved every time the state is entered. This is the default, and the only safe choice for states that
+     * keep data in their fields between entering() and exiting(). It's also the only lifecycle that allocates when a trigger is
+     * fired, once the state machine has warmed up.
+     */
+    PER_ENTRY,
+
+    /**
+     * One instance is resolved the first time the state is entered and is then shared by every state machine that runs on the
+     * same definition, also concurrently. Only suitable for stateless states.
+     */
+    SINGLETON,
+
+    /**
+     * One instance is resolved per state machine the first time the state is entered, and then reused every time that state
+     * machine enters the state again.
+     */
+    PER_MACHINE,
+
+    /**
+     * Instances are taken from a bounded pool that is shared by every state machine that runs on the same definition when the
+     * state is entered, and returned to it when the state is exited. A new instance is only resolved when the pool is empty.
+     */
+    POOLED
+}
@@ -1,8 +1,15 @@
 package se.danielkonsult.fsm4j;
 
-import java.lang.reflect.Constructor;
-import java.util.HashMap;
-import java.util.Map;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
 
 /**
  * Generic FSM (Finite State Machine) implementation where all the states must implement a common, generic FsmState interface that
@@ -15,7 +22,14 @@ import java.util.Map;
  * by firing triggers.
  *
  * When entering a new state, a custom state resolver can be used to provide dependency injection functionality in the state
- * machine, enabling each state to request additional dependencies by constructor injection.
+ * machine, enabling each state to request additional dependencies by constructor injection. How often the resolver is asked for
+ * a new instance is controlled by the {@link StateLifecycle} of each state.
+ *
+ * Before the state machine is started, the configuration is compiled into an immutable {@link TransitionTable}, either
+ * explicitly through {@link #compile()} or implicitly by {@link #start()}. After that, the configuration can no longer be changed.
+ *
+ * The compiled configuration is available as a {@link StateMachineDefinition} through {@link #getDefinition()}, which can be
+ * shared by any number of lightweight {@link StateMachineInstance}s.
  *
  * @param <TriggerType> The type that should be used as the trigger of the state machine, e.g. an enum or an integer.
  * @param <ContextType> The type of the context that should be used. The context is shared by all states of the state machine, so
@@ -23,185 +37,1266 @@ import java.util.Map;
  */
 public class StateMachine<TriggerType, ContextType> {
 
-    private final HashMap<Class<? extends FsmState<TriggerType, ContextType>>, StateConfiguration<TriggerType, ContextType>> states = new HashMap<>();
+    /**
+     * The system property that enables guard verification by default, see {@link #setGuardVerification(boolean)}.
+     */
+    public static final String GUARD_VERIFICATION_PROPERTY = "fsm4j.verifyGuards";
+
+    /**
+     * Stands in for a missing payload in the queue of pending triggers, which can't hold null.
+     */
+    private static final Object NO_PAYLOAD = new Object();
+
+    /**
+     * The configuration that a state machine is built from. Only state machines that are configured directly have one, instances
+     * that run on a shared definition don't.
+     */
+    private static final class Configuration<TriggerType, ContextType> {
+
+        private final LinkedHashMap<Class<? extends FsmState<TriggerType, ContextType>>, StateConfiguration<TriggerType, ContextType>> states = new LinkedHashMap<>();
+
+        private final StateMachineOptions<TriggerType, ContextType> options = new StateMachineOptions<>();
 
-    private StateConfiguration<TriggerType, ContextType> initialStateConfiguration;
-    private StateConfiguration<TriggerType, ContextType> currentStateConfiguration;
+        private StateConfiguration<TriggerType, ContextType> initialStateConfiguration;
+    }
+
+    /**
+     * The state of the optional features of a state machine: metrics, the invalid trigger count, the journal, states with the
+     * {@link StateLifecycle#PER_MACHINE} lifecycle, run-to-completion queueing, concurrent mode and timeouts. It's only allocated
+     * once one of them is used, so a state machine that uses none of them doesn't pay for them.
+     */
+    private static final class Features<TriggerType, ContextType> {
+
+        // When the entered states were entered, in System.nanoTime(), if metrics are enabled
+        private long[] enteredAt;
+        private long invalidTriggerCount;
+        private TransitionJournal journal;
+        private FsmState<TriggerType, ContextType>[] cachedStates;
+        // Pending triggers, each followed by its payload or NO_PAYLOAD
+        private ArrayDeque<Object> pendingTriggers;
+        // Triggers, and expired timeouts, posted to the state machine in concurrent mode
+        private Mailbox<Object, CompletableFuture<Class<? extends FsmState<TriggerType, ContextType>>>> mailbox;
+        // The timeouts of the entered states, by depth
+        private StateTimeout[] timeouts;
+        private Consumer<StateTimeout> timeoutRouter;
+        // Set by the timing wheel when a timeout has expired that the owning thread has to fire, see pollTimeouts()
+        private volatile boolean timeoutsExpired;
+    }
+
+    private final Configuration<TriggerType, ContextType> configuration;
+    private StateMachineDefinition<TriggerType, ContextType> definition;
+    private int currentStateId = TransitionTable.NO_TRANSITION;
     private FsmState<TriggerType, ContextType> currentState;
-    private StateMachineListener<TriggerType, ContextType> listener;
+    // The entered states, from the outermost ancestor of the current state down to the current state itself
+    private FsmState<TriggerType, ContextType>[] activeStates;
+    private int activeCount;
+    private int transitionCount;
+    private boolean dispatching;
+    private Features<TriggerType, ContextType> features;
     private ContextType context;
 
-    // Setup a default state resolver
-    private StateResolver<TriggerType, ContextType> stateResolver = clss -> {
-        Constructor<? extends FsmState<TriggerType, ContextType>> ctor;
-        try {
-            ctor = clss.getConstructor();
-            return (FsmState<TriggerType, ContextType>) ctor.newInstance();
-        } catch (final Exception e) {
-            throw new FsmException(String.format("Could not instantiate state class %s! No parameterless constructor?",
-                    clss.getSimpleName()), e);
+    /**
+     * Gets the optional features of the state machine, and allocates them the first time one of them is used. They are only
+     * allocated by the thread that owns the state machine, or before it's shared with other threads, which only read them.
+     */
+    private Features<TriggerType, ContextType> features() {
+        if (features == null) {
+            features = new Features<>();
+        }
+        return features;
+    }
+
+    private Mailbox<Object, CompletableFuture<Class<? extends FsmState<TriggerType, ContextType>>>> getMailbox() {
+        return features != null ? features.mailbox : null;
+    }
+
+    private StateTimeout[] getTimeouts() {
+        return features != null ? features.timeouts : null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private FsmState<TriggerType, ContextType> acquireState(final int stateId) {
+        if (definition.getTransitionTable().getStateLifecycle(stateId) != StateLifecycle.PER_MACHINE) {
+            return definition.acquireState(stateId);
+        }
+        // The state instance is cached by this state machine
+        final Features<TriggerType, ContextType> features = features();
+        if (features.cachedStates == null) {
+            features.cachedStates = new FsmState[definition.getTransitionTable().getStateCount()];
+        }
+        if (features.cachedStates[stateId] == null) {
+            features.cachedStates[stateId] = definition.acquireState(stateId);
+        }
+        return features.cachedStates[stateId];
+    }
+
+    /**
+     * Enters the current state, after entering any of its ancestors that haven't been entered yet.
+     *
+     * @param payload The payload of the trigger that entered the states, or null.
+     */
+    @SuppressWarnings("unchecked")
+    private void enterCurrentState(final Object payload) {
+        final TransitionTable<TriggerType, ContextType> transitionTable = definition.getTransitionTable();
+        final int[] path = transitionTable.getStatePath(currentStateId);
+        if (activeStates == null) {
+            activeStates = new FsmState[transitionTable.getMaxDepth() + 1];
+        }
+        final TransitionMetrics metrics = definition.getMetrics();
+        final int transition = transitionCount;
+        while (activeCount < path.length) {
+            final int stateId = path[activeCount];
+            final FsmState<TriggerType, ContextType> state = acquireState(stateId);
+            activeStates[activeCount++] = state;
+            if (activeCount == path.length) {
+                currentState = state;
+            }
+            armTimeout(activeCount - 1, stateId);
+            if (metrics == null) {
+                state.entering(this, this.context, payload);
+            } else {
+                final long started = markEntered(activeCount - 1);
+                state.entering(this, this.context, payload);
+                metrics.recordEntering(stateId, System.nanoTime() - started);
+            }
+            if (transitionCount != transition) {
+                // The state fired a trigger that has already moved the state machine on
+                return;
+            }
+        }
+    }
+
+    /**
+     * Makes the current state, and its ancestors, the entered states without calling their entering() methods, e.g. because
+     * they were entered before the state machine was restored from a snapshot.
+     */
+    @SuppressWarnings("unchecked")
+    private void resumeCurrentState() {
+        final TransitionTable<TriggerType, ContextType> transitionTable = definition.getTransitionTable();
+        final int[] path = transitionTable.getStatePath(currentStateId);
+        if (activeStates == null) {
+            activeStates = new FsmState[transitionTable.getMaxDepth() + 1];
+        }
+        final boolean measured = definition.getMetrics() != null;
+        while (activeCount < path.length) {
+            activeStates[activeCount] = acquireState(path[activeCount]);
+            armTimeout(activeCount, path[activeCount]);
+            if (measured) {
+                markEntered(activeCount);
+            }
+            activeCount++;
+        }
+        currentState = activeStates[activeCount - 1];
+    }
+
+    /**
+     * Records when the entered state at a depth was entered, for its dwell time.
+     *
+     * @return The current System.nanoTime().
+     */
+    private long markEntered(final int depth) {
+        final Features<TriggerType, ContextType> features = features();
+        if (features.enteredAt == null) {
+            features.enteredAt = new long[activeStates.length];
+        }
+        final long now = System.nanoTime();
+        features.enteredAt[depth] = now;
+        return now;
+    }
+
+    /**
+     * Exits the entered states, from the current state and up, until only the given number of outermost states remain entered.
+     */
+    private void exitStates(final int retainedDepth) {
+        if (activeCount <= retainedDepth) {
+            return;
+        }
+        final int[] path = definition.getTransitionTable().getStatePath(currentStateId);
+        final TransitionMetrics metrics = definition.getMetrics();
+        final long[] enteredAt = features != null ? features.enteredAt : null;
+        currentState = null;
+        while (activeCount > retainedDepth) {
+            final int index = --activeCount;
+            final FsmState<TriggerType, ContextType> state = activeStates[index];
+            activeStates[index] = null;
+            cancelTimeout(index);
+            if (metrics == null || enteredAt == null) {
+                state.exiting();
+            } else {
+                final long started = System.nanoTime();
+                metrics.recordDwellTime(path[index], started - enteredAt[index]);
+                state.exiting();
+                metrics.recordExiting(path[index], System.nanoTime() - started);
+            }
+            definition.releaseState(path[index], state);
+        }
+    }
+
+    /**
+     * Starts the timeout of a state that is entered at a depth, if it has one.
+     */
+    private void armTimeout(final int depth, final int stateId) {
+        final long timeoutNanos = definition.getTransitionTable().getTimeoutNanos(stateId);
+        if (timeoutNanos == 0) {
+            return;
+        }
+        final Features<TriggerType, ContextType> features = features();
+        if (features.timeouts == null) {
+            features.timeouts = new StateTimeout[activeStates.length];
+        }
+        if (features.timeouts[depth] == null) {
+            features.timeouts[depth] = new StateTimeout(this);
+        }
+        final StateTimeout timeout = features.timeouts[depth];
+        final TimingWheel timingWheel = definition.getTimingWheel();
+        timeout.stateId = stateId;
+        timeout.deadline = timingWheel.now() + timeoutNanos;
+        timingWheel.schedule(timeout, timeout.deadline);
+    }
+
+    private void cancelTimeout(final int depth) {
+        final StateTimeout[] timeouts = getTimeouts();
+        if (timeouts == null || timeouts[depth] == null || timeouts[depth].deadline == StateTimeout.NOT_ARMED) {
+            return;
+        }
+        timeouts[depth].deadline = StateTimeout.NOT_ARMED;
+        definition.getTimingWheel().cancel(timeouts[depth]);
+    }
+
+    /**
+     * Cancels the timeouts of all entered states without exiting them, e.g. because the state machine is passivated.
+     */
+    void cancelTimeouts() {
+        for (int depth = 0; depth < activeCount; depth++) {
+            cancelTimeout(depth);
+        }
+    }
+
+    /**
+     * Gets the deadlines of the timeouts of the entered states, e.g. to keep them running while the state machine is passivated,
+     * see {@link #resumeTimeouts(long[])}.
+     *
+     * @return The deadlines by depth, in the time of the timing wheel, with {@link StateTimeout#NOT_ARMED} for states whose
+     * timeout isn't running, or null if none of the entered states has ever had a timeout.
+     */
+    long[] getTimeoutDeadlines() {
+        final StateTimeout[] timeouts = getTimeouts();
+        if (timeouts == null) {
+            return null;
+        }
+        final long[] deadlines = new long[activeCount];
+        for (int depth = 0; depth < activeCount; depth++) {
+            deadlines[depth] = timeouts[depth] != null ? timeouts[depth].deadline : StateTimeout.NOT_ARMED;
+        }
+        return deadlines;
+    }
+
+    /**
+     * Lets the timeouts of the entered states run on from the deadlines they had, after the state machine has been restored
+     * without entering its states, instead of starting over. Timeouts that had already fired aren't started again, and timeouts
+     * whose deadline has passed expire right away.
+     *
+     * @param deadlines The deadlines from {@link #getTimeoutDeadlines()}.
+     */
+    void resumeTimeouts(final long[] deadlines) {
+        final TimingWheel timingWheel = definition.getTimingWheel();
+        final StateTimeout[] timeouts = getTimeouts();
+        for (int depth = 0; depth < activeCount; depth++) {
+            final long deadline = depth < deadlines.length ? deadlines[depth] : StateTimeout.NOT_ARMED;
+            if (deadline == StateTimeout.NOT_ARMED) {
+                cancelTimeout(depth);
+            } else if (timeouts != null && timeouts[depth] != null && timeouts[depth].deadline != StateTimeout.NOT_ARMED) {
+                timeouts[depth].deadline = deadline;
+                if (deadline - timingWheel.now() > 0) {
+                    timingWheel.schedule(timeouts[depth], deadline);
+                } else {
+                    timingWheel.cancel(timeouts[depth]);
+                    timeoutExpired(timeouts[depth]);
+                }
+            }
         }
-    };
+    }
 
-    private class TestEntry {
+    /**
+     * Called by the timing wheel when the timeout of an entered state has expired. The timeout trigger is never fired on the
+     * thread of the timing wheel. It's handed to the router or posted to the mailbox if there is one, and otherwise it's left for
+     * the thread that owns the state machine, see {@link #pollTimeouts()}.
+     */
+    void timeoutExpired(final StateTimeout timeout) {
+        // The timeout was armed by the owning thread, which allocated the features before it was scheduled
+        final Features<TriggerType, ContextType> features = this.features;
+        if (features.timeoutRouter != null) {
+            features.timeoutRouter.accept(timeout);
+        } else if (features.mailbox != null) {
+            features.mailbox.post(timeout, null);
+        } else {
+            features.timeoutsExpired = true;
+        }
+    }
 
-        private final StateConfiguration<TriggerType, ContextType> stateConfiguration;
-        private int referenceCount;
+    /**
+     * Fires the triggers of the timeouts that have expired since they were last polled. A state machine that isn't concurrent
+     * isn't thread-safe, so its timeouts are fired by the thread that owns it rather than by the timing wheel: before the next
+     * trigger that it fires, or when it calls this method, e.g. from an event loop while it's waiting for triggers.
+     *
+     * State machines in concurrent mode, or in a {@link StateMachineEngine}, have their timeouts fired through the mailbox and
+     * don't need to be polled.
+     *
+     * @return The number of timeout triggers that were fired.
+     */
+    public int pollTimeouts() {
+        final Features<TriggerType, ContextType> features = this.features;
+        if (features == null || !features.timeoutsExpired || features.mailbox != null) {
+            return 0;
+        }
+        features.timeoutsExpired = false;
+        final StateTimeout[] timeouts = features.timeouts;
+        int fired = 0;
+        // Outermost state first. Exiting a state disarms its timeout, so only the timeouts of states that are still entered fire.
+        for (int depth = 0; timeouts != null && depth < timeouts.length; depth++) {
+            if (timeouts[depth] != null) {
+                final TriggerType timeoutTrigger = takeTimeoutTrigger(timeouts[depth]);
+                if (timeoutTrigger != null) {
+                    handle(timeoutTrigger, null);
+                    fired++;
+                }
+            }
+        }
+        return fired;
+    }
 
-        public TestEntry(final StateConfiguration<TriggerType, ContextType> stateConfiguration) {
-            this.stateConfiguration = stateConfiguration;
+    /**
+     * Fires the trigger of an expired timeout, unless its state has been exited since it expired.
+     */
+    void fireTimeout(final StateTimeout timeout) {
+        final TriggerType timeoutTrigger = takeTimeoutTrigger(timeout);
+        if (timeoutTrigger != null) {
+            trigger(timeoutTrigger);
         }
     }
 
-    private void enterCurrentState() {
-        currentState = stateResolver.resolve(currentStateConfiguration.getStateClass());
-        currentState.entering(this, this.context);
+    private TriggerType takeTimeoutTrigger(final StateTimeout timeout) {
+        final long deadline = timeout.deadline;
+        if (deadline == StateTimeout.NOT_ARMED || definition.getTimingWheel().now() - deadline < 0) {
+            // The state was exited, and maybe entered again, after the timeout expired
+            return null;
+        }
+        timeout.deadline = StateTimeout.NOT_ARMED;
+        return definition.getTransitionTable().getTimeoutTrigger(timeout.stateId);
     }
 
-    private void exitCurrentState() {
-        if (currentState != null) {
-            currentState.exiting();
-            currentState = null;
+    /**
+     * Makes expired timeouts be handed to a router instead of being polled by the owning thread, e.g. to have them
+     * fired by the thread that owns the state machine through {@link #fireTimeout(StateTimeout)}.
+     */
+    void setTimeoutRouter(final Consumer<StateTimeout> timeoutRouter) {
+        features().timeoutRouter = timeoutRouter;
+    }
+
+    private void commitJournal() {
+        final TransitionJournal journal = getJournal();
+        if (journal != null) {
+            journal.commit();
         }
     }
 
     private void notifyOnTransitioning(final Class<? extends FsmState<TriggerType, ContextType>> sourceState,
             final Class<? extends FsmState<TriggerType, ContextType>> targetState) {
+        final StateMachineListener<TriggerType, ContextType> listener = definition.getListener();
         if (listener != null) {
             listener.onTransitioning(context, sourceState, targetState);
         }
     }
 
+    private Configuration<TriggerType, ContextType> getConfiguration() {
+        if (configuration == null) {
+            throw new FsmException("The state machine runs on a shared definition, its configuration can't be changed");
+        }
+        return configuration;
+    }
+
+    private StateMachineOptions<TriggerType, ContextType> getOptions() {
+        return getConfiguration().options;
+    }
+
+    /**
+     * Rebuilds the definition after an option has changed, if the configuration has already been compiled.
+     */
+    private void optionsChanged() {
+        if (definition != null) {
+            definition = new StateMachineDefinition<>(definition.getTransitionTable(), configuration.options);
+        }
+    }
+
     // Constructors
 
     public StateMachine() {
+        this.configuration = new Configuration<>();
     }
 
     public StateMachine(final ContextType context) {
+        this();
+        this.context = context;
+    }
+
+    StateMachine(final StateMachineDefinition<TriggerType, ContextType> definition, final ContextType context) {
+        this.configuration = null;
+        this.definition = definition;
         this.context = context;
     }
 
     public StateConfiguration<TriggerType, ContextType> state(
             final Class<? extends FsmState<TriggerType, ContextType>> stateClass) {
-        if (states.containsKey(stateClass)) {
-            return states.get(stateClass);
+        final Configuration<TriggerType, ContextType> configuration = getConfiguration();
+        assertNotCompiled();
+        if (configuration.states.containsKey(stateClass)) {
+            return configuration.states.get(stateClass);
         } else {
             final StateConfiguration<TriggerType, ContextType> stateConfiguration = new StateConfiguration<TriggerType, ContextType>(
                     this, stateClass);
-            states.put(stateClass, stateConfiguration);
+            configuration.states.put(stateClass, stateConfiguration);
             return stateConfiguration;
         }
     }
 
+    /**
+     * Compiles the configuration of the state machine into an immutable transition table, unless that has already been done.
+     * After this, no more states or triggers can be configured.
+     *
+     * @return The compiled transition table.
+     */
+    public TransitionTable<TriggerType, ContextType> compile() {
+        return getDefinition().getTransitionTable();
+    }
+
+    /**
+     * Gets the definition of the state machine, compiling the configuration first if that hasn't already been done. The
+     * definition can be used to create any number of lightweight instances that share the same configuration.
+     */
+    public StateMachineDefinition<TriggerType, ContextType> getDefinition() {
+        if (definition == null) {
+            definition = new StateMachineDefinition<>(
+                    TransitionTable.compile(configuration.states.values(), configuration.initialStateConfiguration),
+                    configuration.options);
+        }
+        return definition;
+    }
+
+    public boolean isCompiled() {
+        return definition != null;
+    }
+
+    void assertNotCompiled() {
+        if (definition != null) {
+            throw new FsmException("The state machine has been compiled, its configuration can no longer be changed");
+        }
+    }
+
     public void start() {
-        if (initialStateConfiguration == null) {
+        final TransitionTable<TriggerType, ContextType> transitionTable = getDefinition().getTransitionTable();
+        if (transitionTable.getInitialStateId() == TransitionTable.NO_TRANSITION) {
             throw new FsmException("Cannot start, no initial state set");
         }
-        currentStateConfiguration = initialStateConfiguration;
-        enterCurrentState();
+        final TransitionJournal journal = getJournal();
+        if (journal != null) {
+            journal.appendStart(transitionTable.getInitialStateId());
+        }
+        startIn(transitionTable.getInitialStateId(), true);
+        commitJournal();
+    }
 
-        notifyOnTransitioning(null, currentStateConfiguration.getStateClass());
+    /**
+     * Starts the state machine in a specific state.
+     *
+     * @param stateId The id of the state to start in.
+     * @param enter False if the state, and its ancestors, should be made current without being entered or notifying the listener.
+     */
+    private void startIn(final int stateId, final boolean enter) {
+        final TransitionTable<TriggerType, ContextType> transitionTable = definition.getTransitionTable();
+        currentStateId = stateId;
+        if (!enter) {
+            if (definition.isConcurrent()) {
+                features().mailbox = new Mailbox<>(this::process, definition.getExecutor(), definition.getErrorHandler());
+            }
+            resumeCurrentState();
+        } else if (definition.isConcurrent()) {
+            // Triggers fired from other threads, or while entering the initial state, are posted to the mailbox and processed
+            // once the initial state has been entered
+            final Mailbox<Object, CompletableFuture<Class<? extends FsmState<TriggerType, ContextType>>>> mailbox = new Mailbox<>(
+                    this::process, definition.getExecutor(), definition.getErrorHandler());
+            features().mailbox = mailbox;
+            mailbox.tryAcquire();
+            try {
+                enterCurrentState(null);
+                notifyOnTransitioning(null, transitionTable.getStateClass(currentStateId));
+            } finally {
+                mailbox.release();
+            }
+        } else if (definition.isRunToCompletion()) {
+            // Triggers fired while entering the initial state are queued until it has been entered
+            dispatching = true;
+            try {
+                enterCurrentState(null);
+                notifyOnTransitioning(null, transitionTable.getStateClass(currentStateId));
+                drainPendingTriggers();
+            } finally {
+                finishDispatching();
+            }
+        } else {
+            enterCurrentState(null);
+            notifyOnTransitioning(null, transitionTable.getStateClass(currentStateId));
+        }
+    }
+
+    /**
+     * Captures the current state of the state machine, and its context if a context codec has been set, in a compact binary form:
+     * the id of the current state as a variable length integer, followed by the encoded context. The snapshot can be restored
+     * into any state machine with the same configuration, see {@link #restore(byte[])}.
+     *
+     * Note that state ids are assigned in the order the states were configured, so a snapshot can't be restored into a state
+     * machine where states have been added or reordered.
+     */
+    public byte[] snapshot() {
+        if (currentStateId == TransitionTable.NO_TRANSITION) {
+            throw new FsmException("Cannot snapshot, the state machine hasn't been started");
+        }
+        final ContextCodec<ContextType> contextCodec = definition.getContextCodec();
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(contextCodec != null ? 64 : 5);
+        final DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            VarInts.write(out, currentStateId);
+            if (contextCodec != null) {
+                contextCodec.encode(context, out);
+            }
+            out.flush();
+        } catch (final IOException e) {
+            throw new FsmException("Could not encode the context of the state machine", e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Restores a snapshot that was captured by {@link #snapshot()}, without entering the restored state. This starts the state
+     * machine, which must not already be running, in the state that it was in when the snapshot was captured.
+     */
+    public void restore(final byte[] snapshot) {
+        restore(snapshot, false);
+    }
+
+    /**
+     * Restores a snapshot that was captured by {@link #snapshot()}. This starts the state machine, which must not already be
+     * running, in the state that it was in when the snapshot was captured. If a context codec has been set, the context is
+     * decoded from the snapshot and replaces the current context.
+     *
+     * @param snapshot The snapshot to restore.
+     * @param enter True if the restored state, and its ancestors, should be entered and the listener notified just like when the
+     * state machine is started. Otherwise the restored state just becomes the current state.
+     */
+    public void restore(final byte[] snapshot, final boolean enter) {
+        restore(snapshot, TransitionTable.NO_TRANSITION, enter);
+        final TransitionJournal journal = getJournal();
+        if (journal != null) {
+            // Record where the state machine continues from
+            journal.appendCheckpoint(snapshot);
+            journal.commit();
+        }
+    }
+
+    /**
+     * Restores a snapshot, optionally into another state than the one it was captured in.
+     *
+     * @param snapshot The snapshot to restore the context from, or null to keep the current context.
+     * @param stateId The id of the state to restore, or {@link TransitionTable#NO_TRANSITION} to restore the state of the
+     * snapshot.
+     * @param enter True if the restored state should be entered.
+     */
+    void restore(final byte[] snapshot, final int stateId, final boolean enter) {
+        final TransitionTable<TriggerType, ContextType> transitionTable = getDefinition().getTransitionTable();
+        if (activeCount > 0) {
+            throw new FsmException("Cannot restore, the state machine is running");
+        }
+        int restoredStateId = stateId;
+        if (snapshot != null) {
+            final ContextCodec<ContextType> contextCodec = definition.getContextCodec();
+            final DataInputStream in = new DataInputStream(new ByteArrayInputStream(snapshot));
+            try {
+                final int snapshotStateId = VarInts.read(in);
+                if (restoredStateId == TransitionTable.NO_TRANSITION) {
+                    restoredStateId = snapshotStateId;
+                }
+                if (contextCodec != null) {
+                    context = contextCodec.decode(in);
+                }
+            } catch (final IOException e) {
+                throw new FsmException("Could not decode the snapshot of the state machine", e);
+            }
+        }
+        if (restoredStateId < 0 || restoredStateId >= transitionTable.getStateCount()) {
+            throw new FsmException(String.format("The snapshot refers to state id %d, but the state machine only has %d states",
+                    restoredStateId, transitionTable.getStateCount()));
+        }
+        startIn(restoredStateId, enter);
     }
 
     public void stop() {
-        if (currentStateConfiguration != null) {
-            notifyOnTransitioning(currentStateConfiguration.getStateClass(), null);
+        if (currentStateId != TransitionTable.NO_TRANSITION) {
+            notifyOnTransitioning(definition.getTransitionTable().getStateClass(currentStateId), null);
         }
-        exitCurrentState();
+        exitStates(0);
     }
 
     /**
      * Verifies that all state classes that are configured can be resolved, and that no state classes except the initial state are
-     * orphaned, e.g. no transitions point to them.
+     * orphaned, e.g. no transitions point to them. The configuration is compiled first if that hasn't already been done.
      */
     public void test() {
-        // Create a list of test entries
-        final Map<StateConfiguration<TriggerType, ContextType>, TestEntry> testEntries = new HashMap<>();
-        for (final StateConfiguration<TriggerType, ContextType> stateConfiguration : states.values()) {
-            testEntries.put(stateConfiguration, new TestEntry(stateConfiguration));
+        getDefinition().test();
+    }
+
+    /**
+     * Fires a trigger, which makes the state machine transition to the state that the current state has configured for it.
+     *
+     * In run-to-completion mode, a trigger that is fired while a transition is in progress, e.g. from inside the entering()
+     * method of a state, is queued and fired when the ongoing transition has completed.
+     *
+     * In concurrent mode, the trigger is posted to the mailbox of the state machine and this method may return before it has been
+     * processed, either because another thread is currently processing triggers or because an executor has been set.
+     *
+     * If the trigger isn't valid for the current state, it's handled according to the invalid trigger policy, see
+     * {@link #setInvalidTriggerPolicy(InvalidTriggerPolicy)}.
+     *
+     * @param trigger The trigger to fire.
+     * @return Whether the trigger caused a transition, was invalid or was queued. In run-to-completion mode, this is the outcome
+     * of the trigger itself and not of any triggers that the entered state fired.
+     */
+    public TriggerResult trigger(final TriggerType trigger) {
+        return trigger(trigger, null);
+    }
+
+    /**
+     * Fires a trigger that carries a payload, e.g. the data of an event. The payload is passed to the guards of the trigger that
+     * accept it, see {@link StateConfiguration#on(Object, Class, PayloadGuard)}, and to
+     * {@link FsmState#entering(StateMachine, Object, Object)} of the states that the trigger enters. Unlike data that is put in
+     * the context before firing a trigger, the payload belongs to the trigger, so it's still the right one when the trigger is
+     * queued or processed by another thread.
+     *
+     * If a payload pool has been set, see {@link #setPayloadPool(PayloadPool)}, the payload is released to it once the trigger
+     * has been processed. Payloads aren't recorded in the journal.
+     *
+     * @param trigger The trigger to fire.
+     * @param payload The payload of the trigger, or null if it has none.
+     * @return Whether the trigger caused a transition, was invalid or was queued, see {@link #trigger(Object)}.
+     */
+    public TriggerResult trigger(final TriggerType trigger, final Object payload) {
+        if (features != null && features.timeoutsExpired && !dispatching) {
+            // Timeouts that expired before this trigger was fired go first
+            pollTimeouts();
+        }
+        return handle(trigger, payload);
+    }
+
+    private TriggerResult handle(final TriggerType trigger, final Object payload) {
+        final Mailbox<Object, CompletableFuture<Class<? extends FsmState<TriggerType, ContextType>>>> mailbox = getMailbox();
+        if (mailbox != null) {
+            mailbox.post(payload == null ? trigger : new PayloadTrigger<>(trigger, payload), null);
+            return TriggerResult.QUEUED;
+        }
+        if (currentStateId == TransitionTable.NO_TRANSITION) {
+            throw new FsmException("Cannot trigger, the state machine hasn't been started");
+        }
+        if (!definition.isRunToCompletion()) {
+            final TriggerResult result = fire(trigger, payload, true);
+            commitJournal();
+            return result;
         }
 
-        // Make sure that the initial state counts as one reference
-        final TestEntry initialEntry = testEntries.get(initialStateConfiguration);
-        if (initialEntry != null) {
-            initialEntry.referenceCount = 1;
+        if (dispatching) {
+            // A transition is in progress, queue the trigger until it has completed
+            final Features<TriggerType, ContextType> features = features();
+            if (features.pendingTriggers == null) {
+                features.pendingTriggers = new ArrayDeque<>();
+            }
+            features.pendingTriggers.add(trigger);
+            features.pendingTriggers.add(payload != null ? payload : NO_PAYLOAD);
+            return TriggerResult.QUEUED;
+        }
+
+        dispatching = true;
+        final TriggerResult result;
+        try {
+            result = fire(trigger, payload, true);
+            drainPendingTriggers();
+        } finally {
+            finishDispatching();
+        }
+        commitJournal();
+        return result;
+    }
+
+    /**
+     * Fires a trigger without running any state or listener code on the calling thread. The trigger is processed by the executor
+     * of the state machine, or by {@link FsmExecutors#defaultExecutor()} if none has been set, in order with all other triggers
+     * fired at the state machine. Triggers are still processed one at a time per state machine, but many state machines can
+     * process their triggers in parallel.
+     *
+     * The trigger is never processed by a thread that fires triggers synchronously either. If such a thread is processing the
+     * triggers of the state machine when it gets to this trigger, it hands the processing of the rest of them over to the
+     * executor.
+     *
+     * Only available in concurrent mode, and after the state machine has been started.
+     *
+     * @param trigger The trigger to fire.
+     * @return A future that completes with the state class that the state machine is in once the trigger has been processed. If
+     * that state fires further triggers when it's entered, they are processed after the future has completed. The future
+     * completes exceptionally if the trigger couldn't be processed.
+     */
+    public CompletableFuture<Class<? extends FsmState<TriggerType, ContextType>>> triggerAsync(final TriggerType trigger) {
+        final Mailbox<Object, CompletableFuture<Class<? extends FsmState<TriggerType, ContextType>>>> mailbox = getMailbox();
+        if (mailbox == null) {
+            throw new FsmException("Asynchronous triggers require a state machine that has been started in concurrent mode");
+        }
+        final CompletableFuture<Class<? extends FsmState<TriggerType, ContextType>>> completion = new CompletableFuture<>();
+        mailbox.postAsync(trigger, completion, FsmExecutors.defaultExecutor());
+        return completion;
+    }
+
+    /**
+     * Processes a trigger, or an expired timeout, that has been posted to the mailbox.
+     */
+    @SuppressWarnings("unchecked")
+    private void process(final Object message,
+            final CompletableFuture<Class<? extends FsmState<TriggerType, ContextType>>> completion) {
+        if (message instanceof StateTimeout) {
+            final TriggerType timeoutTrigger = takeTimeoutTrigger((StateTimeout) message);
+            if (timeoutTrigger != null) {
+                fire(timeoutTrigger);
+                commitJournal();
+            }
+            return;
+        }
+        if (message instanceof PayloadTrigger) {
+            final PayloadTrigger<TriggerType> payloadTrigger = (PayloadTrigger<TriggerType>) message;
+            fire(payloadTrigger.trigger, payloadTrigger.payload, true);
+            commitJournal();
+            return;
+        }
+        final TriggerType trigger = (TriggerType) message;
+        if (completion == null) {
+            fire(trigger);
+            commitJournal();
+            return;
+        }
+        try {
+            fire(trigger);
+            // The trigger is only reported as processed once it has been committed to the journal
+            commitJournal();
+            completion.complete(definition.getTransitionTable().getStateClass(currentStateId));
+        } catch (final RuntimeException e) {
+            completion.completeExceptionally(e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void drainPendingTriggers() {
+        final ArrayDeque<Object> pendingTriggers = features != null ? features.pendingTriggers : null;
+        if (pendingTriggers != null) {
+            Object pendingTrigger;
+            while ((pendingTrigger = pendingTriggers.poll()) != null) {
+                final Object payload = pendingTriggers.poll();
+                fire((TriggerType) pendingTrigger, payload != NO_PAYLOAD ? payload : null, true);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void finishDispatching() {
+        dispatching = false;
+        // If the transitions were aborted by an exception, any triggers that were still queued are discarded
+        final ArrayDeque<Object> pendingTriggers = features != null ? features.pendingTriggers : null;
+        if (pendingTriggers != null && !pendingTriggers.isEmpty()) {
+            final PayloadPool<Object> payloadPool = (PayloadPool<Object>) definition.getPayloadPool();
+            if (payloadPool != null) {
+                // The payloads of the discarded triggers won't be processed, so they can be reused
+                while (pendingTriggers.poll() != null) {
+                    final Object payload = pendingTriggers.poll();
+                    if (payload != NO_PAYLOAD) {
+                        payloadPool.release(payload);
+                    }
+                }
+            }
+            pendingTriggers.clear();
+        }
+    }
+
+    /**
+     * Fires a batch of triggers in one go, which is equivalent to firing them one by one but cheaper.
+     *
+     * @param triggers The triggers to fire, in order.
+     * @return The state that the state machine ended up in and the number of transitions that the triggers caused.
+     */
+    public BatchResult<TriggerType, ContextType> triggerAll(final Iterable<? extends TriggerType> triggers) {
+        return triggerAll(triggers, false);
+    }
+
+    /**
+     * Fires a batch of triggers in one go.
+     *
+     * @param triggers The triggers to fire, in order.
+     * @param skipIntermediateStates If true, states that are only passed through during the batch are never resolved, entered or
+     * exited. Only the state that the state machine was in before the batch is exited, and only the state that it ends up in is
+     * entered. The listener is still notified of every transition. Note that guards are then evaluated against a context that
+     * the intermediate states haven't updated.
+     * @return The state that the state machine ended up in and the number of transitions that the triggers caused.
+     */
+    public BatchResult<TriggerType, ContextType> triggerAll(final Iterable<? extends TriggerType> triggers,
+            final boolean skipIntermediateStates) {
+        beginBatch();
+        int transitionCount = 0;
+        try {
+            for (final TriggerType trigger : triggers) {
+                if (fireBatched(trigger, skipIntermediateStates)) {
+                    transitionCount++;
+                }
+            }
+        } finally {
+            endBatch();
         }
+        return new BatchResult<>(definition.getTransitionTable().getStateClass(currentStateId), transitionCount);
+    }
 
-        for (final TestEntry testEntry : testEntries.values()) {
-            // Attempt to resolve it
-            stateResolver.resolve(testEntry.stateConfiguration.getStateClass());
+    /**
+     * Fires a batch of triggers from an array in one go, which is equivalent to firing them one by one but cheaper.
+     *
+     * @param triggers The array that holds the triggers.
+     * @param offset The index of the first trigger to fire.
+     * @param length The number of triggers to fire.
+     * @return The state that the state machine ended up in and the number of transitions that the triggers caused.
+     */
+    public BatchResult<TriggerType, ContextType> triggerAll(final TriggerType[] triggers, final int offset, final int length) {
+        return triggerAll(triggers, offset, length, false);
+    }
 
-            // Loop all target states of this state configuration
-            for (final StateConfiguration<TriggerType, ContextType> stateConfiguration : testEntry.stateConfiguration
-                    .getTargetStateConfigurations()) {
-                final TestEntry targetEntry = testEntries.get(stateConfiguration);
-                if (targetEntry != null) {
-                    targetEntry.referenceCount++;
+    /**
+     * Fires a batch of triggers from an array in one go.
+     *
+     * @param triggers The array that holds the triggers.
+     * @param offset The index of the first trigger to fire.
+     * @param length The number of triggers to fire.
+     * @param skipIntermediateStates If true, states that are only passed through during the batch are never resolved, entered or
+     * exited, see {@link #triggerAll(Iterable, boolean)}.
+     * @return The state that the state machine ended up in and the number of transitions that the triggers caused.
+     */
+    public BatchResult<TriggerType, ContextType> triggerAll(final TriggerType[] triggers, final int offset, final int length,
+            final boolean skipIntermediateStates) {
+        if (offset < 0 || length < 0 || offset + length > triggers.length) {
+            throw new IndexOutOfBoundsException(String.format("Offset %d and length %d don't fit an array of length %d", offset,
+                    length, triggers.length));
+        }
+        beginBatch();
+        int transitionCount = 0;
+        try {
+            for (int i = offset; i < offset + length; i++) {
+                if (fireBatched(triggers[i], skipIntermediateStates)) {
+                    transitionCount++;
                 }
             }
+        } finally {
+            endBatch();
         }
-        // Is there any state that is orphaned?
-        for (final TestEntry testEntry : testEntries.values()) {
-            if (testEntry.referenceCount == 0) {
-                throw new FsmException(String.format("State class '%s' isn't referenced by any triggers",
-                        testEntry.stateConfiguration.getStateClass().getSimpleName()));
+        return new BatchResult<>(definition.getTransitionTable().getStateClass(currentStateId), transitionCount);
+    }
+
+    private void beginBatch() {
+        if (getMailbox() != null) {
+            throw new FsmException("Batches of triggers can't be fired in concurrent mode");
+        }
+        if (currentStateId == TransitionTable.NO_TRANSITION) {
+            throw new FsmException("Cannot trigger, the state machine hasn't been started");
+        }
+        if (definition.isRunToCompletion()) {
+            if (dispatching) {
+                throw new FsmException("Batches of triggers can't be fired during a transition in run-to-completion mode");
             }
+            dispatching = true;
         }
+    }
 
+    private boolean fireBatched(final TriggerType trigger, final boolean skipIntermediateStates) {
+        final boolean transitioned = fire(trigger, null, !skipIntermediateStates) == TriggerResult.TRANSITIONED;
+        if (dispatching) {
+            // Any triggers that the entered state fired are processed before the next trigger in the batch
+            drainPendingTriggers();
+        }
+        return transitioned;
     }
 
-    public void trigger(final TriggerType trigger) {
-        // Get the correct trigger configuration from the current state
-        final TriggerConfiguration<TriggerType, ContextType> triggerConfiguration = currentStateConfiguration
-                .getTriggerConfiguration(trigger);
+    private void endBatch() {
+        try {
+            // If intermediate states were skipped, the state that the batch ended in hasn't been entered yet
+            if (currentState == null) {
+                enterCurrentState(null);
+                if (dispatching) {
+                    drainPendingTriggers();
+                }
+            }
+        } finally {
+            if (definition.isRunToCompletion()) {
+                finishDispatching();
+            }
+            // The whole batch is committed to the journal at once
+            commitJournal();
+        }
+    }
 
-        if (triggerConfiguration == null) {
-            // This can happen if the default invalidTriggerHandler has been
-            // overridden
-            // with a handler that doesn't throw an exception, e.g. to simply
-            // ignore invalid triggers
-            return;
+    /**
+     * Checks if the current state handles a trigger, without evaluating any guards.
+     */
+    boolean handles(final TriggerType trigger) {
+        if (currentStateId == TransitionTable.NO_TRANSITION) {
+            return false;
+        }
+        final TransitionTable<TriggerType, ContextType> transitionTable = definition.getTransitionTable();
+        return transitionTable.hasTransition(currentStateId, transitionTable.triggerId(trigger));
+    }
+
+    private TriggerResult fire(final TriggerType trigger) {
+        return fire(trigger, null, true);
+    }
+
+    /**
+     * Fires one trigger, and releases its payload to the payload pool afterwards.
+     *
+     * @param payload The payload of the trigger, or null.
+     * @param enterTargetState False if the target state should not be entered, e.g. because it's an intermediate state of a batch.
+     * @return Whether the trigger caused a transition or was invalid.
+     */
+    @SuppressWarnings("unchecked")
+    private TriggerResult fire(final TriggerType trigger, final Object payload, final boolean enterTargetState) {
+        final PayloadPool<Object> payloadPool = (PayloadPool<Object>) definition.getPayloadPool();
+        if (payload == null || payloadPool == null) {
+            return transition(trigger, payload, enterTargetState);
         }
+        try {
+            return transition(trigger, payload, enterTargetState);
+        } finally {
+            // The trigger has been processed, the payload can be reused
+            payloadPool.release(payload);
+        }
+    }
 
-        // Exit the current state
-        final Class<? extends FsmState<TriggerType, ContextType>> sourceState = currentStateConfiguration != null
-                ? currentStateConfiguration.getStateClass() : null;
+    /**
+     * Determines the edge of a trigger in the current state, through the generated dispatcher if there is one.
+     */
+    private int resolveEdge(final TransitionTable<TriggerType, ContextType> transitionTable, final int triggerId,
+            final Object payload) {
+        final GeneratedDispatcher dispatcher = definition.getDispatcher();
+        if (dispatcher != null) {
+            return dispatcher.resolveEdge(currentStateId, triggerId, context, payload);
+        }
+        return transitionTable.resolveEdge(currentStateId, triggerId, context, payload, definition.isGuardVerification());
+    }
 
-        exitCurrentState();
+    private TriggerResult transition(final TriggerType trigger, final Object payload, final boolean enterTargetState) {
+        // Look up the target state in the compiled transition table
+        final TransitionTable<TriggerType, ContextType> transitionTable = definition.getTransitionTable();
+        final int triggerId = transitionTable.triggerId(trigger);
+        final TransitionMetrics metrics = definition.getMetrics();
+        final int edgeId;
+        if (metrics != null && transitionTable.isGuarded(currentStateId, triggerId)) {
+            final long started = System.nanoTime();
+            edgeId = resolveEdge(transitionTable, triggerId, payload);
+            metrics.recordGuards(currentStateId, System.nanoTime() - started);
+        } else {
+            edgeId = resolveEdge(transitionTable, triggerId, payload);
+        }
+
+        if (edgeId == TransitionTable.NO_TRANSITION) {
+            // This trigger is not valid for the current state, we stay in it unless an exception is thrown
+            invalidTrigger(trigger);
+            return TriggerResult.INVALID;
+        }
+        final int targetStateId = transitionTable.getEdgeTargetStateId(edgeId);
+        final TransitionAction<ContextType> action = transitionTable.getEdgeAction(edgeId);
+        final TransitionJournal journal = getJournal();
+        if (targetStateId == TransitionTable.INTERNAL_TRANSITION) {
+            if (journal != null) {
+                // Recorded as a transition back to the same state, so it's fired again when the journal is replayed
+                journal.appendTransition(currentStateId, triggerId, currentStateId);
+            }
+            // Stay in the current state, without exiting or entering anything
+            action.execute(context, payload);
+            return TriggerResult.TRANSITIONED;
+        }
+
+        // Exit the current state, and any ancestors that the target state isn't nested in
+        final Class<? extends FsmState<TriggerType, ContextType>> sourceState = transitionTable.getStateClass(currentStateId);
+
+        if (journal != null) {
+            // Write-ahead, the transition is recorded before any state code runs
+            journal.appendTransition(currentStateId, triggerId, targetStateId);
+        }
+        transitionCount++;
+        if (metrics != null) {
+            metrics.recordTransition(currentStateId, targetStateId);
+        }
+        exitStates(transitionTable.getRetainedDepth(currentStateId, targetStateId));
+        if (action != null) {
+            action.execute(context, payload);
+        }
 
         // Determine next state
-        currentStateConfiguration = triggerConfiguration.getTargetStateConfiguration();
+        currentStateId = targetStateId;
         // Notify listener of the transition
-        notifyOnTransitioning(sourceState, currentStateConfiguration.getStateClass());
+        notifyOnTransitioning(sourceState, transitionTable.getStateClass(currentStateId));
         // Enter the next state
-        enterCurrentState();
+        if (enterTargetState) {
+            enterCurrentState(payload);
+        }
+        return TriggerResult.TRANSITIONED;
+    }
+
+    /**
+     * Handles a trigger that isn't valid for the current state, according to the invalid trigger policy.
+     */
+    private void invalidTrigger(final TriggerType trigger) {
+        final Class<? extends FsmState<TriggerType, ContextType>> stateClass = definition.getTransitionTable()
+                .getStateClass(currentStateId);
+        if (definition.getMetrics() != null) {
+            definition.getMetrics().recordInvalidTrigger(currentStateId);
+        }
+        switch (definition.getInvalidTriggerPolicy()) {
+        case IGNORE:
+            break;
+        case COUNT:
+            features().invalidTriggerCount++;
+            break;
+        case THROW:
+            throw new InvalidTriggerException(trigger, stateClass);
+        default:
+            // Is there a listener that can determine what should happen? If it doesn't throw an exception, e.g. to simply ignore
+            // invalid triggers, we stay in the current state
+            final StateMachineListener<TriggerType, ContextType> listener = definition.getListener();
+            if (listener == null) {
+                throw new InvalidTriggerException(trigger, stateClass);
+            }
+            listener.onInvalidTrigger(context, trigger, stateClass);
+            break;
+        }
     }
 
     public FsmState<TriggerType, ContextType> getCurrentState() {
         return currentState;
     }
 
+    /**
+     * Gets the configured class of the current state, or null if the state machine hasn't been started.
+     */
+    Class<? extends FsmState<TriggerType, ContextType>> getCurrentStateClass() {
+        return currentStateId != TransitionTable.NO_TRANSITION ? definition.getTransitionTable().getStateClass(currentStateId)
+                : null;
+    }
+
     public ContextType getContext() {
         return context;
     }
 
+    /**
+     * Gets the listener of the state machine. If several listeners have been added, this is a listener that passes the events on
+     * to all of them.
+     */
     public StateMachineListener<TriggerType, ContextType> getListener() {
-        return listener;
+        return definition != null ? definition.getListener() : CompositeListener.of(getOptions().listeners);
     }
 
     public void setInitialStateConfiguration(final StateConfiguration<TriggerType, ContextType> stateConfiguration) {
-        this.initialStateConfiguration = stateConfiguration;
+        final Configuration<TriggerType, ContextType> configuration = getConfiguration();
+        assertNotCompiled();
+        configuration.initialStateConfiguration = stateConfiguration;
     }
 
     public void setStateResolver(final StateResolver<TriggerType, ContextType> stateResolver) {
-        this.stateResolver = stateResolver;
+        getOptions().stateResolver = stateResolver;
+        optionsChanged();
+    }
+
+    /**
+     * Sets whether the state machine should run each trigger to completion before firing the next one. In that mode, triggers
+     * that are fired during a transition are queued and fired in order when it has completed, instead of recursively from inside
+     * the transition. That keeps the stack depth constant however long a chain of automatic transitions gets.
+     */
+    public void setRunToCompletion(final boolean runToCompletion) {
+        getOptions().runToCompletion = runToCompletion;
+        optionsChanged();
+    }
+
+    /**
+     * Sets whether the state machine should accept triggers from any thread. In concurrent mode, triggers are posted to a
+     * lock-free mailbox and processed one at a time, in the order they were posted, by a single thread at a time: either the
+     * thread that posted a trigger when no other thread was processing, or the executor if one has been set. Triggers fired
+     * during a transition are processed when it has completed, just like in run-to-completion mode.
+     *
+     * The state machine must be started before it's shared between threads. Exceptions thrown while processing a trigger are
+     * rethrown to the thread that fired a trigger and processed it, or passed to the error handler if it was processed by an
+     * executor, see {@link #setErrorHandler(Consumer)}.
+     */
+    public void setConcurrent(final boolean concurrent) {
+        getOptions().concurrent = concurrent;
+        optionsChanged();
+    }
+
+    /**
+     * Sets the executor that processes triggers in concurrent mode. If no executor is set, triggers are processed by the thread
+     * that fires them, except for asynchronous triggers that are processed by {@link FsmExecutors#defaultExecutor()}.
+     */
+    public void setExecutor(final Executor executor) {
+        getOptions().executor = executor;
+        optionsChanged();
+    }
+
+    /**
+     * Sets the handler of exceptions that are thrown while triggers are processed by an executor in concurrent mode, where there
+     * is no caller to rethrow them to. Asynchronous triggers also complete their futures exceptionally. By default, the exceptions
+     * are passed to the uncaught exception handler of the executor thread.
+     */
+    public void setErrorHandler(final Consumer<RuntimeException> errorHandler) {
+        getOptions().errorHandler = errorHandler;
+        optionsChanged();
+    }
+
+    /**
+     * Sets whether all guards of a guarded trigger should be evaluated, to verify that exactly one of them is true. By default,
+     * guards are evaluated in the order they were added and the first one that is true is taken, so overlapping guards go
+     * unnoticed. Verification is meant for tests, and is enabled by default if the system property
+     * {@value #GUARD_VERIFICATION_PROPERTY} is set to true.
+     */
+    public void setGuardVerification(final boolean guardVerification) {
+        getOptions().guardVerification = guardVerification;
+        optionsChanged();
+    }
+
+    /**
+     * Sets whether triggers should be dispatched by a class that is generated for the configuration of the state machine, instead
+     * of by looking them up in the transition table. The generated class switches over the state and the trigger, and calls every
+     * guard from a call site of its own, which lets the JIT compiler inline the whole dispatch down to the guards. It's generated
+     * and compiled when the configuration is compiled, which takes a while, so it's meant for machines that process a lot of
+     * triggers.
+     *
+     * Generation needs the Java compiler of a JDK at runtime, and doesn't take place when guards are verified, see
+     * {@link #setGuardVerification(boolean)}. Otherwise triggers are dispatched by the transition table as usual, which can be
+     * checked through {@link StateMachineDefinition#isCodeGenerated()}, and the reason why generation failed through
+     * {@link StateMachineDefinition#getCodeGenerationFailure()}.
+     */
+    public void setCodeGeneration(final boolean codeGeneration) {
+        getOptions().codeGeneration = codeGeneration;
+        optionsChanged();
+    }
+
+    /**
+     * Sets whether transitions should be measured, see {@link TransitionMetrics}. The metrics are shared by all instances of the
+     * definition, and are reset if the options of the state machine are changed after it has been compiled.
+     */
+    public void setMetricsEnabled(final boolean metricsEnabled) {
+        getOptions().metricsEnabled = metricsEnabled;
+        optionsChanged();
+    }
+
+    /**
+     * Gets the metrics of the state machine, or null if metrics aren't enabled. The configuration is compiled first if that
+     * hasn't already been done.
+     */
+    public TransitionMetrics getMetrics() {
+        return getDefinition().getMetrics();
+    }
+
+    /**
+     * Sets the wheel that keeps track of the timeouts of states, see {@link StateConfiguration#after(java.time.Duration, Object)}.
+     * By default, {@link TimingWheel#defaultWheel()} is used. Unless the state machine runs in concurrent mode, timeout triggers
+     * aren't fired by the thread that advances the wheel but by the thread that owns the state machine, see
+     * {@link #pollTimeouts()}.
+     */
+    public void setTimingWheel(final TimingWheel timingWheel) {
+        getOptions().timingWheel = timingWheel;
+        optionsChanged();
+    }
+
+    /**
+     * Sets what happens when a trigger is fired that isn't valid for the current state. The default,
+     * {@link InvalidTriggerPolicy#NOTIFY}, passes it to the listener or throws an exception if there is none.
+     */
+    public void setInvalidTriggerPolicy(final InvalidTriggerPolicy invalidTriggerPolicy) {
+        getOptions().invalidTriggerPolicy = invalidTriggerPolicy;
+        optionsChanged();
+    }
+
+    /**
+     * Gets the number of invalid triggers that have been counted with the {@link InvalidTriggerPolicy#COUNT} policy. In concurrent
+     * mode, the count should only be read from a state or a listener, e.g. on the thread that processes the triggers.
+     */
+    public long getInvalidTriggerCount() {
+        return features != null ? features.invalidTriggerCount : 0;
+    }
+
+    /**
+     * Sets the codec that includes the context in snapshots of the state machine. Without a codec, snapshots only hold the
+     * current state.
+     */
+    public void setContextCodec(final ContextCodec<ContextType> contextCodec) {
+        getOptions().contextCodec = contextCodec;
+        optionsChanged();
+    }
+
+    /**
+     * Sets the pool that the payloads of triggers are released to once the triggers have been processed, so that mutable payloads
+     * can be reused instead of allocated for every trigger. All payloads that are fired at the state machine must then come from
+     * the pool.
+     */
+    public void setPayloadPool(final PayloadPool<?> payloadPool) {
+        getOptions().payloadPool = payloadPool;
+        optionsChanged();
+    }
+
+    public TransitionJournal getJournal() {
+        return features != null ? features.journal : null;
+    }
+
+    /**
+     * Attaches a journal that every transition of this state machine is recorded in, before it's carried out. Unlike most other
+     * settings, the journal belongs to this state machine alone and not to its definition, since every state machine needs a
+     * journal of its own. Use {@link TransitionJournal#replay(StateMachine)} to rebuild the state machine from the journal
+     * before attaching it.
+     */
+    public void setJournal(final TransitionJournal journal) {
+        features().journal = journal;
     }
 
     public void setContext(final ContextType context) {
         this.context = context;
     }
 
+    /**
+     * Sets the listener of the state machine, replacing any listeners that have been added before.
+     *
+     * @param listener The listener, or null to remove all listeners.
+     */
     public void setListener(final StateMachineListener<TriggerType, ContextType> listener) {
-        this.listener = listener;
+        getOptions().listeners.clear();
+        if (listener != null) {
+            getOptions().listeners.add(listener);
+        }
+        optionsChanged();
+    }
+
+    /**
+     * Adds a listener to the state machine. Listeners are called synchronously, in the order they were added, when a trigger is
+     * processed. Wrap a listener in an {@link AsyncListener} to keep it off the trigger path.
+     */
+    public void addListener(final StateMachineListener<TriggerType, ContextType> listener) {
+        getOptions().listeners.add(listener);
+        optionsChanged();
+    }
+
+    public void removeListener(final StateMachineListener<TriggerType, ContextType> listener) {
+        getOptions().listeners.remove(listener);
+        optionsChanged();
     }
 }
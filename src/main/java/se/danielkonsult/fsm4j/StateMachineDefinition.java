@@ -0,0 +1,247 @@
+package se.danielkonsult.fsm4j;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * The compiled, immutable definition of a state machine, e.g. its transition table together with the state resolver and listener
+ * that were configured when it was compiled.
+ *
+ * A definition is built once, through {@link StateMachine#getDefinition()}, and can then be shared by any number of lightweight
+ * {@link StateMachineInstance}s, created through {@link #newInstance(Object)}. Each instance only holds its current state and its
+ * context, so a large number of machines with the same configuration doesn't mean a large number of copies of the same graph.
+ *
+ * The definition itself is thread-safe. Note that the state resolver and listener are shared by all instances, so they must be
+ * thread-safe as well if the instances are used from different threads.
+ *
+ * @param <TriggerType> The trigger type of the definition (set by the state machine it was built from)
+ * @param <ContextType> The context type of the definition (set by the state machine it was built from)
+ */
+public final class StateMachineDefinition<TriggerType, ContextType> {
+
+    private final TransitionTable<TriggerType, ContextType> transitionTable;
+    private final StateResolver<TriggerType, ContextType> stateResolver;
+    private final StateMachineListener<TriggerType, ContextType> listener;
+    private final boolean runToCompletion;
+    private final boolean concurrent;
+    private final Executor executor;
+    private final Consumer<RuntimeException> errorHandler;
+    private final boolean guardVerification;
+    private final GeneratedDispatcher dispatcher;
+    private final FsmException codeGenerationFailure;
+    private final InvalidTriggerPolicy invalidTriggerPolicy;
+    private final TransitionMetrics metrics;
+    private final TimingWheel timingWheel;
+    private final PayloadPool<?> payloadPool;
+    private final ContextCodec<ContextType> contextCodec;
+    private final AtomicReferenceArray<FsmState<TriggerType, ContextType>> singletons;
+    private final StatePool<TriggerType, ContextType>[] pools;
+
+    @SuppressWarnings("unchecked")
+    StateMachineDefinition(final TransitionTable<TriggerType, ContextType> transitionTable,
+            final StateMachineOptions<TriggerType, ContextType> options) {
+        this.transitionTable = transitionTable;
+        this.stateResolver = options.stateResolver;
+        this.listener = CompositeListener.of(options.listeners);
+        this.runToCompletion = options.runToCompletion;
+        this.concurrent = options.concurrent;
+        this.executor = options.executor;
+        this.errorHandler = options.errorHandler;
+        this.guardVerification = options.guardVerification;
+        // Generated dispatchers take the first guard that is true, so they can't verify guards
+        this.dispatcher = options.codeGeneration && !guardVerification ? transitionTable.getGeneratedDispatcher() : null;
+        this.codeGenerationFailure = options.codeGeneration && !guardVerification ? transitionTable.getGenerationFailure() : null;
+        this.invalidTriggerPolicy = options.invalidTriggerPolicy;
+        this.metrics = options.metricsEnabled ? new TransitionMetrics(transitionTable) : null;
+        if (options.timingWheel != null) {
+            this.timingWheel = options.timingWheel;
+        } else {
+            this.timingWheel = transitionTable.hasTimeouts() ? TimingWheel.defaultWheel() : null;
+        }
+        this.payloadPool = options.payloadPool;
+        this.contextCodec = options.contextCodec;
+        this.singletons = new AtomicReferenceArray<>(transitionTable.getStateCount());
+        this.pools = new StatePool[transitionTable.getStateCount()];
+        for (int stateId = 0; stateId < pools.length; stateId++) {
+            if (transitionTable.getStateLifecycle(stateId) == StateLifecycle.POOLED) {
+                pools[stateId] = new StatePool<>(StatePool.DEFAULT_CAPACITY);
+            }
+        }
+    }
+
+    /**
+     * Gets an instance of a state that is about to be entered, according to the lifecycle of the state. States with the
+     * {@link StateLifecycle#PER_MACHINE} lifecycle are cached by the state machine itself and are resolved here on first entry.
+     */
+    FsmState<TriggerType, ContextType> acquireState(final int stateId) {
+        switch (transitionTable.getStateLifecycle(stateId)) {
+        case SINGLETON:
+            FsmState<TriggerType, ContextType> singleton = singletons.get(stateId);
+            if (singleton == null) {
+                // If two threads race here, the first one to store its instance wins
+                singletons.compareAndSet(stateId, null, stateResolver.resolve(transitionTable.getStateClass(stateId)));
+                singleton = singletons.get(stateId);
+            }
+            return singleton;
+        case POOLED:
+            final FsmState<TriggerType, ContextType> pooled = pools[stateId].acquire();
+            return pooled != null ? pooled : stateResolver.resolve(transitionTable.getStateClass(stateId));
+        default:
+            return stateResolver.resolve(transitionTable.getStateClass(stateId));
+        }
+    }
+
+    /**
+     * Hands back an instance of a state that has been exited.
+     */
+    void releaseState(final int stateId, final FsmState<TriggerType, ContextType> state) {
+        if (pools[stateId] != null) {
+            pools[stateId].release(state);
+        }
+    }
+
+    /**
+     * Creates a new instance of the state machine without a context. The instance must be started before triggers can be fired.
+     */
+    public StateMachineInstance<TriggerType, ContextType> newInstance() {
+        return new StateMachineInstance<>(this, null);
+    }
+
+    /**
+     * Creates a new instance of the state machine. The instance must be started before triggers can be fired.
+     *
+     * @param context The context of the new instance.
+     */
+    public StateMachineInstance<TriggerType, ContextType> newInstance(final ContextType context) {
+        return new StateMachineInstance<>(this, context);
+    }
+
+    /**
+     * Verifies that all state classes that are configured can be resolved, and that no state classes except the initial state are
+     * orphaned, e.g. no transitions point to them.
+     */
+    public void test() {
+        final int[] referenceCounts = new int[transitionTable.getStateCount()];
+
+        // Make sure that the initial state counts as one reference
+        if (transitionTable.getInitialStateId() != TransitionTable.NO_TRANSITION) {
+            referenceCounts[transitionTable.getInitialStateId()] = 1;
+        }
+
+        for (int stateId = 0; stateId < referenceCounts.length; stateId++) {
+            // Attempt to resolve it
+            stateResolver.resolve(transitionTable.getStateClass(stateId));
+
+            // Loop all target states of this state
+            for (final int targetStateId : transitionTable.getTargetStateIds(stateId)) {
+                referenceCounts[targetStateId]++;
+            }
+        }
+        // A parent state is referenced through its nested states
+        for (int stateId = 0; stateId < referenceCounts.length; stateId++) {
+            if (referenceCounts[stateId] > 0) {
+                for (int parentStateId = transitionTable.getParentStateId(stateId); parentStateId != TransitionTable.NO_TRANSITION;
+                        parentStateId = transitionTable.getParentStateId(parentStateId)) {
+                    referenceCounts[parentStateId]++;
+                }
+            }
+        }
+        // Is there any state that is orphaned?
+        for (int stateId = 0; stateId < referenceCounts.length; stateId++) {
+            if (referenceCounts[stateId] == 0) {
+                throw new FsmException(String.format("State class '%s' isn't referenced by any triggers",
+                        transitionTable.getStateClass(stateId).getSimpleName()));
+            }
+        }
+    }
+
+    public TransitionTable<TriggerType, ContextType> getTransitionTable() {
+        return transitionTable;
+    }
+
+    public StateResolver<TriggerType, ContextType> getStateResolver() {
+        return stateResolver;
+    }
+
+    public StateMachineListener<TriggerType, ContextType> getListener() {
+        return listener;
+    }
+
+    public boolean isRunToCompletion() {
+        return runToCompletion;
+    }
+
+    public boolean isConcurrent() {
+        return concurrent;
+    }
+
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Gets the handler of exceptions that are thrown while triggers are processed by an executor, see
+     * {@link StateMachine#setErrorHandler(Consumer)}.
+     */
+    public Consumer<RuntimeException> getErrorHandler() {
+        return errorHandler;
+    }
+
+    public boolean isGuardVerification() {
+        return guardVerification;
+    }
+
+    /**
+     * Gets the dispatcher that has been generated for the transition table, or null if triggers are dispatched by the table.
+     */
+    GeneratedDispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+    /**
+     * Checks if triggers are dispatched by a generated dispatcher, see {@link StateMachine#setCodeGeneration(boolean)}. It's false
+     * if code generation isn't enabled, if guards are verified or if the dispatcher couldn't be generated, see
+     * {@link #getCodeGenerationFailure()}.
+     */
+    public boolean isCodeGenerated() {
+        return dispatcher != null;
+    }
+
+    /**
+     * Gets the reason why code generation was enabled but no dispatcher could be generated, e.g. because no Java compiler was
+     * available or the generated source didn't compile, or null if there was no such failure.
+     */
+    public FsmException getCodeGenerationFailure() {
+        return codeGenerationFailure;
+    }
+
+    public InvalidTriggerPolicy getInvalidTriggerPolicy() {
+        return invalidTriggerPolicy;
+    }
+
+    /**
+     * Gets the metrics of all instances of the definition, or null if metrics aren't enabled.
+     */
+    public TransitionMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Gets the wheel that keeps track of the timeouts of states, or null if no state has a timeout and no wheel has been set.
+     */
+    public TimingWheel getTimingWheel() {
+        return timingWheel;
+    }
+
+    /**
+     * Gets the pool that payloads are released to once their triggers have been processed, or null if none has been set.
+     */
+    public PayloadPool<?> getPayloadPool() {
+        return payloadPool;
+    }
+
+    public ContextCodec<ContextType> getContextCodec() {
+        return contextCodec;
+    }
+}
@@ -0,0 +1,673 @@
+package se.danielkonsult.fsm4j;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Runs a large number of state machines that share one {@link StateMachineDefinition}, each identified by a key. Triggers are
+ * fired at a key, and the engine routes them to the state machine of that key, creating and starting it first if it doesn't
+ * exist.
+ *
+ * The state machines are spread over a number of shards by the hash of their keys. Each shard is drained by its own thread, so
+ * every state machine only ever runs on one thread and no locking is needed, neither in the engine nor in the state machines.
+ * Triggers are handed to a shard through a lock-free mailbox, so firing a trigger never blocks.
+ *
+ * State machines can be evicted explicitly through {@link #evict(Object)}, or automatically when they haven't received a trigger
+ * or query for a while, see {@link #setIdleTimeout(long, TimeUnit)}. Evicting a state machine stops it.
+ *
+ * If a {@link PassivationStore} has been set, idle state machines are passivated instead of evicted: a snapshot of the state
+ * machine is put in the store and the state machine is dropped from memory, see {@link StateMachine#snapshot()}. The next trigger
+ * or query for the key transparently restores the state machine from the snapshot, without entering its state again.
+ *
+ * The engine must be started before anything is fired at it, and rejects anything that is fired at it after it has been stopped.
+ *
+ * Timeouts of states, see {@link StateConfiguration#after(java.time.Duration, Object)}, are handed to the shard of their key and
+ * fired there like any other trigger. The timeouts of a passivated state machine keep running: when one expires, the state machine
+ * is restored to fire it. A state machine that is restored from a snapshot that this engine didn't passivate, e.g. after a restart,
+ * has the timeouts of its states started over.
+ *
+ * @param <KeyType> The type of the keys that identify the state machines.
+ * @param <TriggerType> The trigger type of the state machines.
+ * @param <ContextType> The context type of the state machines.
+ */
+public final class StateMachineEngine<KeyType, TriggerType, ContextType> {
+
+    /**
+     * Posted to a shard instead of a trigger to evict a state machine.
+     */
+    private static final Object EVICT = new Object();
+
+    /**
+     * Posted to a shard instead of a trigger to passivate a state machine.
+     */
+    private static final Object PASSIVATE = new Object();
+
+    /**
+     * Posted to a shard instead of a trigger to run a function on a state machine.
+     */
+    private static final class Query<TriggerType, ContextType, ResultType> {
+
+        private final Function<StateMachine<TriggerType, ContextType>, ResultType> function;
+        private final CompletableFuture<ResultType> completion = new CompletableFuture<>();
+
+        Query(final Function<StateMachine<TriggerType, ContextType>, ResultType> function) {
+            this.function = function;
+        }
+    }
+
+    /**
+     * The timeouts of a passivated state machine, which keep running while it's passivated. The earliest one is scheduled on the
+     * timing wheel, and restores the state machine when it expires so that the timeout can fire.
+     */
+    private static final class PassivatedTimeouts<KeyType> extends TimingWheel.Timeout {
+
+        private final Mailbox<KeyType, Object> mailbox;
+        private final KeyType key;
+        private final long[] deadlines;
+
+        PassivatedTimeouts(final Mailbox<KeyType, Object> mailbox, final KeyType key, final long[] deadlines) {
+            this.mailbox = mailbox;
+            this.key = key;
+            this.deadlines = deadlines;
+        }
+
+        @Override
+        void expired() {
+            mailbox.post(key, this);
+        }
+    }
+
+    private static final class Entry<TriggerType, ContextType> {
+
+        private final StateMachineInstance<TriggerType, ContextType> stateMachine;
+        private long lastTriggered;
+
+        Entry(final StateMachineInstance<TriggerType, ContextType> stateMachine) {
+            this.stateMachine = stateMachine;
+        }
+    }
+
+    /**
+     * One shard of state machines, drained by its own thread. The shard acts as the executor of its mailbox, which means that the
+     * mailbox hands itself over to the shard whenever it goes from idle to busy.
+     */
+    private final class Shard implements Executor, Runnable {
+
+        // Access ordered, so the state machines that have been idle the longest come first
+        private final LinkedHashMap<KeyType, Entry<TriggerType, ContextType>> entries = new LinkedHashMap<>(16, 0.75f, true);
+        private final Mailbox<KeyType, Object> mailbox = new Mailbox<>(this::process, this, null);
+        private final Map<KeyType, PassivatedTimeouts<KeyType>> passivatedTimeouts = new HashMap<>();
+        private final Thread thread;
+
+        private volatile boolean running = true;
+        private volatile boolean pending;
+        // Set once the thread has exited, after which anything that is still posted is rejected on the posting thread
+        private volatile boolean stopped;
+        private long nextEvictionCheck;
+
+        Shard(final int index) {
+            thread = new Thread(this, String.format("fsm4j-engine-%d", index));
+            thread.setDaemon(true);
+        }
+
+        @Override
+        public void execute(final Runnable drain) {
+            if (stopped) {
+                drain.run();
+                return;
+            }
+            // The drain task is always the mailbox itself, so just signal the shard thread
+            pending = true;
+            LockSupport.unpark(thread);
+        }
+
+        /**
+         * Marks the shard as stopped once its thread has exited, and rejects what was posted after the thread had drained the
+         * mailbox for the last time.
+         */
+        private void stopped() {
+            stopped = true;
+            if (pending) {
+                pending = false;
+                mailbox.run();
+            }
+        }
+
+        /**
+         * Rejects a command that was posted to the shard after the engine stopped.
+         */
+        @SuppressWarnings("unchecked")
+        private void reject(final Object command) {
+            if (command instanceof Query) {
+                ((Query<TriggerType, ContextType, Object>) command).completion
+                        .completeExceptionally(new FsmException("The engine has been stopped"));
+            } else if (command instanceof PayloadTrigger) {
+                final PayloadPool<Object> payloadPool = (PayloadPool<Object>) definition.getPayloadPool();
+                if (payloadPool != null) {
+                    payloadPool.release(((PayloadTrigger<TriggerType>) command).payload);
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            while (running || pending) {
+                final long idleTimeout = idleTimeoutNanos;
+                if (pending) {
+                    pending = false;
+                    mailbox.run();
+                } else if (idleTimeout > 0) {
+                    LockSupport.parkNanos(this, Math.max(idleTimeout / 4, TimeUnit.MILLISECONDS.toNanos(1)));
+                } else {
+                    LockSupport.park(this);
+                }
+                if (idleTimeout > 0) {
+                    evictIdle(idleTimeout);
+                }
+            }
+            // Stop all state machines that are left when the engine stops
+            for (final Map.Entry<KeyType, Entry<TriggerType, ContextType>> entry : entries.entrySet()) {
+                stopStateMachine(entry.getKey(), entry.getValue());
+            }
+            entries.clear();
+            for (final PassivatedTimeouts<KeyType> timeouts : passivatedTimeouts.values()) {
+                definition.getTimingWheel().cancel(timeouts);
+            }
+            passivatedTimeouts.clear();
+        }
+
+        @SuppressWarnings("unchecked")
+        private void process(final KeyType key, final Object command) {
+            if (stopped) {
+                reject(command);
+                return;
+            }
+            try {
+                if (command == EVICT) {
+                    final Entry<TriggerType, ContextType> entry = entries.remove(key);
+                    if (entry != null) {
+                        stopStateMachine(key, entry);
+                    }
+                    final PassivationStore<KeyType> store = passivationStore;
+                    if (store != null) {
+                        store.remove(key);
+                    }
+                    final PassivatedTimeouts<KeyType> timeouts = passivatedTimeouts.remove(key);
+                    if (timeouts != null) {
+                        definition.getTimingWheel().cancel(timeouts);
+                    }
+                } else if (command == PASSIVATE) {
+                    final Entry<TriggerType, ContextType> entry = entries.get(key);
+                    if (entry != null && passivationStore != null && storeSnapshot(key, entry)) {
+                        entries.remove(key);
+                        passivated(key, entry);
+                    }
+                } else if (command instanceof Query) {
+                    final Query<TriggerType, ContextType, Object> query = (Query<TriggerType, ContextType, Object>) command;
+                    try {
+                        Entry<TriggerType, ContextType> entry = entries.get(key);
+                        if (entry == null) {
+                            entry = rehydrate(key);
+                        }
+                        if (entry != null) {
+                            entry.lastTriggered = System.nanoTime();
+                        }
+                        query.completion.complete(query.function.apply(entry != null ? entry.stateMachine : null));
+                    } catch (final RuntimeException e) {
+                        query.completion.completeExceptionally(e);
+                    }
+                } else if (command instanceof StateTimeout) {
+                    // The timeout of a state machine expired on the thread of the timing wheel. Looking it up moves the entry
+                    // last in the access order, so it must count as triggered for the idle eviction to stop at the right entry
+                    final Entry<TriggerType, ContextType> entry = entries.get(key);
+                    if (entry != null) {
+                        entry.lastTriggered = System.nanoTime();
+                        entry.stateMachine.fireTimeout((StateTimeout) command);
+                    }
+                } else if (command instanceof PassivatedTimeouts) {
+                    // A timeout of a passivated state machine expired, restoring the state machine makes it fire
+                    if (passivatedTimeouts.get(key) == command && !entries.containsKey(key)) {
+                        final Entry<TriggerType, ContextType> entry = rehydrate(key);
+                        if (entry != null) {
+                            entry.lastTriggered = System.nanoTime();
+                        }
+                    }
+                } else if (command instanceof PayloadTrigger) {
+                    final PayloadTrigger<TriggerType> payloadTrigger = (PayloadTrigger<TriggerType>) command;
+                    final Entry<TriggerType, ContextType> entry = getOrCreateEntry(key);
+                    entry.lastTriggered = System.nanoTime();
+                    entry.stateMachine.trigger(payloadTrigger.trigger, payloadTrigger.payload);
+                } else {
+                    final Entry<TriggerType, ContextType> entry = getOrCreateEntry(key);
+                    entry.lastTriggered = System.nanoTime();
+                    entry.stateMachine.trigger((TriggerType) command);
+                }
+            } catch (final RuntimeException e) {
+                errorHandler.accept(key, e);
+            }
+        }
+
+        private Entry<TriggerType, ContextType> getOrCreateEntry(final KeyType key) {
+            Entry<TriggerType, ContextType> entry = entries.get(key);
+            if (entry == null) {
+                entry = rehydrate(key);
+            }
+            if (entry == null) {
+                entry = new Entry<>(newInstance(key));
+                entry.stateMachine.start();
+                entries.put(key, entry);
+                instanceCount.incrementAndGet();
+            }
+            return entry;
+        }
+
+        /**
+         * Creates the state machine of a key, with its timeouts fired by this shard.
+         */
+        private StateMachineInstance<TriggerType, ContextType> newInstance(final KeyType key) {
+            final StateMachineInstance<TriggerType, ContextType> stateMachine = definition.newInstance(contextFactory.apply(key));
+            if (definition.getTimingWheel() != null) {
+                stateMachine.setTimeoutRouter(timeout -> mailbox.post(key, timeout));
+            }
+            return stateMachine;
+        }
+
+        /**
+         * Restores the state machine of a key from the passivation store, if it has been passivated. The snapshot is only removed
+         * from the store once the state machine has been restored, so it isn't lost if restoring it fails.
+         *
+         * @return The entry of the restored state machine, or null if the key had no passivated state machine.
+         */
+        private Entry<TriggerType, ContextType> rehydrate(final KeyType key) {
+            final PassivationStore<KeyType> store = passivationStore;
+            if (store == null) {
+                return null;
+            }
+            final long started = System.nanoTime();
+            final byte[] snapshot = store.get(key);
+            if (snapshot == null) {
+                return null;
+            }
+            final Entry<TriggerType, ContextType> entry = new Entry<>(newInstance(key));
+            entry.stateMachine.restore(snapshot, exitOnPassivation);
+            final PassivatedTimeouts<KeyType> timeouts = passivatedTimeouts.get(key);
+            if (timeouts != null && !exitOnPassivation) {
+                entry.stateMachine.resumeTimeouts(timeouts.deadlines);
+            }
+            store.remove(key);
+            if (timeouts != null) {
+                passivatedTimeouts.remove(key);
+                definition.getTimingWheel().cancel(timeouts);
+            }
+            entries.put(key, entry);
+            instanceCount.incrementAndGet();
+
+            final long elapsed = System.nanoTime() - started;
+            rehydrationCount.increment();
+            rehydrationNanos.add(elapsed);
+            long max;
+            while (elapsed > (max = maxRehydrationNanos.get()) && !maxRehydrationNanos.compareAndSet(max, elapsed)) {
+                // Retry until the maximum has been updated or another shard has set a higher maximum
+            }
+            return entry;
+        }
+
+        /**
+         * Puts a snapshot of a resident state machine in the passivation store. The state machine stays in the shard if that
+         * fails, so it's never lost.
+         *
+         * @return True if the snapshot was stored, and the state machine can be dropped from the shard.
+         */
+        private boolean storeSnapshot(final KeyType key, final Entry<TriggerType, ContextType> entry) {
+            try {
+                passivationStore.store(key, entry.stateMachine.snapshot());
+                return true;
+            } catch (final RuntimeException e) {
+                errorHandler.accept(key, e);
+                return false;
+            }
+        }
+
+        /**
+         * Lets go of a state machine whose snapshot has been stored, and that has been removed from the shard.
+         */
+        private void passivated(final KeyType key, final Entry<TriggerType, ContextType> entry) {
+            instanceCount.decrementAndGet();
+            passivationCount.increment();
+            try {
+                if (exitOnPassivation) {
+                    entry.stateMachine.stop();
+                } else {
+                    passivateTimeouts(key, entry.stateMachine);
+                }
+            } catch (final RuntimeException e) {
+                errorHandler.accept(key, e);
+            }
+        }
+
+        /**
+         * Moves the running timeouts of a state machine that is passivated over to the shard, so that they keep running.
+         */
+        private void passivateTimeouts(final KeyType key, final StateMachine<TriggerType, ContextType> stateMachine) {
+            final long[] deadlines = stateMachine.getTimeoutDeadlines();
+            stateMachine.cancelTimeouts();
+            if (deadlines == null) {
+                return;
+            }
+            final PassivatedTimeouts<KeyType> timeouts = new PassivatedTimeouts<>(mailbox, key, deadlines);
+            passivatedTimeouts.put(key, timeouts);
+            long earliest = StateTimeout.NOT_ARMED;
+            for (final long deadline : deadlines) {
+                if (deadline != StateTimeout.NOT_ARMED && (earliest == StateTimeout.NOT_ARMED || deadline - earliest < 0)) {
+                    earliest = deadline;
+                }
+            }
+            if (earliest != StateTimeout.NOT_ARMED) {
+                definition.getTimingWheel().schedule(timeouts, earliest);
+            }
+        }
+
+        private void stopStateMachine(final KeyType key, final Entry<TriggerType, ContextType> entry) {
+            instanceCount.decrementAndGet();
+            try {
+                entry.stateMachine.stop();
+            } catch (final RuntimeException e) {
+                errorHandler.accept(key, e);
+            }
+        }
+
+        private void evictIdle(final long idleTimeout) {
+            final long now = System.nanoTime();
+            if (now - nextEvictionCheck < 0) {
+                return;
+            }
+            nextEvictionCheck = now + idleTimeout / 4;
+
+            List<Map.Entry<KeyType, Entry<TriggerType, ContextType>>> failed = null;
+            final Iterator<Map.Entry<KeyType, Entry<TriggerType, ContextType>>> iterator = entries.entrySet().iterator();
+            while (iterator.hasNext()) {
+                final Map.Entry<KeyType, Entry<TriggerType, ContextType>> entry = iterator.next();
+                if (now - entry.getValue().lastTriggered < idleTimeout) {
+                    // The rest of the state machines have been triggered more recently
+                    break;
+                }
+                iterator.remove();
+                if (passivationStore == null) {
+                    stopStateMachine(entry.getKey(), entry.getValue());
+                } else if (storeSnapshot(entry.getKey(), entry.getValue())) {
+                    passivated(entry.getKey(), entry.getValue());
+                } else {
+                    if (failed == null) {
+                        failed = new ArrayList<>();
+                    }
+                    failed.add(entry);
+                }
+            }
+            if (failed != null) {
+                // Put the state machines that couldn't be passivated back, last in the access order, and try again later
+                for (final Map.Entry<KeyType, Entry<TriggerType, ContextType>> entry : failed) {
+                    entry.getValue().lastTriggered = now;
+                    entries.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+    }
+
+    private final StateMachineDefinition<TriggerType, ContextType> definition;
+    private final Function<KeyType, ContextType> contextFactory;
+    private final Shard[] shards;
+    private final AtomicInteger instanceCount = new AtomicInteger();
+    private final LongAdder passivationCount = new LongAdder();
+    private final LongAdder rehydrationCount = new LongAdder();
+    private final LongAdder rehydrationNanos = new LongAdder();
+    private final AtomicLong maxRehydrationNanos = new AtomicLong();
+
+    private volatile boolean started;
+    private volatile boolean running;
+    private volatile long idleTimeoutNanos;
+    private volatile PassivationStore<KeyType> passivationStore;
+    private volatile boolean exitOnPassivation;
+    private volatile BiConsumer<KeyType, RuntimeException> errorHandler = (key, e) -> {
+        final Thread thread = Thread.currentThread();
+        thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+    };
+
+    /**
+     * Creates an engine with one shard per available processor.
+     *
+     * @param definition The definition that all state machines run on.
+     * @param contextFactory Creates the context of the state machine of a key, when it's created.
+     */
+    public StateMachineEngine(final StateMachineDefinition<TriggerType, ContextType> definition,
+            final Function<KeyType, ContextType> contextFactory) {
+        this(definition, contextFactory, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates an engine.
+     *
+     * @param definition The definition that all state machines run on.
+     * @param contextFactory Creates the context of the state machine of a key, when it's created.
+     * @param shardCount The number of shards, e.g. threads, that the state machines are spread over.
+     */
+    public StateMachineEngine(final StateMachineDefinition<TriggerType, ContextType> definition,
+            final Function<KeyType, ContextType> contextFactory, final int shardCount) {
+        if (shardCount < 1) {
+            throw new FsmException("An engine must have at least one shard");
+        }
+        this.definition = definition;
+        this.contextFactory = contextFactory;
+        this.shards = newShardArray(shardCount);
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard(i);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Shard[] newShardArray(final int shardCount) {
+        return (Shard[]) Array.newInstance(Shard.class, shardCount);
+    }
+
+    private Shard getShard(final KeyType key) {
+        // Spread the bits of the hash code, just like HashMap does
+        final int hash = key.hashCode();
+        return shards[((hash ^ (hash >>> 16)) & Integer.MAX_VALUE) % shards.length];
+    }
+
+    /**
+     * Starts the threads of the shards. Triggers, evictions, passivations and queries are rejected until the engine has been
+     * started. An engine can only be started once.
+     */
+    public synchronized void start() {
+        if (started) {
+            throw new FsmException("The engine has already been started");
+        }
+        started = true;
+        for (final Shard shard : shards) {
+            shard.thread.start();
+        }
+        running = true;
+    }
+
+    /**
+     * Stops the engine. All triggers that have already been fired are processed, after which every state machine is stopped.
+     * Anything that is fired at the engine from then on is rejected, and queries that are posted while it stops complete
+     * exceptionally.
+     */
+    public synchronized void stop() throws InterruptedException {
+        if (!running) {
+            return;
+        }
+        running = false;
+        for (final Shard shard : shards) {
+            shard.running = false;
+            LockSupport.unpark(shard.thread);
+        }
+        for (final Shard shard : shards) {
+            shard.thread.join();
+        }
+        for (final Shard shard : shards) {
+            shard.stopped();
+        }
+    }
+
+    private void checkRunning() {
+        if (!running) {
+            throw new FsmException(started ? "The engine has been stopped" : "The engine hasn't been started");
+        }
+    }
+
+    /**
+     * Fires a trigger at the state machine of a key. The state machine is created and started first if it doesn't exist. The
+     * trigger is processed asynchronously by the shard that the key belongs to, in order with other triggers for the same key.
+     */
+    public void trigger(final KeyType key, final TriggerType trigger) {
+        checkRunning();
+        getShard(key).mailbox.post(key, trigger);
+    }
+
+    /**
+     * Fires a trigger with a payload at the state machine of a key, see {@link StateMachine#trigger(Object, Object)}. The payload
+     * must not be modified until the trigger has been processed by the shard, which releases it to the payload pool of the
+     * definition if one has been set.
+     */
+    public void trigger(final KeyType key, final TriggerType trigger, final Object payload) {
+        checkRunning();
+        getShard(key).mailbox.post(key, payload == null ? trigger : new PayloadTrigger<>(trigger, payload));
+    }
+
+    /**
+     * Stops and removes the state machine of a key, if it exists. Like triggers, this is done asynchronously by the shard that the
+     * key belongs to.
+     */
+    public void evict(final KeyType key) {
+        checkRunning();
+        getShard(key).mailbox.post(key, EVICT);
+    }
+
+    /**
+     * Passivates the state machine of a key, if it exists, e.g. puts a snapshot of it in the passivation store and drops it from
+     * memory. Like triggers, this is done asynchronously by the shard that the key belongs to. Nothing happens if no passivation
+     * store has been set.
+     */
+    public void passivate(final KeyType key) {
+        checkRunning();
+        getShard(key).mailbox.post(key, PASSIVATE);
+    }
+
+    /**
+     * Runs a function on the state machine of a key, on the thread of the shard that the key belongs to. This is the only safe
+     * way to inspect a state machine of the engine from another thread.
+     *
+     * @param key The key of the state machine.
+     * @param function The function to run. It's passed null if there is no state machine for the key. A passivated state machine
+     * is restored first.
+     * @return A future that completes with the result of the function once all triggers that have already been fired at the key
+     * have been processed.
+     */
+    public <ResultType> CompletableFuture<ResultType> query(final KeyType key,
+            final Function<StateMachine<TriggerType, ContextType>, ResultType> function) {
+        checkRunning();
+        final Query<TriggerType, ContextType, ResultType> query = new Query<>(function);
+        getShard(key).mailbox.post(key, query);
+        return query.completion;
+    }
+
+    /**
+     * Gets the number of state machines that are currently resident in memory in the engine, e.g. not counting passivated ones.
+     */
+    public int getInstanceCount() {
+        return instanceCount.get();
+    }
+
+    /**
+     * Gets the number of state machines that are currently passivated, e.g. the number of snapshots in the passivation store.
+     */
+    public int getPassivatedCount() {
+        final PassivationStore<KeyType> store = passivationStore;
+        return store != null ? store.size() : 0;
+    }
+
+    /**
+     * Gets the number of times a state machine has been passivated since the engine was created.
+     */
+    public long getPassivationCount() {
+        return passivationCount.sum();
+    }
+
+    /**
+     * Gets the number of times a state machine has been restored from the passivation store since the engine was created.
+     */
+    public long getRehydrationCount() {
+        return rehydrationCount.sum();
+    }
+
+    /**
+     * Gets the average time it has taken to restore a state machine from the passivation store, in nanoseconds.
+     */
+    public long getAverageRehydrationNanos() {
+        final long count = rehydrationCount.sum();
+        return count > 0 ? rehydrationNanos.sum() / count : 0;
+    }
+
+    /**
+     * Gets the longest time it has taken to restore a state machine from the passivation store, in nanoseconds.
+     */
+    public long getMaxRehydrationNanos() {
+        return maxRehydrationNanos.get();
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * Sets how long a state machine may go without receiving a trigger before it's evicted, or passivated if a passivation store
+     * has been set. Zero, which is the default, disables eviction of idle state machines.
+     */
+    public void setIdleTimeout(final long timeout, final TimeUnit unit) {
+        idleTimeoutNanos = unit.toNanos(timeout);
+        for (final Shard shard : shards) {
+            LockSupport.unpark(shard.thread);
+        }
+    }
+
+    /**
+     * Sets the store that idle state machines are passivated to, instead of being evicted, see
+     * {@link #setIdleTimeout(long, TimeUnit)}. The definition of the engine should have a context codec, unless the context
+     * factory can recreate the context of a key on its own, see {@link StateMachine#setContextCodec(ContextCodec)}.
+     */
+    public void setPassivationStore(final PassivationStore<KeyType> passivationStore) {
+        this.passivationStore = passivationStore;
+    }
+
+    /**
+     * Sets whether the current state of a state machine should be exited when the state machine is passivated, and entered again
+     * when it's restored. The default is false, so that the state machine continues as if it had never been passivated.
+     */
+    public void setExitOnPassivation(final boolean exitOnPassivation) {
+        this.exitOnPassivation = exitOnPassivation;
+    }
+
+    /**
+     * Sets the handler of exceptions that are thrown while a trigger is processed. By default, they are passed to the uncaught
+     * exception handler of the shard thread, which keeps running.
+     */
+    public void setErrorHandler(final BiConsumer<KeyType, RuntimeException> errorHandler) {
+        this.errorHandler = errorHandler;
+    }
+}
@@ -0,0 +1,19 @@
+package se.danielkonsult.fsm4j;
+
+/**
+ * A lightweight state machine that runs on a shared {@link StateMachineDefinition}. The configuration, resolver and listener all
+ * belong to the definition and can't be changed through the instance.
+ *
+ * The instance itself holds its current state, the states it has entered, its context and a few counters. The state of the
+ * optional features, e.g. timeouts, concurrent mode, metrics, a journal or queueing of triggers in run-to-completion mode, is
+ * allocated separately the first time the instance uses one of them, so instances that use none of them stay small.
+ *
+ * @param <TriggerType> The trigger type of the instance (set by the definition)
+ * @param <ContextType> The context type of the instance (set by the definition)
+ */
+public final class StateMachineInstance<TriggerType, ContextType> extends StateMachine<TriggerType, ContextType> {
+
+    StateMachineInstance(final StateMachineDefinition<TriggerType, ContextType> definition, final ContextType context) {
+        super(definition, context);
+    }
+}
@@ -19,13 +19,14 @@ public interface StateMachineListener<TriggerType, ContextType> {
 	 * wasn't expecting.
 	 * @param context The state machine context
 	 * @param trigger The trigger that was fired
-	 * @param stateClass The state that don't know how to handle the trigger
+	 * @param stateClass The state that don't know how to handle the trigger. If no region
+	 * of an {@link OrthogonalStateMachine} handles it, the current state of its first region.
 	 */
 	default void onInvalidTrigger(
 			ContextType context,
 			TriggerType trigger,
 			Class<? extends FsmState<TriggerType, ContextType>> stateClass) {
 		// If not overridden by implementing class, throw an exception to raise awareness
-		throw new FsmException(String.format("Trigger %s is not valid for state %s", trigger, stateClass.getSimpleName()));
+		throw new InvalidTriggerException(trigger, stateClass);
 	}
 }
@@ -0,0 +1,617 @@
+package se.danielkonsult.fsm4j;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.zip.CRC32;
+
+/**
+ * Configures state machines from definitions in a text file, instead of through code. State classes are given by their fully
+ * qualified names and triggers by their names, while guards and actions, which are code, are registered with the loader by name
+ * and referred to by those names in the file:
+ *
+ * <pre>
+ * # A turnstile that relocks itself
+ * state com.example.LockedState initial lifecycle SINGLETON
+ *     on COIN when paid goto com.example.UnlockedState do unlock
+ *     on PUSH internal alarm
+ * state com.example.UnlockedState lifecycle SINGLETON after 10s PUSH
+ *     on PUSH goto com.example.LockedState
+ * </pre>
+ *
+ * A <code>state</code> line can be followed by <code>initial</code>, <code>parent &lt;class&gt;</code>,
+ * <code>lifecycle &lt;lifecycle&gt;</code> and <code>after &lt;duration&gt; &lt;trigger&gt;</code>, where the duration is a
+ * number of milliseconds followed by <code>ms</code>, <code>s</code> or <code>m</code>. The <code>on</code> lines after it
+ * configure its transitions, with an optional <code>when &lt;guard&gt;</code>, followed by either
+ * <code>goto &lt;class&gt;</code> with an optional <code>do &lt;action&gt;</code>, or <code>internal &lt;action&gt;</code>.
+ * Everything after a <code>#</code> is a comment.
+ *
+ * Parsing is avoided on later start-ups by {@link #load(StateMachine, Path, Path)}, which compiles the file into a binary cache
+ * the first time, and memory-maps the cache instead of parsing the file as long as the file hasn't been modified. The cache holds
+ * every name once, and the states and transitions as small integers that refer to them. It's stamped with the size, modification
+ * time and checksum of the file, and trusted without reading the file as long as its size and modification time are unchanged,
+ * like git trusts its index. The file is only read and checksummed when its modification time has changed, or when it was
+ * modified so shortly before the cache was compiled that a later modification could have kept the same modification time. The
+ * cache doesn't hold classes or code, so loading it still resolves the state classes, guards and actions and configures the state
+ * machine with them, which is cheap compared to parsing.
+ *
+ * @param <TriggerType> The trigger type of the state machines that are configured
+ * @param <ContextType> The context type of the state machines that are configured
+ */
+public final class StateMachineLoader<TriggerType, ContextType> {
+
+    private static final int CACHE_MAGIC = 0x46534d44;
+    private static final byte CACHE_VERSION = 3;
+    private static final int CHECKSUM_SIZE = 4;
+    // The coarsest resolution of modification times of common file systems
+    private static final long MODIFICATION_TIME_RESOLUTION_MILLIS = 2000;
+
+    // State flags in the cache
+    private static final int INITIAL = 1;
+    private static final int PARENT = 2;
+    private static final int TIMEOUT = 4;
+
+    // Transition flags in the cache
+    private static final int GUARDED = 1;
+    private static final int TARGET = 2;
+    private static final int ACTION = 4;
+
+    /**
+     * The size, modification time and checksum of a definition file. The checksum is only computed when it's needed.
+     */
+    private static final class SourceStamp {
+
+        private final Path source;
+        private final long size;
+        private final long modified;
+        private byte[] bytes;
+        private int checksum;
+
+        private SourceStamp(final Path source) throws IOException {
+            final BasicFileAttributes attributes = Files.readAttributes(source, BasicFileAttributes.class);
+            this.source = source;
+            this.size = attributes.size();
+            this.modified = attributes.lastModifiedTime().toMillis();
+        }
+
+        private byte[] getBytes() throws IOException {
+            if (bytes == null) {
+                bytes = Files.readAllBytes(source);
+                final CRC32 crc = new CRC32();
+                crc.update(bytes);
+                checksum = (int) crc.getValue();
+            }
+            return bytes;
+        }
+
+        private int getChecksum() throws IOException {
+            getBytes();
+            return checksum;
+        }
+    }
+
+    /**
+     * One transition of a definition, as written in the file.
+     */
+    private static final class TransitionDefinition {
+
+        private String trigger;
+        private String guard;
+        private String target;
+        private String action;
+    }
+
+    /**
+     * One state of a definition, as written in the file.
+     */
+    private static final class StateDefinition {
+
+        private String stateClass;
+        private boolean initial;
+        private String parent;
+        private StateLifecycle lifecycle;
+        private long timeoutMillis;
+        private String timeoutTrigger;
+        private final List<TransitionDefinition> transitions = new ArrayList<>();
+    }
+
+    private final Function<String, TriggerType> triggerParser;
+    private final Map<String, Guard<ContextType>> guards = new HashMap<>();
+    private final Map<String, TransitionAction<ContextType>> actions = new HashMap<>();
+    private ClassLoader classLoader;
+
+    /**
+     * Creates a loader for triggers of any type.
+     *
+     * @param triggerParser Turns the name of a trigger in the file into a trigger. It should throw an exception if the name isn't
+     * the name of a trigger.
+     */
+    public StateMachineLoader(final Function<String, TriggerType> triggerParser) {
+        this.triggerParser = triggerParser;
+    }
+
+    /**
+     * Creates a loader for enum triggers, which are given by the names of their constants.
+     */
+    public static <TriggerType extends Enum<TriggerType>, ContextType> StateMachineLoader<TriggerType, ContextType> forEnum(
+            final Class<TriggerType> triggerClass) {
+        return new StateMachineLoader<>(name -> Enum.valueOf(triggerClass, name));
+    }
+
+    /**
+     * Registers a guard that transitions can refer to by name.
+     */
+    public StateMachineLoader<TriggerType, ContextType> guard(final String name, final Guard<ContextType> guard) {
+        guards.put(name, guard);
+        return this;
+    }
+
+    /**
+     * Registers an action that transitions can refer to by name.
+     */
+    public StateMachineLoader<TriggerType, ContextType> action(final String name, final TransitionAction<ContextType> action) {
+        actions.put(name, action);
+        return this;
+    }
+
+    /**
+     * Sets the class loader that state classes are loaded through. The default is the context class loader of the thread that
+     * loads the definition, or the class loader of the library if the thread has none.
+     */
+    public StateMachineLoader<TriggerType, ContextType> classLoader(final ClassLoader classLoader) {
+        this.classLoader = classLoader;
+        return this;
+    }
+
+    /**
+     * Configures a state machine from a definition in text form.
+     */
+    public void load(final StateMachine<TriggerType, ContextType> stateMachine, final Reader reader) {
+        try {
+            apply(stateMachine, parse(reader));
+        } catch (final IOException e) {
+            throw new FsmException("Could not read the definition", e);
+        }
+    }
+
+    /**
+     * Configures a state machine from a definition file.
+     */
+    public void load(final StateMachine<TriggerType, ContextType> stateMachine, final Path source) {
+        try (Reader reader = Files.newBufferedReader(source, StandardCharsets.UTF_8)) {
+            apply(stateMachine, parse(reader));
+        } catch (final IOException e) {
+            throw new FsmException(String.format("Could not read the definition %s", source), e);
+        }
+    }
+
+    /**
+     * Configures a state machine from a definition file, through a binary cache of it. If the cache is missing, damaged or was
+     * compiled from another version of the file, the file is parsed and compiled into the cache again.
+     *
+     * @param stateMachine The state machine to configure.
+     * @param source The definition file.
+     * @param cache The cache file. It's replaced atomically, so state machines that are loaded concurrently from the same files
+     * never see a partly written cache.
+     * @return True if the definition was read from the cache, false if the file was parsed.
+     */
+    public boolean load(final StateMachine<TriggerType, ContextType> stateMachine, final Path source, final Path cache) {
+        try {
+            final SourceStamp stamp = new SourceStamp(source);
+            final List<StateDefinition> definition = readCache(cache, stamp);
+            if (definition != null) {
+                apply(stateMachine, definition);
+                if (stamp.bytes != null) {
+                    // The file had to be checksummed, stamp the cache again so that the next start-up doesn't have to
+                    writeCache(cache, definition, stamp);
+                }
+                return true;
+            }
+            final List<StateDefinition> parsed = parse(stamp.getBytes());
+            // Make sure that the definition is valid before it's cached
+            apply(stateMachine, parsed);
+            writeCache(cache, parsed, stamp);
+            return false;
+        } catch (final IOException e) {
+            throw new FsmException(String.format("Could not load the definition %s", source), e);
+        }
+    }
+
+    /**
+     * Compiles a definition file into a binary cache, e.g. as part of a build, without configuring any state machine. State
+     * classes, triggers, guards and actions aren't resolved until the cache is loaded.
+     */
+    public static void compile(final Path source, final Path cache) {
+        try {
+            final SourceStamp stamp = new SourceStamp(source);
+            writeCache(cache, parse(stamp.getBytes()), stamp);
+        } catch (final IOException e) {
+            throw new FsmException(String.format("Could not compile the definition %s", source), e);
+        }
+    }
+
+    private static List<StateDefinition> parse(final byte[] sourceBytes) throws IOException {
+        // Decode strictly, like a reader of the file would
+        return parse(new StringReader(StandardCharsets.UTF_8.newDecoder().decode(ByteBuffer.wrap(sourceBytes)).toString()));
+    }
+
+    private static List<StateDefinition> parse(final Reader reader) throws IOException {
+        final List<StateDefinition> definition = new ArrayList<>();
+        final BufferedReader lines = new BufferedReader(reader);
+        StateDefinition state = null;
+        int lineNumber = 0;
+        for (String line = lines.readLine(); line != null; line = lines.readLine()) {
+            lineNumber++;
+            final int comment = line.indexOf('#');
+            final String content = (comment >= 0 ? line.substring(0, comment) : line).trim();
+            if (content.isEmpty()) {
+                continue;
+            }
+            final String[] tokens = content.split("\\s+");
+            if (tokens[0].equals("state")) {
+                state = parseState(tokens, lineNumber);
+                definition.add(state);
+            } else if (tokens[0].equals("on")) {
+                if (state == null) {
+                    throw new FsmException(String.format("Line %d: a transition must follow a state", lineNumber));
+                }
+                state.transitions.add(parseTransition(tokens, lineNumber));
+            } else {
+                throw new FsmException(String.format("Line %d: unknown keyword '%s'", lineNumber, tokens[0]));
+            }
+        }
+        return definition;
+    }
+
+    private static StateDefinition parseState(final String[] tokens, final int lineNumber) {
+        final StateDefinition state = new StateDefinition();
+        state.stateClass = argument(tokens, 0, lineNumber);
+        for (int i = 2; i < tokens.length; i++) {
+            switch (tokens[i]) {
+            case "initial":
+                state.initial = true;
+                break;
+            case "parent":
+                state.parent = argument(tokens, i++, lineNumber);
+                break;
+            case "lifecycle":
+                final String lifecycle = argument(tokens, i++, lineNumber);
+                try {
+                    state.lifecycle = StateLifecycle.valueOf(lifecycle);
+                } catch (final IllegalArgumentException e) {
+                    throw new FsmException(String.format("Line %d: unknown lifecycle '%s'", lineNumber, lifecycle));
+                }
+                break;
+            case "after":
+                state.timeoutMillis = parseDuration(argument(tokens, i++, lineNumber), lineNumber);
+                state.timeoutTrigger = argument(tokens, i++, lineNumber);
+                break;
+            default:
+                throw new FsmException(String.format("Line %d: unknown keyword '%s'", lineNumber, tokens[i]));
+            }
+        }
+        return state;
+    }
+
+    private static TransitionDefinition parseTransition(final String[] tokens, final int lineNumber) {
+        final TransitionDefinition transition = new TransitionDefinition();
+        transition.trigger = argument(tokens, 0, lineNumber);
+        boolean internal = false;
+        for (int i = 2; i < tokens.length; i++) {
+            switch (tokens[i]) {
+            case "when":
+                transition.guard = argument(tokens, i++, lineNumber);
+                break;
+            case "goto":
+                transition.target = argument(tokens, i++, lineNumber);
+                break;
+            case "do":
+                transition.action = argument(tokens, i++, lineNumber);
+                break;
+            case "internal":
+                internal = true;
+                transition.action = argument(tokens, i++, lineNumber);
+                break;
+            default:
+                throw new FsmException(String.format("Line %d: unknown keyword '%s'", lineNumber, tokens[i]));
+            }
+        }
+        if (internal == (transition.target != null)) {
+            throw new FsmException(String.format("Line %d: a transition must have either a target state or be internal",
+                    lineNumber));
+        }
+        return transition;
+    }
+
+    /**
+     * Gets the argument of the keyword at an index.
+     */
+    private static String argument(final String[] tokens, final int index, final int lineNumber) {
+        if (index + 1 >= tokens.length) {
+            throw new FsmException(String.format("Line %d: '%s' must be followed by a value", lineNumber, tokens[index]));
+        }
+        return tokens[index + 1];
+    }
+
+    private static long parseDuration(final String duration, final int lineNumber) {
+        try {
+            if (duration.endsWith("ms")) {
+                return Long.parseLong(duration.substring(0, duration.length() - 2));
+            } else if (duration.endsWith("s")) {
+                return Long.parseLong(duration.substring(0, duration.length() - 1)) * 1000;
+            } else if (duration.endsWith("m")) {
+                return Long.parseLong(duration.substring(0, duration.length() - 1)) * 60 * 1000;
+            }
+        } catch (final NumberFormatException e) {
+            // Reported below
+        }
+        throw new FsmException(String.format("Line %d: '%s' isn't a duration", lineNumber, duration));
+    }
+
+    /**
+     * Configures a state machine from a definition that has been parsed or read from the cache.
+     */
+    private void apply(final StateMachine<TriggerType, ContextType> stateMachine, final List<StateDefinition> definition) {
+        // Every state class and trigger is resolved once, however many transitions refer to it
+        final Map<String, Class<? extends FsmState<TriggerType, ContextType>>> stateClasses = new HashMap<>();
+        final Map<String, TriggerType> triggers = new HashMap<>();
+        for (final StateDefinition state : definition) {
+            final StateConfiguration<TriggerType, ContextType> configuration = stateMachine
+                    .state(stateClasses.computeIfAbsent(state.stateClass, this::stateClass));
+            if (state.initial) {
+                configuration.isInitialState();
+            }
+            if (state.parent != null) {
+                configuration.parent(stateClasses.computeIfAbsent(state.parent, this::stateClass));
+            }
+            if (state.lifecycle != null) {
+                configuration.lifecycle(state.lifecycle);
+            }
+            if (state.timeoutTrigger != null) {
+                configuration.after(Duration.ofMillis(state.timeoutMillis),
+                        triggers.computeIfAbsent(state.timeoutTrigger, this::trigger));
+            }
+            for (final TransitionDefinition transition : state.transitions) {
+                final TriggerType trigger = triggers.computeIfAbsent(transition.trigger, this::trigger);
+                final TriggerConfiguration<TriggerType, ContextType> triggerConfiguration = transition.guard != null
+                        ? configuration.on(trigger, lookup(guards, "guard", transition.guard))
+                        : configuration.on(trigger);
+                if (transition.target == null) {
+                    triggerConfiguration.internal(lookup(actions, "action", transition.action));
+                    continue;
+                }
+                if (transition.action != null) {
+                    triggerConfiguration.doing(lookup(actions, "action", transition.action));
+                }
+                triggerConfiguration.goesTo(stateClasses.computeIfAbsent(transition.target, this::stateClass));
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Class<? extends FsmState<TriggerType, ContextType>> stateClass(final String name) {
+        final Class<?> stateClass;
+        try {
+            stateClass = Class.forName(name, false, getClassLoader());
+        } catch (final ClassNotFoundException e) {
+            throw new FsmException(String.format("State class %s could not be found", name), e);
+        }
+        if (!FsmState.class.isAssignableFrom(stateClass)) {
+            throw new FsmException(String.format("Class %s isn't a state", name));
+        }
+        return (Class<? extends FsmState<TriggerType, ContextType>>) stateClass;
+    }
+
+    private ClassLoader getClassLoader() {
+        if (classLoader != null) {
+            return classLoader;
+        }
+        final ClassLoader contextClassLoader = Thread.currentThread().getContextClassLoader();
+        return contextClassLoader != null ? contextClassLoader : StateMachineLoader.class.getClassLoader();
+    }
+
+    private TriggerType trigger(final String name) {
+        try {
+            return triggerParser.apply(name);
+        } catch (final RuntimeException e) {
+            throw new FsmException(String.format("Unknown trigger %s", name), e);
+        }
+    }
+
+    private static <T> T lookup(final Map<String, T> registered, final String kind, final String name) {
+        final T value = registered.get(name);
+        if (value == null) {
+            throw new FsmException(String.format("No %s named %s has been registered", kind, name));
+        }
+        return value;
+    }
+
+    private static void writeCache(final Path cache, final List<StateDefinition> definition, final SourceStamp stamp)
+            throws IOException {
+        // Every name is written once, and referred to by its index
+        final Map<String, Integer> names = new LinkedHashMap<>();
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(body);
+        VarInts.write(out, definition.size());
+        for (final StateDefinition state : definition) {
+            VarInts.write(out, name(names, state.stateClass));
+            VarInts.write(out, (state.initial ? INITIAL : 0) | (state.parent != null ? PARENT : 0)
+                    | (state.timeoutTrigger != null ? TIMEOUT : 0));
+            if (state.parent != null) {
+                VarInts.write(out, name(names, state.parent));
+            }
+            // Zero for the default lifecycle
+            VarInts.write(out, state.lifecycle != null ? state.lifecycle.ordinal() + 1 : 0);
+            if (state.timeoutTrigger != null) {
+                out.writeLong(state.timeoutMillis);
+                VarInts.write(out, name(names, state.timeoutTrigger));
+            }
+            VarInts.write(out, state.transitions.size());
+            for (final TransitionDefinition transition : state.transitions) {
+                VarInts.write(out, name(names, transition.trigger));
+                VarInts.write(out, (transition.guard != null ? GUARDED : 0) | (transition.target != null ? TARGET : 0)
+                        | (transition.action != null ? ACTION : 0));
+                if (transition.guard != null) {
+                    VarInts.write(out, name(names, transition.guard));
+                }
+                if (transition.target != null) {
+                    VarInts.write(out, name(names, transition.target));
+                }
+                if (transition.action != null) {
+                    VarInts.write(out, name(names, transition.action));
+                }
+            }
+        }
+
+        final ByteArrayOutputStream file = new ByteArrayOutputStream(body.size() + 256);
+        final DataOutputStream header = new DataOutputStream(file);
+        header.writeInt(CACHE_MAGIC);
+        header.writeByte(CACHE_VERSION);
+        header.writeLong(stamp.size);
+        header.writeLong(stamp.modified);
+        header.writeLong(System.currentTimeMillis());
+        header.writeInt(stamp.getChecksum());
+        VarInts.write(header, names.size());
+        for (final String name : names.keySet()) {
+            final byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+            VarInts.write(header, bytes.length);
+            header.write(bytes);
+        }
+        body.writeTo(file);
+        final CRC32 crc = new CRC32();
+        crc.update(file.toByteArray());
+        header.writeInt((int) crc.getValue());
+
+        // Write a temporary file and move it in place, so that the cache is never seen half written
+        final Path directory = cache.toAbsolutePath().getParent();
+        Files.createDirectories(directory);
+        final Path temporary = Files.createTempFile(directory, cache.getFileName().toString(), ".tmp");
+        try {
+            Files.write(temporary, file.toByteArray());
+            Files.move(temporary, cache, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    private static int name(final Map<String, Integer> names, final String name) {
+        Integer index = names.get(name);
+        if (index == null) {
+            index = names.size();
+            names.put(name, index);
+        }
+        return index;
+    }
+
+    /**
+     * Reads a definition from the cache.
+     *
+     * @return The definition, or null if there is no cache, or if it's damaged or out of date.
+     */
+    private static List<StateDefinition> readCache(final Path cache, final SourceStamp stamp) throws IOException {
+        final MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(cache, StandardOpenOption.READ)) {
+            // The mapping stays valid after the channel has been closed
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (final NoSuchFileException e) {
+            return null;
+        }
+        if (buffer.limit() < CHECKSUM_SIZE) {
+            return null;
+        }
+        final int contentSize = buffer.limit() - CHECKSUM_SIZE;
+        final ByteBuffer content = buffer.duplicate();
+        content.limit(contentSize);
+        final CRC32 crc = new CRC32();
+        crc.update(content);
+        if (buffer.getInt(contentSize) != (int) crc.getValue()) {
+            return null;
+        }
+        buffer.limit(contentSize);
+        try {
+            if (buffer.getInt() != CACHE_MAGIC || buffer.get() != CACHE_VERSION || buffer.getLong() != stamp.size) {
+                return null;
+            }
+            final long modified = buffer.getLong();
+            final long compiled = buffer.getLong();
+            final int checksum = buffer.getInt();
+            // A file that was modified shortly before the cache was compiled could have been modified again since, without a
+            // change of its modification time
+            final boolean racy = modified > compiled - MODIFICATION_TIME_RESOLUTION_MILLIS;
+            if ((modified != stamp.modified || racy) && checksum != stamp.getChecksum()) {
+                return null;
+            }
+            final String[] names = new String[readCount(buffer)];
+            for (int i = 0; i < names.length; i++) {
+                final byte[] bytes = new byte[readCount(buffer)];
+                buffer.get(bytes);
+                names[i] = new String(bytes, StandardCharsets.UTF_8);
+            }
+            final List<StateDefinition> definition = new ArrayList<>();
+            for (int stateCount = readCount(buffer); stateCount > 0; stateCount--) {
+                final StateDefinition state = new StateDefinition();
+                state.stateClass = names[readCount(buffer)];
+                final int flags = readCount(buffer);
+                state.initial = (flags & INITIAL) != 0;
+                if ((flags & PARENT) != 0) {
+                    state.parent = names[readCount(buffer)];
+                }
+                final int lifecycle = readCount(buffer);
+                state.lifecycle = lifecycle > 0 ? StateLifecycle.values()[lifecycle - 1] : null;
+                if ((flags & TIMEOUT) != 0) {
+                    state.timeoutMillis = buffer.getLong();
+                    state.timeoutTrigger = names[readCount(buffer)];
+                }
+                for (int transitionCount = readCount(buffer); transitionCount > 0; transitionCount--) {
+                    final TransitionDefinition transition = new TransitionDefinition();
+                    transition.trigger = names[readCount(buffer)];
+                    final int transitionFlags = readCount(buffer);
+                    if ((transitionFlags & GUARDED) != 0) {
+                        transition.guard = names[readCount(buffer)];
+                    }
+                    if ((transitionFlags & TARGET) != 0) {
+                        transition.target = names[readCount(buffer)];
+                    }
+                    if ((transitionFlags & ACTION) != 0) {
+                        transition.action = names[readCount(buffer)];
+                    }
+                    state.transitions.add(transition);
+                }
+                definition.add(state);
+            }
+            return buffer.hasRemaining() ? null : definition;
+        } catch (final BufferUnderflowException | IndexOutOfBoundsException e) {
+            // A damaged cache that happens to have a valid checksum
+            return null;
+        }
+    }
+
+    private static int readCount(final ByteBuffer buffer) {
+        final int count = VarInts.read(buffer);
+        if (count < 0) {
+            throw new BufferUnderflowException();
+        }
+        return count;
+    }
+}
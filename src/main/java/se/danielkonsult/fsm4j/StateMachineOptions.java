@@ -0,0 +1,30 @@
+package se.danielkonsult.fsm4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+/**
+ * The runtime options of a state machine that is being configured. They are copied into the {@link StateMachineDefinition} when
+ * it's built, so changing them afterwards doesn't affect an existing definition.
+ */
+final class StateMachineOptions<TriggerType, ContextType> {
+
+    StateResolver<TriggerType, ContextType> stateResolver = new DefaultStateResolver<>();
+    final List<StateMachineListener<TriggerType, ContextType>> listeners = new ArrayList<>();
+    boolean runToCompletion;
+    boolean concurrent;
+    Executor executor;
+    Consumer<RuntimeException> errorHandler = e -> {
+        final Thread thread = Thread.currentThread();
+        thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+    };
+    ContextCodec<ContextType> contextCodec;
+    InvalidTriggerPolicy invalidTriggerPolicy = InvalidTriggerPolicy.NOTIFY;
+    boolean metricsEnabled;
+    TimingWheel timingWheel;
+    PayloadPool<?> payloadPool;
+    boolean codeGeneration;
+    boolean guardVerification = Boolean.getBoolean(StateMachine.GUARD_VERIFICATION_PROPERTY);
+}
@@ -0,0 +1,39 @@
+package se.danielkonsult.fsm4j;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded, lock-free pool of state instances for states with the {@link StateLifecycle#POOLED} lifecycle. Instances that are
+ * released when the pool is full are simply dropped.
+ */
+final class StatePool<TriggerType, ContextType> {
+
+    static final int DEFAULT_CAPACITY = 16;
+
+    private final AtomicReferenceArray<FsmState<TriggerType, ContextType>> slots;
+
+    StatePool(final int capacity) {
+        slots = new AtomicReferenceArray<>(capacity);
+    }
+
+    /**
+     * Takes an instance from the pool, or returns null if the pool is empty.
+     */
+    FsmState<TriggerType, ContextType> acquire() {
+        for (int i = 0; i < slots.length(); i++) {
+            final FsmState<TriggerType, ContextType> state = slots.get(i);
+            if (state != null && slots.compareAndSet(i, state, null)) {
+                return state;
+            }
+        }
+        return null;
+    }
+
+    void release(final FsmState<TriggerType, ContextType> state) {
+        for (int i = 0; i < slots.length(); i++) {
+            if (slots.get(i) == null && slots.compareAndSet(i, null, state)) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package se.danielkonsult.fsm4j;
+
+/**
+ * The timeout of an entered state, see {@link StateConfiguration#after(java.time.Duration, Object)}. Each state machine has one
+ * per nesting depth, which is reused every time a state with a timeout is entered at that depth.
+ */
+final class StateTimeout extends TimingWheel.Timeout {
+
+    static final long NOT_ARMED = Long.MIN_VALUE;
+
+    private final StateMachine<?, ?> owner;
+
+    // Only changed by the thread that processes the triggers of the owner
+    int stateId;
+    volatile long deadline = NOT_ARMED;
+
+    StateTimeout(final StateMachine<?, ?> owner) {
+        this.owner = owner;
+    }
+
+    @Override
+    void expired() {
+        owner.timeoutExpired(this);
+    }
+}
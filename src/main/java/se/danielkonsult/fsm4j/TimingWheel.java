@@ -0,0 +1,233 @@
+package se.danielkonsult.fsm4j;
+
+import java.io.Closeable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hashed timing wheel that keeps track of the timeouts of states, see {@link StateConfiguration#after(java.time.Duration, Object)}.
+ *
+ * Time is divided into ticks, and each timeout is put in the bucket of the tick that it expires in, modulo the number of buckets.
+ * Scheduling and cancelling a timeout is constant time, and the timeouts are intrusive nodes that each state machine reuses, so a
+ * large number of state machines can have timeouts without a scheduled task being allocated per timeout. Timeouts expire on the
+ * first tick after their deadline, so they are late by at most one tick.
+ *
+ * A wheel either runs on a daemon thread of its own, see {@link #start()}, or is advanced explicitly through {@link #advance()},
+ * e.g. together with a {@link ManualNanoClock} in tests. One wheel can be shared by any number of state machines.
+ */
+public final class TimingWheel implements Closeable {
+
+    public static final long DEFAULT_TICK_MILLIS = 10;
+    public static final int DEFAULT_BUCKET_COUNT = 512;
+
+    /**
+     * A timeout that can be scheduled on a wheel. All its fields are guarded by the wheel.
+     */
+    abstract static class Timeout {
+
+        private Timeout previous;
+        private Timeout next;
+        private Timeout nextExpired;
+        private long deadlineTick;
+        private int bucket = -1;
+
+        /**
+         * Called, outside the lock of the wheel, when the timeout has expired.
+         */
+        abstract void expired();
+    }
+
+    private static final class DefaultWheelHolder {
+        private static final TimingWheel INSTANCE = new TimingWheel().start();
+    }
+
+    private final NanoClock clock;
+    private final long tickNanos;
+    private final int mask;
+    private final Timeout[] buckets;
+    private final long startNanos;
+    private long tick;
+    private int scheduledCount;
+    private Thread thread;
+    private volatile boolean running;
+
+    /**
+     * Creates a wheel with {@link #DEFAULT_BUCKET_COUNT} buckets of {@link #DEFAULT_TICK_MILLIS} milliseconds each.
+     */
+    public TimingWheel() {
+        this(DEFAULT_TICK_MILLIS, TimeUnit.MILLISECONDS, DEFAULT_BUCKET_COUNT, NanoClock.SYSTEM);
+    }
+
+    /**
+     * @param tickDuration The duration of a tick, e.g. the resolution of the timeouts.
+     * @param unit The unit of the tick duration.
+     * @param bucketCount The number of buckets, which is rounded up to a power of two. Timeouts that are more than a full turn of
+     * the wheel away share buckets with earlier ones, so this should cover the common timeouts.
+     * @param clock The source of time.
+     */
+    public TimingWheel(final long tickDuration, final TimeUnit unit, final int bucketCount, final NanoClock clock) {
+        if (tickDuration <= 0 || bucketCount <= 0) {
+            throw new FsmException(String.format("Invalid tick duration %d or bucket count %d", tickDuration, bucketCount));
+        }
+        this.clock = clock;
+        this.tickNanos = unit.toNanos(tickDuration);
+        final int size = bucketCount == 1 ? 1 : Integer.highestOneBit(bucketCount - 1) << 1;
+        this.mask = size - 1;
+        this.buckets = new Timeout[size];
+        this.startNanos = clock.nanoTime();
+    }
+
+    /**
+     * Gets the wheel that state machines use when no wheel has been set, see
+     * {@link StateMachine#setTimingWheel(TimingWheel)}. It's started on first use, with the default settings.
+     */
+    public static TimingWheel defaultWheel() {
+        return DefaultWheelHolder.INSTANCE;
+    }
+
+    /**
+     * Gets the current time of the clock of the wheel.
+     */
+    public long now() {
+        return clock.nanoTime();
+    }
+
+    /**
+     * Starts a daemon thread that advances the wheel once per tick.
+     *
+     * @return This wheel.
+     */
+    public synchronized TimingWheel start() {
+        if (thread == null) {
+            running = true;
+            thread = new Thread(this::run, "fsm4j-timing-wheel");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        return this;
+    }
+
+    private void run() {
+        while (running) {
+            advance();
+            LockSupport.parkNanos(this, tickNanos);
+        }
+    }
+
+    /**
+     * Stops the thread of the wheel, if it has been started. Timeouts that are still scheduled are kept, and expire if the wheel
+     * is advanced explicitly.
+     */
+    @Override
+    public void close() {
+        final Thread current;
+        synchronized (this) {
+            current = thread;
+            thread = null;
+            running = false;
+        }
+        if (current != null) {
+            LockSupport.unpark(current);
+            try {
+                current.join();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Expires all timeouts whose deadline has passed according to the clock of the wheel. The timeouts are expired on the calling
+     * thread.
+     */
+    public void advance() {
+        Timeout expired = null;
+        Timeout lastExpired = null;
+        synchronized (this) {
+            final long target = Math.floorDiv(clock.nanoTime() - startNanos, tickNanos);
+            // Every bucket has to be visited at most once, however many ticks have passed
+            final long last = Math.min(target, tick + buckets.length);
+            for (long t = tick + 1; t <= last; t++) {
+                final int bucket = (int) t & mask;
+                Timeout timeout = buckets[bucket];
+                while (timeout != null) {
+                    final Timeout next = timeout.next;
+                    if (timeout.deadlineTick <= target) {
+                        unlink(timeout);
+                        if (lastExpired == null) {
+                            expired = timeout;
+                        } else {
+                            lastExpired.nextExpired = timeout;
+                        }
+                        lastExpired = timeout;
+                    }
+                    timeout = next;
+                }
+            }
+            if (target > tick) {
+                tick = target;
+            }
+        }
+        while (expired != null) {
+            final Timeout next = expired.nextExpired;
+            expired.nextExpired = null;
+            expired.expired();
+            expired = next;
+        }
+    }
+
+    /**
+     * Schedules a timeout, or reschedules it if it's already scheduled.
+     *
+     * @param deadline When the timeout expires, in the time of the clock of the wheel.
+     */
+    synchronized void schedule(final Timeout timeout, final long deadline) {
+        if (timeout.bucket >= 0) {
+            unlink(timeout);
+        }
+        long deadlineTick = -Math.floorDiv(startNanos - deadline, tickNanos);
+        if (deadlineTick <= tick) {
+            deadlineTick = tick + 1;
+        }
+        timeout.deadlineTick = deadlineTick;
+        timeout.bucket = (int) deadlineTick & mask;
+        timeout.previous = null;
+        timeout.next = buckets[timeout.bucket];
+        if (timeout.next != null) {
+            timeout.next.previous = timeout;
+        }
+        buckets[timeout.bucket] = timeout;
+        scheduledCount++;
+    }
+
+    /**
+     * Cancels a timeout, if it's scheduled.
+     */
+    synchronized void cancel(final Timeout timeout) {
+        if (timeout.bucket >= 0) {
+            unlink(timeout);
+        }
+    }
+
+    private void unlink(final Timeout timeout) {
+        if (timeout.previous != null) {
+            timeout.previous.next = timeout.next;
+        } else {
+            buckets[timeout.bucket] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.previous = timeout.previous;
+        }
+        timeout.previous = null;
+        timeout.next = null;
+        timeout.bucket = -1;
+        scheduledCount--;
+    }
+
+    /**
+     * Gets the number of timeouts that are currently scheduled.
+     */
+    public synchronized int getScheduledCount() {
+        return scheduledCount;
+    }
+}
@@ -0,0 +1,17 @@
+package se.danielkonsult.fsm4j;
+
+/**
+ * Work that is done when a specific transition is taken, e.g. on the edge between two states rather than when a state is entered
+ * or exited, see {@link TriggerConfiguration#doing(TransitionAction)} and {@link TriggerConfiguration#internal(TransitionAction)}.
+ *
+ * @param <ContextType> The context type of the state machine that the action is executed against.
+ */
+@FunctionalInterface
+public interface TransitionAction<ContextType> {
+
+    /**
+     * @param context The context of the state machine.
+     * @param payload The payload of the trigger, see {@link StateMachine#trigger(Object, Object)}, or null if it has none.
+     */
+    void execute(ContextType context, Object payload);
+}
@@ -0,0 +1,444 @@
+package se.danielkonsult.fsm4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead journal of the transitions of one state machine, for auditing and for recovering the state machine after a crash.
+ * Every trigger that causes a transition is appended to the journal before the transition is carried out, together with the
+ * state it was fired in and the state it leads to. Internal transitions are recorded as transitions that lead back to the state
+ * they were fired in, so their actions run again when the journal is replayed by entering states. The journal is attached to a state machine through
+ * {@link StateMachine#setJournal(TransitionJournal)}.
+ *
+ * The journal is stored as a sequence of segment files in a directory. Each segment is a memory-mapped file of a fixed size, so
+ * appending to the journal is a matter of copying a few bytes into memory. Records are forced out to the storage device on
+ * commit according to the {@link FsyncPolicy} of the journal. The state machine commits once per trigger, and once per batch of
+ * triggers fired through triggerAll(), so a batch is written out in a single group commit.
+ *
+ * States and triggers are recorded by their ids in the transition table, so the journal can only be replayed into a state
+ * machine with the same configuration. Each record is checksummed, and a record that was only partly written when the process
+ * crashed marks the end of the journal. So does any other damaged record, and a transition that wasn't fired in the state that
+ * the journal had got to: replaying stops there, even if later segments hold more records.
+ *
+ * A journal grows until it's compacted, see {@link #compact(StateMachine)}, which writes a snapshot of the state machine as a
+ * checkpoint and deletes everything that was recorded before it.
+ */
+public final class TransitionJournal implements Closeable {
+
+    /**
+     * The default size of a segment file, 16 MiB.
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".journal";
+
+    // Record types. A zero type marks the end of a segment, since that's what a new segment is filled with.
+    private static final byte START = 1;
+    private static final byte TRANSITION = 2;
+    private static final byte CHECKPOINT = 3;
+
+    private static final int CHECKSUM_SIZE = 4;
+
+    /**
+     * One record that has been read from the journal.
+     */
+    private static final class Record {
+
+        private byte type;
+        private int sourceStateId;
+        private int triggerId;
+        private int targetStateId;
+        private byte[] snapshot;
+    }
+
+    private final Path directory;
+    private final int segmentSize;
+    private final FsyncPolicy fsyncPolicy;
+    private final List<Path> segments = new ArrayList<>();
+    private final CRC32 crc = new CRC32();
+    private ByteBuffer scratch = ByteBuffer.allocate(64);
+    private MappedByteBuffer segment;
+    private int segmentNumber;
+    private boolean dirty;
+    private long fsyncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(100);
+    private long lastForced = System.nanoTime();
+
+    /**
+     * Opens a journal with the default segment size that is forced on every commit. Records are appended after the records
+     * that the directory already holds, if any.
+     *
+     * @param directory The directory of the segment files. It's created if it doesn't exist.
+     */
+    public TransitionJournal(final Path directory) {
+        this(directory, DEFAULT_SEGMENT_SIZE, FsyncPolicy.EVERY_COMMIT);
+    }
+
+    /**
+     * Opens a journal. Records are appended after the records that the directory already holds, if any.
+     *
+     * @param directory The directory of the segment files. It's created if it doesn't exist.
+     * @param segmentSize The size of each segment file, in bytes.
+     * @param fsyncPolicy When appended records are forced out to the storage device.
+     */
+    public TransitionJournal(final Path directory, final int segmentSize, final FsyncPolicy fsyncPolicy) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.fsyncPolicy = fsyncPolicy;
+        try {
+            Files.createDirectories(directory);
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+                for (final Path path : stream) {
+                    segments.add(path);
+                }
+            }
+            Collections.sort(segments);
+            if (segments.isEmpty()) {
+                openSegment(0);
+            } else {
+                // Continue after the last complete record of the last segment
+                final Path last = segments.get(segments.size() - 1);
+                final String name = last.getFileName().toString();
+                segmentNumber = Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+                segment = map(last, FileChannel.MapMode.READ_WRITE);
+                final Record record = new Record();
+                while (readRecord(segment, record)) {
+                    // Skip to the end
+                }
+            }
+        } catch (final IOException e) {
+            throw new FsmException(String.format("Could not open the journal in %s", directory), e);
+        }
+    }
+
+    private MappedByteBuffer map(final Path path, final FileChannel.MapMode mode) throws IOException {
+        try (FileChannel channel = mode == FileChannel.MapMode.READ_ONLY ? FileChannel.open(path, StandardOpenOption.READ)
+                : FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE)) {
+            // The mapping stays valid after the channel has been closed
+            return channel.map(mode, 0, mode == FileChannel.MapMode.READ_ONLY ? channel.size() : segmentSize);
+        }
+    }
+
+    private void openSegment(final int number) throws IOException {
+        final Path path = directory.resolve(String.format("%s%08d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+        segment = map(path, FileChannel.MapMode.READ_WRITE);
+        segmentNumber = number;
+        segments.add(path);
+    }
+
+    /**
+     * Closes the current segment and continues in a new one.
+     */
+    private void roll() throws IOException {
+        if (dirty && fsyncPolicy != FsyncPolicy.NEVER) {
+            segment.force();
+        }
+        openSegment(segmentNumber + 1);
+    }
+
+    /**
+     * Reads the record at the position of a buffer, and moves the position past it.
+     *
+     * @return False, with the position left unchanged, if there are no more complete records.
+     */
+    private boolean readRecord(final ByteBuffer buffer, final Record record) {
+        final int start = buffer.position();
+        if (buffer.remaining() < 1 + CHECKSUM_SIZE) {
+            return false;
+        }
+        record.type = buffer.get();
+        boolean valid;
+        switch (record.type) {
+        case START:
+            record.targetStateId = VarInts.read(buffer);
+            valid = record.targetStateId >= 0;
+            break;
+        case TRANSITION:
+            record.sourceStateId = VarInts.read(buffer);
+            record.triggerId = VarInts.read(buffer);
+            record.targetStateId = VarInts.read(buffer);
+            valid = record.sourceStateId >= 0 && record.triggerId >= 0 && record.targetStateId >= 0;
+            break;
+        case CHECKPOINT:
+            final int length = VarInts.read(buffer);
+            valid = length >= 0 && length <= buffer.remaining();
+            if (valid) {
+                record.snapshot = new byte[length];
+                buffer.get(record.snapshot);
+            }
+            break;
+        default:
+            valid = false;
+        }
+        if (valid && buffer.remaining() >= CHECKSUM_SIZE) {
+            final int end = buffer.position();
+            crc.reset();
+            for (int i = start; i < end; i++) {
+                crc.update(buffer.get(i));
+            }
+            if (buffer.getInt() == (int) crc.getValue()) {
+                return true;
+            }
+        }
+        buffer.position(start);
+        return false;
+    }
+
+    /**
+     * Checks if the rest of a segment is the zero fill that a segment is created with, e.g. if it holds no more records.
+     */
+    private static boolean isZeroFilled(final ByteBuffer buffer) {
+        int i = buffer.position();
+        final int limit = buffer.limit();
+        for (; i + Long.BYTES <= limit; i += Long.BYTES) {
+            if (buffer.getLong(i) != 0) {
+                return false;
+            }
+        }
+        for (; i < limit; i++) {
+            if (buffer.get(i) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Appends the record that has been put in the scratch buffer, with its checksum.
+     */
+    private void append() {
+        scratch.flip();
+        crc.reset();
+        crc.update(scratch.array(), 0, scratch.limit());
+        final int size = scratch.limit() + CHECKSUM_SIZE;
+        try {
+            if (size > segment.remaining()) {
+                if (size > segmentSize) {
+                    throw new FsmException(String.format("A record of %d bytes doesn't fit in a segment of %d bytes", size,
+                            segmentSize));
+                }
+                roll();
+            }
+        } catch (final IOException e) {
+            throw new FsmException(String.format("Could not create a new segment in %s", directory), e);
+        }
+        segment.put(scratch);
+        segment.putInt((int) crc.getValue());
+        dirty = true;
+    }
+
+    private ByteBuffer beginRecord(final byte type, final int capacity) {
+        if (scratch.capacity() < capacity) {
+            scratch = ByteBuffer.allocate(Math.max(capacity, scratch.capacity() * 2));
+        }
+        scratch.clear();
+        scratch.put(type);
+        return scratch;
+    }
+
+    void appendStart(final int stateId) {
+        VarInts.write(beginRecord(START, 8), stateId);
+        append();
+    }
+
+    void appendTransition(final int sourceStateId, final int triggerId, final int targetStateId) {
+        final ByteBuffer buffer = beginRecord(TRANSITION, 16);
+        VarInts.write(buffer, sourceStateId);
+        VarInts.write(buffer, triggerId);
+        VarInts.write(buffer, targetStateId);
+        append();
+    }
+
+    void appendCheckpoint(final byte[] snapshot) {
+        final ByteBuffer buffer = beginRecord(CHECKPOINT, snapshot.length + 8);
+        VarInts.write(buffer, snapshot.length);
+        buffer.put(snapshot);
+        append();
+    }
+
+    /**
+     * Marks the end of a group of records, which forces the journal according to its fsync policy.
+     */
+    void commit() {
+        if (!dirty) {
+            return;
+        }
+        switch (fsyncPolicy) {
+        case EVERY_COMMIT:
+            force();
+            break;
+        case INTERVAL:
+            if (System.nanoTime() - lastForced >= fsyncIntervalNanos) {
+                force();
+            }
+            break;
+        default:
+            break;
+        }
+    }
+
+    /**
+     * Forces everything that has been appended to the journal out to the storage device, regardless of the fsync policy.
+     */
+    public void force() {
+        segment.force();
+        dirty = false;
+        lastForced = System.nanoTime();
+    }
+
+    /**
+     * Starts a new segment with a snapshot of a state machine as a checkpoint, and deletes all older segments. The state machine
+     * should be the one that the journal is attached to, and it must not be in the middle of a transition.
+     */
+    public void compact(final StateMachine<?, ?> stateMachine) {
+        final byte[] snapshot = stateMachine.snapshot();
+        try {
+            roll();
+            appendCheckpoint(snapshot);
+            force();
+            while (segments.size() > 1) {
+                Files.delete(segments.remove(0));
+            }
+        } catch (final IOException e) {
+            throw new FsmException(String.format("Could not compact the journal in %s", directory), e);
+        }
+    }
+
+    /**
+     * Rebuilds a state machine from the journal, without calling the entering() methods of any states, see
+     * {@link #replay(StateMachine, boolean)}.
+     *
+     * @return True if the journal held anything to replay.
+     */
+    public <TriggerType, ContextType> boolean replay(final StateMachine<TriggerType, ContextType> stateMachine) {
+        return replay(stateMachine, false);
+    }
+
+    /**
+     * Rebuilds a state machine from the journal. The state machine must have the same configuration as the one that the journal
+     * was recorded from, and it must not be running. Nothing is appended to the journal while it's replayed.
+     *
+     * @param stateMachine The state machine to rebuild.
+     * @param enterStates If false, the state machine is put straight into the state that the journal ends in, without entering
+     * any states or notifying the listener. Its context is restored from the last checkpoint, if the state machine has a context
+     * codec. If true, the state machine is started from the last checkpoint, or its initial state, and the recorded triggers
+     * are fired at it again as one batch, so that the states can rebuild the context as they are entered.
+     * @return True if the journal held anything to replay.
+     */
+    public <TriggerType, ContextType> boolean replay(final StateMachine<TriggerType, ContextType> stateMachine,
+            final boolean enterStates) {
+        // Find the last starting point, and the triggers recorded after it
+        byte[] checkpoint = null;
+        boolean started = false;
+        int stateId = TransitionTable.NO_TRANSITION;
+        final List<Integer> triggerIds = new ArrayList<>();
+        final Record record = new Record();
+        try {
+            replay: for (final Path path : segments) {
+                final MappedByteBuffer buffer = map(path, FileChannel.MapMode.READ_ONLY);
+                while (readRecord(buffer, record)) {
+                    if (record.type == TRANSITION && record.sourceStateId != stateId) {
+                        // The transition wasn't fired in the state that the journal had got to, so it can't be trusted
+                        break replay;
+                    }
+                    switch (record.type) {
+                    case START:
+                        checkpoint = null;
+                        started = true;
+                        stateId = record.targetStateId;
+                        triggerIds.clear();
+                        break;
+                    case CHECKPOINT:
+                        checkpoint = record.snapshot;
+                        started = true;
+                        stateId = VarInts.read(ByteBuffer.wrap(checkpoint));
+                        triggerIds.clear();
+                        break;
+                    default:
+                        stateId = record.targetStateId;
+                        triggerIds.add(record.triggerId);
+                        break;
+                    }
+                }
+                if (!isZeroFilled(buffer)) {
+                    // A damaged or partly written record, nothing after it can be trusted
+                    break;
+                }
+            }
+        } catch (final IOException e) {
+            throw new FsmException(String.format("Could not read the journal in %s", directory), e);
+        }
+        if (!started) {
+            return false;
+        }
+
+        final TransitionJournal journal = stateMachine.getJournal();
+        stateMachine.setJournal(null);
+        try {
+            if (!enterStates) {
+                stateMachine.restore(checkpoint, stateId, false);
+                return true;
+            }
+            if (checkpoint != null) {
+                stateMachine.restore(checkpoint, true);
+            } else {
+                stateMachine.start();
+            }
+            final TransitionTable<TriggerType, ContextType> transitionTable = stateMachine.getDefinition().getTransitionTable();
+            final List<TriggerType> triggers = new ArrayList<>(triggerIds.size());
+            for (final int triggerId : triggerIds) {
+                triggers.add(transitionTable.getTrigger(triggerId));
+            }
+            stateMachine.triggerAll(triggers);
+            return true;
+        } finally {
+            stateMachine.setJournal(journal);
+        }
+    }
+
+    /**
+     * Forces the journal unless its fsync policy is {@link FsyncPolicy#NEVER}. The segment files stay mapped until they are
+     * garbage collected.
+     */
+    @Override
+    public void close() {
+        if (dirty && fsyncPolicy != FsyncPolicy.NEVER) {
+            force();
+        }
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    public FsyncPolicy getFsyncPolicy() {
+        return fsyncPolicy;
+    }
+
+    /**
+     * Gets the number of segment files that the journal currently consists of.
+     */
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Sets the least time between two forces of the journal with the {@link FsyncPolicy#INTERVAL} policy. The default is 100
+     * milliseconds.
+     */
+    public void setFsyncInterval(final long interval, final TimeUnit unit) {
+        fsyncIntervalNanos = unit.toNanos(interval);
+    }
+}
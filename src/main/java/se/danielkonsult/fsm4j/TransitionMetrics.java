@@ -0,0 +1,235 @@
+package se.danielkonsult.fsm4j;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Built-in instrumentation of the state machines that run on a definition, enabled through
+ * {@link StateMachine#setMetricsEnabled(boolean)}. It records:
+ *
+ * - The number of transitions per edge, e.g. per source and target state.
+ * - How long each state stays entered (dwell time), and how long its entering() and exiting() methods take.
+ * - How long it takes to evaluate the guards of a guarded trigger, per state that the trigger is fired in.
+ * - The number of invalid triggers per state, whatever the invalid trigger policy.
+ *
+ * Recording is lock-free and shared by all instances of the definition, also when they run on different threads. Note that the
+ * entering() latency of a state includes any transitions that the state triggers from inside entering(), unless the state machine
+ * runs to completion.
+ *
+ * The metrics can be read through the methods below, or through JMX once they have been registered with {@link #register(String)}.
+ */
+public final class TransitionMetrics implements TransitionMetricsMXBean {
+
+    /**
+     * The JMX domain that metrics are registered in.
+     */
+    public static final String JMX_DOMAIN = "se.danielkonsult.fsm4j";
+
+    private final TransitionTable<?, ?> transitionTable;
+    private final int stateCount;
+    private final AtomicLongArray transitionCounts;
+    private final AtomicLongArray invalidTriggerCounts;
+    private final LatencyHistogram[] dwellTimes;
+    private final LatencyHistogram[] enteringLatencies;
+    private final LatencyHistogram[] exitingLatencies;
+    private final LatencyHistogram[] guardLatencies;
+    private ObjectName objectName;
+
+    TransitionMetrics(final TransitionTable<?, ?> transitionTable) {
+        this.transitionTable = transitionTable;
+        this.stateCount = transitionTable.getStateCount();
+        this.transitionCounts = new AtomicLongArray(stateCount * stateCount);
+        this.invalidTriggerCounts = new AtomicLongArray(stateCount);
+        this.dwellTimes = newHistograms(stateCount);
+        this.enteringLatencies = newHistograms(stateCount);
+        this.exitingLatencies = newHistograms(stateCount);
+        this.guardLatencies = newHistograms(stateCount);
+    }
+
+    private static LatencyHistogram[] newHistograms(final int count) {
+        final LatencyHistogram[] histograms = new LatencyHistogram[count];
+        for (int i = 0; i < count; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+        return histograms;
+    }
+
+    void recordTransition(final int sourceStateId, final int targetStateId) {
+        transitionCounts.getAndIncrement(sourceStateId * stateCount + targetStateId);
+    }
+
+    void recordInvalidTrigger(final int stateId) {
+        invalidTriggerCounts.getAndIncrement(stateId);
+    }
+
+    void recordDwellTime(final int stateId, final long nanos) {
+        dwellTimes[stateId].record(nanos);
+    }
+
+    void recordEntering(final int stateId, final long nanos) {
+        enteringLatencies[stateId].record(nanos);
+    }
+
+    void recordExiting(final int stateId, final long nanos) {
+        exitingLatencies[stateId].record(nanos);
+    }
+
+    void recordGuards(final int stateId, final long nanos) {
+        guardLatencies[stateId].record(nanos);
+    }
+
+    private int stateId(final Class<?> stateClass) {
+        for (int stateId = 0; stateId < stateCount; stateId++) {
+            if (transitionTable.getStateClass(stateId) == stateClass) {
+                return stateId;
+            }
+        }
+        throw new FsmException(String.format("State class '%s' isn't part of the state machine", stateClass.getSimpleName()));
+    }
+
+    /**
+     * Gets the number of transitions from one state to another.
+     */
+    public long getTransitionCount(final Class<?> sourceState, final Class<?> targetState) {
+        return transitionCounts.get(stateId(sourceState) * stateCount + stateId(targetState));
+    }
+
+    /**
+     * Gets the number of invalid triggers that have been fired in a state.
+     */
+    public long getInvalidTriggerCount(final Class<?> state) {
+        return invalidTriggerCounts.get(stateId(state));
+    }
+
+    /**
+     * Gets how long a state has stayed entered, from the start of its entering() method to the start of its exiting() method.
+     */
+    public LatencySnapshot getDwellTime(final Class<?> state) {
+        return dwellTimes[stateId(state)].snapshot();
+    }
+
+    public LatencySnapshot getEnteringLatency(final Class<?> state) {
+        return enteringLatencies[stateId(state)].snapshot();
+    }
+
+    public LatencySnapshot getExitingLatency(final Class<?> state) {
+        return exitingLatencies[stateId(state)].snapshot();
+    }
+
+    /**
+     * Gets how long it has taken to evaluate the guards of the guarded triggers that have been fired in a state.
+     */
+    public LatencySnapshot getGuardLatency(final Class<?> state) {
+        return guardLatencies[stateId(state)].snapshot();
+    }
+
+    @Override
+    public Map<String, Long> getTransitionCounts() {
+        final Map<String, Long> counts = new LinkedHashMap<>();
+        for (int sourceStateId = 0; sourceStateId < stateCount; sourceStateId++) {
+            for (int targetStateId = 0; targetStateId < stateCount; targetStateId++) {
+                final long count = transitionCounts.get(sourceStateId * stateCount + targetStateId);
+                if (count > 0) {
+                    counts.put(String.format("%s -> %s", stateName(sourceStateId), stateName(targetStateId)), count);
+                }
+            }
+        }
+        return counts;
+    }
+
+    @Override
+    public Map<String, Long> getInvalidTriggerCounts() {
+        final Map<String, Long> counts = new LinkedHashMap<>();
+        for (int stateId = 0; stateId < stateCount; stateId++) {
+            final long count = invalidTriggerCounts.get(stateId);
+            if (count > 0) {
+                counts.put(stateName(stateId), count);
+            }
+        }
+        return counts;
+    }
+
+    @Override
+    public Map<String, LatencySnapshot> getDwellTimes() {
+        return snapshots(dwellTimes);
+    }
+
+    @Override
+    public Map<String, LatencySnapshot> getEnteringLatencies() {
+        return snapshots(enteringLatencies);
+    }
+
+    @Override
+    public Map<String, LatencySnapshot> getExitingLatencies() {
+        return snapshots(exitingLatencies);
+    }
+
+    @Override
+    public Map<String, LatencySnapshot> getGuardLatencies() {
+        return snapshots(guardLatencies);
+    }
+
+    private Map<String, LatencySnapshot> snapshots(final LatencyHistogram[] histograms) {
+        final Map<String, LatencySnapshot> snapshots = new LinkedHashMap<>();
+        for (int stateId = 0; stateId < stateCount; stateId++) {
+            final LatencySnapshot snapshot = histograms[stateId].snapshot();
+            if (snapshot.getCount() > 0) {
+                snapshots.put(stateName(stateId), snapshot);
+            }
+        }
+        return snapshots;
+    }
+
+    private String stateName(final int stateId) {
+        return transitionTable.getStateClass(stateId).getSimpleName();
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server, as {@value #JMX_DOMAIN}:type=TransitionMetrics,name=&lt;name&gt;.
+     *
+     * @param name The name that identifies the state machine definition in JMX.
+     */
+    public synchronized void register(final String name) {
+        if (objectName != null) {
+            throw new FsmException(String.format("The metrics are already registered as %s", objectName));
+        }
+        try {
+            final ObjectName candidate = new ObjectName(JMX_DOMAIN + ":type=TransitionMetrics,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, candidate);
+            objectName = candidate;
+        } catch (final JMException e) {
+            throw new FsmException(String.format("Could not register the metrics as %s", name), e);
+        }
+    }
+
+    /**
+     * Unregisters the metrics from the platform MBean server, if they have been registered.
+     */
+    public synchronized void unregister() {
+        if (objectName == null) {
+            return;
+        }
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            objectName = null;
+        } catch (final JMException e) {
+            throw new FsmException(String.format("Could not unregister the metrics %s", objectName), e);
+        }
+    }
+
+    /**
+     * Gets the name that the metrics are registered with in JMX, or null if they aren't registered.
+     */
+    public synchronized ObjectName getObjectName() {
+        return objectName;
+    }
+}
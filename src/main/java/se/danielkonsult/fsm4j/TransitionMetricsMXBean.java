@@ -0,0 +1,23 @@
+package se.danielkonsult.fsm4j;
+
+import java.util.Map;
+
+/**
+ * The JMX view of {@link TransitionMetrics}. States are identified by the simple names of their classes, and transitions by the
+ * names of their source and target states, e.g. "LockedState -> OpenState". Only states and transitions with at least one recorded
+ * value are included. All latencies are in nanoseconds.
+ */
+public interface TransitionMetricsMXBean {
+
+    Map<String, Long> getTransitionCounts();
+
+    Map<String, Long> getInvalidTriggerCounts();
+
+    Map<String, LatencySnapshot> getDwellTimes();
+
+    Map<String, LatencySnapshot> getEnteringLatencies();
+
+    Map<String, LatencySnapshot> getExitingLatencies();
+
+    Map<String, LatencySnapshot> getGuardLatencies();
+}
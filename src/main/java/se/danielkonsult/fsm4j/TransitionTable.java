@@ -0,0 +1,783 @@
+package se.danielkonsult.fsm4j;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * Immutable, compiled form of a state machine configuration. Every configured state and trigger is given a dense integer id, and
+ * all transitions are stored in one flat array indexed by <code>stateId * triggerCount + triggerId</code>, which makes finding
+ * the transition for a trigger a single array lookup.
+ *
+ * When the trigger type is an enum, the ordinal of the trigger is used as its id, so no hashing at all is needed to dispatch a
+ * trigger. Other trigger types are mapped to their ids through a map that is built once when the table is compiled.
+ *
+ * States can be nested in other states. A nested state inherits the transitions of its ancestors for all triggers that it doesn't
+ * handle itself, and that is resolved when the table is compiled, so a trigger costs the same however deep the state is.
+ *
+ * Keyed guards, see {@link StateConfiguration#onWhen(Object, Function, Object)}, are compiled into a lookup from key to target
+ * state, so they don't have to be evaluated one by one.
+ *
+ * Every configured transition is an edge, with a target state and an optional action. Internal transitions are edges without a
+ * target state, that only execute their action.
+ *
+ * @param <TriggerType> The trigger type of the table (set by the owning state machine)
+ * @param <ContextType> The context type of the table (set by the owning state machine)
+ */
+public final class TransitionTable<TriggerType, ContextType> {
+
+    /**
+     * Returned by {@link #resolve(int, int, Object)} when the trigger isn't valid for the state.
+     */
+    public static final int NO_TRANSITION = -1;
+
+    /**
+     * Returned by {@link #getEdgeTargetStateId(int)} for an internal transition, that doesn't leave the current state.
+     */
+    static final int INTERNAL_TRANSITION = -2;
+
+    /**
+     * The keyed guards of one trigger that share the same key extractor, compiled into a lookup from key to edge. Enum keys are
+     * looked up by ordinal in an array, other keys through a map.
+     */
+    static final class KeyIndex<ContextType> {
+
+        private final Function<ContextType, ?> keyExtractor;
+        private final Class<?> enumKeyClass;
+        private final int[] enumEdgeIds;
+        private final Map<Object, Integer> edgeIds;
+
+        KeyIndex(final Function<ContextType, ?> keyExtractor, final Map<Object, Integer> edgeIds) {
+            this.keyExtractor = keyExtractor;
+            this.enumKeyClass = getEnumClass(new ArrayList<>(edgeIds.keySet()));
+            if (enumKeyClass != null) {
+                enumEdgeIds = new int[enumKeyClass.getEnumConstants().length];
+                Arrays.fill(enumEdgeIds, NO_TRANSITION);
+                for (final Map.Entry<Object, Integer> entry : edgeIds.entrySet()) {
+                    enumEdgeIds[((Enum<?>) entry.getKey()).ordinal()] = entry.getValue();
+                }
+                this.edgeIds = null;
+            } else {
+                enumEdgeIds = null;
+                this.edgeIds = edgeIds;
+            }
+        }
+
+        /**
+         * Gets the edge of the key that is extracted from a context, or {@link #NO_TRANSITION} if no guard has that key.
+         */
+        int lookup(final ContextType context) {
+            return lookupKey(keyExtractor.apply(context));
+        }
+
+        /**
+         * Gets the edge of a key that has already been extracted, or {@link #NO_TRANSITION} if no guard has that key.
+         */
+        int lookupKey(final Object key) {
+            if (key == null) {
+                return NO_TRANSITION;
+            }
+            if (enumKeyClass != null) {
+                return ((Enum<?>) key).getDeclaringClass() == enumKeyClass ? enumEdgeIds[((Enum<?>) key).ordinal()]
+                        : NO_TRANSITION;
+            }
+            final Integer edgeId = edgeIds.get(key);
+            return edgeId != null ? edgeId : NO_TRANSITION;
+        }
+
+        Function<ContextType, ?> getKeyExtractor() {
+            return keyExtractor;
+        }
+
+        Iterable<Integer> getEdgeIds() {
+            final List<Integer> result = new ArrayList<>();
+            if (enumKeyClass != null) {
+                for (final int edgeId : enumEdgeIds) {
+                    if (edgeId != NO_TRANSITION) {
+                        result.add(edgeId);
+                    }
+                }
+            } else {
+                result.addAll(edgeIds.values());
+            }
+            return result;
+        }
+    }
+
+    /**
+     * One compiled transition, e.g. either a single unguarded edge, or key indexes and a list of guards with their edges. Guards
+     * on the payload of the trigger are kept in a parallel array, which is null if there are none.
+     */
+    static final class Transition<ContextType> {
+
+        private final int edgeId;
+        private final KeyIndex<ContextType>[] keyIndexes;
+        // The number of other guards that are configured before each key index
+        private final int[] keyIndexPositions;
+        private final Guard<ContextType>[] guards;
+        private final PayloadGuard<ContextType, Object>[] payloadGuards;
+        private final Class<?>[] payloadTypes;
+        private final int[] guardedEdgeIds;
+
+        Transition(final int edgeId) {
+            this.edgeId = edgeId;
+            this.keyIndexes = null;
+            this.keyIndexPositions = null;
+            this.guards = null;
+            this.payloadGuards = null;
+            this.payloadTypes = null;
+            this.guardedEdgeIds = null;
+        }
+
+        Transition(final KeyIndex<ContextType>[] keyIndexes, final int[] keyIndexPositions, final Guard<ContextType>[] guards,
+                final PayloadGuard<ContextType, Object>[] payloadGuards, final Class<?>[] payloadTypes,
+                final int[] guardedEdgeIds) {
+            this.edgeId = NO_TRANSITION;
+            this.keyIndexes = keyIndexes;
+            this.keyIndexPositions = keyIndexPositions;
+            this.guards = guards;
+            this.payloadGuards = payloadGuards;
+            this.payloadTypes = payloadTypes;
+            this.guardedEdgeIds = guardedEdgeIds;
+        }
+
+        /**
+         * Gets the edge of an unguarded transition, or {@link #NO_TRANSITION} if it's guarded.
+         */
+        int getEdgeId() {
+            return edgeId;
+        }
+
+        KeyIndex<ContextType>[] getKeyIndexes() {
+            return keyIndexes;
+        }
+
+        /**
+         * Gets the position of each key index among the guards, e.g. the number of guards that are evaluated before it.
+         */
+        int[] getKeyIndexPositions() {
+            return keyIndexPositions;
+        }
+
+        /**
+         * Gets the guards of a guarded transition, or null if it's unguarded. A guard is ignored where there is a payload guard.
+         */
+        Guard<ContextType>[] getGuards() {
+            return guards;
+        }
+
+        /**
+         * Gets the payload guards of a guarded transition, in parallel with its guards, or null if it has none.
+         */
+        PayloadGuard<ContextType, Object>[] getPayloadGuards() {
+            return payloadGuards;
+        }
+
+        Class<?>[] getPayloadTypes() {
+            return payloadTypes;
+        }
+
+        int[] getGuardedEdgeIds() {
+            return guardedEdgeIds;
+        }
+
+        boolean test(final int guard, final ContextType context, final Object payload) {
+            if (payloadGuards == null || payloadGuards[guard] == null) {
+                return guards[guard].test(context);
+            }
+            return payloadTypes[guard].isInstance(payload) && payloadGuards[guard].test(context, payload);
+        }
+    }
+
+    private final Class<? extends FsmState<TriggerType, ContextType>>[] stateClasses;
+    private final StateLifecycle[] stateLifecycles;
+    private final Map<Class<? extends FsmState<TriggerType, ContextType>>, Integer> stateIds;
+    private final int[] parentStateIds;
+    private final int[][] statePaths;
+    private final int maxDepth;
+    private final int initialStateId;
+    private final Object[] triggers;
+    private final Class<?> enumTriggerClass;
+    private final Map<TriggerType, Integer> triggerIds;
+    private final Transition<ContextType>[] transitions;
+    private final int[] edgeTargetStateIds;
+    private final TransitionAction<ContextType>[] edgeActions;
+    private final long[] timeoutNanos;
+    private final Object[] timeoutTriggers;
+    private final boolean hasTimeouts;
+    private GeneratedDispatcher generatedDispatcher;
+    private FsmException generationFailure;
+    private boolean generated;
+
+    @SuppressWarnings("unchecked")
+    private TransitionTable(final Collection<StateConfiguration<TriggerType, ContextType>> stateConfigurations,
+            final StateConfiguration<TriggerType, ContextType> initialStateConfiguration) {
+        // Assign dense ids to the states in the order they were configured
+        final Map<StateConfiguration<TriggerType, ContextType>, Integer> configurationIds = new IdentityHashMap<>();
+        stateClasses = new Class[stateConfigurations.size()];
+        stateLifecycles = new StateLifecycle[stateConfigurations.size()];
+        stateIds = new HashMap<>();
+        for (final StateConfiguration<TriggerType, ContextType> stateConfiguration : stateConfigurations) {
+            final int id = configurationIds.size();
+            configurationIds.put(stateConfiguration, id);
+            stateClasses[id] = stateConfiguration.getStateClass();
+            stateLifecycles[id] = stateConfiguration.getLifecycle();
+            stateIds.put(stateConfiguration.getStateClass(), id);
+        }
+        initialStateId = initialStateConfiguration != null ? configurationIds.get(initialStateConfiguration) : NO_TRANSITION;
+
+        // Resolve the parent of each state, and the path from the outermost ancestor down to each state
+        parentStateIds = new int[stateClasses.length];
+        for (final StateConfiguration<TriggerType, ContextType> stateConfiguration : stateConfigurations) {
+            final StateConfiguration<TriggerType, ContextType> parent = stateConfiguration.getParent();
+            parentStateIds[configurationIds.get(stateConfiguration)] = parent != null ? configurationIds.get(parent) : NO_TRANSITION;
+        }
+        statePaths = new int[stateClasses.length][];
+        int deepest = 0;
+        for (int stateId = 0; stateId < stateClasses.length; stateId++) {
+            statePaths[stateId] = computeStatePath(stateId);
+            deepest = Math.max(deepest, statePaths[stateId].length - 1);
+        }
+        maxDepth = deepest;
+
+        // Collect all triggers that are used anywhere in the configuration
+        final List<TriggerType> usedTriggers = new ArrayList<>();
+        for (final StateConfiguration<TriggerType, ContextType> stateConfiguration : stateConfigurations) {
+            for (final TriggerType trigger : stateConfiguration.getUnguardedTriggerConfigurations().keySet()) {
+                if (!usedTriggers.contains(trigger)) {
+                    usedTriggers.add(trigger);
+                }
+            }
+            for (final TriggerType trigger : stateConfiguration.getGuardedTriggerConfigurations().keySet()) {
+                if (!usedTriggers.contains(trigger)) {
+                    usedTriggers.add(trigger);
+                }
+            }
+        }
+
+        // Enum triggers are indexed by their ordinal, anything else gets an id through a lookup map
+        enumTriggerClass = getEnumClass(usedTriggers);
+        if (enumTriggerClass != null) {
+            triggers = enumTriggerClass.getEnumConstants();
+            triggerIds = null;
+        } else {
+            triggers = usedTriggers.toArray();
+            triggerIds = new HashMap<>();
+            for (int i = 0; i < triggers.length; i++) {
+                triggerIds.put((TriggerType) triggers[i], i);
+            }
+        }
+
+        // Fill the flat transition array, and collect the edges of the transitions
+        transitions = new Transition[stateClasses.length * triggers.length];
+        final List<TriggerConfiguration<TriggerType, ContextType>> edges = new ArrayList<>();
+        for (final StateConfiguration<TriggerType, ContextType> stateConfiguration : stateConfigurations) {
+            final int stateId = configurationIds.get(stateConfiguration);
+            for (final Map.Entry<TriggerType, TriggerConfiguration<TriggerType, ContextType>> entry : stateConfiguration
+                    .getUnguardedTriggerConfigurations().entrySet()) {
+                final int edgeId = addEdge(edges, stateConfiguration, entry.getKey(), entry.getValue());
+                transitions[stateId * triggers.length + triggerId(entry.getKey())] = new Transition<>(edgeId);
+            }
+            for (final Map.Entry<TriggerType, List<TriggerConfiguration<TriggerType, ContextType>>> entry : stateConfiguration
+                    .getGuardedTriggerConfigurations().entrySet()) {
+                transitions[stateId * triggers.length + triggerId(entry.getKey())] = compileGuardedTransition(edges,
+                        stateConfiguration, entry.getKey(), entry.getValue());
+            }
+        }
+        edgeTargetStateIds = new int[edges.size()];
+        edgeActions = new TransitionAction[edges.size()];
+        for (int edgeId = 0; edgeId < edgeTargetStateIds.length; edgeId++) {
+            final TriggerConfiguration<TriggerType, ContextType> edge = edges.get(edgeId);
+            edgeTargetStateIds[edgeId] = edge.isInternal() ? INTERNAL_TRANSITION
+                    : configurationIds.get(edge.getTargetStateConfiguration());
+            edgeActions[edgeId] = edge.getAction();
+        }
+
+        // Let each state inherit the transitions of its ancestors for the triggers it doesn't handle itself. Parents are filled in
+        // before their children, so one level of lookup is enough.
+        for (int depth = 1; depth <= maxDepth; depth++) {
+            for (int stateId = 0; stateId < stateClasses.length; stateId++) {
+                if (statePaths[stateId].length - 1 != depth) {
+                    continue;
+                }
+                final int parentStateId = parentStateIds[stateId];
+                for (int triggerId = 0; triggerId < triggers.length; triggerId++) {
+                    if (transitions[stateId * triggers.length + triggerId] == null) {
+                        transitions[stateId * triggers.length + triggerId] = transitions[parentStateId * triggers.length
+                                + triggerId];
+                    }
+                }
+            }
+        }
+
+        // Timeouts, whose triggers must be handled by the state itself or by an ancestor
+        timeoutNanos = new long[stateClasses.length];
+        timeoutTriggers = new Object[stateClasses.length];
+        boolean anyTimeout = false;
+        for (final StateConfiguration<TriggerType, ContextType> stateConfiguration : stateConfigurations) {
+            if (stateConfiguration.getTimeout() == null) {
+                continue;
+            }
+            final int stateId = configurationIds.get(stateConfiguration);
+            if (!hasTransition(stateId, triggerId(stateConfiguration.getTimeoutTrigger()))) {
+                throw new FsmException(String.format("The timeout trigger %s of state %s isn't handled by the state",
+                        stateConfiguration.getTimeoutTrigger(), stateConfiguration.getStateClass().getSimpleName()));
+            }
+            timeoutNanos[stateId] = stateConfiguration.getTimeout().toNanos();
+            timeoutTriggers[stateId] = stateConfiguration.getTimeoutTrigger();
+            anyTimeout = true;
+        }
+        hasTimeouts = anyTimeout;
+    }
+
+    private int[] computeStatePath(final int stateId) {
+        final List<Integer> ancestors = new ArrayList<>();
+        for (int id = stateId; id != NO_TRANSITION; id = parentStateIds[id]) {
+            if (ancestors.contains(id)) {
+                throw new FsmException(String.format("State %s is its own ancestor", stateClasses[stateId].getSimpleName()));
+            }
+            ancestors.add(id);
+        }
+        final int[] path = new int[ancestors.size()];
+        for (int i = 0; i < path.length; i++) {
+            path[i] = ancestors.get(path.length - 1 - i);
+        }
+        return path;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Transition<ContextType> compileGuardedTransition(final List<TriggerConfiguration<TriggerType, ContextType>> edges,
+            final StateConfiguration<TriggerType, ContextType> stateConfiguration, final TriggerType trigger,
+            final List<TriggerConfiguration<TriggerType, ContextType>> triggerConfigurations) {
+        // Guards are kept in the order they were configured. Keyed guards that follow each other and share a key extractor are
+        // grouped into one key index, which is evaluated where the first of them was configured.
+        final Map<Function<ContextType, ?>, Set<Object>> keys = new HashMap<>();
+        final List<Function<ContextType, ?>> keyExtractors = new ArrayList<>();
+        final List<Map<Object, Integer>> keyedEdgeIds = new ArrayList<>();
+        final List<Integer> keyIndexPositions = new ArrayList<>();
+        boolean keyIndexOpen = false;
+        final List<Guard<ContextType>> guards = new ArrayList<>();
+        final List<PayloadGuard<ContextType, Object>> payloadGuards = new ArrayList<>();
+        final List<Class<?>> payloadTypes = new ArrayList<>();
+        boolean anyPayloadGuard = false;
+        final List<Integer> guardedEdgeIds = new ArrayList<>();
+        for (final TriggerConfiguration<TriggerType, ContextType> triggerConfiguration : triggerConfigurations) {
+            final int edgeId = addEdge(edges, stateConfiguration, trigger, triggerConfiguration);
+            if (triggerConfiguration.getKeyExtractor() == null) {
+                guards.add(triggerConfiguration.getGuard());
+                payloadGuards.add((PayloadGuard<ContextType, Object>) triggerConfiguration.getPayloadGuard());
+                payloadTypes.add(triggerConfiguration.getPayloadType());
+                anyPayloadGuard |= triggerConfiguration.getPayloadGuard() != null;
+                guardedEdgeIds.add(edgeId);
+                keyIndexOpen = false;
+                continue;
+            }
+            final Function<ContextType, ?> keyExtractor = triggerConfiguration.getKeyExtractor();
+            Set<Object> extractorKeys = keys.get(keyExtractor);
+            if (extractorKeys == null) {
+                extractorKeys = new HashSet<>();
+                keys.put(keyExtractor, extractorKeys);
+            }
+            if (!extractorKeys.add(triggerConfiguration.getKey())) {
+                throw new FsmException(String.format("Trigger %s on state %s has more than one target state for key %s", trigger,
+                        stateConfiguration.getStateClass().getSimpleName(), triggerConfiguration.getKey()));
+            }
+            if (!keyIndexOpen || keyExtractors.get(keyExtractors.size() - 1) != keyExtractor) {
+                keyExtractors.add(keyExtractor);
+                keyedEdgeIds.add(new HashMap<>());
+                keyIndexPositions.add(guards.size());
+                keyIndexOpen = true;
+            }
+            keyedEdgeIds.get(keyedEdgeIds.size() - 1).put(triggerConfiguration.getKey(), edgeId);
+        }
+
+        final KeyIndex<ContextType>[] keyIndexes = new KeyIndex[keyExtractors.size()];
+        final int[] positions = new int[keyIndexes.length];
+        for (int i = 0; i < keyIndexes.length; i++) {
+            keyIndexes[i] = new KeyIndex<>(keyExtractors.get(i), keyedEdgeIds.get(i));
+            positions[i] = keyIndexPositions.get(i);
+        }
+        final int[] edgeIds = new int[guardedEdgeIds.size()];
+        for (int i = 0; i < edgeIds.length; i++) {
+            edgeIds[i] = guardedEdgeIds.get(i);
+        }
+        return new Transition<>(keyIndexes, positions, guards.toArray(new Guard[guards.size()]),
+                anyPayloadGuard ? payloadGuards.toArray(new PayloadGuard[payloadGuards.size()]) : null,
+                anyPayloadGuard ? payloadTypes.toArray(new Class<?>[payloadTypes.size()]) : null, edgeIds);
+    }
+
+    private static Class<?> getEnumClass(final List<?> triggers) {
+        if (triggers.isEmpty() || !(triggers.get(0) instanceof Enum)) {
+            return null;
+        }
+        final Class<?> enumClass = ((Enum<?>) triggers.get(0)).getDeclaringClass();
+        for (final Object trigger : triggers) {
+            if (!(trigger instanceof Enum) || ((Enum<?>) trigger).getDeclaringClass() != enumClass) {
+                return null;
+            }
+        }
+        return enumClass;
+    }
+
+    /**
+     * Adds a trigger configuration as an edge, after checking that it either has a target state or is internal.
+     *
+     * @return The id of the edge.
+     */
+    private static <TriggerType, ContextType> int addEdge(final List<TriggerConfiguration<TriggerType, ContextType>> edges,
+            final StateConfiguration<TriggerType, ContextType> stateConfiguration, final TriggerType trigger,
+            final TriggerConfiguration<TriggerType, ContextType> triggerConfiguration) {
+        if (triggerConfiguration.getTargetStateConfiguration() == null && !triggerConfiguration.isInternal()) {
+            throw new FsmException(String.format("Trigger %s on state %s has no target state", trigger,
+                    stateConfiguration.getStateClass().getSimpleName()));
+        }
+        edges.add(triggerConfiguration);
+        return edges.size() - 1;
+    }
+
+    /**
+     * Compiles a set of state configurations into a transition table.
+     */
+    static <TriggerType, ContextType> TransitionTable<TriggerType, ContextType> compile(
+            final Collection<StateConfiguration<TriggerType, ContextType>> stateConfigurations,
+            final StateConfiguration<TriggerType, ContextType> initialStateConfiguration) {
+        return new TransitionTable<>(stateConfigurations, initialStateConfiguration);
+    }
+
+    public int getStateCount() {
+        return stateClasses.length;
+    }
+
+    public int getTriggerCount() {
+        return triggers.length;
+    }
+
+    /**
+     * Gets the id of the initial state, or {@link #NO_TRANSITION} if no initial state has been configured.
+     */
+    public int getInitialStateId() {
+        return initialStateId;
+    }
+
+    public Class<? extends FsmState<TriggerType, ContextType>> getStateClass(final int stateId) {
+        return stateClasses[stateId];
+    }
+
+    public StateLifecycle getStateLifecycle(final int stateId) {
+        return stateLifecycles[stateId];
+    }
+
+    /**
+     * Gets the id of the parent of a state, or {@link #NO_TRANSITION} if the state has no parent.
+     */
+    public int getParentStateId(final int stateId) {
+        return parentStateIds[stateId];
+    }
+
+    /**
+     * Gets the number of ancestors of a state, e.g. zero for a state without parent.
+     */
+    public int getStateDepth(final int stateId) {
+        return statePaths[stateId].length - 1;
+    }
+
+    /**
+     * Gets the depth of the deepest state in the table, e.g. zero if no state has a parent.
+     */
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * Gets the ids of the outermost ancestor of a state, its children and so on down to the state itself. The returned array
+     * must not be modified.
+     */
+    int[] getStatePath(final int stateId) {
+        return statePaths[stateId];
+    }
+
+    /**
+     * Gets the number of states, counted from the outermost ancestor, that stay entered when the state machine transitions from
+     * one state to another. That is the states that both states are nested in, except that the target state itself and its
+     * ancestors that it's transitioned to from a nested state are always exited and entered again.
+     */
+    int getRetainedDepth(final int sourceStateId, final int targetStateId) {
+        if (maxDepth == 0) {
+            return 0;
+        }
+        final int[] sourcePath = statePaths[sourceStateId];
+        final int[] targetPath = statePaths[targetStateId];
+        final int limit = Math.min(sourcePath.length, targetPath.length - 1);
+        int depth = 0;
+        while (depth < limit && sourcePath[depth] == targetPath[depth]) {
+            depth++;
+        }
+        return depth;
+    }
+
+    /**
+     * Gets the id of a state class, or {@link #NO_TRANSITION} if the state class isn't part of the table.
+     */
+    public int stateId(final Class<? extends FsmState<TriggerType, ContextType>> stateClass) {
+        final Integer id = stateIds.get(stateClass);
+        return id != null ? id : NO_TRANSITION;
+    }
+
+    @SuppressWarnings("unchecked")
+    public TriggerType getTrigger(final int triggerId) {
+        return (TriggerType) triggers[triggerId];
+    }
+
+    /**
+     * Gets the id of a trigger, or {@link #NO_TRANSITION} if the trigger isn't used by any state in the table.
+     */
+    public int triggerId(final TriggerType trigger) {
+        if (enumTriggerClass != null) {
+            if (trigger instanceof Enum && ((Enum<?>) trigger).getDeclaringClass() == enumTriggerClass) {
+                return ((Enum<?>) trigger).ordinal();
+            }
+            return NO_TRANSITION;
+        }
+        final Integer id = triggerIds.get(trigger);
+        return id != null ? id : NO_TRANSITION;
+    }
+
+    /**
+     * Checks if a trigger is handled by a state, either by the state itself or by one of its ancestors, without evaluating any
+     * guards.
+     */
+    boolean hasTransition(final int stateId, final int triggerId) {
+        return triggerId >= 0 && transitions[stateId * triggers.length + triggerId] != null;
+    }
+
+    /**
+     * Checks if a trigger that is handled by a state has guards that must be evaluated to determine the target state.
+     */
+    boolean isGuarded(final int stateId, final int triggerId) {
+        if (triggerId < 0) {
+            return false;
+        }
+        final Transition<ContextType> transition = transitions[stateId * triggers.length + triggerId];
+        return transition != null && transition.guards != null;
+    }
+
+    /**
+     * Gets how long a state may stay entered before its timeout trigger is fired, in nanoseconds, or zero if it has no timeout.
+     */
+    public long getTimeoutNanos(final int stateId) {
+        return timeoutNanos[stateId];
+    }
+
+    @SuppressWarnings("unchecked")
+    public TriggerType getTimeoutTrigger(final int stateId) {
+        return (TriggerType) timeoutTriggers[stateId];
+    }
+
+    /**
+     * Gets the compiled transition of a trigger in a state, including the ones it inherits, or null if the state doesn't handle
+     * the trigger.
+     */
+    Transition<ContextType> getTransition(final int stateId, final int triggerId) {
+        return transitions[stateId * triggers.length + triggerId];
+    }
+
+    /**
+     * Gets a dispatcher that has been generated and compiled for this table, see {@link DispatcherGenerator}. It's generated the
+     * first time it's asked for, and shared by all definitions with this table.
+     *
+     * @return The dispatcher, or null if it couldn't be generated, e.g. because no Java compiler is available at runtime. The
+     * reason is then given by {@link #getGenerationFailure()}.
+     */
+    synchronized GeneratedDispatcher getGeneratedDispatcher() {
+        if (!generated) {
+            try {
+                generatedDispatcher = DispatcherGenerator.generate(this);
+            } catch (final FsmException e) {
+                generationFailure = e;
+            }
+            generated = true;
+        }
+        return generatedDispatcher;
+    }
+
+    /**
+     * Gets the reason why no dispatcher could be generated for this table, or null if it was generated or hasn't been asked for.
+     */
+    synchronized FsmException getGenerationFailure() {
+        return generationFailure;
+    }
+
+    /**
+     * Gets the target state of an edge, as returned by {@link #resolveEdge(int, int, Object, Object, boolean)}, or
+     * {@link #INTERNAL_TRANSITION} if the edge is an internal transition.
+     */
+    int getEdgeTargetStateId(final int edgeId) {
+        return edgeTargetStateIds[edgeId];
+    }
+
+    /**
+     * Gets the action of an edge, or null if it has none.
+     */
+    TransitionAction<ContextType> getEdgeAction(final int edgeId) {
+        return edgeActions[edgeId];
+    }
+
+    /**
+     * Checks if any state has a timeout.
+     */
+    public boolean hasTimeouts() {
+        return hasTimeouts;
+    }
+
+    /**
+     * Gets the ids of all states that a state targets through its transitions, including the ones it inherits but not its
+     * internal transitions.
+     */
+    int[] getTargetStateIds(final int stateId) {
+        final List<Integer> targetStateIds = new ArrayList<>();
+        for (int triggerId = 0; triggerId < triggers.length; triggerId++) {
+            final Transition<ContextType> transition = transitions[stateId * triggers.length + triggerId];
+            if (transition == null) {
+                continue;
+            }
+            final List<Integer> edgeIds = new ArrayList<>();
+            if (transition.guards == null) {
+                edgeIds.add(transition.edgeId);
+            } else {
+                for (final KeyIndex<ContextType> keyIndex : transition.keyIndexes) {
+                    for (final int edgeId : keyIndex.getEdgeIds()) {
+                        edgeIds.add(edgeId);
+                    }
+                }
+                for (final int edgeId : transition.guardedEdgeIds) {
+                    edgeIds.add(edgeId);
+                }
+            }
+            for (final int edgeId : edgeIds) {
+                final int targetStateId = edgeTargetStateIds[edgeId];
+                if (targetStateId != INTERNAL_TRANSITION && !targetStateIds.contains(targetStateId)) {
+                    targetStateIds.add(targetStateId);
+                }
+            }
+        }
+        final int[] result = new int[targetStateIds.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = targetStateIds.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Determines the target state of a trigger that is fired in a specific state. Guards are evaluated in the order they were
+     * configured, and the first one that is true selects the target state.
+     *
+     * @param stateId The id of the state that the trigger is fired in.
+     * @param triggerId The id of the trigger, as returned by {@link #triggerId(Object)}.
+     * @param context The context that any guards are evaluated against.
+     * @return The id of the target state, or {@link #NO_TRANSITION} if the trigger isn't valid for the state.
+     */
+    public int resolve(final int stateId, final int triggerId, final ContextType context) {
+        return resolve(stateId, triggerId, context, false);
+    }
+
+    /**
+     * Determines the target state of a trigger that is fired in a specific state.
+     *
+     * @param stateId The id of the state that the trigger is fired in.
+     * @param triggerId The id of the trigger, as returned by {@link #triggerId(Object)}.
+     * @param context The context that any guards are evaluated against.
+     * @param verifyGuards True if all guards should be evaluated, to verify that no more than one of them is true. Otherwise the
+     * first guard that is true selects the target state.
+     * @return The id of the target state, or {@link #NO_TRANSITION} if the trigger isn't valid for the state.
+     */
+    public int resolve(final int stateId, final int triggerId, final ContextType context, final boolean verifyGuards) {
+        return resolve(stateId, triggerId, context, null, verifyGuards);
+    }
+
+    /**
+     * Determines the target state of a trigger that is fired with a payload in a specific state.
+     *
+     * @param stateId The id of the state that the trigger is fired in.
+     * @param triggerId The id of the trigger, as returned by {@link #triggerId(Object)}.
+     * @param context The context that any guards are evaluated against.
+     * @param payload The payload of the trigger that any payload guards are evaluated against, or null if it has none.
+     * @param verifyGuards True if all guards should be evaluated, to verify that no more than one of them is true. Otherwise the
+     * first guard that is true selects the target state.
+     * @return The id of the target state, or {@link #NO_TRANSITION} if the trigger isn't valid for the state. The target state of
+     * an internal transition is the state itself.
+     */
+    public int resolve(final int stateId, final int triggerId, final ContextType context, final Object payload,
+            final boolean verifyGuards) {
+        final int edgeId = resolveEdge(stateId, triggerId, context, payload, verifyGuards);
+        if (edgeId == NO_TRANSITION) {
+            return NO_TRANSITION;
+        }
+        return edgeTargetStateIds[edgeId] != INTERNAL_TRANSITION ? edgeTargetStateIds[edgeId] : stateId;
+    }
+
+    /**
+     * Determines the edge that a trigger that is fired in a specific state takes, see
+     * {@link #resolve(int, int, Object, Object, boolean)}.
+     *
+     * @return The id of the edge, or {@link #NO_TRANSITION} if the trigger isn't valid for the state.
+     */
+    int resolveEdge(final int stateId, final int triggerId, final ContextType context, final Object payload,
+            final boolean verifyGuards) {
+        if (triggerId < 0) {
+            return NO_TRANSITION;
+        }
+        final Transition<ContextType> transition = transitions[stateId * triggers.length + triggerId];
+        if (transition == null) {
+            return NO_TRANSITION;
+        }
+        if (transition.guards == null) {
+            return transition.edgeId;
+        }
+
+        // It's guarded, evaluate the guards and look up the keyed guards in the order they were configured, which one is true?
+        int satisfied = NO_TRANSITION;
+        boolean ambiguous = false;
+        try {
+            int keyIndex = 0;
+            int guard = 0;
+            while (!ambiguous && (keyIndex < transition.keyIndexes.length || guard < transition.guards.length)) {
+                final int edgeId;
+                if (keyIndex < transition.keyIndexes.length && transition.keyIndexPositions[keyIndex] == guard) {
+                    edgeId = transition.keyIndexes[keyIndex++].lookup(context);
+                } else {
+                    edgeId = transition.test(guard, context, payload) ? transition.guardedEdgeIds[guard] : NO_TRANSITION;
+                    guard++;
+                }
+                if (edgeId != NO_TRANSITION) {
+                    if (!verifyGuards) {
+                        return edgeId;
+                    }
+                    // Only one guard must evaluate to true
+                    if (satisfied != NO_TRANSITION) {
+                        ambiguous = true;
+                    }
+                    satisfied = edgeId;
+                }
+            }
+        } catch (final RuntimeException e) {
+            throw new FsmException(String.format("Could not evaluate guard on state %s", stateClasses[stateId].getName()), e);
+        }
+
+        if (ambiguous) {
+            throw new FsmException(
+                    String.format("More than one guard evaluates to true on state %s", stateClasses[stateId].getName()));
+        }
+        if (satisfied == NO_TRANSITION) {
+            throw new FsmException(String.format("No guard evaluates to true on state %s", stateClasses[stateId].getName()));
+        }
+
+        return satisfied;
+    }
+}
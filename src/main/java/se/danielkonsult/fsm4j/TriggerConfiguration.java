@@ -5,7 +5,8 @@ import java.util.function.Function;
 /**
  * Handles the configuration of one trigger that is valid for a specific state,
  * e.g. the the state class that is the target when the trigger is fired, as well as 
- * any guard condition that must evaluate to true for the target state to be selected.
+ * any guard condition that must evaluate to true for the target state to be selected
+ * and any action that is executed when the transition is taken.
  *
  * @param <TriggerType> The trigger type of the configuration (set by the owning state configuration)
  * @param <ContextType> The context type of the configuration (set by the owning state configuration)
@@ -14,28 +15,128 @@ public class TriggerConfiguration<TriggerType, ContextType> {
 
     private StateConfiguration<TriggerType, ContextType> parentStateConfiguration;
     private StateConfiguration<TriggerType, ContextType> targetStateConfiguration;
-    private Function<ContextType, Boolean> guard;
+    private Guard<ContextType> guard;
+    private Class<?> payloadType;
+    private PayloadGuard<ContextType, ?> payloadGuard;
+    private Function<ContextType, ?> keyExtractor;
+    private Object key;
+    private TransitionAction<ContextType> action;
+    private boolean internal;
 
     public TriggerConfiguration(final StateConfiguration<TriggerType, ContextType> parentStateConfiguration) {
         this.parentStateConfiguration = parentStateConfiguration;
     }
 
     public TriggerConfiguration(final StateConfiguration<TriggerType, ContextType> parentStateConfiguration,
-            final Function<ContextType, Boolean> guard) {
+            final Guard<ContextType> guard) {
         this(parentStateConfiguration);
         this.guard = guard;
     }
 
+    public <PayloadType> TriggerConfiguration(final StateConfiguration<TriggerType, ContextType> parentStateConfiguration,
+            final Class<PayloadType> payloadType, final PayloadGuard<ContextType, PayloadType> payloadGuard) {
+        this(parentStateConfiguration);
+        this.payloadType = payloadType;
+        this.payloadGuard = payloadGuard;
+    }
+
+    public TriggerConfiguration(final StateConfiguration<TriggerType, ContextType> parentStateConfiguration,
+            final Function<ContextType, ?> keyExtractor, final Object key) {
+        this(parentStateConfiguration);
+        this.keyExtractor = keyExtractor;
+        this.key = key;
+    }
+
     public StateConfiguration<TriggerType, ContextType> goesTo(final Class<? extends FsmState<TriggerType, ContextType>> targetState) {
+        parentStateConfiguration.getStateMachine().assertNotCompiled();
+        if (internal) {
+            throw new FsmException(String.format("An internal transition of state %s can't have a target state",
+                    parentStateConfiguration.getStateClass().getSimpleName()));
+        }
         targetStateConfiguration = parentStateConfiguration.getStateMachine().state(targetState);
         return parentStateConfiguration;
     }
 
+    /**
+     * Sets an action that is executed when this transition is taken, after the source state has been exited and before the
+     * target state is entered. Unlike the entering() and exiting() methods of the states, the action belongs to this edge alone,
+     * so the target state doesn't have to find out where it was entered from. Followed by {@link #goesTo(Class)}, e.g.
+     * <code>on(trigger).doing(action).goesTo(TargetState.class)</code>.
+     * @param action The action to execute.
+     * @return This trigger configuration.
+     */
+    public TriggerConfiguration<TriggerType, ContextType> doing(final TransitionAction<ContextType> action) {
+        parentStateConfiguration.getStateMachine().assertNotCompiled();
+        this.action = action;
+        return this;
+    }
+
+    /**
+     * Makes this an internal transition, that executes an action without leaving the current state. No state is exited, resolved
+     * or entered and the listener isn't notified, so it's much cheaper than a transition from the state back to itself, e.g. for
+     * frequent triggers that only update the context. A state that is nested in this state stays the current state as well.
+     * @param action The action to execute.
+     * @return The state configuration that this trigger configuration belongs to.
+     */
+    public StateConfiguration<TriggerType, ContextType> internal(final TransitionAction<ContextType> action) {
+        parentStateConfiguration.getStateMachine().assertNotCompiled();
+        if (targetStateConfiguration != null) {
+            throw new FsmException(String.format("A transition of state %s with a target state can't be internal",
+                    parentStateConfiguration.getStateClass().getSimpleName()));
+        }
+        if (action == null) {
+            throw new FsmException(String.format("An internal transition of state %s must have an action",
+                    parentStateConfiguration.getStateClass().getSimpleName()));
+        }
+        this.action = action;
+        this.internal = true;
+        return parentStateConfiguration;
+    }
+
     public StateConfiguration<TriggerType, ContextType> getTargetStateConfiguration() {
         return targetStateConfiguration;
     }
 
-    public Function<ContextType, Boolean> getGuard() {
+    /**
+     * Gets the action that is executed when the transition is taken, or null if it has none.
+     */
+    public TransitionAction<ContextType> getAction() {
+        return action;
+    }
+
+    /**
+     * Checks if this is an internal transition, e.g. one that doesn't leave the current state.
+     */
+    public boolean isInternal() {
+        return internal;
+    }
+
+    public Guard<ContextType> getGuard() {
         return guard;
     }
+
+    /**
+     * Gets the type of the payloads that the payload guard accepts, if this is a trigger configuration with a payload guard.
+     */
+    public Class<?> getPayloadType() {
+        return payloadType;
+    }
+
+    public PayloadGuard<ContextType, ?> getPayloadGuard() {
+        return payloadGuard;
+    }
+
+    /**
+     * Gets the function that extracts the key from the context, if this is a keyed trigger configuration.
+     */
+    public Function<ContextType, ?> getKeyExtractor() {
+        return keyExtractor;
+    }
+
+    /**
+     * Gets the key that selects the target state of this configuration, if this is a keyed trigger configuration.
+     */
+    public Object getKey() {
+        return key;
+    }
 }
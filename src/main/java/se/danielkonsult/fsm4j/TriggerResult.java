@@ -0,0 +1,23 @@
+package se.danielkonsult.fsm4j;
+
+/**
+ * The outcome of firing a single trigger through {@link StateMachine#trigger(Object)}.
+ */
+public enum TriggerResult {
+    /**
+     * The trigger caused a transition, or an internal transition that stayed in the current state.
+     */
+    TRANSITIONED,
+
+    /**
+     * The trigger isn't valid for the current state, and was handled according to the invalid trigger policy of the state
+     * machine without an exception being thrown.
+     */
+    INVALID,
+
+    /**
+     * The trigger was queued, either because a transition was in progress in run-to-completion mode or because the state machine
+     * runs in concurrent mode. Its outcome isn't known yet.
+     */
+    QUEUED
+}
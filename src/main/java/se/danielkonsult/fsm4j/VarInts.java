@@ -0,0 +1,63 @@
+package se.danielkonsult.fsm4j;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads and writes non-negative integers in a variable number of bytes, seven bits per byte with the high bit set on all bytes
+ * but the last. Small values, like the ids of states, take a single byte.
+ */
+final class VarInts {
+
+    private VarInts() {
+    }
+
+    static void write(final DataOutput out, final int value) throws IOException {
+        int remaining = value;
+        while ((remaining & ~0x7f) != 0) {
+            out.writeByte((remaining & 0x7f) | 0x80);
+            remaining >>>= 7;
+        }
+        out.writeByte(remaining);
+    }
+
+    static int read(final DataInput in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            final int b = in.readUnsignedByte();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed variable length integer");
+    }
+
+    static void write(final ByteBuffer buffer, final int value) {
+        int remaining = value;
+        while ((remaining & ~0x7f) != 0) {
+            buffer.put((byte) ((remaining & 0x7f) | 0x80));
+            remaining >>>= 7;
+        }
+        buffer.put((byte) remaining);
+    }
+
+    /**
+     * Reads an integer from a buffer.
+     *
+     * @return The integer, or -1 if the buffer doesn't hold a complete, well-formed integer.
+     */
+    static int read(final ByteBuffer buffer) {
+        int value = 0;
+        for (int shift = 0; shift < 32 && buffer.hasRemaining(); shift += 7) {
+            final int b = buffer.get() & 0xff;
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        return -1;
+    }
+}
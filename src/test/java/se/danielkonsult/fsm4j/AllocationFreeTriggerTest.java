@@ -0,0 +1,300 @@
+package se.danielkonsult.fsm4j;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Verifies that firing triggers at a compiled state machine with reused states and enum triggers doesn't allocate once it has
+ * warmed up, by reading the number of bytes that the test thread has allocated before and after a large number of transitions.
+ */
+public class AllocationFreeTriggerTest {
+
+    private static final int WARMUP_ITERATIONS = 20000;
+    private static final int ITERATIONS = 100000;
+
+    /**
+     * The number of bytes that may be allocated by the measurement itself. A single allocation per transition would be several
+     * orders of magnitude more.
+     */
+    private static final long ALLOCATION_TOLERANCE = 1024;
+
+    /**
+     * The number of times the transitions are measured before the test fails. The JIT compiler may deoptimize and recompile the
+     * trigger path while it's measured, e.g. because earlier tests left other types in its profile, which allocates a few hundred
+     * bytes once. An allocation on the trigger path shows up in every measurement.
+     */
+    private static final int MEASUREMENTS = 3;
+
+    public static class CountingState implements FsmState<TestTrigger, TestContext> {
+
+        @Override
+        public void entering(final StateMachine<TestTrigger, TestContext> stateMachine, final TestContext context) {
+            context.setCounter(context.getCounter() + 1);
+        }
+
+        @Override
+        public void exiting() {
+            // No behavior here
+        }
+    }
+
+    public static class IdleState extends CountingState {
+    }
+
+    public static class BusyState extends CountingState {
+    }
+
+    public static class DoneState extends CountingState {
+    }
+
+    public static class ParentState extends CountingState {
+    }
+
+    /**
+     * A state that adds the value of the payload it was entered with to the counter.
+     */
+    public static class PayloadState extends CountingState {
+
+        @Override
+        public void entering(final StateMachine<TestTrigger, TestContext> stateMachine, final TestContext context,
+                final Object payload) {
+            context.setCounter(context.getCounter() + ((int[]) payload)[0]);
+        }
+    }
+
+    public static class ForwardingState extends CountingState {
+
+        @Override
+        public void entering(final StateMachine<TestTrigger, TestContext> stateMachine, final TestContext context) {
+            super.entering(stateMachine, context);
+            stateMachine.trigger(TestTrigger.STATE2_SUCCESS);
+        }
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private com.sun.management.ThreadMXBean threadMXBean;
+
+    @Before
+    public void setUp() {
+        Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threadMXBean.isThreadAllocatedMemorySupported());
+        threadMXBean.setThreadAllocatedMemoryEnabled(true);
+    }
+
+    /**
+     * Tests that plain transitions between singleton, per machine and pooled states don't allocate.
+     */
+    @Test
+    public void shouldNotAllocateOnPlainTransitions() {
+        final StateMachine<TestTrigger, TestContext> sm = new StateMachine<>(new TestContext());
+        sm.state(IdleState.class).isInitialState().lifecycle(StateLifecycle.SINGLETON)
+                .on(TestTrigger.STATE1_SUCCESS).goesTo(BusyState.class);
+        sm.state(BusyState.class).lifecycle(StateLifecycle.PER_MACHINE)
+                .on(TestTrigger.STATE2_SUCCESS).goesTo(DoneState.class);
+        sm.state(DoneState.class).lifecycle(StateLifecycle.POOLED)
+                .on(TestTrigger.STATE3_SUCCESS).goesTo(IdleState.class);
+        sm.start();
+
+        assertAllocationFree(() -> {
+            sm.trigger(TestTrigger.STATE1_SUCCESS);
+            sm.trigger(TestTrigger.STATE2_SUCCESS);
+            sm.trigger(TestTrigger.STATE3_SUCCESS);
+        });
+    }
+
+    /**
+     * Tests that evaluating guards, and looking up keyed guards, doesn't allocate.
+     */
+    @Test
+    public void shouldNotAllocateOnGuardedTransitions() {
+        final StateMachine<TestTrigger, TestContext> sm = new StateMachine<>(new TestContext());
+        sm.state(IdleState.class).isInitialState().lifecycle(StateLifecycle.SINGLETON)
+                .on(TestTrigger.STATE1_SUCCESS, context -> context.getTestSwitch()).goesTo(DoneState.class)
+                .on(TestTrigger.STATE1_SUCCESS, context -> !context.getTestSwitch()).goesTo(BusyState.class);
+        sm.state(BusyState.class).lifecycle(StateLifecycle.SINGLETON)
+                .onWhen(TestTrigger.STATE2_SUCCESS, context -> TestTrigger.STATE2_FAIL, TestTrigger.STATE2_SUCCESS)
+                .goesTo(DoneState.class)
+                .onWhen(TestTrigger.STATE2_SUCCESS, context -> TestTrigger.STATE2_FAIL, TestTrigger.STATE2_FAIL)
+                .goesTo(IdleState.class);
+        sm.state(DoneState.class).lifecycle(StateLifecycle.SINGLETON);
+        sm.setGuardVerification(true);
+        sm.start();
+
+        assertAllocationFree(() -> {
+            sm.trigger(TestTrigger.STATE1_SUCCESS);
+            sm.trigger(TestTrigger.STATE2_SUCCESS);
+        });
+    }
+
+    /**
+     * Tests that transitions between nested states, and automatic transitions in run-to-completion mode, don't allocate.
+     */
+    @Test
+    public void shouldNotAllocateOnNestedAndQueuedTransitions() {
+        final StateMachine<TestTrigger, TestContext> sm = new StateMachine<>(new TestContext());
+        sm.state(ParentState.class).lifecycle(StateLifecycle.PER_MACHINE)
+                .on(TestTrigger.STATE1_SUCCESS).goesTo(ForwardingState.class);
+        sm.state(IdleState.class).parent(ParentState.class).isInitialState().lifecycle(StateLifecycle.PER_MACHINE);
+        sm.state(ForwardingState.class).parent(ParentState.class).lifecycle(StateLifecycle.PER_MACHINE)
+                .on(TestTrigger.STATE2_SUCCESS).goesTo(IdleState.class);
+        sm.setRunToCompletion(true);
+        sm.start();
+
+        assertAllocationFree(() -> sm.trigger(TestTrigger.STATE1_SUCCESS));
+        Assert.assertEquals(IdleState.class, sm.getCurrentState().getClass());
+    }
+
+    /**
+     * Tests that firing triggers with pooled payloads, that are passed to guards and entered states, doesn't allocate.
+     */
+    @Test
+    public void shouldNotAllocateOnPooledPayloads() {
+        final PayloadPool<int[]> pool = new PayloadPool<>(() -> new int[1]);
+        final StateMachine<TestTrigger, TestContext> sm = new StateMachine<>(new TestContext());
+        sm.state(IdleState.class).isInitialState().lifecycle(StateLifecycle.SINGLETON)
+                .on(TestTrigger.STATE1_SUCCESS, int[].class, (context, payload) -> payload[0] > 0).goesTo(PayloadState.class)
+                .on(TestTrigger.STATE1_SUCCESS, int[].class, (context, payload) -> payload[0] <= 0).goesTo(IdleState.class);
+        sm.state(PayloadState.class).lifecycle(StateLifecycle.SINGLETON)
+                .on(TestTrigger.STATE2_SUCCESS).goesTo(IdleState.class);
+        sm.setPayloadPool(pool);
+        sm.setRunToCompletion(true);
+        sm.start();
+
+        assertAllocationFree(() -> {
+            final int[] payload = pool.acquire();
+            payload[0] = 1;
+            sm.trigger(TestTrigger.STATE1_SUCCESS, payload);
+            sm.trigger(TestTrigger.STATE2_SUCCESS);
+        });
+        Assert.assertEquals(2 * (WARMUP_ITERATIONS + ITERATIONS) + 1, sm.getContext().getCounter());
+    }
+
+    /**
+     * Tests that internal transitions, and actions on transitions, don't allocate. The state with internal transitions is
+     * resolved for every entry, which an internal transition never does.
+     */
+    @Test
+    public void shouldNotAllocateOnInternalTransitionsAndActions() {
+        final StateMachine<TestTrigger, TestContext> sm = new StateMachine<>(new TestContext());
+        sm.state(IdleState.class).isInitialState().lifecycle(StateLifecycle.PER_ENTRY)
+                .on(TestTrigger.STATE1_SUCCESS).internal((context, payload) -> context.setCounter(context.getCounter() + 1))
+                .on(TestTrigger.STATE1_FAIL).doing((context, payload) -> context.setCounter(context.getCounter() - 1))
+                .goesTo(BusyState.class);
+        sm.state(BusyState.class).lifecycle(StateLifecycle.SINGLETON);
+        sm.start();
+
+        assertAllocationFree(() -> sm.trigger(TestTrigger.STATE1_SUCCESS));
+        Assert.assertEquals(WARMUP_ITERATIONS + ITERATIONS + 1, sm.getContext().getCounter());
+    }
+
+    /**
+     * Tests that a trigger that is ignored by the listener doesn't allocate.
+     */
+    @Test
+    public void shouldNotAllocateOnIgnoredTriggers() {
+        final StateMachine<TestTrigger, TestContext> sm = new StateMachine<>(new TestContext());
+        sm.state(IdleState.class).isInitialState().lifecycle(StateLifecycle.SINGLETON)
+                .on(TestTrigger.STATE1_SUCCESS).goesTo(IdleState.class);
+        sm.setListener(new StateMachineListener<TestTrigger, TestContext>() {
+            @Override
+            public void onInvalidTrigger(final TestContext context, final TestTrigger trigger,
+                    final Class<? extends FsmState<TestTrigger, TestContext>> stateClass) {
+                // Ignore it
+            }
+        });
+        sm.start();
+
+        assertAllocationFree(() -> sm.trigger(TestTrigger.STATE4_FAIL));
+    }
+
+    /**
+     * Tests that counting invalid triggers doesn't allocate.
+     */
+    @Test
+    public void shouldNotAllocateOnCountedTriggers() {
+        final StateMachine<TestTrigger, TestContext> sm = new StateMachine<>(new TestContext());
+        sm.state(IdleState.class).isInitialState().lifecycle(StateLifecycle.SINGLETON)
+                .on(TestTrigger.STATE1_SUCCESS).goesTo(IdleState.class);
+        sm.setInvalidTriggerPolicy(InvalidTriggerPolicy.COUNT);
+        sm.start();
+
+        assertAllocationFree(() -> sm.trigger(TestTrigger.STATE4_FAIL));
+        Assert.assertEquals(WARMUP_ITERATIONS + ITERATIONS, sm.getInvalidTriggerCount());
+    }
+
+    /**
+     * Tests that publishing events to an async listener doesn't allocate on the thread that fires the triggers.
+     */
+    @Test
+    public void shouldNotAllocateWhenPublishingToAsyncListener() {
+        final StateMachine<TestTrigger, TestContext> sm = new StateMachine<>(new TestContext());
+        sm.state(IdleState.class).isInitialState().lifecycle(StateLifecycle.SINGLETON)
+                .on(TestTrigger.STATE1_SUCCESS).goesTo(BusyState.class);
+        sm.state(BusyState.class).lifecycle(StateLifecycle.SINGLETON)
+                .on(TestTrigger.STATE2_SUCCESS).goesTo(IdleState.class);
+
+        try (AsyncListener<TestTrigger, TestContext> listener = new AsyncListener<TestTrigger, TestContext>(events -> {
+            // Nothing to do
+        }).start()) {
+            sm.setListener(listener);
+            sm.start();
+
+            assertAllocationFree(() -> {
+                sm.trigger(TestTrigger.STATE1_SUCCESS);
+                sm.trigger(TestTrigger.STATE2_SUCCESS);
+            });
+        }
+    }
+
+    /**
+     * Tests that recording transitions in a journal doesn't allocate, as long as they fit in the current segment.
+     */
+    @Test
+    public void shouldNotAllocateWhenJournaling() throws IOException {
+        final StateMachine<TestTrigger, TestContext> sm = new StateMachine<>(new TestContext());
+        sm.state(IdleState.class).isInitialState().lifecycle(StateLifecycle.SINGLETON)
+                .on(TestTrigger.STATE1_SUCCESS).goesTo(BusyState.class);
+        sm.state(BusyState.class).lifecycle(StateLifecycle.SINGLETON)
+                .on(TestTrigger.STATE2_SUCCESS).goesTo(IdleState.class);
+
+        try (TransitionJournal journal = new TransitionJournal(folder.newFolder().toPath(),
+                TransitionJournal.DEFAULT_SEGMENT_SIZE, FsyncPolicy.NEVER)) {
+            sm.setJournal(journal);
+            sm.start();
+
+            assertAllocationFree(() -> {
+                sm.trigger(TestTrigger.STATE1_SUCCESS);
+                sm.trigger(TestTrigger.STATE2_SUCCESS);
+            });
+        }
+    }
+
+    private void assertAllocationFree(final Runnable transitions) {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            transitions.run();
+        }
+        final long threadId = Thread.currentThread().getId();
+        long allocated = 0;
+        for (int attempt = 0; attempt < MEASUREMENTS; attempt++) {
+            final long before = threadMXBean.getThreadAllocatedBytes(threadId);
+            for (int i = 0; i < ITERATIONS; i++) {
+                transitions.run();
+            }
+            allocated = threadMXBean.getThreadAllocatedBytes(threadId) - before;
+            if (allocated <= ALLOCATION_TOLERANCE) {
+                return;
+            }
+        }
+        Assert.fail(String.format("%d transitions allocated %d bytes", ITERATIONS, allocated));
+    }
+}
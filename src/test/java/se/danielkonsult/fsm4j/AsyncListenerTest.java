@@ -0,0 +1,219 @@
+package se.danielkonsult.fsm4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import se.danielkonsult.fsm4j.states.TestState1;
+import se.danielkonsult.fsm4j.states.TestState2;
+
+public class AsyncListenerTest {
+
+    private StateMachine<TestTrigger, TestContext> createStateMachine() {
+        final StateMachine<TestTrigger, TestContext> sm = new StateMachine<TestTrigger, TestContext>(new TestContext());
+        sm.state(TestState1.class).isInitialState()
+                .on(TestTrigger.STATE1_SUCCESS).goesTo(TestState2.class);
+        sm.state(TestState2.class)
+                .on(TestTrigger.STATE2_SUCCESS).goesTo(TestState1.class);
+        return sm;
+    }
+
+    /**
+     * Tests that events are delivered in order, in batches, on the thread of the listener.
+     */
+    @Test
+    public void shouldDeliverEventsInOrder() throws InterruptedException {
+        final List<String> events = new ArrayList<>();
+        final List<Thread> threads = new ArrayList<>();
+        final StateMachine<TestTrigger, TestContext> sm = createStateMachine();
+        try (AsyncListener<TestTrigger, TestContext> listener = new AsyncListener<TestTrigger, TestContext>(batch -> {
+            threads.add(Thread.currentThread());
+            for (final ListenerEvent<TestTrigger, TestContext> event : batch) {
+                events.add(String.format("%s %s %s", event.getType(),
+                        event.getSourceState() != null ? event.getSourceState().getSimpleName() : null,
+                        event.getTargetState() != null ? event.getTargetState().getSimpleName() : event.getTrigger()));
+            }
+        }).start()) {
+            sm.setListener(listener);
+            sm.start();
+            sm.trigger(TestTrigger.STATE1_SUCCESS);
+            sm.trigger(TestTrigger.STATE1_SUCCESS);
+            sm.trigger(TestTrigger.STATE2_SUCCESS);
+
+            Assert.assertTrue(listener.flush(5, TimeUnit.SECONDS));
+            Assert.assertEquals(4, listener.getDeliveredCount());
+        }
+
+        Assert.assertEquals("[TRANSITION null TestState1, TRANSITION TestState1 TestState2, INVALID_TRIGGER TestState2 STATE1_SUCCESS, "
+                + "TRANSITION TestState2 TestState1]", events.toString());
+        Assert.assertNotEquals(Thread.currentThread(), threads.get(0));
+    }
+
+    /**
+     * Tests that all listeners that have been added are notified, in the order they were added.
+     */
+    @Test
+    public void shouldNotifyMultipleListeners() {
+        final List<String> notifications = new ArrayList<>();
+        final StateMachine<TestTrigger, TestContext> sm = createStateMachine();
+        sm.addListener(new StateMachineListener<TestTrigger, TestContext>() {
+            @Override
+            public void onTransitioning(final TestContext context,
+                    final Class<? extends FsmState<TestTrigger, TestContext>> sourceState,
+                    final Class<? extends FsmState<TestTrigger, TestContext>> targetState) {
+                notifications.add("first " + targetState.getSimpleName());
+            }
+        });
+        sm.start();
+        sm.addListener(new StateMachineListener<TestTrigger, TestContext>() {
+            @Override
+            public void onTransitioning(final TestContext context,
+                    final Class<? extends FsmState<TestTrigger, TestContext>> sourceState,
+                    final Class<? extends FsmState<TestTrigger, TestContext>> targetState) {
+                notifications.add("second " + targetState.getSimpleName());
+            }
+        });
+        sm.trigger(TestTrigger.STATE1_SUCCESS);
+
+        Assert.assertEquals("[first TestState1, first TestState2, second TestState2]", notifications.toString());
+    }
+
+    /**
+     * Tests that events are dropped, and not waited for, when the buffer is full and the listener drops events.
+     */
+    @Test
+    public void shouldDropEventsWhenFull() throws InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger delivered = new AtomicInteger();
+        final StateMachine<TestTrigger, TestContext> sm = createStateMachine();
+        try (AsyncListener<TestTrigger, TestContext> listener = new AsyncListener<TestTrigger, TestContext>(batch -> {
+            awaitQuietly(release);
+            delivered.addAndGet(batch.size());
+        }, 16, ListenerOverflowPolicy.DROP).start()) {
+            sm.setListener(listener);
+            sm.start();
+            for (int i = 0; i < 100; i++) {
+                sm.trigger(TestTrigger.STATE1_SUCCESS);
+                sm.trigger(TestTrigger.STATE2_SUCCESS);
+            }
+            release.countDown();
+            Assert.assertTrue(listener.flush(5, TimeUnit.SECONDS));
+
+            Assert.assertEquals(201, delivered.get() + listener.getDroppedCount());
+            Assert.assertTrue(listener.getDroppedCount() >= 201 - 2 * listener.getCapacity());
+        }
+    }
+
+    /**
+     * Tests that sampling keeps some of the events that would otherwise be dropped.
+     */
+    @Test
+    public void shouldSampleEventsWhenFilling() throws InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        final StateMachine<TestTrigger, TestContext> sm = createStateMachine();
+        try (AsyncListener<TestTrigger, TestContext> listener = new AsyncListener<TestTrigger, TestContext>(
+                batch -> awaitQuietly(release), 1024, ListenerOverflowPolicy.SAMPLE).start()) {
+            sm.setListener(listener);
+            sm.start();
+            for (int i = 0; i < 5000; i++) {
+                sm.trigger(TestTrigger.STATE1_SUCCESS);
+                sm.trigger(TestTrigger.STATE2_SUCCESS);
+            }
+            release.countDown();
+            Assert.assertTrue(listener.flush(5, TimeUnit.SECONDS));
+
+            Assert.assertEquals(10001, listener.getDeliveredCount() + listener.getDroppedCount());
+            Assert.assertTrue(listener.getDroppedCount() > 0);
+            // More than half of the buffer was filled by sampling, instead of only the first half
+            Assert.assertTrue(listener.getDeliveredCount() > 512 + 1);
+        }
+    }
+
+    /**
+     * Tests that no events are lost when the listener blocks the state machine on overflow.
+     */
+    @Test
+    public void shouldBlockWhenFull() throws InterruptedException {
+        final AtomicInteger delivered = new AtomicInteger();
+        final StateMachine<TestTrigger, TestContext> sm = createStateMachine();
+        try (AsyncListener<TestTrigger, TestContext> listener = new AsyncListener<TestTrigger, TestContext>(batch -> {
+            delivered.addAndGet(batch.size());
+        }, 4, ListenerOverflowPolicy.BLOCK).start()) {
+            sm.setListener(listener);
+            sm.start();
+            for (int i = 0; i < 1000; i++) {
+                sm.trigger(TestTrigger.STATE1_SUCCESS);
+                sm.trigger(TestTrigger.STATE2_SUCCESS);
+            }
+        }
+        Assert.assertEquals(2001, delivered.get());
+    }
+
+    /**
+     * Tests that every event that is published while the listener is closed is either delivered or counted as dropped.
+     */
+    @Test
+    public void shouldDeliverOrDropEventsPublishedWhileClosing() throws InterruptedException {
+        final int producerCount = 4;
+        final int eventsPerProducer = 20_000;
+        for (int round = 0; round < 20; round++) {
+            final AtomicInteger delivered = new AtomicInteger();
+            final AsyncListener<TestTrigger, TestContext> listener = new AsyncListener<TestTrigger, TestContext>(
+                    batch -> delivered.addAndGet(batch.size()), 64, ListenerOverflowPolicy.DROP).start();
+            final CountDownLatch started = new CountDownLatch(producerCount);
+            final List<Thread> producers = new ArrayList<>();
+            for (int i = 0; i < producerCount; i++) {
+                final Thread producer = new Thread(() -> {
+                    started.countDown();
+                    for (int j = 0; j < eventsPerProducer; j++) {
+                        listener.onInvalidTrigger(null, TestTrigger.STATE1_SUCCESS, TestState1.class);
+                    }
+                });
+                producers.add(producer);
+                producer.start();
+            }
+            started.await();
+            listener.close();
+            for (final Thread producer : producers) {
+                producer.join();
+            }
+
+            Assert.assertEquals(producerCount * eventsPerProducer, delivered.get() + listener.getDroppedCount());
+        }
+    }
+
+    /**
+     * Tests that events are buffered until the listener is started, and dropped if it's closed without being started.
+     */
+    @Test
+    public void shouldNotDeliverBeforeStarted() throws InterruptedException {
+        final AtomicInteger delivered = new AtomicInteger();
+        final StateMachine<TestTrigger, TestContext> sm = createStateMachine();
+        final AsyncListener<TestTrigger, TestContext> listener = new AsyncListener<>(batch -> delivered.addAndGet(batch.size()));
+        sm.setListener(listener);
+        sm.start();
+        sm.trigger(TestTrigger.STATE1_SUCCESS);
+        Assert.assertFalse(listener.flush(10, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(0, delivered.get());
+
+        listener.close();
+        Assert.assertEquals(2, listener.getDroppedCount());
+        Assert.assertSame(listener, listener.start());
+        sm.trigger(TestTrigger.STATE2_SUCCESS);
+        Assert.assertEquals(3, listener.getDroppedCount());
+        Assert.assertEquals(0, delivered.get());
+    }
+
+    private static void awaitQuietly(final CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package se.danielkonsult.fsm4j;
+
+import java.util.Arrays;
+import java.util.function.Function;
+
+import javax.tools.ToolProvider;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import se.danielkonsult.fsm4j.states.TestState1;
+import se.danielkonsult.fsm4j.states.TestState2;
+import se.danielkonsult.fsm4j.states.TestState3;
+import se.danielkonsult.fsm4j.states.TestState4;
+import se.danielkonsult.fsm4j.states.TestState5;
+
+/**
+ * Tests of state machines that dispatch triggers through a generated dispatcher.
+ */
+public class CodeGenerationTest {
+
+    @Rule
+    public ExpectedException exception = ExpectedException.none();
+
+    @Before
+    public void requireCompiler() {
+        Assume.assumeNotNull(ToolProvider.getSystemJavaCompiler());
+    }
+
+    /**
+     * Creates a machine with unguarded, guarded, keyed, payload guarded, internal and inherited transitions, and keyed guards
+     * that are configured after other guards.
+     */
+    private StateMachine<TestTrigger, TestContext> createStateMachine(final TestContext testContext) {
+        final Function<TestContext, Integer> counter = TestContext::getCounter;
+        final StateMachine<TestTrigger, TestContext> sm = new StateMachine<TestTrigger, TestContext>(testContext);
+        sm.state(TestState5.class)
+                .on(TestTrigger.STATE4_FAIL).internal((context, payload) -> context.addLog("Internal " + payload));
+        sm.state(TestState1.class).parent(TestState5.class).isInitialState()
+                .on(TestTrigger.STATE1_SUCCESS).goesTo(TestState2.class)
+                .on(TestTrigger.STATE1_FAIL, TestContext::getTestSwitch).goesTo(TestState3.class)
+                .on(TestTrigger.STATE1_FAIL, context -> !context.getTestSwitch()).goesTo(TestState4.class);
+        sm.state(TestState2.class)
+                .onWhen(TestTrigger.STATE2_SUCCESS, counter, 1).goesTo(TestState3.class)
+                .onWhen(TestTrigger.STATE2_SUCCESS, counter, 2).goesTo(TestState4.class)
+                .on(TestTrigger.STATE2_SUCCESS, Integer.class, (context, value) -> value > 10).goesTo(TestState1.class)
+                .on(TestTrigger.STATE2_SUCCESS, context -> context.getCounter() > 2).goesTo(TestState1.class)
+                .on(TestTrigger.STATE2_FAIL, TestContext::getErrorThrowingValue).goesTo(TestState1.class);
+        sm.state(TestState3.class).parent(TestState5.class)
+                .on(TestTrigger.STATE3_SUCCESS).goesTo(TestState1.class);
+        sm.state(TestState4.class)
+                .on(TestTrigger.STATE4_SUCCESS).goesTo(TestState1.class)
+                .on(TestTrigger.STATE4_FAIL, context -> context.getCounter() > 1).goesTo(TestState2.class)
+                .onWhen(TestTrigger.STATE4_FAIL, counter, 3).goesTo(TestState3.class)
+                .onWhen(TestTrigger.STATE4_FAIL, counter, 0).goesTo(TestState1.class);
+        sm.setGuardVerification(false);
+        sm.setCodeGeneration(true);
+        return sm;
+    }
+
+    /**
+     * Tests that the generated dispatcher resolves every trigger in every state to the same edge as the transition table, for
+     * different contexts and payloads.
+     */
+    @Test
+    public void shouldResolveSameEdgesAsTable() {
+        final TestContext testContext = new TestContext();
+        final StateMachineDefinition<TestTrigger, TestContext> definition = createStateMachine(testContext).getDefinition();
+        Assert.assertTrue(definition.isCodeGenerated());
+        final TransitionTable<TestTrigger, TestContext> table = definition.getTransitionTable();
+        final GeneratedDispatcher dispatcher = definition.getDispatcher();
+
+        int resolved = 0;
+        for (final Object payload : Arrays.asList(null, 5, 50, "50")) {
+            for (int counter = 0; counter <= 3; counter++) {
+                for (final boolean testSwitch : new boolean[] { false, true }) {
+                    testContext.setCounter(counter);
+                    testContext.setTestSwitch(testSwitch);
+                    for (int stateId = 0; stateId < table.getStateCount(); stateId++) {
+                        for (int triggerId = 0; triggerId < table.getTriggerCount(); triggerId++) {
+                            final int s = stateId;
+                            final int t = triggerId;
+                            final Integer expected = resolveEdge(() -> table.resolveEdge(s, t, testContext, payload, false));
+                            Assert.assertEquals(expected, resolveEdge(() -> dispatcher.resolveEdge(s, t, testContext, payload)));
+                            if (expected != null && expected != TransitionTable.NO_TRANSITION) {
+                                resolved++;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        Assert.assertTrue(resolved > 0);
+    }
+
+    private interface EdgeResolution {
+
+        int resolve();
+    }
+
+    /**
+     * Resolves an edge, or returns null if no guard evaluates to true.
+     */
+    private static Integer resolveEdge(final EdgeResolution resolution) {
+        try {
+            return resolution.resolve();
+        } catch (final FsmException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Tests that a machine with a generated dispatcher makes the same transitions, and executes internal transitions in inherited
+     * states.
+     */
+    @Test
+    public void shouldTransitionThroughGeneratedDispatcher() {
+        final TestContext testContext = new TestContext();
+        final StateMachine<TestTrigger, TestContext> sm = createStateMachine(testContext);
+        sm.setInvalidTriggerPolicy(InvalidTriggerPolicy.COUNT);
+        sm.start();
+
+        sm.trigger(TestTrigger.STATE1_SUCCESS);
+        testContext.setCounter(2);
+        sm.trigger(TestTrigger.STATE2_SUCCESS);
+        sm.trigger(TestTrigger.STATE4_SUCCESS);
+        testContext.setTestSwitch(true);
+        sm.trigger(TestTrigger.STATE1_FAIL);
+        sm.trigger(TestTrigger.STATE4_FAIL, "coin");
+        Assert.assertEquals(TriggerResult.INVALID, sm.trigger(TestTrigger.STATE2_SUCCESS));
+        sm.trigger(TestTrigger.STATE3_SUCCESS);
+
+        Assert.assertArrayEquals(new String[] { "Entering TestState5", "Entering TestState1", "Exiting TestState1",
+                "Exiting TestState5", "Entering TestState2", "Exiting TestState2", "Entering TestState4", "Exiting TestState4",
+                "Entering TestState5", "Entering TestState1", "Exiting TestState1", "Entering TestState3", "Internal coin",
+                "Exiting TestState3", "Entering TestState1" }, testContext.getLogs());
+    }
+
+    /**
+     * Tests that the dispatcher is only generated when guards aren't verified, and that it's shared by all definitions of the
+     * same table.
+     */
+    @Test
+    public void shouldNotGenerateWhenVerifyingGuards() {
+        final StateMachine<TestTrigger, TestContext> sm = createStateMachine(new TestContext());
+        final GeneratedDispatcher dispatcher = sm.getDefinition().getDispatcher();
+
+        sm.setGuardVerification(true);
+        Assert.assertFalse(sm.getDefinition().isCodeGenerated());
+        sm.setGuardVerification(false);
+        Assert.assertSame(dispatcher, sm.getDefinition().getDispatcher());
+    }
+
+    /**
+     * Tests that a machine falls back to the transition table when the dispatcher doesn't compile, here because the class files
+     * of the library can't be found, and that the reason is kept.
+     */
+    @Test
+    public void shouldFallBackToTableWhenGenerationFails() {
+        final ClassLoader libraryClassLoader = DispatcherGenerator.libraryClassLoader;
+        final TestContext testContext = new TestContext();
+        final StateMachine<TestTrigger, TestContext> sm;
+        try {
+            DispatcherGenerator.libraryClassLoader = new ClassLoader(null) {
+                // Finds nothing but the classes of the JDK
+            };
+            sm = createStateMachine(testContext);
+            Assert.assertFalse(sm.getDefinition().isCodeGenerated());
+        } finally {
+            DispatcherGenerator.libraryClassLoader = libraryClassLoader;
+        }
+        Assert.assertNotNull(sm.getDefinition().getCodeGenerationFailure());
+        Assert.assertTrue(sm.getDefinition().getCodeGenerationFailure().getMessage().contains("doesn't compile"));
+
+        sm.start();
+        sm.trigger(TestTrigger.STATE1_SUCCESS);
+        Assert.assertEquals(TestState2.class, sm.getCurrentState().getClass());
+        Assert.assertNull(createStateMachine(testContext).getDefinition().getCodeGenerationFailure());
+    }
+
+    @Test
+    public void shouldThrowWhenGuardThrows() {
+        final StateMachine<TestTrigger, TestContext> sm = createStateMachine(new TestContext());
+        sm.start();
+        sm.trigger(TestTrigger.STATE1_SUCCESS);
+
+        exception.expect(FsmException.class);
+        exception.expectMessage("Could not evaluate guard on state " + TestState2.class.getName());
+        sm.trigger(TestTrigger.STATE2_FAIL);
+    }
+
+    @Test
+    public void shouldThrowWhenNoGuardIsTrue() {
+        final StateMachine<TestTrigger, TestContext> sm = createStateMachine(new TestContext());
+        sm.start();
+        sm.trigger(TestTrigger.STATE1_SUCCESS);
+
+        exception.expect(FsmException.class);
+        exception.expectMessage("No guard evaluates to true on state " + TestState2.class.getName());
+        sm.trigger(TestTrigger.STATE2_SUCCESS, "50");
+    }
+}
@@ -0,0 +1,313 @@
+package se.danielkonsult.fsm4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import se.danielkonsult.fsm4j.states.TestState1;
+import se.danielkonsult.fsm4j.states.TestState2;
+import se.danielkonsult.fsm4j.states.TestState4;
+import se.danielkonsult.fsm4j.states.TestState7;
+import se.danielkonsult.fsm4j.states.TestState8;
+
+/**
+ * Tests of state machines that are triggered from several threads at the same time.
+ */
+public class ConcurrentStateMachineTest {
+
+    private static final int THREADS = 8;
+    private static final int TRIGGERS_PER_THREAD = 20000;
+
+    /**
+     * Test state that counts how many times it has been entered, and detects if it's ever entered by two threads at once.
+     */
+    public static class CountingState implements FsmState<TestTrigger, TestContext> {
+
+        static final AtomicInteger active = new AtomicInteger();
+        static final AtomicInteger overlaps = new AtomicInteger();
+
+        @Override
+        public void entering(final StateMachine<TestTrigger, TestContext> stateMachine, final TestContext context) {
+            if (active.incrementAndGet() != 1) {
+                overlaps.incrementAndGet();
+            }
+            context.setCounter(context.getCounter() + 1);
+            active.decrementAndGet();
+        }
+
+        @Override
+        public void exiting() {
+        }
+    }
+
+    private static void fireFromThreads(final StateMachine<TestTrigger, TestContext> sm) throws InterruptedException {
+        final CountDownLatch startSignal = new CountDownLatch(1);
+        final List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            final Thread thread = new Thread(() -> {
+                try {
+                    startSignal.await();
+                } catch (final InterruptedException e) {
+                    return;
+                }
+                for (int j = 0; j < TRIGGERS_PER_THREAD; j++) {
+                    sm.trigger(TestTrigger.STATE1_SUCCESS);
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        startSignal.countDown();
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    /**
+     * Tests that triggers fired from many threads are all processed, one at a time.
+     */
+    @Test
+    public void shouldSerializeTriggersFromManyThreads() throws InterruptedException {
+        final TestContext testContext = new TestContext();
+        final StateMachine<TestTrigger, TestContext> sm = new StateMachine<TestTrigger, TestContext>(testContext);
+        sm.setConcurrent(true);
+        sm.state(CountingState.class).isInitialState().lifecycle(StateLifecycle.SINGLETON)
+                .on(TestTrigger.STATE1_SUCCESS).goesTo(CountingState.class);
+
+        sm.start();
+        fireFromThreads(sm);
+
+        // When all threads have returned, every trigger has been processed by one of them
+        Assert.assertEquals(1 + THREADS * TRIGGERS_PER_THREAD, testContext.getCounter());
+        Assert.assertEquals(0, CountingState.overlaps.get());
+    }
+
+    /**
+     * Tests that triggers can be processed by an executor instead of the threads that fire them.
+     */
+    @Test
+    public void shouldProcessTriggersOnExecutor() throws InterruptedException {
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final TestContext testContext = new TestContext();
+            final StateMachine<TestTrigger, TestContext> sm = new StateMachine<TestTrigger, TestContext>(testContext);
+            sm.setConcurrent(true);
+            sm.setExecutor(executor);
+            sm.state(TestState1.class).isInitialState()
+                    .on(TestTrigger.STATE1_SUCCESS).goesTo(TestState7.class);
+            sm.state(TestState7.class)
+                    .on(TestTrigger.STATE7_SUCCESS).goesTo(TestState8.class);
+            sm.state(TestState8.class)
+                    .on(TestTrigger.STATE8_SUCCESS).goesTo(TestState2.class);
+
+            sm.start();
+            sm.trigger(TestTrigger.STATE1_SUCCESS);
+
+            // Wait for the executor to reach the last state
+            final long deadline = System.currentTimeMillis() + 5000;
+            while (testContext.getLogs().length < 7 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+
+            final String[] logs = testContext.getLogs();
+            Assert.assertEquals(7, logs.length);
+            Assert.assertEquals("Entering TestState1", logs[0]);
+            Assert.assertEquals("Exiting TestState1", logs[1]);
+            Assert.assertEquals("Entering TestState7", logs[2]);
+            Assert.assertEquals("Exiting TestState7", logs[3]);
+            Assert.assertEquals("Entering TestState8", logs[4]);
+            Assert.assertEquals("Exiting TestState8", logs[5]);
+            Assert.assertEquals("Entering TestState2", logs[6]);
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Test state that records the thread it was entered on.
+     */
+    public static class ThreadRecordingState implements FsmState<TestTrigger, TestContext> {
+
+        static volatile Thread enteringThread;
+
+        @Override
+        public void entering(final StateMachine<TestTrigger, TestContext> stateMachine, final TestContext context) {
+            enteringThread = Thread.currentThread();
+        }
+
+        @Override
+        public void exiting() {
+        }
+    }
+
+    /**
+     * Tests that an asynchronous trigger is processed off the calling thread, and that the future completes with the resulting
+     * state.
+     */
+    @Test
+    public void shouldCompleteAsyncTriggerWithResultingState() throws Exception {
+        final StateMachine<TestTrigger, TestContext> sm = new StateMachine<TestTrigger, TestContext>(new TestContext());
+        sm.setConcurrent(true);
+        sm.state(TestState1.class).isInitialState()
+                .on(TestTrigger.STATE1_SUCCESS).goesTo(ThreadRecordingState.class)
+                .on(TestTrigger.STATE1_FAIL).goesTo(TestState4.class);
+        sm.start();
+
+        final CompletableFuture<Class<? extends FsmState<TestTrigger, TestContext>>> future = sm
+                .triggerAsync(TestTrigger.STATE1_SUCCESS);
+
+        Assert.assertEquals(ThreadRecordingState.class, future.get(5, TimeUnit.SECONDS));
+        Assert.assertNotSame(Thread.currentThread(), ThreadRecordingState.enteringThread);
+    }
+
+    /**
+     * Tests that the future of an asynchronous trigger completes exceptionally if the trigger isn't valid.
+     */
+    @Test
+    public void shouldCompleteAsyncTriggerExceptionally() throws Exception {
+        final StateMachine<TestTrigger, TestContext> sm = new StateMachine<TestTrigger, TestContext>(new TestContext());
+        sm.setConcurrent(true);
+        sm.state(TestState1.class).isInitialState()
+                .on(TestTrigger.STATE1_SUCCESS).goesTo(TestState2.class);
+        sm.start();
+
+        final CompletableFuture<Class<? extends FsmState<TestTrigger, TestContext>>> future = sm
+                .triggerAsync(TestTrigger.STATE2_SUCCESS);
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            Assert.fail("Invalid trigger should fail the future");
+        } catch (final ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof FsmException);
+        }
+
+        // The state machine should still accept triggers
+        Assert.assertEquals(TestState2.class, sm.triggerAsync(TestTrigger.STATE1_SUCCESS).get(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Test state that fires an asynchronous trigger when it's entered, e.g. while the thread that fired the trigger that entered it
+     * is processing the triggers of the state machine.
+     */
+    public static class AsyncFiringState implements FsmState<TestTrigger, TestContext> {
+
+        static volatile CompletableFuture<Class<? extends FsmState<TestTrigger, TestContext>>> future;
+
+        @Override
+        public void entering(final StateMachine<TestTrigger, TestContext> stateMachine, final TestContext context) {
+            future = stateMachine.triggerAsync(TestTrigger.STATE2_SUCCESS);
+        }
+
+        @Override
+        public void exiting() {
+        }
+    }
+
+    /**
+     * Tests that an asynchronous trigger isn't processed by a thread that fired a synchronous trigger, even if that thread is
+     * processing the triggers of the state machine when the asynchronous trigger is fired.
+     */
+    @Test
+    public void shouldNotProcessAsyncTriggerOnSynchronousThread() throws Exception {
+        final StateMachine<TestTrigger, TestContext> sm = new StateMachine<TestTrigger, TestContext>(new TestContext());
+        sm.setConcurrent(true);
+        sm.state(TestState1.class).isInitialState()
+                .on(TestTrigger.STATE1_SUCCESS).goesTo(AsyncFiringState.class);
+        sm.state(AsyncFiringState.class)
+                .on(TestTrigger.STATE2_SUCCESS).goesTo(ThreadRecordingState.class);
+        sm.start();
+
+        sm.trigger(TestTrigger.STATE1_SUCCESS);
+
+        Assert.assertEquals(ThreadRecordingState.class, AsyncFiringState.future.get(5, TimeUnit.SECONDS));
+        Assert.assertNotSame(Thread.currentThread(), ThreadRecordingState.enteringThread);
+    }
+
+    /**
+     * Tests that an exception thrown while an executor processes a trigger is passed to the error handler.
+     */
+    @Test
+    public void shouldPassExecutorFailuresToErrorHandler() throws InterruptedException {
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final List<RuntimeException> failures = new ArrayList<>();
+            final CountDownLatch failed = new CountDownLatch(1);
+            final StateMachine<TestTrigger, TestContext> sm = new StateMachine<TestTrigger, TestContext>(new TestContext());
+            sm.setConcurrent(true);
+            sm.setExecutor(executor);
+            sm.setErrorHandler(e -> {
+                failures.add(e);
+                failed.countDown();
+            });
+            sm.state(TestState1.class).isInitialState()
+                    .on(TestTrigger.STATE1_SUCCESS).goesTo(TestState2.class);
+            sm.start();
+
+            sm.trigger(TestTrigger.STATE2_SUCCESS);
+
+            Assert.assertTrue(failed.await(5, TimeUnit.SECONDS));
+            Assert.assertTrue(failures.get(0) instanceof InvalidTriggerException);
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Tests that triggers that an executor rejects are kept, and processed when the executor accepts the next trigger, and that
+     * the rejection is passed to the error handler.
+     */
+    @Test
+    public void shouldKeepTriggersThatTheExecutorRejects() {
+        final AtomicInteger rejections = new AtomicInteger(1);
+        final List<RuntimeException> failures = new ArrayList<>();
+        final TestContext context = new TestContext();
+        final StateMachine<TestTrigger, TestContext> sm = new StateMachine<TestTrigger, TestContext>(context);
+        sm.setConcurrent(true);
+        sm.setExecutor(command -> {
+            if (rejections.getAndDecrement() > 0) {
+                throw new RejectedExecutionException("Shutting down");
+            }
+            command.run();
+        });
+        sm.setErrorHandler(failures::add);
+        sm.state(TestState1.class).isInitialState()
+                .on(TestTrigger.STATE1_SUCCESS).goesTo(TestState2.class);
+        sm.state(TestState2.class)
+                .on(TestTrigger.STATE2_SUCCESS).goesTo(TestState1.class);
+        sm.start();
+
+        sm.trigger(TestTrigger.STATE1_SUCCESS);
+        Assert.assertEquals(1, failures.size());
+        Assert.assertTrue(failures.get(0) instanceof RejectedExecutionException);
+        Assert.assertArrayEquals(new String[] { "Entering TestState1" }, context.getLogs());
+
+        sm.trigger(TestTrigger.STATE2_SUCCESS);
+        Assert.assertEquals(1, failures.size());
+        Assert.assertArrayEquals(new String[] { "Entering TestState1", "Exiting TestState1", "Entering TestState2",
+                "Exiting TestState2", "Entering TestState1" }, context.getLogs());
+    }
+
+    /**
+     * Tests that asynchronous triggers are rejected unless the state machine is in concurrent mode.
+     */
+    @Test(expected = FsmException.class)
+    public void shouldRejectAsyncTriggerWhenNotConcurrent() {
+        final StateMachine<TestTrigger, TestContext> sm = new StateMachine<TestTrigger, TestContext>(new TestContext());
+        sm.state(TestState1.class).isInitialState()
+                .on(TestTrigger.STATE1_SUCCESS).goesTo(TestState2.class);
+        sm.start();
+
+        sm.triggerAsync(TestTrigger.STATE1_SUCCESS);
+    }
+}
@@ -0,0 +1,129 @@
+package se.danielkonsult.fsm4j;
+
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import se.danielkonsult.fsm4j.states.TestState1;
+import se.danielkonsult.fsm4j.states.TestState2;
+import se.danielkonsult.fsm4j.states.TestState3;
+import se.danielkonsult.fsm4j.states.TestState4;
+import se.danielkonsult.fsm4j.states.TestState5;
+
+/**
+ * Tests of state machines with states that are nested in other states.
+ */
+public class HierarchicalStateMachineTest {
+
+    @Rule
+    public ExpectedException exception = ExpectedException.none();
+
+    /**
+     * Creates a state machine where TestState1 and TestState2 are nested in TestState5, which handles STATE1_FAIL for both of
+     * them.
+     */
+    private StateMachine<TestTrigger, TestContext> createStateMachine(final TestContext testContext) {
+        final StateMachine<TestTrigger, TestContext> sm = new StateMachine<TestTrigger, TestContext>(testContext);
+        sm.state(TestState5.class)
+                .on(TestTrigger.STATE1_FAIL).goesTo(TestState3.class);
+        sm.state(TestState1.class).parent(TestState5.class).isInitialState()
+                .on(TestTrigger.STATE1_SUCCESS).goesTo(TestState2.class);
+        sm.state(TestState2.class).parent(TestState5.class)
+                .on(TestTrigger.STATE2_SUCCESS).goesTo(TestState5.class);
+        sm.state(TestState3.class)
+                .on(TestTrigger.STATE3_SUCCESS).goesTo(TestState2.class);
+        return sm;
+    }
+
+    @Test
+    public void shouldEnterAndExitParentStatesInOrder() {
+        final TestContext testContext = new TestContext();
+        final StateMachine<TestTrigger, TestContext> sm = createStateMachine(testContext);
+        sm.start();
+        sm.trigger(TestTrigger.STATE1_SUCCESS);
+        sm.trigger(TestTrigger.STATE1_FAIL);
+        Assert.assertEquals(TestState3.class, sm.getCurrentState().getClass());
+        sm.trigger(TestTrigger.STATE3_SUCCESS);
+        Assert.assertEquals(TestState2.class, sm.getCurrentState().getClass());
+        sm.stop();
+
+        Assert.assertEquals(Arrays.asList(
+                "Entering TestState5", "Entering TestState1",
+                "Exiting TestState1", "Entering TestState2",
+                "Exiting TestState2", "Exiting TestState5", "Entering TestState3",
+                "Exiting TestState3", "Entering TestState5", "Entering TestState2",
+                "Exiting TestState2", "Exiting TestState5"), Arrays.asList(testContext.getLogs()));
+    }
+
+    @Test
+    public void shouldReenterParentWhenTransitioningToIt() {
+        final TestContext testContext = new TestContext();
+        final StateMachine<TestTrigger, TestContext> sm = createStateMachine(testContext);
+        sm.start();
+        sm.trigger(TestTrigger.STATE1_SUCCESS);
+        sm.trigger(TestTrigger.STATE2_SUCCESS);
+        Assert.assertEquals(TestState5.class, sm.getCurrentState().getClass());
+
+        Assert.assertEquals(Arrays.asList(
+                "Entering TestState5", "Entering TestState1",
+                "Exiting TestState1", "Entering TestState2",
+                "Exiting TestState2", "Exiting TestState5", "Entering TestState5"), Arrays.asList(testContext.getLogs()));
+
+        // The parent handles its own triggers when it's the current state
+        sm.trigger(TestTrigger.STATE1_FAIL);
+        Assert.assertEquals(TestState3.class, sm.getCurrentState().getClass());
+    }
+
+    @Test
+    public void shouldPreferTriggersOfNestedState() {
+        final StateMachine<TestTrigger, TestContext> sm = new StateMachine<TestTrigger, TestContext>(new TestContext());
+        sm.state(TestState5.class)
+                .on(TestTrigger.STATE1_SUCCESS).goesTo(TestState3.class);
+        sm.state(TestState1.class).parent(TestState5.class).isInitialState()
+                .on(TestTrigger.STATE1_SUCCESS).goesTo(TestState2.class);
+        sm.state(TestState2.class).parent(TestState5.class);
+        sm.start();
+
+        sm.trigger(TestTrigger.STATE1_SUCCESS);
+        Assert.assertEquals(TestState2.class, sm.getCurrentState().getClass());
+        sm.trigger(TestTrigger.STATE1_SUCCESS);
+        Assert.assertEquals(TestState3.class, sm.getCurrentState().getClass());
+    }
+
+    @Test
+    public void shouldFlattenInheritedTransitions() {
+        final StateMachine<TestTrigger, TestContext> sm = new StateMachine<TestTrigger, TestContext>(new TestContext());
+        sm.state(TestState5.class)
+                .on(TestTrigger.STATE4_FAIL).goesTo(TestState3.class);
+        sm.state(TestState4.class).parent(TestState5.class);
+        sm.state(TestState2.class).parent(TestState4.class);
+        sm.state(TestState1.class).parent(TestState2.class).isInitialState();
+
+        final TransitionTable<TestTrigger, TestContext> table = sm.compile();
+        Assert.assertEquals(3, table.getMaxDepth());
+        Assert.assertEquals(3, table.getStateDepth(table.stateId(TestState1.class)));
+        Assert.assertEquals(table.stateId(TestState2.class), table.getParentStateId(table.stateId(TestState1.class)));
+        Assert.assertEquals(table.stateId(TestState3.class),
+                table.resolve(table.stateId(TestState1.class), table.triggerId(TestTrigger.STATE4_FAIL), null));
+    }
+
+    @Test
+    public void shouldNotConsiderParentStatesOrphaned() {
+        final StateMachine<TestTrigger, TestContext> sm = createStateMachine(new TestContext());
+        sm.test();
+    }
+
+    @Test
+    public void shouldThrowOnCyclicParents() {
+        final StateMachine<TestTrigger, TestContext> sm = new StateMachine<TestTrigger, TestContext>(new TestContext());
+        sm.state(TestState1.class).parent(TestState2.class).isInitialState();
+        sm.state(TestState2.class).parent(TestState1.class);
+
+        exception.expect(FsmException.class);
+        exception.expectMessage("is its own ancestor");
+        sm.compile();
+    }
+}
@@ -0,0 +1,153 @@
+package se.danielkonsult.fsm4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import se.danielkonsult.fsm4j.states.TestState1;
+import se.danielkonsult.fsm4j.states.TestState2;
+import se.danielkonsult.fsm4j.states.TestState3;
+import se.danielkonsult.fsm4j.states.TestState4;
+
+/**
+ * Tests of state machines with orthogonal regions.
+ */
+public class OrthogonalStateMachineTest {
+
+    /**
+     * Test state that waits until every region has entered it, which only works if the regions are processed in parallel.
+     */
+    public static class ParallelState implements FsmState<TestTrigger, TestContext> {
+
+        static CountDownLatch latch;
+        static final Set<String> threads = ConcurrentHashMap.newKeySet();
+
+        @Override
+        public void entering(final StateMachine<TestTrigger, TestContext> stateMachine, final TestContext context) {
+            threads.add(Thread.currentThread().getName());
+            latch.countDown();
+            try {
+                Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+            } catch (final InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public void exiting() {
+        }
+    }
+
+    @Rule
+    public ExpectedException exception = ExpectedException.none();
+
+    private OrthogonalStateMachine<TestTrigger, TestContext> createStateMachine(final TestContext testContext) {
+        final OrthogonalStateMachine<TestTrigger, TestContext> sm = new OrthogonalStateMachine<>(testContext);
+        sm.region("first").state(TestState1.class).isInitialState()
+                .on(TestTrigger.STATE1_SUCCESS).goesTo(TestState2.class);
+        sm.region("first").state(TestState2.class)
+                .on(TestTrigger.STATE2_SUCCESS).goesTo(TestState1.class);
+        sm.region("second").state(TestState3.class).isInitialState()
+                .on(TestTrigger.STATE1_SUCCESS).goesTo(TestState4.class);
+        sm.region("second").state(TestState4.class)
+                .on(TestTrigger.STATE4_SUCCESS).goesTo(TestState3.class);
+        return sm;
+    }
+
+    @Test
+    public void shouldDispatchTriggerToAllRegionsThatHandleIt() {
+        final TestContext testContext = new TestContext();
+        final OrthogonalStateMachine<TestTrigger, TestContext> sm = createStateMachine(testContext);
+        sm.start();
+        Assert.assertEquals(TestState1.class, sm.getCurrentState("first").getClass());
+        Assert.assertEquals(TestState3.class, sm.getCurrentState("second").getClass());
+
+        // Handled by both regions
+        Assert.assertEquals(TriggerResult.TRANSITIONED, sm.trigger(TestTrigger.STATE1_SUCCESS));
+        Assert.assertEquals(TestState2.class, sm.getCurrentState("first").getClass());
+        Assert.assertEquals(TestState4.class, sm.getCurrentState("second").getClass());
+
+        // Only handled by the second region
+        sm.trigger(TestTrigger.STATE4_SUCCESS);
+        Assert.assertEquals(TestState2.class, sm.getCurrentState("first").getClass());
+        Assert.assertEquals(TestState3.class, sm.getCurrentState("second").getClass());
+
+        Assert.assertSame(testContext, sm.region("second").getContext());
+        Assert.assertEquals(8, testContext.getLogs().length);
+    }
+
+    @Test
+    public void shouldThrowIfNoRegionHandlesTrigger() {
+        final OrthogonalStateMachine<TestTrigger, TestContext> sm = createStateMachine(new TestContext());
+        sm.start();
+
+        exception.expect(FsmException.class);
+        exception.expectMessage("is not valid for any region");
+        sm.trigger(TestTrigger.STATE3_FAIL);
+    }
+
+    /**
+     * Tests that a trigger that no region handles goes through the invalid trigger policy and the listener.
+     */
+    @Test
+    public void shouldHandleTriggerNoRegionHandlesAsInvalid() {
+        final List<String> invalidTriggers = new ArrayList<>();
+        final OrthogonalStateMachine<TestTrigger, TestContext> sm = createStateMachine(new TestContext());
+        sm.setListener(new StateMachineListener<TestTrigger, TestContext>() {
+            @Override
+            public void onInvalidTrigger(final TestContext context, final TestTrigger trigger,
+                    final Class<? extends FsmState<TestTrigger, TestContext>> stateClass) {
+                invalidTriggers.add(trigger + " " + stateClass.getSimpleName());
+            }
+        });
+        sm.start();
+
+        Assert.assertEquals(TriggerResult.INVALID, sm.trigger(TestTrigger.STATE3_FAIL));
+        Assert.assertEquals("[STATE3_FAIL TestState1]", invalidTriggers.toString());
+
+        sm.setInvalidTriggerPolicy(InvalidTriggerPolicy.COUNT);
+        Assert.assertEquals(TriggerResult.INVALID, sm.trigger(TestTrigger.STATE3_FAIL));
+        Assert.assertEquals(1, sm.getInvalidTriggerCount());
+
+        sm.setInvalidTriggerPolicy(InvalidTriggerPolicy.THROW);
+        exception.expect(InvalidTriggerException.class);
+        exception.expectMessage("Trigger STATE3_FAIL is not valid for any region, the first region is in state TestState1");
+        sm.trigger(TestTrigger.STATE3_FAIL);
+    }
+
+    @Test
+    public void shouldProcessRegionsInParallel() {
+        final int regionCount = 3;
+        final ForkJoinPool pool = new ForkJoinPool(regionCount);
+        try {
+            final OrthogonalStateMachine<TestTrigger, TestContext> sm = new OrthogonalStateMachine<>(new TestContext());
+            sm.setParallel(true);
+            sm.setPool(pool);
+            for (int i = 0; i < regionCount; i++) {
+                sm.region("region" + i).state(TestState1.class).isInitialState()
+                        .on(TestTrigger.STATE1_SUCCESS).goesTo(ParallelState.class);
+            }
+            sm.start();
+
+            ParallelState.latch = new CountDownLatch(regionCount);
+            ParallelState.threads.clear();
+            sm.trigger(TestTrigger.STATE1_SUCCESS);
+
+            Assert.assertEquals(regionCount, ParallelState.threads.size());
+            for (int i = 0; i < regionCount; i++) {
+                Assert.assertEquals(ParallelState.class, sm.getCurrentState("region" + i).getClass());
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
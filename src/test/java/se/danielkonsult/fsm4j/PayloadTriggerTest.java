@@ -0,0 +1,254 @@
+package se.danielkonsult.fsm4j;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import se.danielkonsult.fsm4j.states.TestState1;
+import se.danielkonsult.fsm4j.states.TestState2;
+import se.danielkonsult.fsm4j.states.TestState3;
+
+/**
+ * Tests of triggers that carry a payload.
+ */
+public class PayloadTriggerTest {
+
+    /**
+     * A mutable payload, e.g. a reading from a sensor.
+     */
+    public static class Reading {
+
+        private int value;
+
+        public int getValue() {
+            return value;
+        }
+
+        public void setValue(final int value) {
+            this.value = value;
+        }
+    }
+
+    /**
+     * A state that logs the payload it was entered with.
+     */
+    public static class RecordingState implements FsmState<TestTrigger, TestContext> {
+
+        @Override
+        public void entering(final StateMachine<TestTrigger, TestContext> stateMachine, final TestContext context) {
+            context.addLog("Entering without payload");
+        }
+
+        @Override
+        public void entering(final StateMachine<TestTrigger, TestContext> stateMachine, final TestContext context,
+                final Object payload) {
+            if (payload instanceof Reading) {
+                context.addLog(String.format("Entering with %d", ((Reading) payload).getValue()));
+                if (((Reading) payload).getValue() > 100) {
+                    // Fire another trigger with a payload while entering
+                    final Reading next = new Reading();
+                    next.setValue(((Reading) payload).getValue() / 100);
+                    stateMachine.trigger(TestTrigger.STATE2_SUCCESS, next);
+                }
+            } else {
+                entering(stateMachine, context);
+            }
+        }
+
+        @Override
+        public void exiting() {
+            // No behavior here
+        }
+    }
+
+    @Rule
+    public ExpectedException exception = ExpectedException.none();
+
+    private StateMachine<TestTrigger, TestContext> createStateMachine(final TestContext testContext) {
+        final StateMachine<TestTrigger, TestContext> sm = new StateMachine<TestTrigger, TestContext>(testContext);
+        sm.state(TestState1.class).isInitialState()
+                .on(TestTrigger.STATE1_SUCCESS, Reading.class, (context, reading) -> reading.getValue() > 10)
+                .goesTo(TestState2.class)
+                .on(TestTrigger.STATE1_SUCCESS, Reading.class, (context, reading) -> reading.getValue() <= 10)
+                .goesTo(RecordingState.class)
+                .on(TestTrigger.STATE1_SUCCESS, TestContext::getTestSwitch).goesTo(TestState3.class);
+        sm.state(TestState2.class)
+                .on(TestTrigger.STATE2_SUCCESS).goesTo(TestState1.class);
+        sm.state(TestState3.class)
+                .on(TestTrigger.STATE3_SUCCESS).goesTo(TestState1.class);
+        sm.state(RecordingState.class)
+                .on(TestTrigger.STATE2_SUCCESS).goesTo(RecordingState.class)
+                .on(TestTrigger.STATE3_SUCCESS).goesTo(TestState1.class);
+        return sm;
+    }
+
+    private static Reading reading(final int value) {
+        final Reading reading = new Reading();
+        reading.setValue(value);
+        return reading;
+    }
+
+    /**
+     * Tests that guards are evaluated against the payload, mixed with guards that are only evaluated against the context.
+     */
+    @Test
+    public void shouldEvaluateGuardsAgainstPayload() {
+        final TestContext testContext = new TestContext();
+        final StateMachine<TestTrigger, TestContext> sm = createStateMachine(testContext);
+        sm.start();
+
+        sm.trigger(TestTrigger.STATE1_SUCCESS, reading(11));
+        Assert.assertEquals(TestState2.class, sm.getCurrentState().getClass());
+        sm.trigger(TestTrigger.STATE2_SUCCESS);
+
+        testContext.setTestSwitch(true);
+        sm.trigger(TestTrigger.STATE1_SUCCESS);
+        Assert.assertEquals(TestState3.class, sm.getCurrentState().getClass());
+        sm.trigger(TestTrigger.STATE3_SUCCESS);
+
+        testContext.setTestSwitch(false);
+        sm.trigger(TestTrigger.STATE1_SUCCESS, reading(5));
+        Assert.assertEquals(RecordingState.class, sm.getCurrentState().getClass());
+    }
+
+    /**
+     * Tests that payload guards are false when the trigger has no payload, or a payload of another type.
+     */
+    @Test
+    public void shouldNotPassOtherPayloadsToGuards() {
+        final TestContext testContext = new TestContext();
+        testContext.setTestSwitch(true);
+        final StateMachine<TestTrigger, TestContext> sm = createStateMachine(testContext);
+        sm.start();
+
+        sm.trigger(TestTrigger.STATE1_SUCCESS, "11");
+        Assert.assertEquals(TestState3.class, sm.getCurrentState().getClass());
+        sm.trigger(TestTrigger.STATE3_SUCCESS);
+
+        testContext.setTestSwitch(false);
+        exception.expect(FsmException.class);
+        exception.expectMessage("No guard evaluates to true on state");
+        sm.trigger(TestTrigger.STATE1_SUCCESS);
+    }
+
+    /**
+     * Tests that the payload is passed to the entered state, also when the trigger was queued in run-to-completion mode.
+     */
+    @Test
+    public void shouldPassPayloadToEnteredState() {
+        final TestContext testContext = new TestContext();
+        final StateMachine<TestTrigger, TestContext> sm = createStateMachine(testContext);
+        sm.setRunToCompletion(true);
+        sm.start();
+
+        sm.trigger(TestTrigger.STATE1_SUCCESS, reading(3));
+        sm.trigger(TestTrigger.STATE2_SUCCESS);
+        sm.trigger(TestTrigger.STATE2_SUCCESS, reading(700));
+
+        Assert.assertArrayEquals(new String[] { "Entering TestState1", "Exiting TestState1", "Entering with 3",
+                "Entering without payload", "Entering with 700", "Entering with 7" }, testContext.getLogs());
+    }
+
+    /**
+     * Tests that payloads are released to the pool once their triggers have been processed, so that the same payload is reused.
+     */
+    @Test
+    public void shouldReleasePayloadsToPool() {
+        final TestContext testContext = new TestContext();
+        final PayloadPool<Reading> pool = new PayloadPool<>(Reading::new, 4);
+        final StateMachine<TestTrigger, TestContext> sm = createStateMachine(testContext);
+        sm.setPayloadPool(pool);
+        sm.start();
+
+        final Reading first = pool.acquire();
+        first.setValue(20);
+        sm.trigger(TestTrigger.STATE1_SUCCESS, first);
+        Assert.assertEquals(TestState2.class, sm.getCurrentState().getClass());
+        sm.trigger(TestTrigger.STATE2_SUCCESS);
+
+        final Reading second = pool.acquire();
+        Assert.assertSame(first, second);
+        second.setValue(2);
+        sm.trigger(TestTrigger.STATE1_SUCCESS, second);
+        Assert.assertEquals(RecordingState.class, sm.getCurrentState().getClass());
+        Assert.assertSame(second, pool.acquire());
+    }
+
+    /**
+     * A state that queues a trigger with a pooled payload when it's entered, and then aborts the transition.
+     */
+    public static class AbortingState implements FsmState<TestTrigger, TestContext> {
+
+        static PayloadPool<Reading> pool;
+        static Reading queued;
+
+        @Override
+        public void entering(final StateMachine<TestTrigger, TestContext> stateMachine, final TestContext context) {
+            queued = pool.acquire();
+            stateMachine.trigger(TestTrigger.STATE2_SUCCESS, queued);
+            throw new IllegalStateException("Aborted");
+        }
+
+        @Override
+        public void exiting() {
+            // No behavior here
+        }
+    }
+
+    /**
+     * Tests that the payloads of queued triggers that are discarded, because a transition was aborted by an exception, are
+     * released to the pool.
+     */
+    @Test
+    public void shouldReleasePayloadsOfDiscardedTriggers() {
+        final StateMachine<TestTrigger, TestContext> sm = new StateMachine<TestTrigger, TestContext>(new TestContext());
+        sm.state(TestState1.class).isInitialState()
+                .on(TestTrigger.STATE1_SUCCESS).goesTo(AbortingState.class);
+        sm.state(AbortingState.class)
+                .on(TestTrigger.STATE2_SUCCESS).goesTo(TestState1.class);
+        sm.setRunToCompletion(true);
+        AbortingState.pool = new PayloadPool<>(Reading::new, 4);
+        sm.setPayloadPool(AbortingState.pool);
+        sm.start();
+
+        try {
+            sm.trigger(TestTrigger.STATE1_SUCCESS);
+            Assert.fail("The transition should have been aborted");
+        } catch (final IllegalStateException e) {
+            Assert.assertEquals("Aborted", e.getMessage());
+        }
+        Assert.assertEquals(AbortingState.class, sm.getCurrentState().getClass());
+        Assert.assertSame(AbortingState.queued, AbortingState.pool.acquire());
+    }
+
+    /**
+     * Tests that each payload stays with its trigger when triggers are posted to the mailbox in concurrent mode.
+     */
+    @Test
+    public void shouldKeepPayloadsInConcurrentMode() throws InterruptedException {
+        final TestContext testContext = new TestContext();
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final StateMachine<TestTrigger, TestContext> sm = createStateMachine(testContext);
+            sm.setConcurrent(true);
+            sm.setExecutor(executor);
+            sm.start();
+
+            Assert.assertEquals(TriggerResult.QUEUED, sm.trigger(TestTrigger.STATE1_SUCCESS, reading(1)));
+            for (int i = 2; i <= 5; i++) {
+                sm.trigger(TestTrigger.STATE2_SUCCESS, reading(i));
+            }
+        } finally {
+            executor.shutdown();
+            Assert.assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        }
+
+        Assert.assertArrayEquals(new String[] { "Entering TestState1", "Exiting TestState1", "Entering with 1", "Entering with 2",
+                "Entering with 3", "Entering with 4", "Entering with 5" }, testContext.getLogs());
+    }
+}
@@ -0,0 +1,129 @@
+package se.danielkonsult.fsm4j;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import se.danielkonsult.fsm4j.states.TestState1;
+import se.danielkonsult.fsm4j.states.TestState2;
+import se.danielkonsult.fsm4j.states.TestState3;
+import se.danielkonsult.fsm4j.states.TestState5;
+
+/**
+ * Tests of capturing snapshots of state machines and restoring them.
+ */
+public class SnapshotTest {
+
+    /**
+     * Codec that only keeps the counter and the test switch of the context.
+     */
+    public static class TestContextCodec implements ContextCodec<TestContext> {
+
+        @Override
+        public void encode(final TestContext context, final DataOutput out) throws IOException {
+            out.writeInt(context.getCounter());
+            out.writeBoolean(context.getTestSwitch());
+        }
+
+        @Override
+        public TestContext decode(final DataInput in) throws IOException {
+            final TestContext context = new TestContext();
+            context.setCounter(in.readInt());
+            context.setTestSwitch(in.readBoolean());
+            return context;
+        }
+    }
+
+    @Rule
+    public ExpectedException exception = ExpectedException.none();
+
+    private StateMachine<TestTrigger, TestContext> createStateMachine(final TestContext testContext) {
+        final StateMachine<TestTrigger, TestContext> sm = new StateMachine<TestTrigger, TestContext>(testContext);
+        sm.state(TestState1.class).isInitialState()
+                .on(TestTrigger.STATE1_SUCCESS).goesTo(TestState2.class);
+        sm.state(TestState2.class).parent(TestState5.class)
+                .on(TestTrigger.STATE2_SUCCESS).goesTo(TestState3.class);
+        sm.state(TestState3.class)
+                .on(TestTrigger.STATE3_SUCCESS).goesTo(TestState1.class);
+        return sm;
+    }
+
+    @Test
+    public void shouldRestoreWithoutEnteringState() {
+        final StateMachine<TestTrigger, TestContext> sm = createStateMachine(new TestContext());
+        sm.start();
+        sm.trigger(TestTrigger.STATE1_SUCCESS);
+        final byte[] snapshot = sm.snapshot();
+
+        // Only the id of the state, which fits in one byte
+        Assert.assertEquals(1, snapshot.length);
+
+        final TestContext restoredContext = new TestContext();
+        final StateMachine<TestTrigger, TestContext> restored = sm.getDefinition().newInstance(restoredContext);
+        restored.restore(snapshot);
+        Assert.assertEquals(TestState2.class, restored.getCurrentState().getClass());
+        Assert.assertEquals(0, restoredContext.getLogs().length);
+
+        // The restored state machine continues from where the snapshot was captured
+        restored.trigger(TestTrigger.STATE2_SUCCESS);
+        Assert.assertEquals(TestState3.class, restored.getCurrentState().getClass());
+        Assert.assertArrayEquals(new String[] { "Entering TestState3" }, restoredContext.getLogs());
+    }
+
+    @Test
+    public void shouldRestoreAndEnterState() {
+        final StateMachine<TestTrigger, TestContext> sm = createStateMachine(new TestContext());
+        sm.start();
+        sm.trigger(TestTrigger.STATE1_SUCCESS);
+        final byte[] snapshot = sm.snapshot();
+
+        final TestContext restoredContext = new TestContext();
+        final StateMachine<TestTrigger, TestContext> restored = sm.getDefinition().newInstance(restoredContext);
+        restored.restore(snapshot, true);
+        Assert.assertEquals(TestState2.class, restored.getCurrentState().getClass());
+        Assert.assertArrayEquals(new String[] { "Entering TestState5", "Entering TestState2" }, restoredContext.getLogs());
+    }
+
+    @Test
+    public void shouldIncludeContextWithCodec() {
+        final TestContext testContext = new TestContext();
+        testContext.setCounter(42);
+        testContext.setTestSwitch(true);
+        final StateMachine<TestTrigger, TestContext> sm = createStateMachine(testContext);
+        sm.setContextCodec(new TestContextCodec());
+        sm.start();
+        final byte[] snapshot = sm.snapshot();
+        Assert.assertEquals(1 + 4 + 1, snapshot.length);
+
+        final StateMachine<TestTrigger, TestContext> restored = sm.getDefinition().newInstance();
+        restored.restore(snapshot);
+        Assert.assertEquals(TestState1.class, restored.getCurrentState().getClass());
+        Assert.assertEquals(42, restored.getContext().getCounter());
+        Assert.assertTrue(restored.getContext().getTestSwitch());
+    }
+
+    @Test
+    public void shouldThrowOnRestoringRunningStateMachine() {
+        final StateMachine<TestTrigger, TestContext> sm = createStateMachine(new TestContext());
+        sm.start();
+        final byte[] snapshot = sm.snapshot();
+
+        exception.expect(FsmException.class);
+        exception.expectMessage("the state machine is running");
+        sm.restore(snapshot);
+    }
+
+    @Test
+    public void shouldThrowOnUnknownStateId() {
+        final StateMachine<TestTrigger, TestContext> sm = createStateMachine(new TestContext());
+
+        exception.expect(FsmException.class);
+        exception.expectMessage("refers to state id 300");
+        sm.restore(new byte[] { (byte) 0xac, 0x02 });
+    }
+}
@@ -0,0 +1,246 @@
+package se.danielkonsult.fsm4j;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import se.danielkonsult.fsm4j.states.TestState1;
+import se.danielkonsult.fsm4j.states.TestState2;
+
+public class StateMachineEngineTest {
+
+    private static final int KEYS = 1000;
+
+    @Rule
+    public ExpectedException exception = ExpectedException.none();
+
+    private StateMachineEngine<Integer, TestTrigger, TestContext> engine;
+
+    @Before
+    public void setUp() {
+        final StateMachine<TestTrigger, TestContext> sm = new StateMachine<TestTrigger, TestContext>();
+        sm.state(TestState1.class).isInitialState()
+                .on(TestTrigger.STATE1_SUCCESS).goesTo(TestState2.class);
+        sm.state(TestState2.class)
+                .on(TestTrigger.STATE2_SUCCESS).goesTo(TestState1.class);
+
+        engine = new StateMachineEngine<>(sm.getDefinition(), key -> new TestContext(), 4);
+        engine.start();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        engine.stop();
+    }
+
+    /**
+     * Tests that triggers are routed to the state machine of their key, which is created on the first trigger.
+     */
+    @Test
+    public void shouldRouteTriggersByKey() throws Exception {
+        for (int key = 0; key < KEYS; key++) {
+            engine.trigger(key, TestTrigger.STATE1_SUCCESS);
+            if (key % 2 == 0) {
+                engine.trigger(key, TestTrigger.STATE2_SUCCESS);
+            }
+        }
+
+        for (int key = 0; key < KEYS; key++) {
+            final Class<?> expected = key % 2 == 0 ? TestState1.class : TestState2.class;
+            Assert.assertEquals(expected,
+                    engine.query(key, sm -> sm.getCurrentState().getClass()).get(5, TimeUnit.SECONDS));
+        }
+        Assert.assertEquals(KEYS, engine.getInstanceCount());
+    }
+
+    /**
+     * Tests that state machines can be evicted, which stops them.
+     */
+    @Test
+    public void shouldEvictStateMachines() throws Exception {
+        engine.trigger(1, TestTrigger.STATE1_SUCCESS);
+        final TestContext context = engine.query(1, sm -> sm.getContext()).get(5, TimeUnit.SECONDS);
+
+        engine.evict(1);
+
+        Assert.assertNull(engine.query(1, sm -> sm).get(5, TimeUnit.SECONDS));
+        Assert.assertEquals(0, engine.getInstanceCount());
+        Assert.assertEquals("Exiting TestState2", context.getLogs()[context.getLogs().length - 1]);
+    }
+
+    /**
+     * Tests that state machines that haven't been triggered for a while are evicted automatically.
+     */
+    @Test
+    public void shouldEvictIdleStateMachines() throws Exception {
+        engine.setIdleTimeout(50, TimeUnit.MILLISECONDS);
+        engine.trigger(1, TestTrigger.STATE1_SUCCESS);
+        engine.trigger(2, TestTrigger.STATE1_SUCCESS);
+
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (engine.getInstanceCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(0, engine.getInstanceCount());
+    }
+
+    /**
+     * Tests that an exception thrown while processing a trigger is passed to the error handler, and doesn't stop the shard.
+     */
+    @Test
+    public void shouldReportErrorsAndKeepRunning() throws Exception {
+        final StringBuilder errors = new StringBuilder();
+        engine.setErrorHandler((key, e) -> errors.append(key));
+
+        engine.trigger(7, TestTrigger.STATE4_FAIL);
+        engine.trigger(7, TestTrigger.STATE1_SUCCESS);
+
+        Assert.assertEquals(TestState2.class, engine.query(7, sm -> sm.getCurrentState().getClass()).get(5, TimeUnit.SECONDS));
+        Assert.assertEquals("7", errors.toString());
+    }
+
+    /**
+     * Tests that idle state machines are passivated to the store, and restored on the next trigger
+     * without entering their state again.
+     */
+    @Test
+    public void shouldPassivateAndRehydrateIdleStateMachines() throws Exception {
+        engine.setPassivationStore(new MapPassivationStore<>());
+        engine.setIdleTimeout(50, TimeUnit.MILLISECONDS);
+        engine.trigger(1, TestTrigger.STATE1_SUCCESS);
+        engine.trigger(2, TestTrigger.STATE1_SUCCESS);
+
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (engine.getPassivatedCount() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(0, engine.getInstanceCount());
+        Assert.assertEquals(2, engine.getPassivatedCount());
+        Assert.assertEquals(2, engine.getPassivationCount());
+
+        engine.setIdleTimeout(0, TimeUnit.MILLISECONDS);
+        engine.trigger(1, TestTrigger.STATE2_SUCCESS);
+
+        final TestContext context = engine.query(1, sm -> sm.getContext()).get(5, TimeUnit.SECONDS);
+        Assert.assertArrayEquals(new String[] { "Entering TestState1" }, context.getLogs());
+        Assert.assertEquals(1, engine.getInstanceCount());
+        Assert.assertEquals(1, engine.getPassivatedCount());
+        Assert.assertEquals(1, engine.getRehydrationCount());
+        Assert.assertTrue(engine.getMaxRehydrationNanos() >= engine.getAverageRehydrationNanos());
+    }
+
+    /**
+     * Tests that an explicitly passivated state machine is restored by a query, and that evicting it removes it from the store.
+     */
+    @Test
+    public void shouldPassivateOnDemand() throws Exception {
+        engine.setPassivationStore(new MapPassivationStore<>());
+        engine.trigger(3, TestTrigger.STATE1_SUCCESS);
+        engine.passivate(3);
+
+        Assert.assertEquals(TestState2.class, engine.query(3, sm -> sm.getCurrentState().getClass()).get(5, TimeUnit.SECONDS));
+        Assert.assertEquals(0, engine.getPassivatedCount());
+
+        engine.passivate(3);
+        engine.evict(3);
+
+        Assert.assertNull(engine.query(3, sm -> sm).get(5, TimeUnit.SECONDS));
+        Assert.assertEquals(0, engine.getPassivatedCount());
+    }
+
+    /**
+     * Tests that a state machine whose snapshot can't be stored stays resident, instead of being lost.
+     */
+    @Test
+    public void shouldKeepStateMachinesThatCantBePassivated() throws Exception {
+        final StringBuilder errors = new StringBuilder();
+        engine.setErrorHandler((key, e) -> errors.append(key));
+        engine.setPassivationStore(new PassivationStore<Integer>() {
+            @Override
+            public void store(final Integer key, final byte[] snapshot) {
+                throw new FsmException("Store is down");
+            }
+
+            @Override
+            public byte[] get(final Integer key) {
+                return null;
+            }
+
+            @Override
+            public byte[] remove(final Integer key) {
+                return null;
+            }
+
+            @Override
+            public int size() {
+                return 0;
+            }
+        });
+        engine.trigger(3, TestTrigger.STATE1_SUCCESS);
+        engine.passivate(3);
+
+        final TestContext context = engine.query(3, sm -> sm.getContext()).get(5, TimeUnit.SECONDS);
+        Assert.assertArrayEquals(new String[] { "Entering TestState1", "Exiting TestState1", "Entering TestState2" },
+                context.getLogs());
+        Assert.assertEquals(1, engine.getInstanceCount());
+        Assert.assertEquals(0, engine.getPassivationCount());
+        Assert.assertEquals("3", errors.toString());
+    }
+
+    /**
+     * Tests that a snapshot that can't be restored is left in the store, and that the failure is reported to the caller.
+     */
+    @Test
+    public void shouldKeepSnapshotsThatCantBeRestored() throws Exception {
+        final MapPassivationStore<Integer> store = new MapPassivationStore<>();
+        store.store(5, new byte[] { (byte) 0xff });
+        engine.setPassivationStore(store);
+
+        try {
+            engine.query(5, sm -> sm).get(5, TimeUnit.SECONDS);
+            Assert.fail("The snapshot should not be restorable");
+        } catch (final ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof RuntimeException);
+        }
+        Assert.assertEquals(1, engine.getPassivatedCount());
+        Assert.assertEquals(0, engine.getInstanceCount());
+    }
+
+    /**
+     * Tests that nothing can be fired at an engine that hasn't been started, since no shard would ever process it.
+     */
+    @Test
+    public void shouldRejectTriggersBeforeStart() {
+        final StateMachine<TestTrigger, TestContext> sm = new StateMachine<TestTrigger, TestContext>();
+        sm.state(TestState1.class).isInitialState()
+                .on(TestTrigger.STATE1_SUCCESS).goesTo(TestState1.class);
+        final StateMachineEngine<Integer, TestTrigger, TestContext> stopped = new StateMachineEngine<>(sm.getDefinition(),
+                key -> new TestContext(), 1);
+
+        exception.expect(FsmException.class);
+        exception.expectMessage("The engine hasn't been started");
+        stopped.trigger(1, TestTrigger.STATE1_SUCCESS);
+    }
+
+    /**
+     * Tests that queries are rejected once the engine has been stopped, instead of never completing.
+     */
+    @Test
+    public void shouldRejectQueriesAfterStop() throws Exception {
+        engine.trigger(1, TestTrigger.STATE1_SUCCESS);
+        final CompletableFuture<Class<?>> before = engine.query(1, sm -> sm.getCurrentState().getClass());
+        engine.stop();
+
+        Assert.assertEquals(TestState2.class, before.get(5, TimeUnit.SECONDS));
+        exception.expect(FsmException.class);
+        exception.expectMessage("The engine has been stopped");
+        engine.query(1, sm -> sm);
+    }
+}
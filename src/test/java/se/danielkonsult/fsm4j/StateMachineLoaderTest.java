@@ -0,0 +1,199 @@
+package se.danielkonsult.fsm4j;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+
+import se.danielkonsult.fsm4j.states.TestState1;
+import se.danielkonsult.fsm4j.states.TestState2;
+import se.danielkonsult.fsm4j.states.TestState3;
+
+/**
+ * Tests of state machines that are configured from definition files.
+ */
+public class StateMachineLoaderTest {
+
+    private static final String DEFINITION = String.join("\n",
+            "# Test definition",
+            "state se.danielkonsult.fsm4j.states.TestState5",
+            "    on STATE4_FAIL internal count",
+            "state se.danielkonsult.fsm4j.states.TestState1 initial parent se.danielkonsult.fsm4j.states.TestState5",
+            "    on STATE1_SUCCESS when switched goto se.danielkonsult.fsm4j.states.TestState2 do log",
+            "    on STATE1_SUCCESS when notSwitched goto se.danielkonsult.fsm4j.states.TestState3",
+            "state se.danielkonsult.fsm4j.states.TestState2 lifecycle SINGLETON after 10s STATE2_SUCCESS # Relock",
+            "    on STATE2_SUCCESS goto se.danielkonsult.fsm4j.states.TestState1",
+            "state se.danielkonsult.fsm4j.states.TestState3",
+            "    on STATE3_SUCCESS goto se.danielkonsult.fsm4j.states.TestState1");
+
+    @Rule
+    public ExpectedException exception = ExpectedException.none();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private StateMachineLoader<TestTrigger, TestContext> createLoader() {
+        return StateMachineLoader.<TestTrigger, TestContext> forEnum(TestTrigger.class)
+                .guard("switched", TestContext::getTestSwitch)
+                .guard("notSwitched", context -> !context.getTestSwitch())
+                .action("log", (context, payload) -> context.addLog("Doing " + payload))
+                .action("count", (context, payload) -> context.setCounter(context.getCounter() + 1));
+    }
+
+    /**
+     * Runs a state machine that has been loaded from the test definition through its transitions.
+     */
+    private static void assertLoaded(final StateMachine<TestTrigger, TestContext> sm, final TestContext testContext) {
+        final TransitionTable<TestTrigger, TestContext> table = sm.compile();
+        Assert.assertEquals(StateLifecycle.SINGLETON, table.getStateLifecycle(table.stateId(TestState2.class)));
+        Assert.assertEquals(10_000_000_000L, table.getTimeoutNanos(table.stateId(TestState2.class)));
+        sm.start();
+
+        sm.trigger(TestTrigger.STATE4_FAIL);
+        sm.trigger(TestTrigger.STATE1_SUCCESS);
+        Assert.assertEquals(TestState3.class, sm.getCurrentState().getClass());
+        sm.trigger(TestTrigger.STATE3_SUCCESS);
+        testContext.setTestSwitch(true);
+        sm.trigger(TestTrigger.STATE1_SUCCESS, "coin");
+        Assert.assertEquals(TestState2.class, sm.getCurrentState().getClass());
+        sm.stop();
+
+        Assert.assertEquals(1, testContext.getCounter());
+        Assert.assertArrayEquals(new String[] { "Entering TestState5", "Entering TestState1", "Exiting TestState1",
+                "Exiting TestState5", "Entering TestState3", "Exiting TestState3", "Entering TestState5", "Entering TestState1",
+                "Exiting TestState1", "Exiting TestState5", "Doing coin", "Entering TestState2", "Exiting TestState2" },
+                testContext.getLogs());
+    }
+
+    @Test
+    public void shouldLoadDefinition() {
+        final TestContext testContext = new TestContext();
+        final StateMachine<TestTrigger, TestContext> sm = new StateMachine<TestTrigger, TestContext>(testContext);
+        createLoader().load(sm, new StringReader(DEFINITION));
+
+        assertLoaded(sm, testContext);
+    }
+
+    /**
+     * Tests that a definition file is compiled into the cache the first time it's loaded, and that the cache is used afterwards.
+     */
+    @Test
+    public void shouldLoadDefinitionThroughCache() throws IOException {
+        final Path source = folder.getRoot().toPath().resolve("test.fsm");
+        final Path cache = folder.getRoot().toPath().resolve("cache").resolve("test.fsmc");
+        Files.write(source, DEFINITION.getBytes(StandardCharsets.UTF_8));
+
+        final StateMachine<TestTrigger, TestContext> first = new StateMachine<TestTrigger, TestContext>(new TestContext());
+        Assert.assertFalse(createLoader().load(first, source, cache));
+        Assert.assertTrue(Files.exists(cache));
+
+        final TestContext testContext = new TestContext();
+        final StateMachine<TestTrigger, TestContext> second = new StateMachine<TestTrigger, TestContext>(testContext);
+        Assert.assertTrue(createLoader().load(second, source, cache));
+        assertLoaded(second, testContext);
+    }
+
+    /**
+     * Tests that the cache is compiled again when the contents of the definition file have been changed, even if its size and
+     * modification time haven't, or when the cache is damaged, but not when the file has only been touched.
+     */
+    @Test
+    public void shouldRecompileStaleOrDamagedCache() throws IOException {
+        final Path source = folder.getRoot().toPath().resolve("test.fsm");
+        final Path cache = folder.getRoot().toPath().resolve("test.fsmc");
+        Files.write(source, DEFINITION.getBytes(StandardCharsets.UTF_8));
+        StateMachineLoader.compile(source, cache);
+
+        final FileTime modified = Files.getLastModifiedTime(source);
+        Files.setLastModifiedTime(source, FileTime.fromMillis(modified.toMillis() + 1000));
+        Assert.assertTrue(createLoader().load(new StateMachine<TestTrigger, TestContext>(new TestContext()), source, cache));
+
+        Files.write(source, DEFINITION.replace("STATE3_SUCCESS goto", "STATE3_FAIL    goto").getBytes(StandardCharsets.UTF_8));
+        Files.setLastModifiedTime(source, modified);
+        final StateMachine<TestTrigger, TestContext> changed = new StateMachine<TestTrigger, TestContext>(new TestContext());
+        Assert.assertFalse(createLoader().load(changed, source, cache));
+        Assert.assertTrue(changed.compile().hasTransition(changed.compile().stateId(TestState3.class),
+                changed.compile().triggerId(TestTrigger.STATE3_FAIL)));
+
+        final byte[] bytes = Files.readAllBytes(cache);
+        bytes[bytes.length / 2] ^= 0x55;
+        Files.write(cache, bytes);
+        Assert.assertFalse(createLoader().load(new StateMachine<TestTrigger, TestContext>(new TestContext()), source, cache));
+        Assert.assertTrue(createLoader().load(new StateMachine<TestTrigger, TestContext>(new TestContext()), source, cache));
+    }
+
+    /**
+     * Tests that the cache is trusted without reading the definition file when the file's size and modification time haven't
+     * changed since long before the cache was compiled, and that a touched file is only checksummed once.
+     */
+    @Test
+    public void shouldTrustCacheOfUnmodifiedFile() throws IOException {
+        final Path source = folder.getRoot().toPath().resolve("test.fsm");
+        final Path cache = folder.getRoot().toPath().resolve("test.fsmc");
+        final String changedDefinition = DEFINITION.replace("STATE3_SUCCESS goto", "STATE3_FAIL    goto");
+        final FileTime modified = FileTime.fromMillis(System.currentTimeMillis() - 3600000);
+        Files.write(source, DEFINITION.getBytes(StandardCharsets.UTF_8));
+        Files.setLastModifiedTime(source, modified);
+        StateMachineLoader.compile(source, cache);
+
+        // The contents are only compared when the modification time has changed, which it deceptively hasn't here
+        Files.write(source, changedDefinition.getBytes(StandardCharsets.UTF_8));
+        Files.setLastModifiedTime(source, modified);
+        final TestContext testContext = new TestContext();
+        final StateMachine<TestTrigger, TestContext> unchanged = new StateMachine<TestTrigger, TestContext>(testContext);
+        Assert.assertTrue(createLoader().load(unchanged, source, cache));
+        assertLoaded(unchanged, testContext);
+
+        // Touching the file makes the loader compare the contents once, and stamp the cache with the new modification time
+        Files.write(source, DEFINITION.getBytes(StandardCharsets.UTF_8));
+        final FileTime touched = FileTime.fromMillis(modified.toMillis() + 1000);
+        Files.setLastModifiedTime(source, touched);
+        Assert.assertTrue(createLoader().load(new StateMachine<TestTrigger, TestContext>(new TestContext()), source, cache));
+        Files.write(source, changedDefinition.getBytes(StandardCharsets.UTF_8));
+        Files.setLastModifiedTime(source, touched);
+        Assert.assertTrue(createLoader().load(new StateMachine<TestTrigger, TestContext>(new TestContext()), source, cache));
+    }
+
+    /**
+     * Tests that state classes are loaded through the context class loader of the thread by default.
+     */
+    @Test
+    public void shouldLoadStateClassesThroughContextClassLoader() {
+        final Thread thread = Thread.currentThread();
+        final ClassLoader contextClassLoader = thread.getContextClassLoader();
+        thread.setContextClassLoader(new ClassLoader(null) {
+            // Finds nothing but the classes of the JDK
+        });
+        try {
+            exception.expect(FsmException.class);
+            exception.expectMessage("State class se.danielkonsult.fsm4j.states.TestState5 could not be found");
+            createLoader().load(new StateMachine<TestTrigger, TestContext>(new TestContext()), new StringReader(DEFINITION));
+        } finally {
+            thread.setContextClassLoader(contextClassLoader);
+        }
+    }
+
+    @Test
+    public void shouldReportLineOfSyntaxError() {
+        exception.expect(FsmException.class);
+        exception.expectMessage("Line 2: a transition must have either a target state or be internal");
+        createLoader().load(new StateMachine<TestTrigger, TestContext>(new TestContext()),
+                new StringReader("state se.danielkonsult.fsm4j.states.TestState1 initial\n    on STATE1_SUCCESS when switched"));
+    }
+
+    @Test
+    public void shouldNotLoadUnregisteredGuard() {
+        exception.expect(FsmException.class);
+        exception.expectMessage("No guard named missing has been registered");
+        createLoader().load(new StateMachine<TestTrigger, TestContext>(new TestContext()), new StringReader(
+                "state " + TestState1.class.getName() + "\n    on STATE1_SUCCESS when missing goto " + TestState2.class.getName()));
+    }
+}
@@ -4,8 +4,10 @@ import static org.hamcrest.CoreMatchers.isA;
 
 import java.lang.reflect.Constructor;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
 
 import org.junit.Assert;
 import org.junit.Rule;
@@ -219,6 +221,117 @@ public class StateMachineTest {
         sm.trigger(TestTrigger.STATE2_SUCCESS);
     }
 
+    /**
+     * Tests that the first guard that evaluates to true is taken, without checking the rest, when guard verification is off.
+     */
+    @Test
+    public void shouldTakeFirstGuardThatEvaluatesToTrue() {
+        // Setup state machine and context
+        final TestContext testContext = new TestContext();
+        testContext.setTestSwitch(true);
+
+        final StateMachine<TestTrigger, TestContext> sm = new StateMachine<TestTrigger, TestContext>(testContext);
+        sm.setGuardVerification(false);
+        sm.state(TestState2.class).isInitialState()
+                .on(TestTrigger.STATE2_SUCCESS, ctx -> {
+                    return ctx.getTestSwitch();
+                }).goesTo(TestState3.class)
+                .on(TestTrigger.STATE2_SUCCESS, ctx -> {
+                    throw new AssertionError("Guard should not be evaluated");
+                }).goesTo(TestState4.class);
+        sm.start();
+
+        sm.trigger(TestTrigger.STATE2_SUCCESS);
+        Assert.assertEquals(TestState3.class, sm.getCurrentState().getClass());
+    }
+
+    /**
+     * Tests that keyed guards select the target state by the key that is extracted from the context, and that other guards are
+     * evaluated if no key matches.
+     */
+    @Test
+    public void shouldSelectTargetStateByKey() {
+        final Function<TestContext, Integer> counter = TestContext::getCounter;
+        final TestContext testContext = new TestContext();
+        final StateMachine<TestTrigger, TestContext> sm = new StateMachine<TestTrigger, TestContext>(testContext);
+        sm.state(TestState2.class).isInitialState()
+                .onWhen(TestTrigger.STATE2_SUCCESS, counter, 1).goesTo(TestState3.class)
+                .onWhen(TestTrigger.STATE2_SUCCESS, counter, 2).goesTo(TestState4.class)
+                .on(TestTrigger.STATE2_SUCCESS, ctx -> ctx.getCounter() > 2).goesTo(TestState1.class);
+        sm.state(TestState1.class).on(TestTrigger.STATE1_SUCCESS).goesTo(TestState2.class);
+        sm.state(TestState3.class).on(TestTrigger.STATE3_SUCCESS).goesTo(TestState2.class);
+        sm.state(TestState4.class).on(TestTrigger.STATE4_SUCCESS).goesTo(TestState2.class);
+        sm.start();
+
+        testContext.setCounter(2);
+        sm.trigger(TestTrigger.STATE2_SUCCESS);
+        Assert.assertEquals(TestState4.class, sm.getCurrentState().getClass());
+        sm.trigger(TestTrigger.STATE4_SUCCESS);
+
+        testContext.setCounter(1);
+        sm.trigger(TestTrigger.STATE2_SUCCESS);
+        Assert.assertEquals(TestState3.class, sm.getCurrentState().getClass());
+        sm.trigger(TestTrigger.STATE3_SUCCESS);
+
+        testContext.setCounter(5);
+        sm.trigger(TestTrigger.STATE2_SUCCESS);
+        Assert.assertEquals(TestState1.class, sm.getCurrentState().getClass());
+        sm.trigger(TestTrigger.STATE1_SUCCESS);
+
+        testContext.setCounter(0);
+        exception.expect(FsmException.class);
+        exception.expectMessage("No guard evaluates to true");
+        sm.trigger(TestTrigger.STATE2_SUCCESS);
+    }
+
+    /**
+     * Tests that keyed guards are evaluated in the order they were configured among the other guards of the trigger.
+     */
+    @Test
+    public void shouldEvaluateKeyedGuardsInConfiguredOrder() {
+        final Function<TestContext, Integer> counter = TestContext::getCounter;
+        final TestContext testContext = new TestContext();
+        final StateMachine<TestTrigger, TestContext> sm = new StateMachine<TestTrigger, TestContext>(testContext);
+        sm.state(TestState2.class).isInitialState()
+                .onWhen(TestTrigger.STATE2_SUCCESS, counter, 1).goesTo(TestState3.class)
+                .on(TestTrigger.STATE2_SUCCESS, ctx -> ctx.getCounter() < 3).goesTo(TestState1.class)
+                .onWhen(TestTrigger.STATE2_SUCCESS, counter, 2).goesTo(TestState4.class)
+                .onWhen(TestTrigger.STATE2_SUCCESS, counter, 3).goesTo(TestState4.class);
+        sm.state(TestState1.class).on(TestTrigger.STATE1_SUCCESS).goesTo(TestState2.class);
+        sm.state(TestState3.class).on(TestTrigger.STATE3_SUCCESS).goesTo(TestState2.class);
+        sm.state(TestState4.class).on(TestTrigger.STATE4_SUCCESS).goesTo(TestState2.class);
+        sm.setGuardVerification(false);
+        sm.start();
+
+        testContext.setCounter(1);
+        sm.trigger(TestTrigger.STATE2_SUCCESS);
+        Assert.assertEquals(TestState3.class, sm.getCurrentState().getClass());
+        sm.trigger(TestTrigger.STATE3_SUCCESS);
+
+        // The guard before it is true as well, so the key isn't looked up
+        testContext.setCounter(2);
+        sm.trigger(TestTrigger.STATE2_SUCCESS);
+        Assert.assertEquals(TestState1.class, sm.getCurrentState().getClass());
+        sm.trigger(TestTrigger.STATE1_SUCCESS);
+
+        testContext.setCounter(3);
+        sm.trigger(TestTrigger.STATE2_SUCCESS);
+        Assert.assertEquals(TestState4.class, sm.getCurrentState().getClass());
+    }
+
+    @Test
+    public void shouldThrowOnSameKeyWithTwoTargetStates() {
+        final Function<TestContext, Integer> counter = TestContext::getCounter;
+        final StateMachine<TestTrigger, TestContext> sm = new StateMachine<TestTrigger, TestContext>(new TestContext());
+        sm.state(TestState2.class).isInitialState()
+                .onWhen(TestTrigger.STATE2_SUCCESS, counter, 1).goesTo(TestState3.class)
+                .onWhen(TestTrigger.STATE2_SUCCESS, counter, 1).goesTo(TestState4.class);
+
+        exception.expect(FsmException.class);
+        exception.expectMessage("more than one target state for key 1");
+        sm.compile();
+    }
+
     /**
      * Tests that the default InvalidTriggerHandler throws an exception if no matching trigger is found for the current state.
      */
@@ -234,7 +347,8 @@ public class StateMachineTest {
         sm.start();
         sm.test();
 
-        exception.expect(FsmException.class);
+        exception.expect(InvalidTriggerException.class);
+        exception.expectMessage("Trigger STATE2_SUCCESS is not valid for state TestState1");
         sm.trigger(TestTrigger.STATE2_SUCCESS);
     }
 
@@ -269,6 +383,73 @@ public class StateMachineTest {
         Assert.assertEquals(sm.getCurrentState().getClass(), TestState1.class);
     }
 
+    /**
+     * Tests that trigger() reports whether a trigger caused a transition or was invalid, and that invalid triggers can be counted
+     * instead of being passed to the listener.
+     */
+    @Test
+    public void shouldCountInvalidTriggers() {
+        final StateMachine<TestTrigger, TestContext> sm = new StateMachine<TestTrigger, TestContext>(new TestContext());
+        sm.setInvalidTriggerPolicy(InvalidTriggerPolicy.COUNT);
+        sm.state(TestState1.class).isInitialState()
+                .on(TestTrigger.STATE1_SUCCESS).goesTo(TestState2.class);
+        sm.state(TestState2.class)
+                .on(TestTrigger.STATE2_SUCCESS).goesTo(TestState1.class);
+        sm.start();
+
+        Assert.assertEquals(TriggerResult.INVALID, sm.trigger(TestTrigger.STATE2_SUCCESS));
+        Assert.assertEquals(TriggerResult.INVALID, sm.trigger(TestTrigger.STATE4_FAIL));
+        Assert.assertEquals(TriggerResult.TRANSITIONED, sm.trigger(TestTrigger.STATE1_SUCCESS));
+        Assert.assertEquals(TestState2.class, sm.getCurrentState().getClass());
+        Assert.assertEquals(2, sm.getInvalidTriggerCount());
+    }
+
+    /**
+     * Tests that the THROW policy throws a stackless exception even if there is a listener, and that the IGNORE policy neither
+     * throws nor notifies the listener.
+     */
+    @Test
+    public void shouldApplyInvalidTriggerPolicy() {
+        final AtomicReference<TestTrigger> notified = new AtomicReference<>();
+        final StateMachine<TestTrigger, TestContext> sm = new StateMachine<TestTrigger, TestContext>(new TestContext());
+        sm.setListener(new StateMachineListener<TestTrigger, TestContext>() {
+
+            @Override
+            public void onInvalidTrigger(final TestContext context, final TestTrigger trigger,
+                    final Class<? extends FsmState<TestTrigger, TestContext>> stateClass) {
+                notified.set(trigger);
+            }
+        });
+        sm.state(TestState1.class).isInitialState()
+                .on(TestTrigger.STATE1_SUCCESS).goesTo(TestState2.class);
+        sm.state(TestState2.class)
+                .on(TestTrigger.STATE2_SUCCESS).goesTo(TestState1.class);
+
+        final StateMachineDefinition<TestTrigger, TestContext> definition = sm.getDefinition();
+        sm.setInvalidTriggerPolicy(InvalidTriggerPolicy.IGNORE);
+        final StateMachineInstance<TestTrigger, TestContext> ignoring = sm.getDefinition().newInstance(new TestContext());
+        ignoring.start();
+        Assert.assertEquals(TriggerResult.INVALID, ignoring.trigger(TestTrigger.STATE2_SUCCESS));
+        Assert.assertEquals(0, ignoring.getInvalidTriggerCount());
+        Assert.assertNull(notified.get());
+
+        final StateMachineInstance<TestTrigger, TestContext> notifying = definition.newInstance(new TestContext());
+        notifying.start();
+        Assert.assertEquals(TriggerResult.INVALID, notifying.trigger(TestTrigger.STATE2_SUCCESS));
+        Assert.assertEquals(TestTrigger.STATE2_SUCCESS, notified.get());
+
+        sm.setInvalidTriggerPolicy(InvalidTriggerPolicy.THROW);
+        sm.start();
+        try {
+            sm.trigger(TestTrigger.STATE2_SUCCESS);
+            Assert.fail("An invalid trigger should throw");
+        } catch (final InvalidTriggerException e) {
+            Assert.assertEquals("Trigger STATE2_SUCCESS is not valid for state TestState1", e.getMessage());
+            Assert.assertEquals(TestState1.class, e.getStateClass());
+            Assert.assertEquals(0, e.getStackTrace().length);
+        }
+    }
+
     /**
      * Tests that a state class without a parameterless constructor is correctly handled.
      *
@@ -483,4 +664,291 @@ public class StateMachineTest {
         sm.test();
     }
 
+    /**
+     * Tests that the configuration is compiled into a transition table with dense state and trigger ids, and that it can't be
+     * changed after that.
+     */
+    @Test
+    public void shouldCompileIntoTransitionTable() {
+        final StateMachine<TestTrigger, TestContext> sm = new StateMachine<TestTrigger, TestContext>(new TestContext());
+        sm.state(TestState1.class).isInitialState()
+                .on(TestTrigger.STATE1_SUCCESS).goesTo(TestState2.class)
+                .on(TestTrigger.STATE1_FAIL).goesTo(TestState4.class);
+
+        final TransitionTable<TestTrigger, TestContext> table = sm.compile();
+
+        Assert.assertEquals(3, table.getStateCount());
+        Assert.assertEquals(TestTrigger.values().length, table.getTriggerCount());
+        Assert.assertEquals(0, table.getInitialStateId());
+        Assert.assertEquals(TestTrigger.STATE1_FAIL.ordinal(), table.triggerId(TestTrigger.STATE1_FAIL));
+        Assert.assertEquals(table.stateId(TestState4.class),
+                table.resolve(table.stateId(TestState1.class), table.triggerId(TestTrigger.STATE1_FAIL), null));
+        Assert.assertEquals(TransitionTable.NO_TRANSITION,
+                table.resolve(table.stateId(TestState2.class), table.triggerId(TestTrigger.STATE1_FAIL), null));
+
+        exception.expect(FsmException.class);
+        sm.state(TestState2.class);
+    }
+
+    /**
+     * Tests that triggers that aren't enums are mapped to ids as well.
+     */
+    @Test
+    public void shouldHandleNonEnumTriggers() {
+        final StateMachine<String, TestContext> sm = new StateMachine<String, TestContext>(new TestContext());
+        sm.state(StringState1.class).isInitialState()
+                .on("next").goesTo(StringState2.class);
+        sm.state(StringState2.class)
+                .on("back").goesTo(StringState1.class);
+
+        sm.start();
+        Assert.assertEquals(2, sm.compile().getTriggerCount());
+
+        sm.trigger("next");
+        Assert.assertEquals(StringState2.class, sm.getCurrentState().getClass());
+        sm.trigger("back");
+        Assert.assertEquals(StringState1.class, sm.getCurrentState().getClass());
+
+        exception.expect(FsmException.class);
+        sm.trigger("unknown");
+    }
+
+    /**
+     * Tests that several lightweight instances can run independently on one shared definition.
+     */
+    @Test
+    public void shouldShareDefinitionBetweenInstances() {
+        final StateMachine<TestTrigger, TestContext> sm = new StateMachine<TestTrigger, TestContext>();
+        sm.state(TestState1.class).isInitialState()
+                .on(TestTrigger.STATE1_SUCCESS).goesTo(TestState2.class);
+        sm.state(TestState2.class)
+                .on(TestTrigger.STATE2_SUCCESS).goesTo(TestState1.class);
+
+        final StateMachineDefinition<TestTrigger, TestContext> definition = sm.getDefinition();
+        final TestContext context1 = new TestContext();
+        final TestContext context2 = new TestContext();
+        final StateMachineInstance<TestTrigger, TestContext> instance1 = definition.newInstance(context1);
+        final StateMachineInstance<TestTrigger, TestContext> instance2 = definition.newInstance(context2);
+
+        instance1.start();
+        instance2.start();
+        instance1.trigger(TestTrigger.STATE1_SUCCESS);
+
+        Assert.assertEquals(TestState2.class, instance1.getCurrentState().getClass());
+        Assert.assertEquals(TestState1.class, instance2.getCurrentState().getClass());
+        Assert.assertSame(context1, instance1.getContext());
+        Assert.assertEquals(3, context1.getLogs().length);
+        Assert.assertEquals(1, context2.getLogs().length);
+
+        // The configuration belongs to the definition and can't be changed through an instance
+        exception.expect(FsmException.class);
+        instance1.state(TestState3.class);
+    }
+
+    /**
+     * Tests that the lifecycle of a state determines whether a new state instance is resolved when it's entered.
+     */
+    @Test
+    public void shouldReuseStatesAccordingToLifecycle() {
+        final StateMachine<TestTrigger, TestContext> sm = new StateMachine<TestTrigger, TestContext>();
+        sm.state(TestState1.class).isInitialState().lifecycle(StateLifecycle.SINGLETON)
+                .on(TestTrigger.STATE1_SUCCESS).goesTo(TestState2.class)
+                .on(TestTrigger.STATE1_FAIL).goesTo(TestState3.class);
+        sm.state(TestState2.class).lifecycle(StateLifecycle.PER_MACHINE)
+                .on(TestTrigger.STATE2_SUCCESS).goesTo(TestState1.class);
+        sm.state(TestState3.class).lifecycle(StateLifecycle.POOLED)
+                .on(TestTrigger.STATE3_SUCCESS).goesTo(TestState4.class);
+        sm.state(TestState4.class)
+                .on(TestTrigger.STATE4_SUCCESS).goesTo(TestState1.class);
+
+        final StateMachineDefinition<TestTrigger, TestContext> definition = sm.getDefinition();
+        final StateMachineInstance<TestTrigger, TestContext> instance1 = definition.newInstance(new TestContext());
+        final StateMachineInstance<TestTrigger, TestContext> instance2 = definition.newInstance(new TestContext());
+        instance1.start();
+        instance2.start();
+
+        // Singletons are shared between all instances
+        final FsmState<TestTrigger, TestContext> singleton = instance1.getCurrentState();
+        Assert.assertSame(singleton, instance2.getCurrentState());
+
+        // Per machine states are reused by the same instance only
+        instance1.trigger(TestTrigger.STATE1_SUCCESS);
+        instance2.trigger(TestTrigger.STATE1_SUCCESS);
+        final FsmState<TestTrigger, TestContext> perMachine = instance1.getCurrentState();
+        Assert.assertNotSame(perMachine, instance2.getCurrentState());
+        instance1.trigger(TestTrigger.STATE2_SUCCESS);
+        Assert.assertSame(singleton, instance1.getCurrentState());
+        instance1.trigger(TestTrigger.STATE1_SUCCESS);
+        Assert.assertSame(perMachine, instance1.getCurrentState());
+
+        // Pooled states are handed back when they are exited
+        instance2.trigger(TestTrigger.STATE2_SUCCESS);
+        instance2.trigger(TestTrigger.STATE1_FAIL);
+        final FsmState<TestTrigger, TestContext> pooled = instance2.getCurrentState();
+        instance2.trigger(TestTrigger.STATE3_SUCCESS);
+        instance2.trigger(TestTrigger.STATE4_SUCCESS);
+        instance2.trigger(TestTrigger.STATE1_FAIL);
+        Assert.assertSame(pooled, instance2.getCurrentState());
+
+        // Per entry states are resolved every time
+        instance2.trigger(TestTrigger.STATE3_SUCCESS);
+        final FsmState<TestTrigger, TestContext> perEntry = instance2.getCurrentState();
+        instance2.trigger(TestTrigger.STATE4_SUCCESS);
+        instance2.trigger(TestTrigger.STATE1_FAIL);
+        instance2.trigger(TestTrigger.STATE3_SUCCESS);
+        Assert.assertNotSame(perEntry, instance2.getCurrentState());
+    }
+
+    /**
+     * Tests that the exiting() and entering() order is kept in run-to-completion mode, where triggers fired inside entering()
+     * are queued instead of fired recursively.
+     */
+    @Test
+    public void shouldKeepCorrectOrderOnEntersAndExitsInRunToCompletionMode() {
+        final TestContext testContext = new TestContext();
+        final StateMachine<TestTrigger, TestContext> sm = new StateMachine<TestTrigger, TestContext>(testContext);
+        sm.setRunToCompletion(true);
+
+        sm.state(TestState7.class).isInitialState()
+                .on(TestTrigger.STATE7_SUCCESS).goesTo(TestState8.class);
+        sm.state(TestState8.class)
+                .on(TestTrigger.STATE8_SUCCESS).goesTo(TestState2.class);
+
+        sm.start();
+        sm.stop();
+
+        final String[] logs = testContext.getLogs();
+
+        Assert.assertEquals(6, logs.length);
+        Assert.assertEquals("Entering TestState7", logs[0]);
+        Assert.assertEquals("Exiting TestState7", logs[1]);
+        Assert.assertEquals("Entering TestState8", logs[2]);
+        Assert.assertEquals("Exiting TestState8", logs[3]);
+        Assert.assertEquals("Entering TestState2", logs[4]);
+        Assert.assertEquals("Exiting TestState2", logs[5]);
+    }
+
+    /**
+     * Tests that a long chain of triggers fired from inside entering() doesn't grow the stack in run-to-completion mode.
+     */
+    @Test
+    public void shouldRunLongChainsWithoutGrowingStack() {
+        final TestContext testContext = new TestContext();
+        testContext.setCounter(1000000);
+
+        final StateMachine<TestTrigger, TestContext> sm = new StateMachine<TestTrigger, TestContext>(testContext);
+        sm.setRunToCompletion(true);
+        sm.state(CountdownState.class).isInitialState().lifecycle(StateLifecycle.SINGLETON)
+                .on(TestTrigger.STATE1_SUCCESS).goesTo(CountdownState.class);
+
+        sm.start();
+
+        Assert.assertEquals(0, testContext.getCounter());
+    }
+
+    private static StateMachine<TestTrigger, TestContext> createLoopStateMachine(final TestContext testContext,
+            final List<String> transitions) {
+        final StateMachine<TestTrigger, TestContext> sm = new StateMachine<TestTrigger, TestContext>(testContext);
+        sm.setListener(new StateMachineListener<TestTrigger, TestContext>() {
+
+            @Override
+            public void onTransitioning(final TestContext context,
+                    final Class<? extends FsmState<TestTrigger, TestContext>> sourceState,
+                    final Class<? extends FsmState<TestTrigger, TestContext>> targetState) {
+                transitions.add(String.format("%s -> %s",
+                        sourceState != null ? sourceState.getSimpleName() : "null",
+                        targetState != null ? targetState.getSimpleName() : "null"));
+            }
+
+            @Override
+            public void onInvalidTrigger(final TestContext context, final TestTrigger trigger,
+                    final Class<? extends FsmState<TestTrigger, TestContext>> stateClass) {
+                // Ignore
+            }
+        });
+        sm.state(TestState1.class).isInitialState()
+                .on(TestTrigger.STATE1_SUCCESS).goesTo(TestState2.class);
+        sm.state(TestState2.class)
+                .on(TestTrigger.STATE2_SUCCESS).goesTo(TestState3.class);
+        sm.state(TestState3.class)
+                .on(TestTrigger.STATE3_SUCCESS).goesTo(TestState1.class);
+        return sm;
+    }
+
+    /**
+     * Tests that a batch of triggers has the same effect as firing them one by one.
+     */
+    @Test
+    public void shouldFireBatchOfTriggers() {
+        final TestContext testContext = new TestContext();
+        final List<String> transitions = new ArrayList<>();
+        final StateMachine<TestTrigger, TestContext> sm = createLoopStateMachine(testContext, transitions);
+        sm.start();
+
+        final BatchResult<TestTrigger, TestContext> result = sm.triggerAll(Arrays.asList(TestTrigger.STATE1_SUCCESS,
+                TestTrigger.STATE2_SUCCESS, TestTrigger.STATE4_FAIL, TestTrigger.STATE3_SUCCESS, TestTrigger.STATE1_SUCCESS));
+
+        Assert.assertEquals(TestState2.class, result.getStateClass());
+        Assert.assertEquals(4, result.getTransitionCount());
+        Assert.assertEquals(TestState2.class, sm.getCurrentState().getClass());
+        Assert.assertEquals(9, testContext.getLogs().length);
+        Assert.assertEquals(5, transitions.size());
+    }
+
+    /**
+     * Tests that intermediate states of a batch can be skipped, while the listener still gets every transition.
+     */
+    @Test
+    public void shouldSkipIntermediateStatesOfBatch() {
+        final TestContext testContext = new TestContext();
+        final List<String> transitions = new ArrayList<>();
+        final StateMachine<TestTrigger, TestContext> sm = createLoopStateMachine(testContext, transitions);
+        sm.start();
+
+        final TestTrigger[] triggers = { TestTrigger.STATE4_FAIL, TestTrigger.STATE1_SUCCESS, TestTrigger.STATE2_SUCCESS,
+                TestTrigger.STATE3_SUCCESS, TestTrigger.STATE1_SUCCESS, TestTrigger.STATE4_FAIL };
+        final BatchResult<TestTrigger, TestContext> result = sm.triggerAll(triggers, 1, 4, true);
+
+        Assert.assertEquals(TestState2.class, result.getStateClass());
+        Assert.assertEquals(4, result.getTransitionCount());
+
+        final String[] logs = testContext.getLogs();
+        Assert.assertEquals(3, logs.length);
+        Assert.assertEquals("Entering TestState1", logs[0]);
+        Assert.assertEquals("Exiting TestState1", logs[1]);
+        Assert.assertEquals("Entering TestState2", logs[2]);
+
+        Assert.assertEquals(Arrays.asList("null -> TestState1", "TestState1 -> TestState2", "TestState2 -> TestState3",
+                "TestState3 -> TestState1", "TestState1 -> TestState2"), transitions);
+    }
+
+    /**
+     * Test state that fires a trigger leading back to itself until the counter in the context has reached zero.
+     */
+    public static class CountdownState implements FsmState<TestTrigger, TestContext> {
+        @Override
+        public void entering(final StateMachine<TestTrigger, TestContext> stateMachine, final TestContext context) {
+            if (context.getCounter() > 0) {
+                context.setCounter(context.getCounter() - 1);
+                stateMachine.trigger(TestTrigger.STATE1_SUCCESS);
+            }
+        }
+
+        @Override
+        public void exiting() {
+        }
+    }
+
+    public static class StringState1 implements FsmState<String, TestContext> {
+        @Override
+        public void entering(final StateMachine<String, TestContext> stateMachine, final TestContext context) {
+        }
+
+        @Override
+        public void exiting() {
+        }
+    }
+
+    public static class StringState2 extends StringState1 {
+    }
 }
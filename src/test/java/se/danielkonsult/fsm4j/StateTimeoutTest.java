@@ -0,0 +1,297 @@
+package se.danielkonsult.fsm4j;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import se.danielkonsult.fsm4j.states.TestState1;
+import se.danielkonsult.fsm4j.states.TestState2;
+import se.danielkonsult.fsm4j.states.TestState3;
+import se.danielkonsult.fsm4j.states.TestState5;
+
+/**
+ * Tests of states with timeouts, driven by a timing wheel on a manual clock.
+ */
+public class StateTimeoutTest {
+
+    @Rule
+    public ExpectedException exception = ExpectedException.none();
+
+    private ManualNanoClock clock;
+    private TimingWheel timingWheel;
+
+    @Before
+    public void setUp() {
+        clock = new ManualNanoClock();
+        timingWheel = new TimingWheel(100, TimeUnit.MILLISECONDS, 8, clock);
+    }
+
+    /**
+     * Creates a state machine where TestState2 goes back to TestState1 after 10 seconds, unless it gets STATE2_SUCCESS first.
+     */
+    private StateMachine<TestTrigger, TestContext> createStateMachine() {
+        final StateMachine<TestTrigger, TestContext> sm = new StateMachine<TestTrigger, TestContext>(new TestContext());
+        sm.setTimingWheel(timingWheel);
+        sm.state(TestState1.class).isInitialState()
+                .on(TestTrigger.STATE1_SUCCESS).goesTo(TestState2.class);
+        sm.state(TestState2.class).after(Duration.ofSeconds(10), TestTrigger.STATE2_FAIL)
+                .on(TestTrigger.STATE2_FAIL).goesTo(TestState1.class)
+                .on(TestTrigger.STATE2_SUCCESS).goesTo(TestState3.class);
+        sm.state(TestState3.class)
+                .on(TestTrigger.STATE3_SUCCESS).goesTo(TestState2.class);
+        return sm;
+    }
+
+    private void advance(final long seconds) {
+        clock.advance(seconds, TimeUnit.SECONDS);
+        timingWheel.advance();
+    }
+
+    @Test
+    public void shouldFireTriggerWhenTimeoutExpires() {
+        final StateMachine<TestTrigger, TestContext> sm = createStateMachine();
+        sm.start();
+        sm.trigger(TestTrigger.STATE1_SUCCESS);
+
+        advance(9);
+        Assert.assertEquals(0, sm.pollTimeouts());
+        Assert.assertEquals(TestState2.class, sm.getCurrentState().getClass());
+        advance(1);
+        // The wheel only marks the timeout as expired, it's fired by the thread that owns the state machine
+        Assert.assertEquals(TestState2.class, sm.getCurrentState().getClass());
+        Assert.assertEquals(1, sm.pollTimeouts());
+        Assert.assertEquals(TestState1.class, sm.getCurrentState().getClass());
+        Assert.assertEquals(0, timingWheel.getScheduledCount());
+    }
+
+    @Test
+    public void shouldCancelTimeoutWhenStateIsExited() {
+        final StateMachine<TestTrigger, TestContext> sm = createStateMachine();
+        sm.start();
+        sm.trigger(TestTrigger.STATE1_SUCCESS);
+        sm.trigger(TestTrigger.STATE2_SUCCESS);
+        Assert.assertEquals(0, timingWheel.getScheduledCount());
+
+        advance(20);
+        Assert.assertEquals(0, sm.pollTimeouts());
+        Assert.assertEquals(TestState3.class, sm.getCurrentState().getClass());
+    }
+
+    /**
+     * Tests that the timeout starts over when the state is entered again, also when the new deadline is more than a full turn of
+     * the wheel away.
+     */
+    @Test
+    public void shouldRestartTimeoutWhenStateIsEnteredAgain() {
+        final StateMachine<TestTrigger, TestContext> sm = createStateMachine();
+        sm.start();
+        sm.trigger(TestTrigger.STATE1_SUCCESS);
+        advance(5);
+        sm.trigger(TestTrigger.STATE2_SUCCESS);
+        sm.trigger(TestTrigger.STATE3_SUCCESS);
+
+        advance(6);
+        sm.pollTimeouts();
+        Assert.assertEquals(TestState2.class, sm.getCurrentState().getClass());
+        advance(4);
+        sm.pollTimeouts();
+        Assert.assertEquals(TestState1.class, sm.getCurrentState().getClass());
+    }
+
+    /**
+     * Tests that the timeout of a parent state keeps running while the state machine moves between its nested states.
+     */
+    @Test
+    public void shouldKeepTimeoutOfParentState() {
+        final StateMachine<TestTrigger, TestContext> sm = new StateMachine<TestTrigger, TestContext>(new TestContext());
+        sm.setTimingWheel(timingWheel);
+        sm.state(TestState5.class).after(Duration.ofSeconds(30), TestTrigger.STATE1_FAIL)
+                .on(TestTrigger.STATE1_FAIL).goesTo(TestState3.class);
+        sm.state(TestState1.class).parent(TestState5.class).isInitialState()
+                .on(TestTrigger.STATE1_SUCCESS).goesTo(TestState2.class);
+        sm.state(TestState2.class).parent(TestState5.class)
+                .on(TestTrigger.STATE2_SUCCESS).goesTo(TestState1.class);
+        sm.state(TestState3.class);
+        sm.start();
+
+        for (int i = 0; i < 14; i++) {
+            advance(1);
+            sm.trigger(TestTrigger.STATE1_SUCCESS);
+            advance(1);
+            sm.trigger(TestTrigger.STATE2_SUCCESS);
+        }
+        Assert.assertEquals(TestState1.class, sm.getCurrentState().getClass());
+        advance(2);
+        sm.pollTimeouts();
+        Assert.assertEquals(TestState3.class, sm.getCurrentState().getClass());
+    }
+
+    /**
+     * Tests that an expired timeout is fired before the next trigger of the owning thread, which then applies to the state that
+     * the timeout led to.
+     */
+    @Test
+    public void shouldFireExpiredTimeoutBeforeNextTrigger() {
+        final StateMachine<TestTrigger, TestContext> sm = createStateMachine();
+        sm.start();
+        sm.trigger(TestTrigger.STATE1_SUCCESS);
+
+        advance(10);
+        sm.trigger(TestTrigger.STATE1_SUCCESS);
+        Assert.assertEquals(TestState2.class, sm.getCurrentState().getClass());
+        Assert.assertEquals(1, timingWheel.getScheduledCount());
+    }
+
+    /**
+     * A state that records whether it's ever entered or exited by another thread than the one that owns the state machine.
+     */
+    public static class OwnedState implements FsmState<TestTrigger, TestContext> {
+
+        static volatile Thread owner;
+        static final AtomicInteger FOREIGN_CALLS = new AtomicInteger();
+
+        @Override
+        public void entering(final StateMachine<TestTrigger, TestContext> stateMachine, final TestContext context) {
+            if (Thread.currentThread() != owner) {
+                FOREIGN_CALLS.incrementAndGet();
+            }
+            context.setCounter(context.getCounter() + 1);
+        }
+
+        @Override
+        public void exiting() {
+            if (Thread.currentThread() != owner) {
+                FOREIGN_CALLS.incrementAndGet();
+            }
+        }
+    }
+
+    public static class OwnedTimedOutState extends OwnedState {
+    }
+
+    /**
+     * Tests that timeouts that expire on the thread of a running wheel, while the owning thread keeps firing triggers, are only
+     * ever fired by the owning thread.
+     */
+    @Test
+    public void shouldNotFireTimeoutsOnWheelThread() throws InterruptedException {
+        final TimingWheel runningWheel = new TimingWheel(1, TimeUnit.MILLISECONDS, 64, NanoClock.SYSTEM).start();
+        try {
+            OwnedState.owner = Thread.currentThread();
+            OwnedState.FOREIGN_CALLS.set(0);
+            final StateMachine<TestTrigger, TestContext> sm = new StateMachine<TestTrigger, TestContext>(new TestContext());
+            sm.setTimingWheel(runningWheel);
+            sm.setInvalidTriggerPolicy(InvalidTriggerPolicy.IGNORE);
+            sm.state(OwnedState.class).isInitialState().after(Duration.ofMillis(1), TestTrigger.STATE1_FAIL)
+                    .on(TestTrigger.STATE1_SUCCESS).goesTo(OwnedState.class)
+                    .on(TestTrigger.STATE1_FAIL).goesTo(OwnedTimedOutState.class);
+            sm.state(OwnedTimedOutState.class)
+                    .on(TestTrigger.STATE2_SUCCESS).goesTo(OwnedState.class);
+            sm.start();
+
+            int timedOut = 0;
+            final long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(300);
+            while (System.nanoTime() - end < 0) {
+                sm.trigger(TestTrigger.STATE1_SUCCESS);
+                if (sm.getCurrentState() instanceof OwnedTimedOutState) {
+                    timedOut++;
+                    sm.trigger(TestTrigger.STATE2_SUCCESS);
+                }
+                if (timedOut % 8 == 0) {
+                    // Give the timeout a chance to expire
+                    Thread.sleep(2);
+                }
+            }
+
+            Assert.assertEquals(0, OwnedState.FOREIGN_CALLS.get());
+            Assert.assertTrue(timedOut > 0);
+        } finally {
+            runningWheel.close();
+        }
+    }
+
+    @Test
+    public void shouldThrowOnUnhandledTimeoutTrigger() {
+        final StateMachine<TestTrigger, TestContext> sm = new StateMachine<TestTrigger, TestContext>(new TestContext());
+        sm.state(TestState1.class).isInitialState().after(Duration.ofSeconds(1), TestTrigger.STATE1_FAIL)
+                .on(TestTrigger.STATE1_SUCCESS).goesTo(TestState1.class);
+
+        exception.expect(FsmException.class);
+        exception.expectMessage("The timeout trigger STATE1_FAIL of state TestState1 isn't handled by the state");
+        sm.compile();
+    }
+
+    /**
+     * Tests that the timeouts of state machines in an engine are fired by the shard that the state machine belongs to.
+     */
+    @Test
+    public void shouldFireTimeoutsInEngine() throws Exception {
+        final StateMachineEngine<Integer, TestTrigger, TestContext> engine = new StateMachineEngine<>(
+                createStateMachine().getDefinition(), key -> new TestContext(), 2);
+        engine.start();
+        try {
+            for (int key = 0; key < 10; key++) {
+                engine.trigger(key, TestTrigger.STATE1_SUCCESS);
+            }
+            engine.trigger(0, TestTrigger.STATE2_SUCCESS);
+            for (int key = 0; key < 10; key++) {
+                Assert.assertNotNull(engine.query(key, sm -> sm.getCurrentState()).get(5, TimeUnit.SECONDS));
+            }
+            Assert.assertEquals(9, timingWheel.getScheduledCount());
+
+            advance(10);
+            Assert.assertEquals(TestState3.class, engine.query(0, sm -> sm.getCurrentState().getClass()).get(5, TimeUnit.SECONDS));
+            for (int key = 1; key < 10; key++) {
+                Assert.assertEquals(TestState1.class,
+                        engine.query(key, sm -> sm.getCurrentState().getClass()).get(5, TimeUnit.SECONDS));
+            }
+        } finally {
+            engine.stop();
+        }
+    }
+
+    /**
+     * Tests that the timeout of a passivated state machine keeps running from where it was, and restores the state machine to
+     * fire when it expires.
+     */
+    @Test
+    public void shouldKeepTimeoutsOfPassivatedStateMachines() throws Exception {
+        final StateMachineEngine<Integer, TestTrigger, TestContext> engine = new StateMachineEngine<>(
+                createStateMachine().getDefinition(), key -> new TestContext(), 1);
+        engine.setPassivationStore(new MapPassivationStore<>());
+        engine.start();
+        try {
+            engine.trigger(1, TestTrigger.STATE1_SUCCESS);
+            engine.trigger(2, TestTrigger.STATE1_SUCCESS);
+            Assert.assertNotNull(engine.query(2, sm -> sm.getCurrentState()).get(5, TimeUnit.SECONDS));
+            advance(4);
+            engine.passivate(1);
+            engine.passivate(2);
+            Assert.assertNull(engine.query(3, sm -> sm).get(5, TimeUnit.SECONDS));
+            Assert.assertEquals(2, engine.getPassivatedCount());
+
+            // Restored before the deadline, the timeout runs on with the time it had left
+            advance(4);
+            Assert.assertEquals(TestState2.class, engine.query(1, sm -> sm.getCurrentState().getClass()).get(5, TimeUnit.SECONDS));
+            advance(2);
+            Assert.assertEquals(TestState1.class, engine.query(1, sm -> sm.getCurrentState().getClass()).get(5, TimeUnit.SECONDS));
+
+            // Still passivated at the deadline, the state machine is restored to fire the timeout
+            final long deadline = System.currentTimeMillis() + 5000;
+            while (engine.getPassivatedCount() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals(0, engine.getPassivatedCount());
+            Assert.assertEquals(TestState1.class, engine.query(2, sm -> sm.getCurrentState().getClass()).get(5, TimeUnit.SECONDS));
+            Assert.assertEquals(0, timingWheel.getScheduledCount());
+        } finally {
+            engine.stop();
+        }
+    }
+}
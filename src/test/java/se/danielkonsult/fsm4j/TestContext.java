@@ -6,6 +6,7 @@ import java.util.List;
 public class TestContext {
 
     private boolean testSwitch;
+    private int counter;
     private List<String> logs = new ArrayList<>();
 
 	public void addLog(String text) {
@@ -31,4 +32,12 @@ public class TestContext {
     public void setTestSwitch(final boolean testSwitch) {
         this.testSwitch = testSwitch;
     }
+
+    public int getCounter() {
+        return counter;
+    }
+
+    public void setCounter(final int counter) {
+        this.counter = counter;
+    }
 }
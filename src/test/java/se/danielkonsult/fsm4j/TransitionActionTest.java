@@ -0,0 +1,122 @@
+package se.danielkonsult.fsm4j;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import se.danielkonsult.fsm4j.states.TestState1;
+import se.danielkonsult.fsm4j.states.TestState2;
+import se.danielkonsult.fsm4j.states.TestState3;
+import se.danielkonsult.fsm4j.states.TestState5;
+
+/**
+ * Tests of actions on transitions, and of internal transitions.
+ */
+public class TransitionActionTest {
+
+    @Rule
+    public ExpectedException exception = ExpectedException.none();
+
+    /**
+     * Tests that the action of a transition is executed after the source state has been exited and before the target state is
+     * entered, with the payload of the trigger.
+     */
+    @Test
+    public void shouldExecuteActionBetweenExitingAndEntering() {
+        final TestContext testContext = new TestContext();
+        final StateMachine<TestTrigger, TestContext> sm = new StateMachine<TestTrigger, TestContext>(testContext);
+        sm.state(TestState1.class).isInitialState()
+                .on(TestTrigger.STATE1_SUCCESS).doing((context, payload) -> context.addLog("Doing " + payload))
+                .goesTo(TestState2.class);
+        sm.state(TestState2.class)
+                .on(TestTrigger.STATE2_SUCCESS).goesTo(TestState1.class);
+        sm.start();
+
+        sm.trigger(TestTrigger.STATE1_SUCCESS, "coin");
+        sm.trigger(TestTrigger.STATE2_SUCCESS);
+
+        Assert.assertEquals(Arrays.asList("Entering TestState1", "Exiting TestState1", "Doing coin", "Entering TestState2",
+                "Exiting TestState2", "Entering TestState1"), Arrays.asList(testContext.getLogs()));
+    }
+
+    /**
+     * Tests that an internal transition executes its action without exiting, resolving or entering any state, and without
+     * notifying the listener.
+     */
+    @Test
+    public void shouldStayInStateOnInternalTransition() {
+        final TestContext testContext = new TestContext();
+        final List<String> transitions = new ArrayList<>();
+        final StateMachine<TestTrigger, TestContext> sm = new StateMachine<TestTrigger, TestContext>(testContext);
+        sm.state(TestState1.class).isInitialState()
+                .on(TestTrigger.STATE1_SUCCESS).internal((context, payload) -> context.setCounter(context.getCounter() + 1))
+                .on(TestTrigger.STATE1_FAIL).goesTo(TestState2.class);
+        sm.state(TestState2.class);
+        sm.setListener(new StateMachineListener<TestTrigger, TestContext>() {
+            @Override
+            public void onTransitioning(final TestContext context,
+                    final Class<? extends FsmState<TestTrigger, TestContext>> sourceState,
+                    final Class<? extends FsmState<TestTrigger, TestContext>> targetState) {
+                transitions.add(targetState.getSimpleName());
+            }
+        });
+        sm.start();
+        final FsmState<TestTrigger, TestContext> state = sm.getCurrentState();
+
+        for (int i = 0; i < 3; i++) {
+            Assert.assertEquals(TriggerResult.TRANSITIONED, sm.trigger(TestTrigger.STATE1_SUCCESS));
+        }
+
+        Assert.assertSame(state, sm.getCurrentState());
+        Assert.assertEquals(3, testContext.getCounter());
+        Assert.assertEquals(Arrays.asList("Entering TestState1"), Arrays.asList(testContext.getLogs()));
+        Assert.assertEquals(Arrays.asList("TestState1"), transitions);
+        final TransitionTable<TestTrigger, TestContext> table = sm.compile();
+        Assert.assertEquals(table.stateId(TestState1.class),
+                table.resolve(table.stateId(TestState1.class), table.triggerId(TestTrigger.STATE1_SUCCESS), testContext));
+    }
+
+    /**
+     * Tests that guarded internal and external transitions can be mixed for the same trigger, and that an internal transition
+     * inherited from a parent keeps the nested state current.
+     */
+    @Test
+    public void shouldMixGuardedAndInheritedInternalTransitions() {
+        final TestContext testContext = new TestContext();
+        final StateMachine<TestTrigger, TestContext> sm = new StateMachine<TestTrigger, TestContext>(testContext);
+        sm.state(TestState5.class)
+                .on(TestTrigger.STATE1_SUCCESS, context -> context.getCounter() < 2)
+                .internal((context, payload) -> context.setCounter(context.getCounter() + 1))
+                .on(TestTrigger.STATE1_SUCCESS, context -> context.getCounter() >= 2).goesTo(TestState3.class);
+        sm.state(TestState1.class).parent(TestState5.class).isInitialState();
+        sm.state(TestState3.class)
+                .on(TestTrigger.STATE3_SUCCESS).goesTo(TestState1.class);
+        sm.start();
+
+        sm.trigger(TestTrigger.STATE1_SUCCESS);
+        sm.trigger(TestTrigger.STATE1_SUCCESS);
+        Assert.assertEquals(TestState1.class, sm.getCurrentState().getClass());
+        sm.trigger(TestTrigger.STATE1_SUCCESS);
+        Assert.assertEquals(TestState3.class, sm.getCurrentState().getClass());
+
+        Assert.assertEquals(Arrays.asList("Entering TestState5", "Entering TestState1", "Exiting TestState1",
+                "Exiting TestState5", "Entering TestState3"), Arrays.asList(testContext.getLogs()));
+    }
+
+    @Test
+    public void shouldNotAllowInternalTransitionWithTargetState() {
+        final StateMachine<TestTrigger, TestContext> sm = new StateMachine<TestTrigger, TestContext>(new TestContext());
+        final TriggerConfiguration<TestTrigger, TestContext> triggerConfiguration = sm.state(TestState1.class)
+                .on(TestTrigger.STATE1_SUCCESS);
+        triggerConfiguration.goesTo(TestState2.class);
+
+        exception.expect(FsmException.class);
+        exception.expectMessage("A transition of state TestState1 with a target state can't be internal");
+        triggerConfiguration.internal((context, payload) -> context.setCounter(1));
+    }
+}
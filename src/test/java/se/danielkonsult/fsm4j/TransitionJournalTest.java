@@ -0,0 +1,226 @@
+package se.danielkonsult.fsm4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import se.danielkonsult.fsm4j.SnapshotTest.TestContextCodec;
+import se.danielkonsult.fsm4j.states.TestState1;
+import se.danielkonsult.fsm4j.states.TestState2;
+
+/**
+ * Tests of recording the transitions of state machines in a journal and replaying them.
+ */
+public class TransitionJournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private StateMachine<TestTrigger, TestContext> createStateMachine(final TestContext testContext) {
+        final StateMachine<TestTrigger, TestContext> sm = new StateMachine<TestTrigger, TestContext>(testContext);
+        sm.setContextCodec(new TestContextCodec());
+        sm.state(TestState1.class).isInitialState()
+                .on(TestTrigger.STATE1_SUCCESS).goesTo(TestState2.class);
+        sm.state(TestState2.class)
+                .on(TestTrigger.STATE2_SUCCESS).goesTo(TestState1.class);
+        return sm;
+    }
+
+    @Test
+    public void shouldReplayWithoutEnteringStates() throws IOException {
+        final Path directory = folder.newFolder().toPath();
+        try (TransitionJournal journal = new TransitionJournal(directory)) {
+            final StateMachine<TestTrigger, TestContext> sm = createStateMachine(new TestContext());
+            sm.setJournal(journal);
+            sm.start();
+            sm.trigger(TestTrigger.STATE1_SUCCESS);
+            sm.trigger(TestTrigger.STATE2_SUCCESS);
+            sm.trigger(TestTrigger.STATE1_SUCCESS);
+        }
+
+        try (TransitionJournal journal = new TransitionJournal(directory)) {
+            final TestContext testContext = new TestContext();
+            final StateMachine<TestTrigger, TestContext> sm = createStateMachine(testContext);
+            Assert.assertTrue(journal.replay(sm));
+            Assert.assertEquals(TestState2.class, sm.getCurrentState().getClass());
+            Assert.assertEquals(0, testContext.getLogs().length);
+
+            // Continue recording after the replayed transitions
+            sm.setJournal(journal);
+            sm.trigger(TestTrigger.STATE2_SUCCESS);
+        }
+
+        try (TransitionJournal journal = new TransitionJournal(directory)) {
+            final StateMachine<TestTrigger, TestContext> sm = createStateMachine(new TestContext());
+            journal.replay(sm);
+            Assert.assertEquals(TestState1.class, sm.getCurrentState().getClass());
+        }
+    }
+
+    @Test
+    public void shouldReplayByEnteringStates() throws IOException {
+        final Path directory = folder.newFolder().toPath();
+        try (TransitionJournal journal = new TransitionJournal(directory)) {
+            final StateMachine<TestTrigger, TestContext> sm = createStateMachine(new TestContext());
+            sm.setJournal(journal);
+            sm.start();
+            sm.triggerAll(Arrays.asList(TestTrigger.STATE1_SUCCESS, TestTrigger.STATE2_SUCCESS));
+        }
+
+        try (TransitionJournal journal = new TransitionJournal(directory)) {
+            final TestContext testContext = new TestContext();
+            final StateMachine<TestTrigger, TestContext> sm = createStateMachine(testContext);
+            journal.replay(sm, true);
+            Assert.assertEquals(TestState1.class, sm.getCurrentState().getClass());
+            Assert.assertArrayEquals(new String[] { "Entering TestState1", "Exiting TestState1", "Entering TestState2",
+                    "Exiting TestState2", "Entering TestState1" }, testContext.getLogs());
+        }
+    }
+
+    @Test
+    public void shouldReplayInternalTransitions() throws IOException {
+        final Path directory = folder.newFolder().toPath();
+        try (TransitionJournal journal = new TransitionJournal(directory)) {
+            final StateMachine<TestTrigger, TestContext> sm = createStateMachineWithInternalTransition(new TestContext());
+            sm.setJournal(journal);
+            sm.start();
+            sm.triggerAll(Arrays.asList(TestTrigger.STATE1_SUCCESS, TestTrigger.STATE2_FAIL, TestTrigger.STATE2_FAIL));
+            Assert.assertEquals(2, sm.getContext().getCounter());
+        }
+
+        try (TransitionJournal journal = new TransitionJournal(directory)) {
+            final TestContext testContext = new TestContext();
+            final StateMachine<TestTrigger, TestContext> sm = createStateMachineWithInternalTransition(testContext);
+            journal.replay(sm, true);
+            Assert.assertEquals(TestState2.class, sm.getCurrentState().getClass());
+            Assert.assertEquals(2, testContext.getCounter());
+            Assert.assertArrayEquals(new String[] { "Entering TestState1", "Exiting TestState1", "Entering TestState2" },
+                    testContext.getLogs());
+        }
+    }
+
+    private StateMachine<TestTrigger, TestContext> createStateMachineWithInternalTransition(final TestContext testContext) {
+        final StateMachine<TestTrigger, TestContext> sm = new StateMachine<TestTrigger, TestContext>(testContext);
+        sm.state(TestState1.class).isInitialState()
+                .on(TestTrigger.STATE1_SUCCESS).goesTo(TestState2.class);
+        sm.state(TestState2.class)
+                .on(TestTrigger.STATE2_SUCCESS).goesTo(TestState1.class)
+                .on(TestTrigger.STATE2_FAIL).internal((context, payload) -> context.setCounter(context.getCounter() + 1));
+        return sm;
+    }
+
+    @Test
+    public void shouldRollSegmentsAndCompact() throws IOException {
+        final Path directory = folder.newFolder().toPath();
+        try (TransitionJournal journal = new TransitionJournal(directory, 64, FsyncPolicy.NEVER)) {
+            final TestContext testContext = new TestContext();
+            final StateMachine<TestTrigger, TestContext> sm = createStateMachine(testContext);
+            sm.setJournal(journal);
+            sm.start();
+            for (int i = 0; i < 50; i++) {
+                sm.trigger(TestTrigger.STATE1_SUCCESS);
+                sm.trigger(TestTrigger.STATE2_SUCCESS);
+            }
+            sm.trigger(TestTrigger.STATE1_SUCCESS);
+            Assert.assertTrue(journal.getSegmentCount() > 1);
+
+            testContext.setCounter(42);
+            journal.compact(sm);
+            Assert.assertEquals(1, journal.getSegmentCount());
+            Assert.assertEquals(1, directory.toFile().list().length);
+            sm.trigger(TestTrigger.STATE2_SUCCESS);
+        }
+
+        try (TransitionJournal journal = new TransitionJournal(directory, 64, FsyncPolicy.NEVER)) {
+            final StateMachine<TestTrigger, TestContext> sm = createStateMachine(new TestContext());
+            journal.replay(sm);
+            Assert.assertEquals(TestState1.class, sm.getCurrentState().getClass());
+            // The context comes from the checkpoint
+            Assert.assertEquals(42, sm.getContext().getCounter());
+        }
+    }
+
+    @Test
+    public void shouldStopAtPartlyWrittenRecord() throws IOException {
+        final Path directory = folder.newFolder().toPath();
+        try (TransitionJournal journal = new TransitionJournal(directory)) {
+            final StateMachine<TestTrigger, TestContext> sm = createStateMachine(new TestContext());
+            sm.setJournal(journal);
+            sm.start();
+            sm.trigger(TestTrigger.STATE1_SUCCESS);
+            sm.trigger(TestTrigger.STATE2_SUCCESS);
+        }
+
+        // The start record takes 6 bytes and each transition 8, damage the second transition
+        final File segment = directory.toFile().listFiles()[0];
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.seek(6 + 8 + 2);
+            file.write(0x7f);
+        }
+
+        try (TransitionJournal journal = new TransitionJournal(directory)) {
+            final StateMachine<TestTrigger, TestContext> sm = createStateMachine(new TestContext());
+            journal.replay(sm);
+            Assert.assertEquals(TestState2.class, sm.getCurrentState().getClass());
+        }
+    }
+
+    @Test
+    public void shouldNotReplayPastDamagedRecordIntoLaterSegments() throws IOException {
+        final Path directory = folder.newFolder().toPath();
+        try (TransitionJournal journal = new TransitionJournal(directory, 64, FsyncPolicy.NEVER)) {
+            final StateMachine<TestTrigger, TestContext> sm = createStateMachine(new TestContext());
+            sm.setJournal(journal);
+            sm.start();
+            for (int i = 0; i < 10; i++) {
+                sm.trigger(TestTrigger.STATE1_SUCCESS);
+                sm.trigger(TestTrigger.STATE2_SUCCESS);
+            }
+            Assert.assertTrue(journal.getSegmentCount() > 1);
+        }
+
+        // Damage the second transition of the first segment
+        final File segment = directory.resolve("segment-00000000.journal").toFile();
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.seek(6 + 8 + 2);
+            file.write(0x7f);
+        }
+
+        try (TransitionJournal journal = new TransitionJournal(directory, 64, FsyncPolicy.NEVER)) {
+            final StateMachine<TestTrigger, TestContext> sm = createStateMachine(new TestContext());
+            journal.replay(sm);
+            Assert.assertEquals(TestState2.class, sm.getCurrentState().getClass());
+        }
+    }
+
+    @Test
+    public void shouldStopAtTransitionFromAnotherState() throws IOException {
+        final Path directory = folder.newFolder().toPath();
+        try (TransitionJournal journal = new TransitionJournal(directory)) {
+            final StateMachine<TestTrigger, TestContext> sm = createStateMachine(new TestContext());
+            sm.setJournal(journal);
+            sm.start();
+            sm.trigger(TestTrigger.STATE1_SUCCESS);
+
+            // Another state machine, that is still in TestState1, records into the same journal
+            final StateMachine<TestTrigger, TestContext> other = createStateMachine(new TestContext());
+            other.start();
+            other.setJournal(journal);
+            other.trigger(TestTrigger.STATE1_SUCCESS);
+            other.trigger(TestTrigger.STATE2_SUCCESS);
+        }
+
+        try (TransitionJournal journal = new TransitionJournal(directory)) {
+            final StateMachine<TestTrigger, TestContext> sm = createStateMachine(new TestContext());
+            journal.replay(sm);
+            Assert.assertEquals(TestState2.class, sm.getCurrentState().getClass());
+        }
+    }
+}
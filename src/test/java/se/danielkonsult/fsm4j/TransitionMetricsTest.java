@@ -0,0 +1,130 @@
+package se.danielkonsult.fsm4j;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import se.danielkonsult.fsm4j.states.TestState1;
+import se.danielkonsult.fsm4j.states.TestState2;
+import se.danielkonsult.fsm4j.states.TestState3;
+
+public class TransitionMetricsTest {
+
+    private StateMachine<TestTrigger, TestContext> createStateMachine(final TestContext testContext) {
+        final StateMachine<TestTrigger, TestContext> sm = new StateMachine<TestTrigger, TestContext>(testContext);
+        sm.setMetricsEnabled(true);
+        sm.setInvalidTriggerPolicy(InvalidTriggerPolicy.COUNT);
+        sm.state(TestState1.class).isInitialState()
+                .on(TestTrigger.STATE1_SUCCESS, TestContext::getTestSwitch).goesTo(TestState2.class)
+                .on(TestTrigger.STATE1_SUCCESS, context -> !context.getTestSwitch()).goesTo(TestState3.class);
+        sm.state(TestState2.class)
+                .on(TestTrigger.STATE2_SUCCESS).goesTo(TestState1.class);
+        sm.state(TestState3.class)
+                .on(TestTrigger.STATE3_SUCCESS).goesTo(TestState1.class);
+        return sm;
+    }
+
+    /**
+     * Tests that transitions, dwell times, entering and exiting latencies, guard evaluations and invalid triggers are recorded.
+     */
+    @Test
+    public void shouldRecordTransitions() {
+        final TestContext testContext = new TestContext();
+        testContext.setTestSwitch(true);
+        final StateMachine<TestTrigger, TestContext> sm = createStateMachine(testContext);
+        sm.start();
+
+        for (int i = 0; i < 10; i++) {
+            sm.trigger(TestTrigger.STATE1_SUCCESS);
+            sm.trigger(TestTrigger.STATE3_SUCCESS);
+            sm.trigger(TestTrigger.STATE2_SUCCESS);
+        }
+        sm.stop();
+
+        final TransitionMetrics metrics = sm.getMetrics();
+        Assert.assertEquals(10, metrics.getTransitionCount(TestState1.class, TestState2.class));
+        Assert.assertEquals(10, metrics.getTransitionCount(TestState2.class, TestState1.class));
+        Assert.assertEquals(0, metrics.getTransitionCount(TestState1.class, TestState3.class));
+        Assert.assertEquals(10, metrics.getInvalidTriggerCount(TestState2.class));
+        Assert.assertEquals(11, metrics.getEnteringLatency(TestState1.class).getCount());
+        Assert.assertEquals(11, metrics.getExitingLatency(TestState1.class).getCount());
+        Assert.assertEquals(11, metrics.getDwellTime(TestState1.class).getCount());
+        Assert.assertEquals(10, metrics.getGuardLatency(TestState1.class).getCount());
+        Assert.assertEquals(0, metrics.getGuardLatency(TestState2.class).getCount());
+
+        Assert.assertEquals(2, metrics.getTransitionCounts().size());
+        Assert.assertEquals(Long.valueOf(10), metrics.getTransitionCounts().get("TestState1 -> TestState2"));
+        Assert.assertFalse(metrics.getDwellTimes().containsKey("TestState3"));
+    }
+
+    /**
+     * Tests that the metrics of a definition are shared by its instances, and that nothing is recorded when they're disabled.
+     */
+    @Test
+    public void shouldShareMetricsBetweenInstances() {
+        final StateMachine<TestTrigger, TestContext> sm = createStateMachine(new TestContext());
+        final StateMachineDefinition<TestTrigger, TestContext> definition = sm.getDefinition();
+        for (int i = 0; i < 3; i++) {
+            final StateMachineInstance<TestTrigger, TestContext> instance = definition.newInstance(new TestContext());
+            instance.start();
+            instance.trigger(TestTrigger.STATE1_SUCCESS);
+        }
+        Assert.assertEquals(3, definition.getMetrics().getTransitionCount(TestState1.class, TestState3.class));
+
+        sm.setMetricsEnabled(false);
+        Assert.assertNull(sm.getMetrics());
+    }
+
+    /**
+     * Tests that the metrics can be read through JMX.
+     */
+    @Test
+    public void shouldExposeMetricsThroughJmx() throws Exception {
+        final TestContext testContext = new TestContext();
+        testContext.setTestSwitch(true);
+        final StateMachine<TestTrigger, TestContext> sm = createStateMachine(testContext);
+        sm.start();
+        sm.trigger(TestTrigger.STATE1_SUCCESS);
+        sm.trigger(TestTrigger.STATE2_SUCCESS);
+
+        final TransitionMetrics metrics = sm.getMetrics();
+        metrics.register("turnstile");
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            final TabularData counts = (TabularData) server.getAttribute(metrics.getObjectName(), "TransitionCounts");
+            Assert.assertEquals(2, counts.size());
+            final CompositeData count = counts.get(new Object[] { "TestState1 -> TestState2" });
+            Assert.assertEquals(1L, count.get("value"));
+
+            final TabularData dwellTimes = (TabularData) server.getAttribute(metrics.getObjectName(), "DwellTimes");
+            final CompositeData dwellTime = (CompositeData) dwellTimes.get(new Object[] { "TestState2" }).get("value");
+            Assert.assertEquals(1L, dwellTime.get("count"));
+        } finally {
+            metrics.unregister();
+        }
+        Assert.assertNull(metrics.getObjectName());
+    }
+
+    /**
+     * Tests that the percentiles of a histogram are within the precision of its buckets.
+     */
+    @Test
+    public void shouldComputePercentiles() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for (long value = 1; value <= 100000; value++) {
+            histogram.record(value);
+        }
+        final LatencySnapshot snapshot = histogram.snapshot();
+        Assert.assertEquals(100000, snapshot.getCount());
+        Assert.assertEquals(50000.5, snapshot.getMean(), 0.001);
+        Assert.assertEquals(100000, snapshot.getMax());
+        Assert.assertEquals(50000, snapshot.getP50(), 50000 * 0.03);
+        Assert.assertEquals(99000, snapshot.getP99(), 99000 * 0.03);
+        Assert.assertEquals(99900, snapshot.getP999(), 99900 * 0.03);
+    }
+}